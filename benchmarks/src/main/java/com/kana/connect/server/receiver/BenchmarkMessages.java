@@ -0,0 +1,68 @@
+/*
+ * Benchmark Messages -- incoming SMPP messages for benchmarks
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.brickstreet.smpp.protocol.util.SMPPIO;
+import com.kana.connect.server.smpp.message.DeliverSM;
+import com.kana.connect.server.smpp.util.DefaultAlphabetEncoding;
+
+/**
+ * Builds SmppReceiverMessages from deliver_sm PDUs, the way the SMPP
+ * receiver does.
+ */
+public class BenchmarkMessages
+{
+    public static final String SOURCE = "14155551212";
+    public static final String DESTINATION = "16035551212";
+
+    public static SmppReceiverMessage deliverSM(String source, String destination, String text)
+        throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        // header; the pdu length is filled in below
+        SMPPIO.writeInt(0, 4, baos);
+        SMPPIO.writeInt(5, 4, baos);    // deliver_sm = 5
+        SMPPIO.writeInt(0, 4, baos);    // command_status
+        SMPPIO.writeInt(1, 4, baos);    // sequence_number
+
+        SMPPIO.writeCString("", baos);  // service_type
+        SMPPIO.writeInt(0, 1, baos);    // source ton
+        SMPPIO.writeInt(0, 1, baos);    // source npi
+        SMPPIO.writeCString(source, baos);
+        SMPPIO.writeInt(0, 1, baos);    // dest ton
+        SMPPIO.writeInt(0, 1, baos);    // dest npi
+        SMPPIO.writeCString(destination, baos);
+        SMPPIO.writeInt(0, 1, baos);    // esm_class
+        SMPPIO.writeInt(0, 1, baos);    // protocol id
+        SMPPIO.writeInt(0, 1, baos);    // priority flag
+        SMPPIO.writeInt(0, 1, baos);    // schedule delivery time
+        SMPPIO.writeInt(0, 1, baos);    // validity period
+        SMPPIO.writeInt(0, 1, baos);    // registered delivery
+        SMPPIO.writeInt(0, 1, baos);    // replace if present
+        SMPPIO.writeInt(0, 1, baos);    // data coding; 0 = default alphabet
+        SMPPIO.writeInt(0, 1, baos);    // sm_default_msg_id
+
+        byte[] msg = new DefaultAlphabetEncoding().encodeString(text);
+        SMPPIO.writeInt(msg.length, 1, baos);
+        baos.write(msg);
+
+        byte[] pdu = baos.toByteArray();
+        byte[] len = SMPPIO.intToBytes(pdu.length, 4);
+        System.arraycopy(len, 0, pdu, 0, 4);
+
+        DeliverSM deliverSM = new DeliverSM();
+        deliverSM.readFrom(pdu, 0);
+        return new SmppReceiverMessage(deliverSM, 1, 1);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Handle Benchmark -- SMSKeywordDispatchReplyHandler.handle() end to end
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kana.connect.common.db.CustomerRow;
+
+import net.brickst.connect.custom.benchmarks.NullEndpoint;
+
+/**
+ * The whole handle() path: keyword match, number mapping, XML document,
+ * XSL transform with soap1.xsl and delivery to a NullEndpoint. The
+ * customer lookup is left out because it needs a Connect database.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HandleBenchmark
+{
+    // handler without the customer table
+    static class BenchmarkHandler extends SMSKeywordDispatchReplyHandler
+    {
+        protected CustomerRow lookupCustomer(String smsNumber)
+        {
+            return null;
+        }
+    }
+
+    @Param({ "10", "100" })
+    int keywordCount;
+
+    // content.input
+    @Param({ "STRING", "SAX" })
+    String contentInput;
+
+    // relative to the working directory; run from the project root
+    @Param("soap1.xsl")
+    String xslFile;
+
+    File dir;
+    BenchmarkHandler handler;
+    SmppReceiverMessage match;
+    SmppReceiverMessage noMatch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        dir = File.createTempFile("handleBenchmark", "");
+        dir.delete();
+        dir.mkdirs();
+
+        Properties props = new Properties();
+        props.setProperty("regex_count", Integer.toString(keywordCount));
+        for (int i = 0; i < keywordCount; i++) {
+            props.setProperty("regex_" + i + ".pattern", "(?i)" + keyword(i) + ".*");
+        }
+        props.setProperty("endpoint_retrydir", new File(dir, "retry").getAbsolutePath());
+        props.setProperty("endpoint_count", "1");
+        props.setProperty("endpoint_0.type", "CUSTOM");
+        props.setProperty("endpoint_0.className", NullEndpoint.class.getName());
+        props.setProperty("mapping_count", "1");
+        props.setProperty("mapping_0.number", BenchmarkMessages.DESTINATION);
+        props.setProperty("mapping_0.endpoint", "0");
+        props.setProperty("content.type", "XSL");
+        props.setProperty("content.url", new File(xslFile).toURI().toString());
+        props.setProperty("content.input", contentInput);
+
+        File configFile = new File(dir, "handlebenchmark.properties");
+        OutputStream out = new FileOutputStream(configFile);
+        try {
+            props.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        SMSKeywordDispatchReplyHandler.loadConfig(configFile);
+        handler = new BenchmarkHandler();
+        handler.useConfig(configFile);
+        handler.initNetworkResources();
+
+        // last keyword: worst case for the match
+        match = BenchmarkMessages.deliverSM(BenchmarkMessages.SOURCE,
+            BenchmarkMessages.DESTINATION, keyword(keywordCount - 1).toLowerCase() + " please");
+        noMatch = BenchmarkMessages.deliverSM(BenchmarkMessages.SOURCE,
+            BenchmarkMessages.DESTINATION, "hello there");
+    }
+
+    // fixed width, so that no keyword is a prefix of another
+    private static String keyword(int i)
+    {
+        return String.format("KEYWORD%04d", i);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup()
+    {
+        SMSKeywordDispatchReplyHandler.clearConfigs();
+        delete(dir);
+    }
+
+    private static void delete(File f)
+    {
+        File[] list = f.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            delete(list[i]);
+        }
+        f.delete();
+    }
+
+    @Benchmark
+    public int handleMatch()
+    {
+        return handler.handle(match, null);
+    }
+
+    // messages that match no keyword return before any content is built
+    @Benchmark
+    public int handleNoMatch()
+    {
+        return handler.handle(noMatch, null);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * SMPP XML Benchmark -- building the XML document for the content template
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.brickst.connect.custom.content.SmppDocument;
+
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SmppXmlBenchmark
+{
+    SmppReceiverMessage message;
+    SmppDocument document;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        message = BenchmarkMessages.deliverSM(BenchmarkMessages.SOURCE,
+            BenchmarkMessages.DESTINATION, "STOP sending me messages");
+        document = SMSKeywordDispatchReplyHandler.toSmppDocument(message);
+    }
+
+    // field copies from the SMPP request plus the XML text
+    @Benchmark
+    public String smppToXml()
+    {
+        return SMSKeywordDispatchReplyHandler.smppToXml(message);
+    }
+
+    // the XML text alone
+    @Benchmark
+    public String documentToXml()
+    {
+        return document.toXml();
+    }
+}
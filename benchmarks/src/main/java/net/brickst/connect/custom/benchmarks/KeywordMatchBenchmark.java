@@ -0,0 +1,115 @@
+/*
+ * Keyword Match Benchmark -- pattern matching as the pattern count grows
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.benchmarks;
+
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.brickst.connect.custom.keyword.KeywordIndex;
+
+/**
+ * Compares KeywordIndex with the linear scan over matchPatterns that the
+ * handler used before it. Messages cycle through a hit on the last pattern
+ * (worst case for the scan), a hit in the middle and a miss.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KeywordMatchBenchmark
+{
+    @Param({ "1", "10", "100", "1000" })
+    int patternCount;
+
+    // LITERAL: STOP; PREFIX: STOP.*; REGEX: patterns that need the regex engine
+    @Param({ "LITERAL", "PREFIX", "REGEX" })
+    String patternKind;
+
+    Pattern[] patterns;
+    KeywordIndex index;
+    String[] messages;
+    int next;
+
+    @Setup
+    public void setup()
+    {
+        patterns = new Pattern[patternCount];
+        for (int i = 0; i < patternCount; i++) {
+            patterns[i] = Pattern.compile(pattern(keyword(i)));
+        }
+        index = new KeywordIndex(patterns);
+        messages = new String[] {
+            message(keyword(patternCount - 1)),
+            message(keyword(patternCount / 2)),
+            "NOT A KEYWORD"
+        };
+    }
+
+    // fixed width, so that no keyword is a prefix of another
+    private static String keyword(int i)
+    {
+        return String.format("KEYWORD%04d", i);
+    }
+
+    private String pattern(String keyword)
+    {
+        if ("PREFIX".equals(patternKind)) {
+            return keyword + ".*";
+        }
+        if ("REGEX".equals(patternKind)) {
+            return keyword + "[0-9]{0,3}";
+        }
+        return keyword;
+    }
+
+    private String message(String keyword)
+    {
+        if ("PREFIX".equals(patternKind)) {
+            return keyword + " please";
+        }
+        if ("REGEX".equals(patternKind)) {
+            return keyword + "42";
+        }
+        return keyword;
+    }
+
+    private String nextMessage()
+    {
+        String msg = messages[next];
+        next = (next + 1) % messages.length;
+        return msg;
+    }
+
+    @Benchmark
+    public int keywordIndex()
+    {
+        return index.match(nextMessage());
+    }
+
+    @Benchmark
+    public int linearScan()
+    {
+        String msg = nextMessage();
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].matcher(msg).matches()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
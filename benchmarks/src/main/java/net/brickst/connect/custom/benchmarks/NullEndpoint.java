@@ -0,0 +1,33 @@
+/*
+ * Null Endpoint -- endpoint that accepts and drops every message
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.benchmarks;
+
+import java.util.Properties;
+
+import net.brickst.connect.custom.webservices.WebEndpoint;
+
+/**
+ * Delivers nowhere, so that benchmarks measure the code around the
+ * delivery. Usable as a CUSTOM endpoint (endpoint_N.className).
+ */
+public class NullEndpoint extends WebEndpoint
+{
+    public void initFromProperties(Properties props, String prefix)
+    {
+    }
+
+    public void initNetworkResources()
+    {
+    }
+
+    public void deliverMessage(String content)
+    {
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Retry Benchmark -- saving and draining retries on tmpfs
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.brickst.connect.custom.webservices.RetryJournal;
+
+/**
+ * WebEndpoint.scheduleRetry and doRetry against a NullEndpoint. The retry
+ * store lives on tmpfs so that the numbers show the code path and not the
+ * disk; on a machine without /dev/shm, java.io.tmpdir is used.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RetryBenchmark
+{
+    static final int BATCH = 100;
+
+    static final String MESSAGE = "<soap:Envelope><soap:Body><sms from=\"14155551212\" "
+        + "to=\"16035551212\">STOP sending me messages</sms></soap:Body></soap:Envelope>";
+
+    @Param("/dev/shm")
+    String tmpfs;
+
+    @Param({ "FILES", "JOURNAL" })
+    String retryStore;
+
+    NullEndpoint endpoint;
+    File retryDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        File base = new File(tmpfs);
+        if (!base.isDirectory()) {
+            base = new File(System.getProperty("java.io.tmpdir"));
+        }
+        retryDir = File.createTempFile("retryBenchmark", "", base);
+        retryDir.delete();
+        retryDir.mkdirs();
+
+        endpoint = new NullEndpoint();
+        endpoint.setRetryDir(retryDir);
+        if ("JOURNAL".equals(retryStore)) {
+            endpoint.useRetryJournal(RetryJournal.DEFAULT_SEGMENT_BYTES, false);
+        }
+    }
+
+    // scheduleRetry() leaves its messages behind; don't let them pile up
+    @TearDown(Level.Iteration)
+    public void drain()
+    {
+        while (endpoint.hasPendingRetries()) {
+            endpoint.doRetry();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException
+    {
+        RetryJournal journal = endpoint.getRetryJournal();
+        if (journal != null) {
+            journal.close();
+        }
+        delete(retryDir);
+    }
+
+    private static void delete(File f)
+    {
+        File[] list = f.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            delete(list[i]);
+        }
+        f.delete();
+    }
+
+    @Benchmark
+    public void scheduleRetry() throws IOException
+    {
+        endpoint.scheduleRetry(MESSAGE);
+    }
+
+    // cost per message of saving a batch and delivering it from the store
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public boolean scheduleAndRetry() throws IOException
+    {
+        for (int i = 0; i < BATCH; i++) {
+            endpoint.scheduleRetry(MESSAGE);
+        }
+        return endpoint.doRetry();
+    }
+}
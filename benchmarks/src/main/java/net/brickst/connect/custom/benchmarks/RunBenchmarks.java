@@ -0,0 +1,60 @@
+/*
+ * Run Benchmarks -- runs the benchmarks with the standard reports
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks twice: once for throughput in ops/s and once for
+ * latency percentiles in microseconds (sample mode). Both runs use the GC
+ * profiler, which adds the allocation rate (gc.alloc.rate and
+ * gc.alloc.rate.norm, bytes per op). Results are also written as JSON to
+ * jmh-throughput.json and jmh-latency.json, to compare between builds.
+ *
+ *   java -cp target/benchmarks.jar net.brickst.connect.custom.benchmarks.RunBenchmarks [regex]
+ *
+ * The optional regex selects benchmarks, e.g. "Keyword". For other
+ * combinations use the JMH command line: java -jar target/benchmarks.jar -h
+ */
+public class RunBenchmarks
+{
+    public static void main(String[] args) throws RunnerException
+    {
+        String include = (args.length > 0) ? args[0] : ".*";
+
+        Options throughput = new OptionsBuilder()
+            .include(include)
+            .mode(Mode.Throughput)
+            .timeUnit(TimeUnit.SECONDS)
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result("jmh-throughput.json")
+            .build();
+        new Runner(throughput).run();
+
+        Options latency = new OptionsBuilder()
+            .include(include)
+            .mode(Mode.SampleTime)
+            .timeUnit(TimeUnit.MICROSECONDS)
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result("jmh-latency.json")
+            .build();
+        new Runner(latency).run();
+    }
+}
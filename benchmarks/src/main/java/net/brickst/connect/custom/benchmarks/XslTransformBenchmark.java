@@ -0,0 +1,85 @@
+/*
+ * XSL Transform Benchmark -- XslContent with soap1.xsl
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.brickst.connect.custom.content.SmppDocument;
+import net.brickst.connect.custom.content.XslContent;
+
+/**
+ * The three ways the handler runs the content template: from the XML text
+ * (content.input=STRING), from SAX events (content.input=SAX) and to UTF-8
+ * bytes for endpoints that send bytes.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class XslTransformBenchmark
+{
+    // relative to the working directory; run from the project root
+    @Param("soap1.xsl")
+    String xslFile;
+
+    XslContent content;
+    SmppDocument document;
+    String xml;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        content = new XslContent();
+        content.setXslLocation(new File(xslFile).toURI().toURL());
+        content.initXslContent();
+        document = sampleDocument();
+        xml = document.toXml();
+    }
+
+    static SmppDocument sampleDocument()
+    {
+        SmppDocument doc = new SmppDocument();
+        doc.setCommandId(5);
+        doc.setSequenceNumber(1);
+        doc.setSourceAddress("14155551212");
+        doc.setDestinationAddress("16035551212");
+        doc.setMessageId("1");
+        doc.setMessageText("STOP sending me messages");
+        doc.setTimestamp(System.currentTimeMillis());
+        return doc;
+    }
+
+    @Benchmark
+    public String transformString() throws Exception
+    {
+        return content.transformDocument(xml);
+    }
+
+    @Benchmark
+    public String transformSAX() throws Exception
+    {
+        return content.transformDocument(document.toSAXSource());
+    }
+
+    @Benchmark
+    public byte[] transformUTF8() throws Exception
+    {
+        return content.transformDocumentUTF8(document.toSAXSource());
+    }
+}
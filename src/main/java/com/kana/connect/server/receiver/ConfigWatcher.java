@@ -0,0 +1,120 @@
+/*
+ * Config Watcher -- watches a config file for changes
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import com.kana.connect.common.lib.Debug;
+
+/**
+ * Calls fileChanged() when a config file is written, created or replaced.
+ *
+ * A WatchService on the file's directory runs on a daemon thread. Editors
+ * and deploy scripts often write a file in several steps, so the watcher
+ * waits until the file has been quiet for quietMS before it reports one
+ * change.
+ */
+public abstract class ConfigWatcher implements Runnable {
+	public static final long DEFAULT_QUIET_MS = 500;
+
+	private final File configFile;
+	private final long quietMS;
+	private final WatchService watchService;
+	private final Thread thread;
+	private volatile boolean stopped;
+
+	public ConfigWatcher(File configFile, long quietMS) throws IOException {
+		this.configFile = configFile.getAbsoluteFile();
+		this.quietMS = Math.max(quietMS, 0);
+		Path dir = this.configFile.getParentFile().toPath();
+		watchService = dir.getFileSystem().newWatchService();
+		dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		thread = new Thread(this, "ConfigWatcher " + this.configFile.getName());
+		thread.setDaemon(true);
+	}
+
+	public File getConfigFile() {
+		return configFile;
+	}
+
+	/**
+	 * Called on the watcher thread after the file changed.
+	 */
+	protected abstract void fileChanged(File file);
+
+	public void start() {
+		thread.start();
+	}
+
+	public void stop() {
+		stopped = true;
+		try {
+			watchService.close();
+		} catch (IOException x) {
+			// ignore
+		}
+		thread.interrupt();
+	}
+
+	public void run() {
+		try {
+			while (!stopped) {
+				WatchKey key = watchService.take();
+				if (!isConfigChange(key)) {
+					continue;
+				}
+				// wait for the writes to settle
+				WatchKey next;
+				while ((next = watchService.poll(quietMS, TimeUnit.MILLISECONDS)) != null) {
+					isConfigChange(next);
+				}
+				if (stopped) {
+					break;
+				}
+				try {
+					fileChanged(configFile);
+				} catch (Throwable th) {
+					if (Debug.SR.isEnabled()) {
+						Debug.SR.printException(th, "ConfigWatcher: error handling change to " + configFile);
+					}
+				}
+			}
+		} catch (InterruptedException x) {
+			// stopped
+		} catch (ClosedWatchServiceException x) {
+			// stopped
+		}
+	}
+
+	// true if the key has an event for the config file; re-arms the key
+	private boolean isConfigChange(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// events were lost; assume the file changed
+				changed = true;
+			}
+			else if (configFile.getName().equals(event.context().toString())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+}
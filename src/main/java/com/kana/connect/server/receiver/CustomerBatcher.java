@@ -0,0 +1,312 @@
+/*
+ * Customer Batcher -- coalesces concurrent customer lookups into batches
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kana.connect.common.lib.Debug;
+
+/**
+ * Looks up customer IDs by sms number in batches, so that a burst of
+ * messages costs a few queries instead of one per message.
+ *
+ * lookup() queues the number and returns a future. A worker thread takes
+ * the first queued lookup, waits up to lingerMS for more (or until it has
+ * batchSize of them) and answers them all with one BatchQuery call; the
+ * same number asked for twice in a batch is queried once. With a few
+ * threads, one batch can be filled while another is being queried.
+ *
+ * An idle batcher costs a message at most lingerMS; under load the batches
+ * fill up before the linger time is over.
+ */
+public class CustomerBatcher {
+	public static final long DEFAULT_LINGER_MS = 2;
+	public static final int DEFAULT_THREADS = 2;
+	public static final long DEFAULT_TIMEOUT_MS = 1000;
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+	// how often idle workers check for shutdown
+	private static final long IDLE_POLL_MS = 1000;
+
+	/**
+	 * Finds the customers of several sms numbers at once, e.g. with an
+	 * IN-list query. Numbers without a customer are left out of the result.
+	 * Called by one worker thread at a time per batch; several batches may
+	 * run at once.
+	 */
+	public interface BatchQuery {
+		Map<String, Long> findCustomerIDs(List<String> smsNumbers) throws Exception;
+	}
+
+	// the future of one lookup, completed by the worker that queries it
+	static class Lookup extends FutureTask<Long> {
+		private static final Callable<Long> NOT_RUN = new Callable<Long>() {
+			public Long call() {
+				throw new IllegalStateException("completed by the batch");
+			}
+		};
+
+		final String smsNumber;
+
+		Lookup(String smsNumber) {
+			super(NOT_RUN);
+			this.smsNumber = smsNumber;
+		}
+
+		void complete(Long customerID) {
+			set(customerID);
+		}
+
+		void fail(Throwable th) {
+			setException(th);
+		}
+	}
+
+	private final BatchQuery query;
+	private final int batchSize;
+	private final long lingerMS;
+	private final int threads;
+	private final long timeoutMS;
+	private final BlockingQueue<Lookup> queue = new ArrayBlockingQueue<Lookup>(DEFAULT_QUEUE_SIZE);
+	private final AtomicInteger running = new AtomicInteger();
+	private volatile boolean stopped;
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+
+	public CustomerBatcher(BatchQuery query, int batchSize, long lingerMS, int threads,
+			long timeoutMS) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+		}
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Invalid thread count: " + threads);
+		}
+		this.query = query;
+		this.batchSize = batchSize;
+		this.lingerMS = Math.max(lingerMS, 0);
+		this.threads = threads;
+		this.timeoutMS = timeoutMS;
+
+		running.set(threads);
+		for (int i = 0; i < threads; i++) {
+			Thread th = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "CustomerBatcher-" + (i + 1));
+			th.setDaemon(true);
+			th.start();
+		}
+	}
+
+	public BatchQuery getQuery() {
+		return query;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getLingerMS() {
+		return lingerMS;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public long getTimeoutMS() {
+		return timeoutMS;
+	}
+
+	// batches queried so far
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	// lookups answered by those batches
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	/**
+	 * Queues a lookup. The future returns the customer ID, or null if the
+	 * number has no customer; it is cancelled if the queue is full or the
+	 * batcher was shut down.
+	 */
+	public Future<Long> lookup(String smsNumber) {
+		Lookup l = new Lookup(smsNumber);
+		if (stopped || !queue.offer(l)) {
+			l.cancel(false);
+			return l;
+		}
+		if (stopped && queue.remove(l)) {
+			// the workers may be gone already
+			l.cancel(false);
+		}
+		return l;
+	}
+
+	/**
+	 * Looks up the number and waits up to timeoutMS for the batch.
+	 *
+	 * @throws TimeoutException if the batch took too long
+	 * @throws Exception if the query failed or the lookup was rejected
+	 */
+	public Long findCustomerID(String smsNumber) throws Exception {
+		Future<Long> f = lookup(smsNumber);
+		try {
+			return f.get(timeoutMS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException x) {
+			// a worker that has not got to it yet skips it
+			f.cancel(false);
+			throw x;
+		}
+	}
+
+	/**
+	 * Stops the workers once they have answered the lookups that are
+	 * queued. Later lookups are cancelled. A query that is Closeable is
+	 * closed when the last worker stops.
+	 */
+	public void shutdown() {
+		stopped = true;
+	}
+
+	// worker thread
+	private void work() {
+		List<Lookup> batch = new ArrayList<Lookup>(batchSize);
+		try {
+			while (true) {
+				Lookup first;
+				try {
+					first = stopped ? queue.poll() : queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException x) {
+					break;
+				}
+				if (first == null) {
+					if (stopped) {
+						break;
+					}
+					continue;
+				}
+				batch.add(first);
+				fill(batch);
+				runBatch(batch);
+				batch.clear();
+			}
+		} finally {
+			if (running.decrementAndGet() == 0) {
+				closeQuery();
+			}
+		}
+	}
+
+	// adds queued lookups until the batch is full or the linger time is over
+	private void fill(List<Lookup> batch) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMS);
+		while (batch.size() < batchSize) {
+			Lookup next = queue.poll();
+			if (next == null) {
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0 || stopped) {
+					return;
+				}
+				try {
+					next = queue.poll(wait, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (next == null) {
+					return;
+				}
+			}
+			batch.add(next);
+		}
+	}
+
+	void runBatch(List<Lookup> batch) {
+		// lookups of the same number share one row of the query
+		Map<String, List<Lookup>> byNumber = new LinkedHashMap<String, List<Lookup>>();
+		for (int i = 0; i < batch.size(); i++) {
+			Lookup l = batch.get(i);
+			if (l.isDone()) {
+				// timed out and cancelled by the caller
+				continue;
+			}
+			List<Lookup> same = byNumber.get(l.smsNumber);
+			if (same == null) {
+				same = new ArrayList<Lookup>(1);
+				byNumber.put(l.smsNumber, same);
+			}
+			same.add(l);
+		}
+		if (byNumber.isEmpty()) {
+			return;
+		}
+
+		Map<String, Long> found;
+		try {
+			found = query.findCustomerIDs(new ArrayList<String>(byNumber.keySet()));
+		} catch (Throwable th) {
+			if (Debug.SR.isEnabled()) {
+				Debug.SR.printException(th, "CustomerBatcher: lookup of " + byNumber.size()
+						+ " sms numbers failed");
+			}
+			for (List<Lookup> same : byNumber.values()) {
+				for (Lookup l : same) {
+					l.fail(th);
+				}
+			}
+			return;
+		}
+		batches.incrementAndGet();
+		lookups.addAndGet(byNumber.size());
+		for (Map.Entry<String, List<Lookup>> e : byNumber.entrySet()) {
+			Long customerID = found.get(e.getKey());
+			for (Lookup l : e.getValue()) {
+				l.complete(customerID);
+			}
+		}
+	}
+
+	private void closeQuery() {
+		// lookups that came in after the last worker looked
+		Lookup l;
+		while ((l = queue.poll()) != null) {
+			l.cancel(false);
+		}
+		if (query instanceof Closeable) {
+			try {
+				((Closeable) query).close();
+			} catch (IOException x) {
+				if (Debug.SR.isEnabled()) {
+					Debug.SR.printException(x, "CustomerBatcher: error closing query");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Customer Cache -- SMS number to customer ID cache for the dispatch path
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of SMS number to customer ID, so that repeat senders
+ * do not cost a database round trip per message.
+ *
+ * Numbers without a customer are cached too (as NOT_FOUND), usually with
+ * a shorter TTL so that new customers show up soon. Entries expire after
+ * their TTL; when the cache is full the least recently used entry goes.
+ *
+ * The cache is split into segments, each an access-ordered LinkedHashMap
+ * with its own lock, so threads looking up different numbers rarely wait
+ * for each other.
+ *
+ * A lookup that was started before invalidate() or invalidateAll() must
+ * not put its (possibly stale) result back: callers take getGeneration()
+ * before going to the database and pass it to put().
+ */
+public class CustomerCache {
+	// cached result for a number that has no customer
+	public static final Long NOT_FOUND = Long.valueOf(-1);
+
+	public static final int DEFAULT_SIZE = 10000;
+	public static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+	public static final long DEFAULT_NEGATIVE_TTL_MS = 60 * 1000;
+
+	private static final int MAX_SEGMENTS = 16;
+	// smaller segments would make the LRU order too coarse
+	private static final int MIN_SEGMENT_SIZE = 64;
+
+	private final int maxSize;
+	private final long ttlMS;
+	private final long negativeTtlMS;
+	private final Segment[] segments;
+
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static class Cached {
+		final Long customerID;
+		// System.nanoTime() deadline
+		final long expires;
+
+		Cached(Long customerID, long expires) {
+			this.customerID = customerID;
+			this.expires = expires;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Segment extends LinkedHashMap<String, Cached> {
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	public CustomerCache(int maxSize, long ttlMS, long negativeTtlMS) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.ttlMS = ttlMS;
+		this.negativeTtlMS = negativeTtlMS;
+
+		int count = Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE));
+		segments = new Segment[count];
+		int capacity = (maxSize + count - 1) / count;
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(capacity);
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTtlMS() {
+		return ttlMS;
+	}
+
+	public long getNegativeTtlMS() {
+		return negativeTtlMS;
+	}
+
+	/**
+	 * The cached customer ID for the number, NOT_FOUND if the number is
+	 * cached as having no customer, or null if it is not cached.
+	 */
+	public Long get(String smsNumber) {
+		Segment seg = segmentFor(smsNumber);
+		Cached e;
+		synchronized (seg) {
+			e = seg.get(smsNumber);
+			if (e != null && e.expires - now() <= 0) {
+				seg.remove(smsNumber);
+				e = null;
+			}
+		}
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return e.customerID;
+	}
+
+	/**
+	 * Current invalidation generation; take it before a database lookup
+	 * whose result will be put().
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Caches the result of a lookup; customerID null means no customer.
+	 * Ignored if the cache was invalidated since gen was taken.
+	 */
+	public void put(String smsNumber, Long customerID, long gen) {
+		long ttl = (customerID == null) ? negativeTtlMS : ttlMS;
+		if (ttl <= 0) {
+			return;
+		}
+		Cached e = new Cached((customerID == null) ? NOT_FOUND : customerID,
+				now() + TimeUnit.MILLISECONDS.toNanos(ttl));
+		Segment seg = segmentFor(smsNumber);
+		synchronized (seg) {
+			if (generation.get() != gen) {
+				return;
+			}
+			seg.put(smsNumber, e);
+		}
+	}
+
+	/**
+	 * Drops the entry for one number, e.g. after the customer's SMS
+	 * number changed.
+	 */
+	public void invalidate(String smsNumber) {
+		Segment seg = segmentFor(smsNumber);
+		synchronized (seg) {
+			generation.incrementAndGet();
+			seg.remove(smsNumber);
+		}
+	}
+
+	/**
+	 * Drops every entry, e.g. after a customer import.
+	 */
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		for (int i = 0; i < segments.length; i++) {
+			synchronized (segments[i]) {
+				segments[i].clear();
+			}
+		}
+	}
+
+	// entries, including expired ones not yet dropped
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < segments.length; i++) {
+			synchronized (segments[i]) {
+				size += segments[i].size();
+			}
+		}
+		return size;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * True if a cache built with these settings would be the same, so a
+	 * config reload can keep this one and its entries.
+	 */
+	public boolean hasSettings(int maxSize, long ttlMS, long negativeTtlMS) {
+		return this.maxSize == maxSize && this.ttlMS == ttlMS
+				&& this.negativeTtlMS == negativeTtlMS;
+	}
+
+	// nanoTime, so that changes to the wall clock do not expire entries
+	long now() {
+		return System.nanoTime();
+	}
+
+	private Segment segmentFor(String smsNumber) {
+		int h = smsNumber.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+}
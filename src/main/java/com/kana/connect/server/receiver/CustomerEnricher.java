@@ -0,0 +1,248 @@
+/*
+ * Customer Enricher -- fetches customer attributes for the content template
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kana.connect.common.db.CustomerRow;
+import com.kana.connect.common.lib.Debug;
+
+import net.brickst.connect.custom.content.SmppDocument;
+
+/**
+ * Looks up the customer attributes that the content template declares
+ * (content.customerAttributes) on a small thread pool, while the handler
+ * goes on building the document.
+ *
+ * start() submits the customer lookup; when it finishes, each attribute
+ * is read by its own task. applyTo() waits for the results, but no longer
+ * than timeoutMS after start() for any attribute, and adds what arrived
+ * to the document. An attribute that is late is left out, so a slow
+ * database delays a message by at most timeoutMS. If the pool is
+ * saturated the message goes without attributes.
+ */
+public class CustomerEnricher {
+	public static final long DEFAULT_TIMEOUT_MS = 200;
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	/**
+	 * Where the customer data comes from; implemented by the handler.
+	 */
+	public interface CustomerSource {
+		// null if the number has no customer
+		CustomerRow findCustomer(String smsNumber) throws Exception;
+		// null if the customer has no value for the attribute
+		Object getAttribute(CustomerRow cust, String name) throws Exception;
+	}
+
+	private final List<String> attributes;
+	private final long timeoutMS;
+	private final int threads;
+	private final ThreadPoolExecutor executor;
+
+	public CustomerEnricher(List<String> attributes, long timeoutMS, int threads) {
+		if (attributes.isEmpty()) {
+			throw new IllegalArgumentException("No customer attributes");
+		}
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Invalid thread count: " + threads);
+		}
+		this.attributes = Collections.unmodifiableList(new ArrayList<String>(attributes));
+		this.timeoutMS = timeoutMS;
+		this.threads = threads;
+
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread th = new Thread(r, "CustomerEnricher-" + count.incrementAndGet());
+						th.setDaemon(true);
+						return th;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public List<String> getAttributes() {
+		return attributes;
+	}
+
+	public long getTimeoutMS() {
+		return timeoutMS;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * True if an enricher built with these settings would be the same, so
+	 * a config reload can keep this one.
+	 */
+	public boolean hasSettings(List<String> attributes, long timeoutMS, int threads) {
+		return this.attributes.equals(attributes) && this.timeoutMS == timeoutMS
+				&& this.threads == threads;
+	}
+
+	/**
+	 * Stops the threads. Lookups that are queued or running finish;
+	 * start() after shutdown() returns an enrichment without results.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Starts looking up the customer with the sms number and its
+	 * attributes.
+	 */
+	public Enrichment start(String smsNumber, CustomerSource source) {
+		Enrichment e = new Enrichment(smsNumber, source);
+		try {
+			executor.execute(e.customer);
+		} catch (RejectedExecutionException x) {
+			e.cancel();
+		}
+		return e;
+	}
+
+	/**
+	 * The lookups for one message.
+	 */
+	public class Enrichment {
+		private final long startNanos = System.nanoTime();
+		private final FutureTask<CustomerRow> customer;
+		// one per attribute, in attribute order; run once the customer is known
+		private final List<FutureTask<Object>> values;
+		private volatile CustomerRow row;
+		private int timeouts;
+
+		Enrichment(final String smsNumber, final CustomerSource source) {
+			customer = new FutureTask<CustomerRow>(new Callable<CustomerRow>() {
+				public CustomerRow call() throws Exception {
+					return source.findCustomer(smsNumber);
+				}
+			}) {
+				protected void done() {
+					startAttributes(this);
+				}
+			};
+			values = new ArrayList<FutureTask<Object>>(attributes.size());
+			for (final String name : attributes) {
+				values.add(new FutureTask<Object>(new Callable<Object>() {
+					public Object call() throws Exception {
+						return source.getAttribute(row, name);
+					}
+				}));
+			}
+		}
+
+		// called when the customer lookup is done, failed or cancelled
+		private void startAttributes(FutureTask<CustomerRow> task) {
+			CustomerRow cust = null;
+			try {
+				if (!task.isCancelled()) {
+					cust = task.get();
+				}
+			} catch (Exception x) {
+				// applyTo() reports it
+			}
+			row = cust;
+			for (FutureTask<Object> value : values) {
+				if (cust == null) {
+					value.cancel(false);
+					continue;
+				}
+				try {
+					executor.execute(value);
+				} catch (RejectedExecutionException x) {
+					value.cancel(false);
+				}
+			}
+		}
+
+		void cancel() {
+			customer.cancel(false);
+		}
+
+		/**
+		 * Number of attributes (or the customer itself) that were not there
+		 * in time.
+		 */
+		public int getTimeoutCount() {
+			return timeouts;
+		}
+
+		/**
+		 * Waits for the lookups until the timeout and adds the customer ID
+		 * and the attributes that arrived to the document. Returns the
+		 * customer ID, or null if the customer is unknown or was late.
+		 */
+		public Long applyTo(SmppDocument doc) {
+			long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+			CustomerRow cust;
+			try {
+				cust = customer.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException x) {
+				customer.cancel(false);
+				timeouts++;
+				return null;
+			} catch (ExecutionException x) {
+				if (Debug.SR.isEnabled()) {
+					Debug.SR.printException(x.getCause(), "CustomerEnricher: customer lookup failed");
+				}
+				return null;
+			} catch (Exception x) {
+				// cancelled or interrupted
+				return null;
+			}
+			if (cust == null) {
+				return null;
+			}
+
+			Long customerID = Long.valueOf(cust.getID());
+			doc.setCustomerId(customerID);
+			for (int i = 0; i < values.size(); i++) {
+				FutureTask<Object> value = values.get(i);
+				try {
+					Object v = value.get(Math.max(deadline - System.nanoTime(), 0),
+							TimeUnit.NANOSECONDS);
+					if (v != null) {
+						doc.setCustomerAttribute(attributes.get(i), v.toString());
+					}
+				} catch (TimeoutException x) {
+					value.cancel(false);
+					timeouts++;
+				} catch (ExecutionException x) {
+					if (Debug.SR.isEnabled()) {
+						Debug.SR.printException(x.getCause(), "CustomerEnricher: unable to read "
+								+ attributes.get(i) + " of customer " + customerID);
+					}
+				} catch (Exception x) {
+					// cancelled or interrupted; leave it out
+				}
+			}
+			return customerID;
+		}
+	}
+}
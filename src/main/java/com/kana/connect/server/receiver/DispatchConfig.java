@@ -0,0 +1,194 @@
+/*
+ * SMS Keyword Dispatch Config -- immutable snapshot of the dispatch settings
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import net.brickst.connect.custom.content.XslContent;
+import net.brickst.connect.custom.keyword.KeywordIndex;
+import net.brickst.connect.custom.webservices.WebEndpoint;
+
+/**
+ * One loaded version of smskeyworddispatch.properties.
+ *
+ * A snapshot never changes after it is built. A config reload builds a new
+ * snapshot and publishes it with a single volatile write, so a message
+ * that started on the old snapshot finishes on it.
+ */
+public class DispatchConfig {
+	private final File configFile;
+	private final Pattern[] matchPatterns;
+	private final KeywordIndex keywordIndex;
+	private final WebEndpoint[] webEndpoints;
+	// endpoint_N.* properties each endpoint was built from
+	private final String[] endpointSignatures;
+	private final File retryDir;
+	private final int retryThreads;
+	private final Map<String, Integer> numberMappings;
+	private final XslContent contentTemplate;
+	private final boolean saxContentInput;
+	private final boolean contentCustomer;
+	// null if customer_cache_size is 0
+	private final CustomerCache customerCache;
+	// null if content.customerAttributes is not set
+	private final CustomerEnricher customerEnricher;
+	// null if customer_batch_size is 0
+	private final CustomerBatcher customerBatcher;
+	private final int returnValueForMatch;
+	private final boolean configReload;
+	private final long configReloadDelayMS;
+
+	public DispatchConfig(File configFile, Pattern[] matchPatterns,
+			WebEndpoint[] webEndpoints, String[] endpointSignatures,
+			File retryDir, int retryThreads,
+			Map<String, Integer> numberMappings, XslContent contentTemplate,
+			boolean saxContentInput, boolean contentCustomer,
+			CustomerCache customerCache, CustomerEnricher customerEnricher,
+			CustomerBatcher customerBatcher, int returnValueForMatch,
+			boolean configReload, long configReloadDelayMS) {
+		this.configFile = configFile;
+		this.matchPatterns = matchPatterns.clone();
+		this.keywordIndex = new KeywordIndex(this.matchPatterns);
+		this.webEndpoints = webEndpoints.clone();
+		this.endpointSignatures = endpointSignatures.clone();
+		this.retryDir = retryDir;
+		this.retryThreads = retryThreads;
+		this.numberMappings = Collections.unmodifiableMap(
+				new HashMap<String, Integer>(numberMappings));
+		this.contentTemplate = contentTemplate;
+		this.saxContentInput = saxContentInput;
+		this.contentCustomer = contentCustomer;
+		this.customerCache = customerCache;
+		this.customerEnricher = customerEnricher;
+		this.customerBatcher = customerBatcher;
+		this.returnValueForMatch = returnValueForMatch;
+		this.configReload = configReload;
+		this.configReloadDelayMS = configReloadDelayMS;
+	}
+
+	public File getConfigFile() {
+		return configFile;
+	}
+
+	// returns a copy
+	public Pattern[] getMatchPatterns() {
+		return matchPatterns.clone();
+	}
+
+	public int getPatternCount() {
+		return matchPatterns.length;
+	}
+
+	public Pattern getMatchPattern(int index) {
+		return matchPatterns[index];
+	}
+
+	public KeywordIndex getKeywordIndex() {
+		return keywordIndex;
+	}
+
+	// returns a copy
+	public WebEndpoint[] getWebEndpoints() {
+		return webEndpoints.clone();
+	}
+
+	public int getEndpointCount() {
+		return webEndpoints.length;
+	}
+
+	// null if there is no such endpoint
+	public WebEndpoint getWebEndpoint(int index) {
+		if (index < 0 || index >= webEndpoints.length) {
+			return null;
+		}
+		return webEndpoints[index];
+	}
+
+	String getEndpointSignature(int index) {
+		if (index < 0 || index >= endpointSignatures.length) {
+			return null;
+		}
+		return endpointSignatures[index];
+	}
+
+	// endpoint_retrydir; endpoint N retries under endpoint_N
+	public File getRetryDir() {
+		return retryDir;
+	}
+
+	// endpoint_retrythreads
+	public int getRetryThreads() {
+		return retryThreads;
+	}
+
+	public Integer getNumberMapping(String number) {
+		return numberMappings.get(number);
+	}
+
+	public Map<String, Integer> getNumberMappings() {
+		return numberMappings;
+	}
+
+	public XslContent getContentTemplate() {
+		return contentTemplate;
+	}
+
+	public boolean isSaxContentInput() {
+		return saxContentInput;
+	}
+
+	// content.customer: the sender's customer ID goes into the document
+	public boolean isContentCustomer() {
+		return contentCustomer;
+	}
+
+	public CustomerCache getCustomerCache() {
+		return customerCache;
+	}
+
+	// content.customerAttributes: attributes looked up for the document
+	public CustomerEnricher getCustomerEnricher() {
+		return customerEnricher;
+	}
+
+	// customer_batch_size: lookups that miss the cache are batched
+	public CustomerBatcher getCustomerBatcher() {
+		return customerBatcher;
+	}
+
+	public int getReturnValueForMatch() {
+		return returnValueForMatch;
+	}
+
+	// config_reload; only the setting of the first snapshot is used
+	public boolean isConfigReload() {
+		return configReload;
+	}
+
+	public long getConfigReloadDelayMS() {
+		return configReloadDelayMS;
+	}
+
+	/**
+	 * True if the endpoint is also part of this snapshot.
+	 */
+	public boolean containsEndpoint(WebEndpoint wep) {
+		for (int i = 0; i < webEndpoints.length; i++) {
+			if (webEndpoints[i] == wep) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Dispatch Metrics -- latency histograms and counters for handle()
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import net.brickst.connect.custom.metrics.LatencyHistogram;
+import net.brickst.connect.custom.metrics.Metrics;
+import net.brickst.connect.custom.webservices.EndpointMetrics;
+
+/**
+ * Metrics of one SMS keyword dispatch handler name, kept across config
+ * reloads. The record methods do not allocate or lock; counters that
+ * depend on the config (per pattern, per destination) are replaced when
+ * a new config is published.
+ *
+ * JMX names, in the net.brickst.connect domain:
+ *   type=SMSKeywordDispatch,handler=NAME               counters
+ *   type=SMSKeywordDispatch,handler=NAME,stage=STAGE   latency per stage
+ *   type=WebEndpoint,handler=NAME,endpoint=N           endpoint counters
+ */
+public class DispatchMetrics implements DispatchMetricsMXBean {
+	// whole handle() call
+	final LatencyHistogram handle = new LatencyHistogram("handle");
+	final LatencyHistogram match = new LatencyHistogram("match");
+	final LatencyHistogram customerLookup = new LatencyHistogram("customerLookup");
+	final LatencyHistogram xmlBuild = new LatencyHistogram("xmlBuild");
+	final LatencyHistogram xslTransform = new LatencyHistogram("xslTransform");
+	// delivery attempt, or enqueue for async endpoints
+	final LatencyHistogram deliver = new LatencyHistogram("deliver");
+	// saving to the retry store after a failure or with the breaker open
+	final LatencyHistogram retrySpill = new LatencyHistogram("retrySpill");
+
+	private final LatencyHistogram[] stages = {
+			handle, match, customerLookup, xmlBuild, xslTransform, deliver, retrySpill
+	};
+
+	private final String handlerName;
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong notMatched = new AtomicLong();
+	private final AtomicLong mappingMisses = new AtomicLong();
+	private final AtomicLong customerAttributeTimeouts = new AtomicLong();
+	private volatile AtomicLongArray patternMatches = new AtomicLongArray(0);
+	private final ConcurrentHashMap<String, AtomicLong> mappingHits =
+			new ConcurrentHashMap<String, AtomicLong>();
+	private volatile CustomerCache customerCache;
+	private volatile CustomerBatcher customerBatcher;
+
+	// guarded by this
+	private boolean registered;
+	private int registeredEndpoints;
+
+	public DispatchMetrics(String handlerName) {
+		this.handlerName = handlerName;
+	}
+
+	public String getHandlerName() {
+		return handlerName;
+	}
+
+	public LatencyHistogram[] getStages() {
+		return stages.clone();
+	}
+
+	//
+	// RECORDING
+	//
+
+	void recordMessage() {
+		messages.incrementAndGet();
+	}
+
+	void recordMatch(int patternIndex) {
+		if (patternIndex < 0) {
+			notMatched.incrementAndGet();
+			return;
+		}
+		AtomicLongArray counts = patternMatches;
+		// a message on an older config may have more patterns
+		if (patternIndex < counts.length()) {
+			counts.incrementAndGet(patternIndex);
+		}
+	}
+
+	void recordMappingHit(String number) {
+		AtomicLong count = mappingHits.get(number);
+		if (count != null) {
+			count.incrementAndGet();
+		}
+	}
+
+	void recordMappingMiss() {
+		mappingMisses.incrementAndGet();
+	}
+
+	void recordCustomerAttributeTimeouts(int count) {
+		if (count > 0) {
+			customerAttributeTimeouts.addAndGet(count);
+		}
+	}
+
+	/**
+	 * Sizes the config-specific counters for a newly published config and
+	 * registers its endpoints. Counts of destinations that are still mapped
+	 * are kept; pattern counts start over, since indexes may have moved.
+	 */
+	synchronized void configChanged(DispatchConfig cfg) {
+		patternMatches = new AtomicLongArray(cfg.getPatternCount());
+		customerCache = cfg.getCustomerCache();
+		customerBatcher = cfg.getCustomerBatcher();
+
+		Map<String, Integer> numbers = cfg.getNumberMappings();
+		for (String number : numbers.keySet()) {
+			if (!mappingHits.containsKey(number)) {
+				mappingHits.put(number, new AtomicLong());
+			}
+		}
+		for (Iterator<String> it = mappingHits.keySet().iterator(); it.hasNext();) {
+			if (!numbers.containsKey(it.next())) {
+				it.remove();
+			}
+		}
+
+		if (registered) {
+			registerEndpoints(cfg);
+		}
+	}
+
+	//
+	// JMX
+	//
+
+	/**
+	 * Registers the MXBeans of this handler and of the endpoints of cfg.
+	 */
+	synchronized void register(DispatchConfig cfg) {
+		Metrics.register(objectName(null), this);
+		for (int i = 0; i < stages.length; i++) {
+			Metrics.register(objectName(stages[i].getName()), stages[i]);
+		}
+		registered = true;
+		registerEndpoints(cfg);
+	}
+
+	synchronized void unregister() {
+		if (!registered) {
+			return;
+		}
+		Metrics.unregister(objectName(null));
+		for (int i = 0; i < stages.length; i++) {
+			Metrics.unregister(objectName(stages[i].getName()));
+		}
+		for (int i = 0; i < registeredEndpoints; i++) {
+			Metrics.unregister(endpointName(i));
+		}
+		registeredEndpoints = 0;
+		registered = false;
+	}
+
+	// replaces the endpoint MXBeans with those of cfg
+	private void registerEndpoints(DispatchConfig cfg) {
+		int count = cfg.getEndpointCount();
+		for (int i = 0; i < count; i++) {
+			Metrics.register(endpointName(i), new EndpointMetrics(cfg.getWebEndpoint(i)));
+		}
+		for (int i = count; i < registeredEndpoints; i++) {
+			Metrics.unregister(endpointName(i));
+		}
+		registeredEndpoints = count;
+	}
+
+	ObjectName objectName(String stage) {
+		if (stage == null) {
+			return Metrics.objectName("type", "SMSKeywordDispatch", "handler", handlerName);
+		}
+		return Metrics.objectName("type", "SMSKeywordDispatch", "handler", handlerName,
+				"stage", stage);
+	}
+
+	ObjectName endpointName(int index) {
+		return Metrics.objectName("type", "WebEndpoint", "handler", handlerName,
+				"endpoint", Integer.toString(index));
+	}
+
+	//
+	// MXBean attributes
+	//
+
+	public long getMessageCount() {
+		return messages.get();
+	}
+
+	public long getNotMatchedCount() {
+		return notMatched.get();
+	}
+
+	public long[] getPatternMatchCounts() {
+		AtomicLongArray counts = patternMatches;
+		long[] result = new long[counts.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = counts.get(i);
+		}
+		return result;
+	}
+
+	public Map<String, Long> getMappingHits() {
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> e : mappingHits.entrySet()) {
+			result.put(e.getKey(), Long.valueOf(e.getValue().get()));
+		}
+		return result;
+	}
+
+	public long getMappingMissCount() {
+		return mappingMisses.get();
+	}
+
+	public int getCustomerCacheSize() {
+		CustomerCache cache = customerCache;
+		return (cache != null) ? cache.size() : 0;
+	}
+
+	public long getCustomerCacheHitCount() {
+		CustomerCache cache = customerCache;
+		return (cache != null) ? cache.getHitCount() : 0;
+	}
+
+	public long getCustomerCacheMissCount() {
+		CustomerCache cache = customerCache;
+		return (cache != null) ? cache.getMissCount() : 0;
+	}
+
+	public long getCustomerBatchCount() {
+		CustomerBatcher batcher = customerBatcher;
+		return (batcher != null) ? batcher.getBatchCount() : 0;
+	}
+
+	public long getCustomerBatchLookupCount() {
+		CustomerBatcher batcher = customerBatcher;
+		return (batcher != null) ? batcher.getLookupCount() : 0;
+	}
+
+	public long getCustomerAttributeTimeoutCount() {
+		return customerAttributeTimeouts.get();
+	}
+
+	public void invalidateCustomerCache() {
+		CustomerCache cache = customerCache;
+		if (cache != null) {
+			cache.invalidateAll();
+		}
+	}
+
+	public synchronized void reset() {
+		messages.set(0);
+		notMatched.set(0);
+		mappingMisses.set(0);
+		customerAttributeTimeouts.set(0);
+		AtomicLongArray counts = patternMatches;
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		for (AtomicLong count : mappingHits.values()) {
+			count.set(0);
+		}
+		for (int i = 0; i < stages.length; i++) {
+			stages[i].reset();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Dispatch Metrics MXBean -- JMX view of an SMS keyword dispatch handler
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.util.Map;
+
+/**
+ * Message counters of one handler name. The stage latencies are separate
+ * MXBeans with a stage key in their object names.
+ */
+public interface DispatchMetricsMXBean {
+	String getHandlerName();
+	long getMessageCount();
+	long getNotMatchedCount();
+	// matches per pattern index of the current config
+	long[] getPatternMatchCounts();
+	// matched messages per configured destination number
+	Map<String, Long> getMappingHits();
+	// matched messages whose destination number has no mapping
+	long getMappingMissCount();
+	// customer cache of the current config; 0 if it has none
+	int getCustomerCacheSize();
+	long getCustomerCacheHitCount();
+	long getCustomerCacheMissCount();
+	// customer batcher of the current config: queries and the sms numbers
+	// they looked up; 0 if it has none
+	long getCustomerBatchCount();
+	long getCustomerBatchLookupCount();
+	// content.customerAttributes lookups that missed content.customerTimeoutMS
+	long getCustomerAttributeTimeoutCount();
+	void invalidateCustomerCache();
+	void reset();
+}
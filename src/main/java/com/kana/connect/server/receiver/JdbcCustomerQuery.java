@@ -0,0 +1,176 @@
+/*
+ * JDBC Customer Query -- IN-list lookup of customer IDs by sms number
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package com.kana.connect.server.receiver;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the customers of a batch of sms numbers with one query:
+ *
+ *	SELECT idColumn, numberColumn FROM table WHERE numberColumn IN (?, ?, ...)
+ *
+ * The IN-list is padded to a power of two (up to MAX_PADDED_SIZE) by
+ * repeating the last number, so the database sees a few statement shapes
+ * instead of one per batch size and can reuse their plans.
+ *
+ * Connections come from DriverManager and are kept open for the next
+ * batch; one is in use per running batch.
+ */
+public class JdbcCustomerQuery implements CustomerBatcher.BatchQuery, Closeable {
+	// Oracle rejects IN-lists with more than 1000 values
+	static final int MAX_PADDED_SIZE = 1000;
+
+	// table and column names go into the SQL text
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$#.]*");
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final String table;
+	private final String idColumn;
+	private final String numberColumn;
+	// guarded by itself
+	private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+	private volatile boolean closed;
+
+	public JdbcCustomerQuery(String url, String user, String password, String table,
+			String idColumn, String numberColumn) {
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.table = checkIdentifier(table, "table");
+		this.idColumn = checkIdentifier(idColumn, "idColumn");
+		this.numberColumn = checkIdentifier(numberColumn, "numberColumn");
+	}
+
+	private static String checkIdentifier(String name, String what) {
+		if (name == null || !IDENTIFIER.matcher(name).matches()) {
+			throw new IllegalArgumentException("Invalid " + what + ": " + name);
+		}
+		return name;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public Map<String, Long> findCustomerIDs(List<String> smsNumbers) throws SQLException {
+		Map<String, Long> result = new HashMap<String, Long>();
+		if (smsNumbers.isEmpty()) {
+			return result;
+		}
+		int slots = paddedSize(smsNumbers.size());
+		Connection conn = takeConnection();
+		boolean ok = false;
+		try {
+			PreparedStatement ps = conn.prepareStatement(buildQuery(slots));
+			try {
+				String last = smsNumbers.get(smsNumbers.size() - 1);
+				for (int i = 0; i < slots; i++) {
+					ps.setString(i + 1, (i < smsNumbers.size()) ? smsNumbers.get(i) : last);
+				}
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						result.put(rs.getString(2), Long.valueOf(rs.getLong(1)));
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+			ok = true;
+			return result;
+		} finally {
+			if (ok) {
+				giveBack(conn);
+			}
+			else {
+				// may be broken; the next batch connects again
+				closeQuietly(conn);
+			}
+		}
+	}
+
+	String buildQuery(int slots) {
+		StringBuilder b = new StringBuilder(64 + 3 * slots);
+		b.append("SELECT ").append(idColumn).append(", ").append(numberColumn);
+		b.append(" FROM ").append(table);
+		b.append(" WHERE ").append(numberColumn).append(" IN (");
+		for (int i = 0; i < slots; i++) {
+			b.append((i == 0) ? "?" : ", ?");
+		}
+		b.append(')');
+		return b.toString();
+	}
+
+	// next power of two, but no more than MAX_PADDED_SIZE unless count is
+	static int paddedSize(int count) {
+		int pow = (count <= 1) ? 1 : Integer.highestOneBit(count - 1) << 1;
+		return Math.min(pow, Math.max(count, MAX_PADDED_SIZE));
+	}
+
+	protected Connection connect() throws SQLException {
+		return DriverManager.getConnection(url, user, password);
+	}
+
+	private Connection takeConnection() throws SQLException {
+		synchronized (idle) {
+			Connection conn = idle.poll();
+			if (conn != null) {
+				return conn;
+			}
+		}
+		return connect();
+	}
+
+	private void giveBack(Connection conn) {
+		synchronized (idle) {
+			if (!closed) {
+				idle.push(conn);
+				return;
+			}
+		}
+		closeQuietly(conn);
+	}
+
+	/**
+	 * Closes the idle connections; connections in use are closed when
+	 * their batch is done.
+	 */
+	public void close() {
+		synchronized (idle) {
+			closed = true;
+			Connection conn;
+			while ((conn = idle.poll()) != null) {
+				closeQuietly(conn);
+			}
+		}
+	}
+
+	private static void closeQuietly(Connection conn) {
+		try {
+			conn.close();
+		} catch (SQLException x) {
+			// ignore
+		}
+	}
+}
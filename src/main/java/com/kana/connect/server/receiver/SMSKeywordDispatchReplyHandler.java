@@ -25,55 +25,137 @@ import com.kana.connect.server.receiver.SmppReplyHandler;
 import com.kana.connect.server.smpp.Address;
 import com.kana.connect.server.smpp.message.SMPPRequest;
 
+import net.brickst.connect.custom.content.SmppDocument;
 import net.brickst.connect.custom.content.XslContent;
+import net.brickst.connect.custom.keyword.KeywordIndex;
 import net.brickst.connect.custom.webservices.JMSEndpoint;
 import net.brickst.connect.custom.webservices.LogEndpoint;
 import net.brickst.connect.custom.webservices.RESTEndpoint;
+import net.brickst.connect.custom.webservices.RetryJournal;
 import net.brickst.connect.custom.webservices.WebEndpoint;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.lang3.StringEscapeUtils;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
-
 public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 	// The mail processor may create a new handler object for each incoming message.
 	// On the other hand, the configuration for this handler is heavy and expensive to set up.
 	// As a result, we store the configuration in static variables so that it can be
 	// shared across multiple instances of the reply handler.
 	//
-	// If the config file changes, the mail processor needs to be restarted.
-	// Our assumption is that this will happen rarely if ever.
+	// Each handler name has its own properties file and its own config, so
+	// several keyword dispatch handlers can run in one mail processor. The
+	// config is an immutable DispatchConfig snapshot. With config_reload=true
+	// a ConfigWatcher rebuilds it when the config file changes and swaps it in;
+	// handle() reads the snapshot once, so a message in progress finishes on the
+	// config it started with. Without config_reload, a changed config file
+	// needs a restart of the mail processor.
 
 	//
 	// STATIC CONFIG VARS
 	//
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// loads and reloads are rare; one lock covers all handler configs
 	private static Object configLock = new Object();
-	private static Pattern[] matchPatterns;
-	private static WebEndpoint[] webEndpoints;
-	private static ConcurrentHashMap<String, Integer> numberMappings;
-	private static XslContent contentTemplate;
-	private static AtomicBoolean didInit = new AtomicBoolean();
-	private static int returnValueForMatch;
-	
+	// one entry per config file, i.e. per handler name
+	private static final ConcurrentHashMap<String, ConfigHolder> configs =
+			new ConcurrentHashMap<String, ConfigHolder>();
+	// config of the last loadConfig() call; used by the static getters
+	private static volatile ConfigHolder lastLoaded;
+	// CustomerRow.getAttribute(String); null if this Connect version has none
+	private static final Method customerAttributeMethod = loadCustomerAttributeMethod();
+	// how long clearConfigs() waits for running retries
+	private static final long RETRY_SHUTDOWN_TIMEOUT_MS = 5000;
+
+	/**
+	 * The current config of one handler name and the state that goes with it.
+	 */
+	static class ConfigHolder {
+		final File configFile;
+		final AtomicReference<DispatchConfig> current = new AtomicReference<DispatchConfig>();
+		final AtomicBoolean didInit = new AtomicBoolean();
+		final DispatchMetrics metrics;
+		// guarded by configLock
+		ConfigWatcher watcher;
+
+		ConfigHolder(File configFile) {
+			this.configFile = configFile;
+			this.metrics = new DispatchMetrics(handlerName(configFile));
+		}
+	}
+
+	// smskeyworddispatch.properties -> smskeyworddispatch
+	static String handlerName(File configFile) {
+		String name = configFile.getName();
+		if (name.endsWith(".properties")) {
+			name = name.substring(0, name.length() - ".properties".length());
+		}
+		return name;
+	}
+
+	//
+	// INSTANCE VARS
+	//
+	private ConfigHolder holder;
+
 	public SMSKeywordDispatchReplyHandler() {
 		// The constructor can be used for handler-specific initialiation.
 		// However, it should be careful to not throw exceptions.
 	}
 
-	public static Pattern[] getMatchPatterns() { return matchPatterns; }
-	public static WebEndpoint[] getWebEndpoints() { return webEndpoints; }
-	public static Integer getNumberMapping(String number) { return numberMappings.get(number); }
+	// metrics of the handler name that uses the config file
+	public static DispatchMetrics getMetrics(File configProps) {
+		return holderFor(configProps).metrics;
+	}
+
+	// config loaded by the last loadConfig() call
+	public static DispatchConfig getConfig() {
+		ConfigHolder h = lastLoaded;
+		return (h != null) ? h.current.get() : null;
+	}
+
+	// current config for a config file; null if it is not loaded
+	public static DispatchConfig getConfig(File configProps) {
+		ConfigHolder h = configs.get(configKey(configProps));
+		return (h != null) ? h.current.get() : null;
+	}
+
+	public static Pattern[] getMatchPatterns() { return getConfig().getMatchPatterns(); }
+	public static KeywordIndex getKeywordIndex() { return getConfig().getKeywordIndex(); }
+	public static WebEndpoint[] getWebEndpoints() { return getConfig().getWebEndpoints(); }
+	public static Integer getNumberMapping(String number) { return getConfig().getNumberMapping(number); }
+
+	private static String configKey(File configProps) {
+		return configProps.getAbsolutePath();
+	}
+
+	private static ConfigHolder holderFor(File configProps) {
+		String key = configKey(configProps);
+		ConfigHolder h = configs.get(key);
+		if (h == null) {
+			ConfigHolder created = new ConfigHolder(configProps);
+			h = configs.putIfAbsent(key, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		return h;
+	}
 	
 	//
 	// logging methods
@@ -128,206 +210,802 @@ public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 		}
 	}
 
+	/**
+	 * Loads the config file. Only the first call loads anything; later calls
+	 * return false. Use reloadConfig() to pick up a changed file.
+	 */
 	public static boolean loadConfig(File configProps) 
 	{
 		synchronized (configLock) {
+			ConfigHolder h = holderFor(configProps);
+			lastLoaded = h;
 
-			if (matchPatterns != null || webEndpoints != null) {
+			if (h.current.get() != null) {
 				// assume config has already been loaded
 				return false;
 			}
 
-			//
-			// initialize configuration properties
-			//
-			Properties props = new Properties();
-
-			// String handlerName = handlerRow.getName();
-			FileInputStream propsInput = null;
+			Properties props = readProperties(configProps);
+			DispatchConfig next = buildConfig(configProps, props, null);
 			try {
-				propsInput = new FileInputStream(configProps);
-			} 
-			catch (Exception x) {
-				throw new IllegalArgumentException("Unable to find " + configProps, x);
+				openRetryJournals(next, props, null);
+				startEndpoints(next, props, null);
+			}
+			catch (RuntimeException x) {
+				shutdownNewEndpoints(next.getWebEndpoints(), null);
+				throw x;
+			}
+			h.current.set(next);
+			updateRetryThreads();
+			h.metrics.configChanged(next);
+			h.metrics.register(next);
+
+			// did load, need to init
+			return true;
+		}
+	}
+
+	/**
+	 * Reads the config file again and swaps in a new config snapshot.
+	 *
+	 * Endpoints whose endpoint_N.* properties did not change are kept
+	 * running. A changed endpoint hands its retry store over to the endpoint
+	 * that replaces it; a removed endpoint keeps retrying until its retry
+	 * store is empty and then stops. Messages that are already being handled
+	 * finish with the snapshot they started with.
+	 *
+	 * If the new file is invalid, or its template or endpoints cannot be
+	 * initialized, the error is logged, the current config stays in place
+	 * and false is returned.
+	 */
+	public static boolean reloadConfig(File configProps)
+	{
+		synchronized (configLock) {
+			ConfigHolder h = holderFor(configProps);
+			DispatchConfig current = h.current.get();
+			if (current == null) {
+				return loadConfig(configProps);
 			}
+
+			Properties props;
+			DispatchConfig next = null;
 			try {
-				props.load(propsInput);
-			} 
+				props = readProperties(configProps);
+				next = buildConfig(configProps, props, current);
+
+				// network init for new endpoints and the new template,
+				// before anything is started or swapped
+				for (int i = 0; i < next.getEndpointCount(); i++) {
+					WebEndpoint wep = next.getWebEndpoint(i);
+					if (!current.containsEndpoint(wep)) {
+						wep.initNetworkResources();
+					}
+				}
+				next.getContentTemplate().initNetworkResources();
+
+				// last step that can fail; nothing is handed over yet
+				openRetryJournals(next, props, current);
+			}
 			catch (Exception x) {
-				throw new RuntimeException(x);
+				logException(x, "SMSKeywordDispatch: ERROR reloading {0}; keeping current config", configProps);
+				if (next != null) {
+					stopCustomerLookups(next, current);
+					shutdownNewEndpoints(next.getWebEndpoints(), current);
+				}
+				return false;
 			}
 
-			//
-			// get regexes
-			//
-			int regexCount = getIntProperty(props, "regex_count", 0);
-			matchPatterns = new Pattern[regexCount];
-			for (int i = 0; i < regexCount; i++) {
-				String regex = props.getProperty("regex_" + i + ".pattern");
-				int flags = getIntProperty(props, "regex_" + i + ".flags", 0);
-
-				Pattern p = null;
-				try {
-					if (flags > 0) {
-						p = Pattern.compile(regex, flags);
-					} else {
-						p = Pattern.compile(regex);
-					}
-				} catch (Throwable th) {
-					throw new RuntimeException("Error compiling regex " + i, th);
+			startEndpoints(next, props, current);
+			h.current.set(next);
+			updateRetryThreads();
+			h.metrics.configChanged(next);
+			// lookups already started on the old enricher still finish
+			stopCustomerLookups(current, next);
+
+			// endpoints that are gone drain their retry stores, then stop;
+			// replaced ones have handed theirs over and stop now
+			WebEndpoint[] previous = current.getWebEndpoints();
+			for (int i = 0; i < previous.length; i++) {
+				WebEndpoint wep = previous[i];
+				if (next.containsEndpoint(wep)) {
+					continue;
+				}
+				if (wep.isRetired()) {
+					log(Debug.SRV, "SMSKeywordDispatch: shutting down replaced endpoint {0}: {1}", i, wep);
+					wep.shutdown();
+				}
+				else {
+					log(Debug.SRV, "SMSKeywordDispatch: retiring endpoint {0}: {1}", i, wep);
+					wep.retire();
 				}
-				log(Debug.SRV, "SMSKeywordDispatch: got pattern " + regex);
-				matchPatterns[i] = p;
 			}
 
-			//
-			// init endpoint retry dir
-			//
-			String endpointRetryDir = props.getProperty("endpoint_retrydir");
-			if (endpointRetryDir == null) {
-				endpointRetryDir = "smsretryqueue";
+			log(Debug.SR, "SMSKeywordDispatch: reloaded {0}", configProps);
+			return true;
+		}
+	}
+
+	/**
+	 * The retry threads are shared by all handlers; size them for the
+	 * endpoints of every loaded config.
+	 */
+	private static void updateRetryThreads()
+	{
+		int threads = 0;
+		for (ConfigHolder h : configs.values()) {
+			DispatchConfig cfg = h.current.get();
+			if (cfg != null) {
+				threads += cfg.getRetryThreads();
 			}
-			File retryTop = new File(endpointRetryDir);
-			WebEndpoint.setTopLevelRetryDir(retryTop);
+		}
+		WebEndpoint.setRetryThreads(Math.max(threads, 1));
+	}
+
+	private static Properties readProperties(File configProps)
+	{
+		//
+		// initialize configuration properties
+		//
+		Properties props = new Properties();
+
+		// String handlerName = handlerRow.getName();
+		FileInputStream propsInput = null;
+		try {
+			propsInput = new FileInputStream(configProps);
+		} 
+		catch (Exception x) {
+			throw new IllegalArgumentException("Unable to find " + configProps, x);
+		}
+		try {
+			props.load(propsInput);
+		} 
+		catch (Exception x) {
+			throw new RuntimeException(x);
+		}
+		finally {
 			try {
-			    log(Debug.SRV, "SMSKeywordDispatch: retry dir: {0}", retryTop.getCanonicalPath());
+				propsInput.close();
 			}
 			catch (Exception x) {
-			    ; //ignore
+				; //ignore
 			}
+		}
+		return props;
+	}
 
-			//
-			// load endpoints
-			//
-			int endpointCount = getIntProperty(props, "endpoint_count", 0);
-			webEndpoints = new WebEndpoint[endpointCount];
+	/**
+	 * Builds a config snapshot from the properties. Endpoints are created
+	 * and configured but not started; endpoints of the current config whose
+	 * properties did not change are reused.
+	 */
+	private static DispatchConfig buildConfig(File configProps, Properties props,
+			DispatchConfig current)
+	{
+		//
+		// get regexes
+		//
+		int regexCount = getIntProperty(props, "regex_count", 0);
+		Pattern[] matchPatterns = new Pattern[regexCount];
+		for (int i = 0; i < regexCount; i++) {
+			String regex = props.getProperty("regex_" + i + ".pattern");
+			int flags = getIntProperty(props, "regex_" + i + ".flags", 0);
+
+			Pattern p = null;
+			try {
+				if (flags > 0) {
+					p = Pattern.compile(regex, flags);
+				} else {
+					p = Pattern.compile(regex);
+				}
+			} catch (Throwable th) {
+				throw new RuntimeException("Error compiling regex " + i, th);
+			}
+			log(Debug.SRV, "SMSKeywordDispatch: got pattern " + regex);
+			matchPatterns[i] = p;
+		}
+
+		//
+		// init endpoint retry dir
+		//
+		String endpointRetryDir = props.getProperty("endpoint_retrydir");
+		if (endpointRetryDir == null) {
+			endpointRetryDir = "smsretryqueue";
+		}
+		File retryTop = new File(endpointRetryDir).getAbsoluteFile();
+		WebEndpoint.ensureDirectory(retryTop);
+		for (ConfigHolder h : configs.values()) {
+			DispatchConfig other = h.current.get();
+			if (other != null && other != current && retryTop.equals(other.getRetryDir())) {
+				throw new IllegalArgumentException("Invalid Property: endpoint_retrydir "
+						+ endpointRetryDir + " is used by " + other.getConfigFile());
+			}
+		}
+		try {
+		    log(Debug.SRV, "SMSKeywordDispatch: retry dir: {0}", retryTop.getCanonicalPath());
+		}
+		catch (Exception x) {
+		    ; //ignore
+		}
+
+		//
+		// mappings from destinations to endpoints
+		//
+		int mappingCount = getIntProperty(props, "mapping_count", 0);
+		HashMap<String, Integer> numberMappings = new HashMap<String, Integer>();
+		for (int i = 0; i < mappingCount; i++) {
+			String prefix = "mapping_" + i + ".";
+			String number = props.getProperty(prefix + "number");
+			int epNumber = getIntProperty(props, prefix + "endpoint", -1);
+			if (epNumber < 0) {
+				throw new IllegalArgumentException(
+						"Invalid endpoint in mapping " + i);
+			}
+			numberMappings.put(number, Integer.valueOf(epNumber));
+			log(Debug.SRV, "SMSKeywordDispatch: Map endpoint " + number + " -> " + epNumber);
+		}
+
+		//
+		// content
+		//
+		XslContent contentTemplate;
+		boolean saxContentInput;
+		String contentType = props.getProperty("content.type");
+		if ("XSL".equalsIgnoreCase(contentType)) {
+			contentTemplate = new XslContent();
+			contentTemplate.initFromPropsFile(props, "content.");
+
+			// STRING: build the XML text and parse it; SAX: send the
+			// fields to the transformer as SAX events
+			String contentInput = props.getProperty("content.input", "STRING").trim();
+			if ("SAX".equalsIgnoreCase(contentInput)) {
+				saxContentInput = true;
+			}
+			else if ("STRING".equalsIgnoreCase(contentInput)) {
+				saxContentInput = false;
+			}
+			else {
+				throw new IllegalArgumentException("Invalid content.input: " + contentInput);
+			}
+		}
+		else {
+			throw new IllegalArgumentException("Invalid Content Type: " + contentType);
+		}
+		boolean contentCustomer = "true".equalsIgnoreCase(props.getProperty("content.customer"));
+
+		// customer attributes for the document, looked up while it is built;
+		// the enricher is started below, once the whole config is valid
+		List<String> customerAttributes = new ArrayList<String>();
+		String attrList = props.getProperty("content.customerAttributes", "");
+		for (String name : attrList.split(",")) {
+			if (name.trim().length() > 0) {
+				customerAttributes.add(name.trim());
+			}
+		}
+		long customerTimeoutMS = getIntProperty(props, "content.customerTimeoutMS",
+				(int) CustomerEnricher.DEFAULT_TIMEOUT_MS);
+		int customerThreads = getIntProperty(props, "content.customerThreads",
+				CustomerEnricher.DEFAULT_THREADS);
+		if (!customerAttributes.isEmpty()) {
+			// the attributes go inside <customer>
+			contentCustomer = true;
+			if (customerAttributeMethod == null) {
+				// every attribute would silently come back empty
+				throw new IllegalArgumentException("Invalid Property: content.customerAttributes;"
+						+ " this Connect version has no CustomerRow.getAttribute(String)");
+			}
+			if (customerTimeoutMS < 0) {
+				throw new IllegalArgumentException("Invalid Property: content.customerTimeoutMS");
+			}
+			if (customerThreads <= 0) {
+				throw new IllegalArgumentException("Invalid Property: content.customerThreads");
+			}
+		}
+
+		//
+		// customer cache; kept across a reload if its settings are unchanged
+		//
+		int cacheSize = getIntProperty(props, "customer_cache_size",
+				CustomerCache.DEFAULT_SIZE);
+		long cacheTtlMS = getIntProperty(props, "customer_cache_ttlMS",
+				(int) CustomerCache.DEFAULT_TTL_MS);
+		long cacheNegativeTtlMS = getIntProperty(props, "customer_cache_negative_ttlMS",
+				(int) CustomerCache.DEFAULT_NEGATIVE_TTL_MS);
+		CustomerCache customerCache = null;
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException("Invalid Property: customer_cache_size");
+		}
+		if (cacheSize > 0) {
+			CustomerCache currentCache = (current != null) ? current.getCustomerCache() : null;
+			if (currentCache != null
+					&& currentCache.hasSettings(cacheSize, cacheTtlMS, cacheNegativeTtlMS)) {
+				customerCache = currentCache;
+			}
+			else {
+				customerCache = new CustomerCache(cacheSize, cacheTtlMS, cacheNegativeTtlMS);
+			}
+		}
+
+
+		//
+		// customer batching: concurrent lookups that miss the cache are
+		// answered together; a new batcher per config, the old one drains.
+		// The batcher is started below, once the whole config is valid.
+		//
+		int batchSize = getIntProperty(props, "customer_batch_size", 0);
+		int batchLingerMS = getIntProperty(props, "customer_batch_lingerMS",
+				(int) CustomerBatcher.DEFAULT_LINGER_MS);
+		int batchThreads = getIntProperty(props, "customer_batch_threads",
+				CustomerBatcher.DEFAULT_THREADS);
+		int batchTimeoutMS = getIntProperty(props, "customer_batch_timeoutMS",
+				(int) CustomerBatcher.DEFAULT_TIMEOUT_MS);
+		JdbcCustomerQuery batchQuery = null;
+		if (batchSize < 0 || batchSize > JdbcCustomerQuery.MAX_PADDED_SIZE) {
+			throw new IllegalArgumentException("Invalid Property: customer_batch_size");
+		}
+		if (batchSize > 0) {
+			if (batchThreads <= 0) {
+				throw new IllegalArgumentException("Invalid Property: customer_batch_threads");
+			}
+			batchQuery = createBatchQuery(props);
+		}
+
+		//
+		// return value
+		//
+		int returnValueForMatch;
+		String returnVal = props.getProperty("return_value");
+		if (returnVal == null || returnVal.trim().length() == 0) {
+		    returnValueForMatch = HANDLED;
+		}
+		else {
+		    try {
+		        int propVal = Integer.parseInt(returnVal);
+		        // only accept valid values for return_val
+		        if (propVal >= 1 && propVal <= 3) {
+		            returnValueForMatch = propVal;
+		        }
+		        else {
+		            throw new IllegalArgumentException("Invalid return_value; must be 1-3");
+		        }
+		    }
+		    catch (NumberFormatException x) {
+                throw new IllegalArgumentException("Cannot parse return_value: " + returnVal);
+		    }
+		}
+
+		//
+		// config reload
+		//
+		boolean configReload = "true".equalsIgnoreCase(props.getProperty("config_reload"));
+		int configReloadDelayMS = getIntProperty(props, "config_reload_delayMS",
+				(int) ConfigWatcher.DEFAULT_QUIET_MS);
+
+		//
+		// load endpoints; last, since new endpoints hold threads and
+		// connections that a failed load has to release
+		//
+		int endpointCount = getIntProperty(props, "endpoint_count", 0);
+
+		// retry threads; default is one per endpoint so that a hung
+		// endpoint cannot hold up retries for the others
+		int retryThreads = getIntProperty(props, "endpoint_retrythreads",
+				Math.max(endpointCount, 1));
+
+		WebEndpoint[] webEndpoints = new WebEndpoint[endpointCount];
+		String[] signatures = new String[endpointCount];
+		CustomerEnricher customerEnricher = null;
+		CustomerBatcher customerBatcher = null;
+		DispatchConfig next;
+		try {
 			for (int i = 0; i < endpointCount; i++) {
-				WebEndpoint wep = null;
 				String epPrefix = "endpoint_" + i + ".";
-				String epName = epPrefix + "type";
-				String epType = props.getProperty(epName);
-				if ("JMS".equalsIgnoreCase(epType)) {
-				    wep = new JMSEndpoint();
+				signatures[i] = endpointSignature(props, epPrefix, endpointRetryDir);
+				if (current != null && signatures[i].equals(current.getEndpointSignature(i))) {
+					// unchanged; keep the running endpoint
+					webEndpoints[i] = current.getWebEndpoint(i);
+					log(Debug.SRV, "SMSKeywordDispatch: endpoint " + i + " unchanged: " + webEndpoints[i]);
 				}
-				else if ("REST".equalsIgnoreCase(epType)) {
-					wep = new RESTEndpoint();
+				else {
+					webEndpoints[i] = createEndpoint(props, epPrefix, retryTop, i);
 				}
-				else if ("LOG".equalsIgnoreCase(epType)) {
-				    wep = new LogEndpoint();
+			}
+
+			// the enricher is kept across a reload if its settings are unchanged
+			if (!customerAttributes.isEmpty()) {
+				CustomerEnricher currentEnricher = (current != null) ? current.getCustomerEnricher() : null;
+				if (currentEnricher != null
+						&& currentEnricher.hasSettings(customerAttributes, customerTimeoutMS, customerThreads)) {
+					customerEnricher = currentEnricher;
 				}
-				else if ("CUSTOM".equalsIgnoreCase(epType)) {
-				    String endpointClassName = props.getProperty(epPrefix + "className");
-				    if (endpointClassName == null) {
-				        throw new IllegalArgumentException("CUSTOM endpoint must have className property");
-				    }
-				    try {
-				        wep = (WebEndpoint) Class.forName(endpointClassName).newInstance();
-				    }
-				    catch (Exception x) {
-				        throw new IllegalArgumentException("bad className:" + endpointClassName, x);
-				    }
+				else {
+					customerEnricher = new CustomerEnricher(customerAttributes, customerTimeoutMS,
+							customerThreads);
 				}
-                else {
-                    throw new IllegalArgumentException(
-                            "Invalid endpoint type: " + epType);
-                }
+			}
+			if (batchQuery != null) {
+				customerBatcher = new CustomerBatcher(batchQuery, batchSize,
+						batchLingerMS, batchThreads, batchTimeoutMS);
+			}
+			next = new DispatchConfig(configProps, matchPatterns, webEndpoints,
+					signatures, retryTop, retryThreads, numberMappings, contentTemplate, saxContentInput,
+					contentCustomer, customerCache, customerEnricher, customerBatcher,
+					returnValueForMatch, configReload,
+					configReloadDelayMS);
+		}
+		catch (RuntimeException x) {
+			shutdownNewEndpoints(webEndpoints, current);
+			if (customerEnricher != null
+					&& (current == null || customerEnricher != current.getCustomerEnricher())) {
+				customerEnricher.shutdown();
+			}
+			if (customerBatcher != null) {
+				customerBatcher.shutdown();
+			}
+			throw x;
+		}
 
-				// got endpoint, now do init 
-				wep.initFromProperties(props, epPrefix);
+		// classify patterns so that literals and prefixes skip the regex engine
+		KeywordIndex keywordIndex = next.getKeywordIndex();
+		log(Debug.SRV, "SMSKeywordDispatch: {0} patterns, {1} need regex scan",
+				keywordIndex.getPatternCount(), keywordIndex.getRegexCount());
+		return next;
+	}
 
-				// init retry dir
-				File retry = new File(WebEndpoint.getTopLevelRetryDir(),
-						"endpoint_" + i);
-				wep.setRetryDir(retry);
+	/**
+	 * The query behind customer_batch_size: one IN-list query per batch.
+	 * CustomerTable can only look numbers up one at a time, which on the
+	 * batcher's few threads would be slower than not batching at all, so
+	 * customer_batch_jdbcUrl is required. Nothing connects until the first
+	 * batch.
+	 */
+	private static JdbcCustomerQuery createBatchQuery(Properties props)
+	{
+		String[] names = { "customer_batch_jdbcUrl", "customer_batch_table",
+				"customer_batch_idColumn", "customer_batch_numberColumn" };
+		for (int i = 0; i < names.length; i++) {
+			String value = props.getProperty(names[i]);
+			if (value == null || value.trim().length() == 0) {
+				throw new IllegalArgumentException("Invalid Property: " + names[i]);
+			}
+		}
+		return new JdbcCustomerQuery(props.getProperty("customer_batch_jdbcUrl").trim(),
+				props.getProperty("customer_batch_jdbcUser"),
+				props.getProperty("customer_batch_jdbcPassword"),
+				props.getProperty("customer_batch_table").trim(),
+				props.getProperty("customer_batch_idColumn").trim(),
+				props.getProperty("customer_batch_numberColumn").trim());
+	}
 
-				// retry interval
-				int retryIntervalSec = getIntProperty(props, epPrefix
-						+ "retryIntervalSeconds", 300); // default 5 mins
-				wep.setRetryIntervalMS(retryIntervalSec * 1000);
+	// shuts down the customer enricher and batcher of cfg unless other uses them too
+	private static void stopCustomerLookups(DispatchConfig cfg, DispatchConfig other)
+	{
+		CustomerEnricher enricher = cfg.getCustomerEnricher();
+		if (enricher != null && enricher != other.getCustomerEnricher()) {
+			enricher.shutdown();
+		}
+		CustomerBatcher batcher = cfg.getCustomerBatcher();
+		if (batcher != null && batcher != other.getCustomerBatcher()) {
+			batcher.shutdown();
+		}
+	}
 
-				// start retry task
-				wep.startRetryTask();
+	// shuts down the endpoints that were created for a config that is dropped
+	// and closes the journals they opened; nothing has been handed over yet
+	private static void shutdownNewEndpoints(WebEndpoint[] endpoints, DispatchConfig current)
+	{
+		for (int i = 0; i < endpoints.length; i++) {
+			WebEndpoint wep = endpoints[i];
+			if (wep != null && (current == null || !current.containsEndpoint(wep))) {
+				wep.shutdown();
+				RetryJournal journal = wep.getRetryJournal();
+				if (journal != null) {
+					try {
+						journal.close();
+					}
+					catch (Exception x) {
+						logException(x, "SMSKeywordDispatch: unable to close journal for {0}", wep);
+					}
+				}
+			}
+		}
+	}
 
-				log(Debug.SRV, "SMSKeywordDispatch: endpoint " + i + ": " + wep);
-				
-				webEndpoints[i] = wep;
+	// the endpoint's own properties plus the retry dir, one per line in key order
+	private static String endpointSignature(Properties props, String epPrefix, String retryDir)
+	{
+		TreeMap<String, String> sorted = new TreeMap<String, String>();
+		for (String name : props.stringPropertyNames()) {
+			if (name.startsWith(epPrefix)) {
+				sorted.put(name, props.getProperty(name));
 			}
+		}
+		StringBuilder buf = new StringBuilder();
+		buf.append("endpoint_retrydir=").append(retryDir).append('\n');
+		for (Map.Entry<String, String> e : sorted.entrySet()) {
+			buf.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		}
+		return buf.toString();
+	}
 
-			//
-			// mappings from destinations to endpoints
-			//
-			int mappingCount = getIntProperty(props, "mapping_count", 0);
-			numberMappings = new ConcurrentHashMap<String, Integer>();
-			for (int i = 0; i < mappingCount; i++) {
-				String prefix = "mapping_" + i + ".";
-				String number = props.getProperty(prefix + "number");
-				int epNumber = getIntProperty(props, prefix + "endpoint", -1);
-				if (epNumber < 0) {
-					throw new IllegalArgumentException(
-							"Invalid endpoint in mapping " + i);
-				}
-				numberMappings.put(number, Integer.valueOf(epNumber));
-				log(Debug.SRV, "SMSKeywordDispatch: Map endpoint " + number + " -> " + epNumber);
+	// creates and configures an endpoint; startEndpoints() starts it
+	private static WebEndpoint createEndpoint(Properties props, String epPrefix,
+			File retryTop, int i)
+	{
+		WebEndpoint wep = null;
+		String epName = epPrefix + "type";
+		String epType = props.getProperty(epName);
+		if ("JMS".equalsIgnoreCase(epType)) {
+		    wep = new JMSEndpoint();
+		}
+		else if ("REST".equalsIgnoreCase(epType)) {
+			wep = new RESTEndpoint();
+		}
+		else if ("LOG".equalsIgnoreCase(epType)) {
+		    wep = new LogEndpoint();
+		}
+		else if ("CUSTOM".equalsIgnoreCase(epType)) {
+		    String endpointClassName = props.getProperty(epPrefix + "className");
+		    if (endpointClassName == null) {
+		        throw new IllegalArgumentException("CUSTOM endpoint must have className property");
+		    }
+		    try {
+		        wep = (WebEndpoint) Class.forName(endpointClassName).newInstance();
+		    }
+		    catch (Exception x) {
+		        throw new IllegalArgumentException("bad className:" + endpointClassName, x);
+		    }
+		}
+        else {
+            throw new IllegalArgumentException(
+                    "Invalid endpoint type: " + epType);
+        }
+
+		// got endpoint, now do init 
+		wep.initFromProperties(props, epPrefix);
+
+		// init retry dir
+		File retry = new File(retryTop, "endpoint_" + i);
+		wep.setRetryDir(retry);
+
+		// retry store: FILES (one file per message) or JOURNAL; the journal
+		// is opened when the endpoint starts
+		String retryStore = props.getProperty(epPrefix + "retryStore");
+		if (retryStore != null && !"FILES".equalsIgnoreCase(retryStore)
+				&& !"JOURNAL".equalsIgnoreCase(retryStore)) {
+			throw new IllegalArgumentException("Invalid " + epPrefix + "retryStore: " + retryStore);
+		}
+
+		// when retry files are forced to disk: NONE, MESSAGE or BATCH
+		String retryFsync = props.getProperty(epPrefix + "retryFsync");
+		if (retryFsync != null) {
+			WebEndpoint.FsyncPolicy policy;
+			try {
+				policy = WebEndpoint.FsyncPolicy.valueOf(retryFsync.trim().toUpperCase());
+			} catch (Exception x) {
+				throw new IllegalArgumentException("Invalid " + epPrefix + "retryFsync: " + retryFsync);
 			}
+			int batchMS = getIntProperty(props, epPrefix + "retryFsyncBatchMS", 1000);
+			wep.setRetryFsync(policy, batchMS);
+		}
 
-			//
-			// content
-			//
-			String contentType = props.getProperty("content.type");
-			if ("XSL".equalsIgnoreCase(contentType)) {
-				contentTemplate = new XslContent();
-				contentTemplate.initFromPropsFile(props, "content.");
+		// retry interval
+		int retryIntervalSec = getIntProperty(props, epPrefix
+				+ "retryIntervalSeconds", 300); // default 5 mins
+		wep.setRetryIntervalMS(retryIntervalSec * 1000);
+
+		// backoff after failed retry runs; default is no backoff
+		int maxRetryIntervalSec = getIntProperty(props, epPrefix
+				+ "maxRetryIntervalSeconds", retryIntervalSec);
+		wep.setMaxRetryIntervalMS(maxRetryIntervalSec * 1000L);
+		String jitter = props.getProperty(epPrefix + "retryJitter");
+		if (jitter != null) {
+			try {
+				wep.setRetryJitter(Double.parseDouble(jitter));
+			} catch (Exception x) {
+				throw new IllegalArgumentException("Invalid " + epPrefix + "retryJitter: " + jitter, x);
 			}
-			else {
-				throw new IllegalArgumentException("Invalid Content Type: " + contentType);
+		}
+
+		// retry drain: files per run, delivery threads, failures before giving up the run
+		wep.setRetryBatchSize(getIntProperty(props, epPrefix + "retryBatchSize",
+				WebEndpoint.DEFAULT_RETRY_BATCH_SIZE));
+		wep.setRetryParallelism(getIntProperty(props, epPrefix + "retryParallelism", 1));
+		wep.setRetryMaxFailures(getIntProperty(props, epPrefix + "retryMaxFailures",
+				WebEndpoint.DEFAULT_RETRY_MAX_FAILURES));
+
+		// circuit breaker; off unless configured (0 failures disables it)
+		int breakerFailures = getIntProperty(props, epPrefix + "breakerFailureThreshold", 0);
+		int breakerOpenSec = getIntProperty(props, epPrefix + "breakerOpenSeconds", 0);
+		wep.setCircuitBreaker(breakerFailures, breakerOpenSec * 1000L);
+
+		// messages per send for retry and async delivery
+		wep.setDeliveryBatchSize(getIntProperty(props, epPrefix + "deliveryBatchSize", 1));
+		wep.setDeliveryBatchLingerMS(getIntProperty(props, epPrefix + "deliveryBatchLingerMS",
+				(int) WebEndpoint.DEFAULT_DELIVERY_BATCH_LINGER_MS));
+
+		return wep;
+	}
+
+	// the endpoint of current that next replaces at index i with the same
+	// retry dir, or null
+	private static WebEndpoint replacedEndpoint(DispatchConfig next, int i,
+			DispatchConfig current)
+	{
+		WebEndpoint previous = (current != null) ? current.getWebEndpoint(i) : null;
+		if (previous != null && !next.containsEndpoint(previous)
+				&& previous.getRetryDir().equals(next.getWebEndpoint(i).getRetryDir())) {
+			return previous;
+		}
+		return null;
+	}
+
+	/**
+	 * Opens the retry journals of the endpoints that are new in the next
+	 * config. Runs before anything is handed over, so that a failure leaves
+	 * the current config untouched. A replaced endpoint with an open journal
+	 * in the same retry dir hands it over later instead.
+	 */
+	private static void openRetryJournals(DispatchConfig next, Properties props,
+			DispatchConfig current)
+	{
+		for (int i = 0; i < next.getEndpointCount(); i++) {
+			WebEndpoint wep = next.getWebEndpoint(i);
+			if (current != null && current.containsEndpoint(wep)) {
+				continue;
 			}
-			
-			//
-			// return value
-			//
-			String returnVal = props.getProperty("return_value");
-			if (returnVal == null || returnVal.trim().length() == 0) {
-			    returnValueForMatch = HANDLED;
+			String epPrefix = "endpoint_" + i + ".";
+			if (!"JOURNAL".equalsIgnoreCase(props.getProperty(epPrefix + "retryStore"))) {
+				continue;
 			}
-			else {
-			    try {
-			        int propVal = Integer.parseInt(returnVal);
-			        // only accept valid values for return_val
-			        if (propVal >= 1 && propVal <= 3) {
-			            returnValueForMatch = propVal;
-			        }
-			        else {
-			            throw new IllegalArgumentException("Invalid return_value; must be 1-3");
-			        }
-			    }
-			    catch (NumberFormatException x) {
-                    throw new IllegalArgumentException("Cannot parse return_value: " + returnVal);
-			    }
+			WebEndpoint previous = replacedEndpoint(next, i, current);
+			if (previous != null && previous.getRetryJournal() != null) {
+				// an open journal is shared, not opened twice
+				continue;
+			}
+			int segmentKB = getIntProperty(props, epPrefix + "journalSegmentKB",
+					(int) (RetryJournal.DEFAULT_SEGMENT_BYTES / 1024));
+			boolean journalSync = !"false".equalsIgnoreCase(
+					props.getProperty(epPrefix + "journalSync"));
+			try {
+				wep.useRetryJournal(segmentKB * 1024L, journalSync);
+			} catch (Exception x) {
+				throw new RuntimeException("Unable to open retry journal for endpoint " + i, x);
 			}
-			
-			// did load, need to init
-			return true;
+		}
+	}
+
+	/**
+	 * Starts retry tasks and async delivery for the endpoints that are new
+	 * in the next config; openRetryJournals() has run. A replaced endpoint
+	 * with the same retry dir first hands its retry store over, so that only
+	 * one retry task drains the directory.
+	 */
+	private static void startEndpoints(DispatchConfig next, Properties props,
+			DispatchConfig current)
+	{
+		for (int i = 0; i < next.getEndpointCount(); i++) {
+			WebEndpoint wep = next.getWebEndpoint(i);
+			if (current != null && current.containsEndpoint(wep)) {
+				// unchanged and already running
+				continue;
+			}
+			String epPrefix = "endpoint_" + i + ".";
+
+			WebEndpoint previous = replacedEndpoint(next, i, current);
+			if (previous != null) {
+				previous.handOverTo(wep);
+			}
+
+			// start retry task
+			wep.startRetryTask();
+
+			// optional async delivery; 0 threads means deliver on the receiver thread
+			int asyncThreads = getIntProperty(props, epPrefix + "asyncThreads", 0);
+			if (asyncThreads > 0) {
+				int asyncQueueSize = getIntProperty(props, epPrefix + "asyncQueueSize", 1000);
+				int asyncTimeoutMS = getIntProperty(props, epPrefix + "asyncEnqueueTimeoutMS", 1000);
+				wep.startAsyncDelivery(asyncThreads, asyncQueueSize, asyncTimeoutMS);
+			}
+
+			log(Debug.SRV, "SMSKeywordDispatch: endpoint " + i + ": " + wep);
 		}
 	}
 
 	public void initNetworkResources()
 	{
 		// should we init or let another thread do it???
-		boolean doInit = didInit.compareAndSet(false, true);
+		boolean doInit = holder.didInit.compareAndSet(false, true);
 		if (! doInit) {
 			return;
 		}
 		// we win, init here
+		DispatchConfig cfg = holder.current.get();
 		
-		int endpointCount = webEndpoints.length;
+		int endpointCount = cfg.getEndpointCount();
 		for (int i = 0; i < endpointCount; i++) {
-			WebEndpoint wep = webEndpoints[i];
+			WebEndpoint wep = cfg.getWebEndpoint(i);
 			wep.initNetworkResources();
 		}
 		
-		contentTemplate.initNetworkResources();
+		cfg.getContentTemplate().initNetworkResources();
+	}
+
+	/**
+	 * Starts watching the config file if config_reload is set. Does nothing
+	 * if a watcher is already running.
+	 */
+	public static void startConfigWatcher(File configProps)
+	{
+		synchronized (configLock) {
+			ConfigHolder h = holderFor(configProps);
+			DispatchConfig cfg = h.current.get();
+			if (h.watcher != null || cfg == null || !cfg.isConfigReload()) {
+				return;
+			}
+			try {
+				ConfigWatcher watcher = new ConfigWatcher(cfg.getConfigFile(),
+						cfg.getConfigReloadDelayMS()) {
+					protected void fileChanged(File file) {
+						reloadConfig(file);
+					}
+				};
+				watcher.start();
+				h.watcher = watcher;
+				log(Debug.SR, "SMSKeywordDispatch: watching {0}", cfg.getConfigFile());
+			}
+			catch (Exception x) {
+				// no hot reload; changes still need a restart
+				logException(x, "SMSKeywordDispatch: unable to watch {0}", cfg.getConfigFile());
+			}
+		}
+	}
+
+	public static void stopConfigWatcher(File configProps)
+	{
+		synchronized (configLock) {
+			ConfigHolder h = configs.get(configKey(configProps));
+			if (h != null && h.watcher != null) {
+				h.watcher.stop();
+				h.watcher = null;
+			}
+		}
+	}
+
+	// shuts down all loaded configs and the retry threads, and forgets the
+	// configs so that tests can load others
+	static void clearConfigs()
+	{
+		synchronized (configLock) {
+			for (ConfigHolder h : configs.values()) {
+				stopConfigWatcher(h.configFile);
+				h.metrics.unregister();
+				DispatchConfig cfg = h.current.get();
+				for (int i = 0; cfg != null && i < cfg.getEndpointCount(); i++) {
+					cfg.getWebEndpoint(i).shutdown();
+				}
+				if (cfg != null && cfg.getCustomerEnricher() != null) {
+					cfg.getCustomerEnricher().shutdown();
+				}
+				if (cfg != null && cfg.getCustomerBatcher() != null) {
+					cfg.getCustomerBatcher().shutdown();
+				}
+			}
+			configs.clear();
+			lastLoaded = null;
+			// endpoints have flushed their fsync batches; the next load
+			// starts a new scheduler
+			if (!WebEndpoint.shutdownRetryScheduler(RETRY_SHUTDOWN_TIMEOUT_MS)) {
+				log(Debug.SR, "SMSKeywordDispatch: retries still running after {0} ms",
+						RETRY_SHUTDOWN_TIMEOUT_MS);
+			}
+		}
 	}
 	
+	// handle() uses the config loaded from this file
+	void useConfig(File configFile) {
+		holder = holderFor(configFile);
+	}
+
 	public void init(ReplyHandlerRow handlerRow) {
 		// call superclass method
 		super.init(handlerRow);
@@ -337,7 +1015,9 @@ public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 
 		// call static config loader
 		loadConfig(configFile);
+		useConfig(configFile);
 		initNetworkResources();
+		startConfigWatcher(configFile);
 	}
 	
 	private static String fillRight(String str, int len, char cc)
@@ -359,85 +1039,40 @@ public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 	 * Helper method that transforms an SMPP Message into an XML document
 	 */
 	public static String smppToXml(SmppReceiverMessage msg)
+	{
+		return toSmppDocument(msg).toXml();
+	}
+
+	/**
+	 * Copies the fields of an incoming SMPP message into the document that
+	 * is passed to the content template.
+	 */
+	public static SmppDocument toSmppDocument(SmppReceiverMessage msg)
 	{
 		SMPPRequest smppReq = msg.getSmppRequest();
-		
-		StringBuffer buf = new StringBuffer();
-		buf.append("<smpp>\n");
-
-		// smpp header 
-		// numeric values do not need to be escaped
-		buf.append("<header>");
-		buf.append("<command_id>").append(smppReq.getCommandId()).append("</command_id>");
-		buf.append("<sequence_number>").append(smppReq.getSequenceNum()).append("</sequence_number>");
-		buf.append("</header>\n");
-		
+		SmppDocument doc = new SmppDocument();
+
+		// smpp header
+		doc.setCommandId(smppReq.getCommandId());
+		doc.setSequenceNumber(smppReq.getSequenceNum());
+
 		// smpp source
 		Address smppSource = smppReq.getSource();
-		buf.append("<source>");
-		buf.append("<ton>").append(smppSource.getTON()).append("</ton>");
-		buf.append("<npi>").append(smppSource.getNPI()).append("</npi>");
-		
-		String srcAddr = smppSource.getAddress();
-		srcAddr = StringEscapeUtils.escapeXml11(srcAddr);
-		buf.append("<address>").append(srcAddr).append("</address>");
-		buf.append("</source>\n");
-		
+		doc.setSourceTON(smppSource.getTON());
+		doc.setSourceNPI(smppSource.getNPI());
+		doc.setSourceAddress(smppSource.getAddress());
+
 		// smpp dest
 		Address smppDest = smppReq.getDestination();
-		buf.append("<destination>");
-		buf.append("<ton>").append(smppDest.getTON()).append("</ton>");
-		buf.append("<npi>").append(smppDest.getNPI()).append("</npi>");
-		
-		String dstAddr = smppDest.getAddress();
-		dstAddr = StringEscapeUtils.escapeXml11(dstAddr);
-		buf.append("<address>").append(dstAddr).append("</address>");
-		buf.append("</destination>\n");
-
-		// message id
-		String msgId = smppReq.getMessageId();
-		if (msgId == null) {
-		    msgId = "";
-		}
-		msgId = StringEscapeUtils.escapeXml11(msgId);
-		buf.append("<messageid>").append(msgId).append("</messageid>\n");
-		
-		// smpp message
-		String msgText = smppReq.getMessageText();
-		msgText = StringEscapeUtils.escapeXml11(msgText);
-		buf.append("<message>");
-		buf.append(msgText);
-		buf.append("</message>\n");
-
-		// base64 message
-        msgText = smppReq.getMessageText();
-        msgText = Base64.encodeBase64String(msgText.getBytes());
-        buf.append("<messageBase64>");
-        buf.append(msgText);
-        buf.append("</messageBase64>\n");
-		
-        //
-        // timestamps in different formats
-        //
-        
-        long now = System.currentTimeMillis();
-        
-        // ISO8601 http://joda-time.sourceforge.net/apidocs/org/joda/time/format/ISODateTimeFormat.html
-        DateTimeFormatter isoFormat = ISODateTimeFormat.dateTime();
-        isoFormat.withZoneUTC();
-        String headerTimestamp = isoFormat.print(now);
-        headerTimestamp = StringEscapeUtils.escapeXml11(headerTimestamp);
-        
-        // custom format http://joda-time.sourceforge.net/apidocs/org/joda/time/format/DateTimeFormat.html
-        DateTimeFormatter otherFormat = DateTimeFormat.forPattern("ddMMYYYYHHmmz");
-        String payloadTimestamp = otherFormat.print(now);
-        payloadTimestamp = StringEscapeUtils.escapeXml11(payloadTimestamp);
-		
-        buf.append("<headertimestamp>").append(headerTimestamp).append("</headertimestamp>");
-        buf.append("<payloadtimestamp>").append(payloadTimestamp).append("</payloadtimestamp>");
-        
-		buf.append("</smpp>\n");
-		return buf.toString();
+		doc.setDestinationTON(smppDest.getTON());
+		doc.setDestinationNPI(smppDest.getNPI());
+		doc.setDestinationAddress(smppDest.getAddress());
+
+		// message id and text
+		doc.setMessageId(smppReq.getMessageId());
+		doc.setMessageText(smppReq.getMessageText());
+		doc.setTimestamp(System.currentTimeMillis());
+		return doc;
 	}
 
 	/**
@@ -445,52 +1080,69 @@ public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 	 * the incoming message and take action based on the message content.
 	 */
 	public int handle(SmppReceiverMessage msg, TransactionManager tm) {
+		DispatchMetrics metrics = holder.metrics;
+		long start = System.nanoTime();
+		try {
+			return dispatch(msg, metrics);
+		}
+		finally {
+			metrics.handle.recordSince(start);
+		}
+	}
+
+	private int dispatch(SmppReceiverMessage msg, DispatchMetrics metrics) {
 	    // print log message to MailProcessor log under the "SMPP Receiver" Verbose Diagnostic
-	    log(Debug.SRV, "SMSKeywordDispatch: attempting to handle: {0}", msg);
+	    if (Debug.SRV.isEnabled()) {
+	        log(Debug.SRV, "SMSKeywordDispatch: attempting to handle: {0}", msg);
+	    }
+		metrics.recordMessage();
 
 		// extract info about the incoming message from the SmppReceiverMessage
 		// object
 		String smsSource = msg.getFieldToMatch("from");
 		String smsDest = msg.getFieldToMatch("to");
 		String smsMessage = msg.getFieldToMatch("body");
-		log(Debug.SRVV, "SMSKeywordDispatch: src: {0} dst:{1} msg:{2}", smsSource, smsDest, smsMessage);
+		if (Debug.SRVV.isEnabled()) {
+			log(Debug.SRVV, "SMSKeywordDispatch: src: {0} dst:{1} msg:{2}", smsSource, smsDest, smsMessage);
+		}
+
+		// one snapshot for the whole message, even if the config is reloaded
+		DispatchConfig cfg = holder.current.get();
+		XslContent contentTemplate = cfg.getContentTemplate();
+		boolean saxContentInput = cfg.isSaxContentInput();
+		int returnValueForMatch = cfg.getReturnValueForMatch();
 
 		//
 		// MATCH INCOMING MESSAGE AGAINST REGEXES
 		//
 
-		// matchMatcher / matchIndex hold the result of the match
-		Matcher matchMatcher = null;
-		int matchIndex = -1;
-
-		int regexCount = matchPatterns.length;
-		for (int i = 0; i < regexCount; i++) {
-			Pattern pattern = matchPatterns[i];
-			Matcher matcher = pattern.matcher(smsMessage);
-			if (matcher.matches()) {
-			    log(Debug.SRVV, "SMSKeywordDispatch: match {0}", pattern.pattern());
-				matchIndex = i;
-				matchMatcher = matcher;
-				break;
-			}
-		}
+		// first pattern (in config order) that matches the whole message
+		long t = System.nanoTime();
+		int matchIndex = cfg.getKeywordIndex().match(smsMessage);
+		t = metrics.match.recordSince(t);
+		metrics.recordMatch(matchIndex);
 
 		// quit if no match
 		if (matchIndex < 0) {
 		    log(Debug.SRVV, "SMSKeywordDispatch: no match");
 			return NOT_HANDLED; // NOT_HANDLED is inherited from parent class
 		}
+		if (Debug.SRVV.isEnabled()) {
+			log(Debug.SRVV, "SMSKeywordDispatch: match {0}", cfg.getMatchPattern(matchIndex).pattern());
+		}
 
 		//
 		// IF REGEXES MATCH, FIND ASSOCIATED MAPPING FOR DEST NUMBERN
 		//
-		Integer targetEndpoint = numberMappings.get(smsDest);
+		Integer targetEndpoint = cfg.getNumberMapping(smsDest);
 		if (targetEndpoint == null) {
 			// no match for destination number; log and give up???
+			metrics.recordMappingMiss();
 		    log(Debug.SR, "SMSKeywordDispatch: WARNING: no endpoint for dest: {0}", smsDest);
 			return NOT_HANDLED;
 		}
-		WebEndpoint wep = webEndpoints[targetEndpoint.intValue()];
+		metrics.recordMappingHit(smsDest);
+		WebEndpoint wep = cfg.getWebEndpoint(targetEndpoint.intValue());
 		if (wep == null) {
 			// no match for endpoint number; log and give up???
 		    log(Debug.SR, "SMSKeywordDispatch: WARNING: no endpoint for target: {0}", targetEndpoint);
@@ -500,15 +1152,40 @@ public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 		//
 		// CREATE CONTENT
 		//
-		// attempt to find customer from sms number
-		// TODO incorporate this into the XML document
-		CustomerRow cust = CustomerTable.getInstance().getCustomerBySMSNumber(
-				smsSource);
+		// find the customer from the sms number, but only if the document
+		// or the log needs it. With content.customerAttributes the customer
+		// and its attributes are looked up while the document is built.
+		boolean contentCustomer = cfg.isContentCustomer();
+		CustomerEnricher enricher = cfg.getCustomerEnricher();
+		CustomerEnricher.Enrichment enrichment = null;
+		Long customerID = null;
+		if (enricher != null) {
+			enrichment = enricher.start(smsSource, customerSource(cfg));
+		}
+		else if (contentCustomer || Debug.SR.isEnabled()) {
+			t = System.nanoTime();
+			customerID = findCustomerID(cfg, smsSource);
+			metrics.customerLookup.recordSince(t);
+		}
+
+		// create xml doc
+		t = System.nanoTime();
+		SmppDocument smppDoc = toSmppDocument(msg);
+		if (enrichment != null) {
+			// the wait counts as customer lookup, not as xml building
+			long built = System.nanoTime();
+			customerID = enrichment.applyTo(smppDoc);
+			t += metrics.customerLookup.recordSince(built) - built;
+			metrics.recordCustomerAttributeTimeouts(enrichment.getTimeoutCount());
+		}
+		else if (contentCustomer) {
+			smppDoc.setCustomerId(customerID);
+		}
 
 		if (Debug.SR.isEnabled()) {
-			if (cust != null) {
+			if (customerID != null) {
 				Debug.SR.println("SMSLoggingReplyHandler: message from "
-						+ smsSource + " (customer:" + cust.getID() + ") to "
+						+ smsSource + " (customer:" + customerID + ") to "
 						+ smsDest + " body:\"" + smsMessage + "\"");
 			} else {
 				Debug.SR.println("SMSLoggingReplyHandler: message from "
@@ -517,31 +1194,109 @@ public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 			}
 		}
 
-		// create xml doc
-		String xmlContent = smppToXml(msg);
-		log(Debug.SRV, "SMSKeywordDispatch: XML: {0}", xmlContent);
+		String xmlContent = null;
+		if (contentTemplate == null || !saxContentInput || Debug.SRV.isEnabled()) {
+			xmlContent = smppDoc.toXml();
+		}
+		t = metrics.xmlBuild.recordSince(t);
+		if (xmlContent != null) {
+			log(Debug.SRV, "SMSKeywordDispatch: XML: {0}", xmlContent);
+		}
 
 		String xslOutput = null;
+		// endpoints that send bytes get the xsl output as UTF-8, without
+		// a String in between (sync delivery only; the async queue and the
+		// retry store hold Strings)
+		byte[] xslBytes = null;
+		boolean bytesOutput = contentTemplate != null && wep.prefersBytes() && !wep.isAsync();
+
 		// do xsl transform 
 		if (contentTemplate == null) {
 			xslOutput = xmlContent;
 		}
 		else {
 			try {
-				xslOutput = contentTemplate.transformDocument(xmlContent);
+				if (bytesOutput) {
+					xslBytes = saxContentInput
+							? contentTemplate.transformDocumentUTF8(smppDoc.toSAXSource())
+							: contentTemplate.transformDocumentUTF8(xmlContent);
+				}
+				else if (saxContentInput) {
+					// no XML text to build and re-parse
+					xslOutput = contentTemplate.transformDocument(smppDoc.toSAXSource());
+				}
+				else {
+					xslOutput = contentTemplate.transformDocument(xmlContent);
+				}
 			} 
 			catch (Throwable th) {
 				throw new RuntimeException(th);
 			}
+			metrics.xslTransform.recordSince(t);
+		}
+		if (Debug.SRV.isEnabled()) {
+			log(Debug.SRV, "SMSKeywordDispatch: XSL Output: {0}", toText(xslOutput, xslBytes));
 		}
-		log(Debug.SRV, "SMSKeywordDispatch: XSL Output: {0}", xslOutput);
 
 		//
 		// DELIVER MESSAGE TO ENDPOINT
 		//
+		if (wep.isAsync()) {
+			// returns once the message is on disk; worker threads deliver it
+			try {
+				t = System.nanoTime();
+				wep.enqueueMessage(xslOutput);
+				metrics.deliver.recordSince(t);
+				log(Debug.SRV, "SMSKeywordDispatch: queued for {0}", wep);
+			} catch (Throwable th) {
+			    logException(th, "SMSKeywordDispatch: ENQUEUE FAILURE to {0}", wep);
+				throw new RuntimeException(th);
+			}
+
+			msg.setHandlerID(getHandlerID());
+			msg.setHandleType(getHandleType());
+			msg.setHandleCode(returnValueForMatch);
+			return returnValueForMatch;
+		}
+
+		if (!wep.isAcceptingDeliveries()) {
+			// circuit breaker is open; skip the delivery attempt
+			try {
+				t = System.nanoTime();
+				wep.deferMessage(toText(xslOutput, xslBytes));
+				metrics.retrySpill.recordSince(t);
+				log(Debug.SRV, "SMSKeywordDispatch: circuit open, deferred for {0}", wep);
+			} catch (Throwable th) {
+			    logException(th, "SMSKeywordDispatch: RESHEDULE FAILURE to {0}", wep);
+				throw new RuntimeException(th);
+			}
+
+			msg.setHandlerID(getHandlerID());
+			msg.setHandleType(getHandleType());
+			msg.setHandleCode(returnValueForMatch);
+			return returnValueForMatch;
+		}
+
+		t = System.nanoTime();
 		try {
-			wep.deliverMessage(xslOutput);
-			log(Debug.SR, "SMSKeywordDispatch: delivered to {0}" + wep);
+			try {
+				if (wep.isAsyncSend()) {
+					// the endpoint records the outcome and saves the
+					// message for retry if it fails
+					wep.attemptDeliveryAsync(toText(xslOutput, xslBytes));
+				}
+				else if (xslBytes != null) {
+					wep.attemptDeliveryBytes(xslBytes);
+				}
+				else {
+					wep.attemptDelivery(xslOutput);
+				}
+			}
+			finally {
+				metrics.deliver.recordSince(t);
+			}
+			log(Debug.SR, wep.isAsyncSend() ? "SMSKeywordDispatch: sending to {0}"
+					: "SMSKeywordDispatch: delivered to {0}", wep);
 		} catch (Exception x) {
 		    logException(x, "SMSKeywordDispatch: reshedule delivery to {0}", wep);
 			
@@ -549,7 +1304,9 @@ public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 			// TODO LOG EXCEPTION
 			//
 			try {
-				wep.scheduleRetry(xslOutput);
+				t = System.nanoTime();
+				wep.scheduleRetry(toText(xslOutput, xslBytes));
+				metrics.retrySpill.recordSince(t);
 
 				// each handler must set msg result codes
 				msg.setHandlerID(getHandlerID());
@@ -585,4 +1342,155 @@ public class SMSKeywordDispatchReplyHandler extends SmppReplyHandler {
 		return returnValueForMatch; 
 	}
 
+	/**
+	 * Finds the customer that sent the message; null if unknown.
+	 */
+	protected CustomerRow lookupCustomer(String smsNumber) {
+		return CustomerTable.getInstance().getCustomerBySMSNumber(smsNumber);
+	}
+
+	/**
+	 * ID of the customer with the sms number, or null if there is none.
+	 * Goes through the config's customer cache, if it has one.
+	 */
+	Long findCustomerID(DispatchConfig cfg, String smsNumber) {
+		if (smsNumber == null) {
+			return null;
+		}
+		CustomerCache cache = cfg.getCustomerCache();
+		Long cached = (cache != null) ? cache.get(smsNumber) : null;
+		if (cached != null) {
+			return CustomerCache.NOT_FOUND.equals(cached) ? null : cached;
+		}
+
+		long gen = (cache != null) ? cache.getGeneration() : 0;
+		Long customerID;
+		CustomerBatcher batcher = cfg.getCustomerBatcher();
+		if (batcher != null) {
+			try {
+				customerID = batcher.findCustomerID(smsNumber);
+			}
+			catch (Exception x) {
+				// timed out or failed; not cached, the next message asks again
+				logException(x, "SMSKeywordDispatch: customer lookup failed for {0}", smsNumber);
+				return null;
+			}
+		}
+		else {
+			CustomerRow cust = lookupCustomer(smsNumber);
+			customerID = (cust != null) ? Long.valueOf(cust.getID()) : null;
+		}
+		if (cache != null) {
+			cache.put(smsNumber, customerID, gen);
+		}
+		return customerID;
+	}
+
+	/**
+	 * The customer with the sms number, or null if there is none. A cached
+	 * customer ID saves the search by number.
+	 */
+	CustomerRow findCustomer(DispatchConfig cfg, String smsNumber) {
+		if (smsNumber == null) {
+			return null;
+		}
+		if (cfg.getCustomerBatcher() != null) {
+			// the batch query only returns IDs
+			Long customerID = findCustomerID(cfg, smsNumber);
+			return (customerID != null) ? lookupCustomerByID(customerID.longValue()) : null;
+		}
+		CustomerCache cache = cfg.getCustomerCache();
+		if (cache == null) {
+			return lookupCustomer(smsNumber);
+		}
+
+		Long cached = cache.get(smsNumber);
+		if (cached != null) {
+			return CustomerCache.NOT_FOUND.equals(cached) ? null : lookupCustomerByID(cached.longValue());
+		}
+		long gen = cache.getGeneration();
+		CustomerRow cust = lookupCustomer(smsNumber);
+		cache.put(smsNumber, (cust != null) ? Long.valueOf(cust.getID()) : null, gen);
+		return cust;
+	}
+
+	/**
+	 * Finds a customer by ID; null if there is none.
+	 */
+	protected CustomerRow lookupCustomerByID(long customerID) {
+		return CustomerTable.getInstance().getCustomerByID(customerID);
+	}
+
+	/**
+	 * Reads one attribute of a customer for content.customerAttributes;
+	 * null if it has no value.
+	 */
+	protected Object lookupCustomerAttribute(CustomerRow cust, String name) throws Exception {
+		if (customerAttributeMethod == null) {
+			return null;
+		}
+		try {
+			return customerAttributeMethod.invoke(cust, name);
+		}
+		catch (InvocationTargetException x) {
+			Throwable cause = x.getCause();
+			throw (cause instanceof Exception) ? (Exception) cause : x;
+		}
+	}
+
+	private static Method loadCustomerAttributeMethod()
+	{
+		try {
+			return CustomerRow.class.getMethod("getAttribute", String.class);
+		}
+		catch (Throwable th) {
+			return null;
+		}
+	}
+
+	// the customer enricher's view of this handler and config
+	private CustomerEnricher.CustomerSource customerSource(final DispatchConfig cfg) {
+		return new CustomerEnricher.CustomerSource() {
+			public CustomerRow findCustomer(String smsNumber) {
+				return SMSKeywordDispatchReplyHandler.this.findCustomer(cfg, smsNumber);
+			}
+
+			public Object getAttribute(CustomerRow cust, String name) throws Exception {
+				return lookupCustomerAttribute(cust, name);
+			}
+		};
+	}
+
+	/**
+	 * Drops the cached customer of an sms number in every handler, e.g.
+	 * after the customer's number changed.
+	 */
+	public static void invalidateCustomer(String smsNumber) {
+		for (ConfigHolder h : configs.values()) {
+			DispatchConfig cfg = h.current.get();
+			CustomerCache cache = (cfg != null) ? cfg.getCustomerCache() : null;
+			if (cache != null) {
+				cache.invalidate(smsNumber);
+			}
+		}
+	}
+
+	/**
+	 * Drops all cached customers in every handler, e.g. after an import.
+	 */
+	public static void invalidateCustomers() {
+		for (ConfigHolder h : configs.values()) {
+			DispatchConfig cfg = h.current.get();
+			CustomerCache cache = (cfg != null) ? cfg.getCustomerCache() : null;
+			if (cache != null) {
+				cache.invalidateAll();
+			}
+		}
+	}
+
+	// the xsl output as a String, decoding it if it was produced as bytes
+	private static String toText(String text, byte[] utf8) {
+		return (text != null) ? text : new String(utf8, UTF8);
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,203 @@
+/*
+ * SMPP Document -- the fields of an incoming SMPP message as an XML document
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.content;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.apache.commons.codec.binary.Base64;
+import org.xml.sax.InputSource;
+
+/**
+ * Holds the SMPP fields that are passed to the XSL content template.
+ *
+ * The document can be serialized to an XML string (toXml) or fed to a
+ * transformer as SAX events (toSAXSource). Both produce the same document;
+ * the SAX source just skips writing and re-parsing the string.
+ */
+public class SmppDocument {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int commandId;
+	private int sequenceNumber;
+	private int sourceTON;
+	private int sourceNPI;
+	private String sourceAddress;
+	private int destinationTON;
+	private int destinationNPI;
+	private String destinationAddress;
+	private String messageId;
+	private String messageText;
+	private long timestamp = System.currentTimeMillis();
+	// sender's customer ID; null if unknown or not looked up
+	private Long customerId;
+	// content.customerAttributes that were found, in config order
+	private Map<String, String> customerAttributes;
+
+	//
+	// GETTERS AND SETTERS
+	//
+
+	public int getCommandId() {
+		return commandId;
+	}
+
+	public void setCommandId(int value) {
+		commandId = value;
+	}
+
+	public int getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	public void setSequenceNumber(int value) {
+		sequenceNumber = value;
+	}
+
+	public int getSourceTON() {
+		return sourceTON;
+	}
+
+	public void setSourceTON(int value) {
+		sourceTON = value;
+	}
+
+	public int getSourceNPI() {
+		return sourceNPI;
+	}
+
+	public void setSourceNPI(int value) {
+		sourceNPI = value;
+	}
+
+	public String getSourceAddress() {
+		return sourceAddress;
+	}
+
+	public void setSourceAddress(String value) {
+		sourceAddress = value;
+	}
+
+	public int getDestinationTON() {
+		return destinationTON;
+	}
+
+	public void setDestinationTON(int value) {
+		destinationTON = value;
+	}
+
+	public int getDestinationNPI() {
+		return destinationNPI;
+	}
+
+	public void setDestinationNPI(int value) {
+		destinationNPI = value;
+	}
+
+	public String getDestinationAddress() {
+		return destinationAddress;
+	}
+
+	public void setDestinationAddress(String value) {
+		destinationAddress = value;
+	}
+
+	// never null
+	public String getMessageId() {
+		return messageId == null ? "" : messageId;
+	}
+
+	public void setMessageId(String value) {
+		messageId = value;
+	}
+
+	public String getMessageText() {
+		return messageText;
+	}
+
+	public void setMessageText(String value) {
+		messageText = value;
+	}
+
+	// time the message was received, in millis
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long value) {
+		timestamp = value;
+	}
+
+	// written as <customer><id>...</id></customer> when not null
+	public Long getCustomerId() {
+		return customerId;
+	}
+
+	public void setCustomerId(Long value) {
+		customerId = value;
+	}
+
+	// written as <attribute name="...">...</attribute> inside <customer>
+	public Map<String, String> getCustomerAttributes() {
+		if (customerAttributes == null) {
+			return Collections.emptyMap();
+		}
+		return Collections.unmodifiableMap(customerAttributes);
+	}
+
+	public void setCustomerAttribute(String name, String value) {
+		if (customerAttributes == null) {
+			customerAttributes = new LinkedHashMap<String, String>();
+		}
+		customerAttributes.put(name, value);
+	}
+
+	//
+	// DERIVED FIELDS
+	//
+
+	// Base64 of the UTF-8 message text
+	public String getMessageBase64() {
+		return Base64.encodeBase64String(messageText.getBytes(UTF8));
+	}
+
+	// ISO8601 in UTC
+	public String getHeaderTimestamp() {
+		return SmppXmlBuilder.get().headerTimestamp(timestamp);
+	}
+
+	// ddMMYYYYHHmmz in the local zone
+	public String getPayloadTimestamp() {
+		return SmppXmlBuilder.get().payloadTimestamp(timestamp);
+	}
+
+	//
+	// XML
+	//
+
+	/**
+	 * Serializes the document to an XML string.
+	 */
+	public String toXml() {
+		return SmppXmlBuilder.get().toXml(this);
+	}
+
+	/**
+	 * Returns a source that feeds the document to a transformer as SAX
+	 * events, without building or parsing an XML string.
+	 */
+	public SAXSource toSAXSource() {
+		return new SAXSource(new SmppXmlReader(this), new InputSource());
+	}
+}
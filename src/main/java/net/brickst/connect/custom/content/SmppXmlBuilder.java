@@ -0,0 +1,281 @@
+/*
+ * SMPP XML Builder -- reusable per-thread writer for SmppDocument XML
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.content;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Writes the XML for an SmppDocument into a reused buffer.
+ *
+ * One builder is kept per thread (see get()), so nothing here is
+ * synchronized. Escaping and Base64 encoding write straight into the
+ * buffer, and the formatted timestamps are cached for the current second.
+ */
+public class SmppXmlBuilder {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// joda formatters are immutable and thread-safe
+	// ISO8601 http://joda-time.sourceforge.net/apidocs/org/joda/time/format/ISODateTimeFormat.html
+	private static final DateTimeFormatter HEADER_FORMAT = ISODateTimeFormat.dateTime().withZoneUTC();
+	// custom format http://joda-time.sourceforge.net/apidocs/org/joda/time/format/DateTimeFormat.html
+	private static final DateTimeFormatter PAYLOAD_FORMAT = DateTimeFormat.forPattern("ddMMYYYYHHmmz");
+
+	private static final char[] BASE64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	// most documents fit; a buffer that grew past MAX_RETAINED is dropped
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MAX_RETAINED = 64 * 1024;
+
+	private static final ThreadLocal<SmppXmlBuilder> builders = new ThreadLocal<SmppXmlBuilder>() {
+		protected SmppXmlBuilder initialValue() {
+			return new SmppXmlBuilder();
+		}
+	};
+
+	private StringBuilder buf = new StringBuilder(INITIAL_CAPACITY);
+
+	// timestamp cache for one second
+	private long cachedSecond = Long.MIN_VALUE;
+	private String headerPrefix;  // up to and including the '.' before millis
+	private String headerSuffix;  // zone after millis
+	private String payloadTimestamp;
+
+	/**
+	 * Returns this thread's builder.
+	 */
+	public static SmppXmlBuilder get() {
+		return builders.get();
+	}
+
+	//
+	// DOCUMENT
+	//
+
+	public String toXml(SmppDocument doc) {
+		StringBuilder b = buf;
+		b.setLength(0);
+		b.append("<smpp>\n");
+
+		// smpp header
+		// numeric values do not need to be escaped
+		b.append("<header>");
+		b.append("<command_id>").append(doc.getCommandId()).append("</command_id>");
+		b.append("<sequence_number>").append(doc.getSequenceNumber()).append("</sequence_number>");
+		b.append("</header>\n");
+
+		// smpp source
+		b.append("<source>");
+		b.append("<ton>").append(doc.getSourceTON()).append("</ton>");
+		b.append("<npi>").append(doc.getSourceNPI()).append("</npi>");
+		b.append("<address>");
+		appendEscaped(doc.getSourceAddress());
+		b.append("</address>");
+		b.append("</source>\n");
+
+		// smpp dest
+		b.append("<destination>");
+		b.append("<ton>").append(doc.getDestinationTON()).append("</ton>");
+		b.append("<npi>").append(doc.getDestinationNPI()).append("</npi>");
+		b.append("<address>");
+		appendEscaped(doc.getDestinationAddress());
+		b.append("</address>");
+		b.append("</destination>\n");
+
+		// customer, if it was looked up and found
+		Long customerId = doc.getCustomerId();
+		if (customerId != null) {
+			b.append("<customer><id>").append(customerId.longValue()).append("</id>");
+			for (Map.Entry<String, String> attr : doc.getCustomerAttributes().entrySet()) {
+				b.append("<attribute name=\"");
+				appendEscaped(attr.getKey());
+				b.append("\">");
+				appendEscaped(attr.getValue());
+				b.append("</attribute>");
+			}
+			b.append("</customer>\n");
+		}
+
+		// message id
+		b.append("<messageid>");
+		appendEscaped(doc.getMessageId());
+		b.append("</messageid>\n");
+
+		// smpp message
+		String msgText = doc.getMessageText();
+		b.append("<message>");
+		appendEscaped(msgText);
+		b.append("</message>\n");
+
+		// base64 message
+		b.append("<messageBase64>");
+		appendBase64(msgText.getBytes(UTF8));
+		b.append("</messageBase64>\n");
+
+		// timestamps; formatter output needs no escaping
+		long ts = doc.getTimestamp();
+		b.append("<headertimestamp>");
+		appendHeaderTimestamp(ts);
+		b.append("</headertimestamp>");
+		b.append("<payloadtimestamp>").append(payloadTimestamp(ts)).append("</payloadtimestamp>");
+
+		b.append("</smpp>\n");
+		String result = b.toString();
+		if (b.capacity() > MAX_RETAINED) {
+			buf = new StringBuilder(INITIAL_CAPACITY);
+		}
+		return result;
+	}
+
+	//
+	// TIMESTAMPS
+	//
+
+	public String headerTimestamp(long ts) {
+		StringBuilder b = buf;
+		b.setLength(0);
+		appendHeaderTimestamp(ts);
+		return b.toString();
+	}
+
+	public String payloadTimestamp(long ts) {
+		cacheSecond(ts);
+		return payloadTimestamp;
+	}
+
+	private void appendHeaderTimestamp(long ts) {
+		int millis = cacheSecond(ts);
+		buf.append(headerPrefix);
+		if (millis < 100) {
+			buf.append('0');
+		}
+		if (millis < 10) {
+			buf.append('0');
+		}
+		buf.append(millis).append(headerSuffix);
+	}
+
+	/**
+	 * Formats the timestamps for the second containing ts unless they are
+	 * cached already. Returns the millis within the second.
+	 */
+	private int cacheSecond(long ts) {
+		long second = ts / 1000;
+		int millis = (int) (ts % 1000);
+		if (millis < 0) {
+			second--;
+			millis += 1000;
+		}
+		if (second != cachedSecond) {
+			long start = second * 1000;
+			String header = HEADER_FORMAT.print(start);
+			int dot = header.lastIndexOf('.');
+			headerPrefix = header.substring(0, dot + 1);
+			headerSuffix = header.substring(dot + 4);
+			payloadTimestamp = PAYLOAD_FORMAT.print(start);
+			cachedSecond = second;
+		}
+		return millis;
+	}
+
+	//
+	// ENCODING
+	//
+
+	/**
+	 * Appends text escaped the way StringEscapeUtils.escapeXml11 does:
+	 * markup characters become entities, restricted control characters
+	 * become numeric references and NUL, U+FFFE, U+FFFF and unpaired
+	 * surrogates are dropped. null is appended as "null".
+	 */
+	void appendEscaped(String s) {
+		StringBuilder b = buf;
+		if (s == null) {
+			b.append("null");
+			return;
+		}
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				b.append("&quot;");
+				break;
+			case '&':
+				b.append("&amp;");
+				break;
+			case '<':
+				b.append("&lt;");
+				break;
+			case '>':
+				b.append("&gt;");
+				break;
+			case '\'':
+				b.append("&apos;");
+				break;
+			case '\u0000':
+			case '\uFFFE':
+			case '\uFFFF':
+				break;
+			default:
+				if ((c >= 0x1 && c <= 0x8) || c == 0xb || c == 0xc
+						|| (c >= 0xe && c <= 0x1f)
+						|| (c >= 0x7f && c <= 0x84) || (c >= 0x86 && c <= 0x9f)) {
+					b.append("&#").append((int) c).append(';');
+				}
+				else if (Character.isHighSurrogate(c)) {
+					if (i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+						b.append(c).append(s.charAt(++i));
+					}
+					// else unpaired; dropped
+				}
+				else if (!Character.isLowSurrogate(c)) {
+					b.append(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends standard, unchunked Base64 with padding.
+	 */
+	void appendBase64(byte[] data) {
+		StringBuilder b = buf;
+		int len = data.length;
+		int i = 0;
+		for (; i + 2 < len; i += 3) {
+			int n = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+			b.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f])
+				.append(BASE64[(n >>> 6) & 0x3f]).append(BASE64[n & 0x3f]);
+		}
+		int rest = len - i;
+		if (rest == 1) {
+			int n = (data[i] & 0xff) << 16;
+			b.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f]).append("==");
+		}
+		else if (rest == 2) {
+			int n = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8);
+			b.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f])
+				.append(BASE64[(n >>> 6) & 0x3f]).append('=');
+		}
+	}
+
+	// test access to the buffer
+	String takeBuffer() {
+		String s = buf.toString();
+		buf.setLength(0);
+		return s;
+	}
+}
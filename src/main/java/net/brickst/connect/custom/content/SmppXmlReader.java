@@ -0,0 +1,248 @@
+/*
+ * SMPP XML Reader -- emits an SmppDocument as SAX events
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * An XMLReader that doesn't read anything: parse() sends the fields of an
+ * SmppDocument to the content handler as the same events a parser would
+ * produce for SmppDocument.toXml().
+ *
+ * Text is cleaned up the way toXml() and a parser would: characters that
+ * escapeXml11 drops (NUL, U+FFFE, U+FFFF, unpaired surrogates) are removed
+ * and CR / CRLF line ends become LF. Control characters that toXml() turns
+ * into character references (which an XML 1.0 parser rejects) are passed
+ * through as is.
+ */
+public class SmppXmlReader implements XMLReader {
+	private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+	private static final AttributesImpl NO_ATTRIBUTES = new AttributesImpl();
+	private static final char[] NEWLINE = { '\n' };
+
+	private final SmppDocument doc;
+	private ContentHandler contentHandler;
+	private ErrorHandler errorHandler;
+	private DTDHandler dtdHandler;
+	private EntityResolver entityResolver;
+	private Map<String, Object> settings = new HashMap<String, Object>();
+
+	// scratch buffer for text
+	private char[] buf = new char[64];
+
+	public SmppXmlReader(SmppDocument doc) {
+		this.doc = doc;
+	}
+
+	//
+	// XMLReader
+	//
+
+	// features and properties are accepted and ignored
+	public boolean getFeature(String name) {
+		Object val = settings.get(name);
+		if (val == null) {
+			return NAMESPACES.equals(name);
+		}
+		return Boolean.TRUE.equals(val);
+	}
+
+	public void setFeature(String name, boolean value) {
+		settings.put(name, Boolean.valueOf(value));
+	}
+
+	public Object getProperty(String name) {
+		return settings.get("property:" + name);
+	}
+
+	public void setProperty(String name, Object value) {
+		settings.put("property:" + name, value);
+	}
+
+	public void setEntityResolver(EntityResolver resolver) {
+		entityResolver = resolver;
+	}
+
+	public EntityResolver getEntityResolver() {
+		return entityResolver;
+	}
+
+	public void setDTDHandler(DTDHandler handler) {
+		dtdHandler = handler;
+	}
+
+	public DTDHandler getDTDHandler() {
+		return dtdHandler;
+	}
+
+	public void setContentHandler(ContentHandler handler) {
+		contentHandler = handler;
+	}
+
+	public ContentHandler getContentHandler() {
+		return contentHandler;
+	}
+
+	public void setErrorHandler(ErrorHandler handler) {
+		errorHandler = handler;
+	}
+
+	public ErrorHandler getErrorHandler() {
+		return errorHandler;
+	}
+
+	public void parse(String systemId) throws SAXException {
+		emit();
+	}
+
+	public void parse(InputSource input) throws SAXException {
+		emit();
+	}
+
+	//
+	// EVENTS
+	//
+
+	/**
+	 * Sends the document to the content handler. Element layout and
+	 * whitespace follow SmppDocument.toXml().
+	 */
+	private void emit() throws SAXException {
+		if (contentHandler == null) {
+			throw new SAXException("no content handler");
+		}
+		ContentHandler ch = contentHandler;
+		ch.startDocument();
+		start("smpp");
+		newline();
+
+		// smpp header
+		start("header");
+		element("command_id", Integer.toString(doc.getCommandId()));
+		element("sequence_number", Integer.toString(doc.getSequenceNumber()));
+		end("header");
+		newline();
+
+		// smpp source
+		start("source");
+		element("ton", Integer.toString(doc.getSourceTON()));
+		element("npi", Integer.toString(doc.getSourceNPI()));
+		element("address", doc.getSourceAddress());
+		end("source");
+		newline();
+
+		// smpp dest
+		start("destination");
+		element("ton", Integer.toString(doc.getDestinationTON()));
+		element("npi", Integer.toString(doc.getDestinationNPI()));
+		element("address", doc.getDestinationAddress());
+		end("destination");
+		newline();
+
+		// customer, if it was looked up and found
+		Long customerId = doc.getCustomerId();
+		if (customerId != null) {
+			start("customer");
+			element("id", customerId.toString());
+			for (Map.Entry<String, String> attr : doc.getCustomerAttributes().entrySet()) {
+				AttributesImpl atts = new AttributesImpl();
+				atts.addAttribute("", "name", "name", "CDATA", attr.getKey());
+				contentHandler.startElement("", "attribute", "attribute", atts);
+				text(attr.getValue());
+				end("attribute");
+			}
+			end("customer");
+			newline();
+		}
+
+		element("messageid", doc.getMessageId());
+		newline();
+		element("message", doc.getMessageText());
+		newline();
+		element("messageBase64", doc.getMessageBase64());
+		newline();
+
+		// timestamps
+		element("headertimestamp", doc.getHeaderTimestamp());
+		element("payloadtimestamp", doc.getPayloadTimestamp());
+
+		end("smpp");
+		ch.endDocument();
+	}
+
+	private void start(String name) throws SAXException {
+		contentHandler.startElement("", name, name, NO_ATTRIBUTES);
+	}
+
+	private void end(String name) throws SAXException {
+		contentHandler.endElement("", name, name);
+	}
+
+	private void newline() throws SAXException {
+		contentHandler.characters(NEWLINE, 0, 1);
+	}
+
+	private void element(String name, String value) throws SAXException {
+		start(name);
+		text(value);
+		end(name);
+	}
+
+	private void text(String s) throws SAXException {
+		if (s == null) {
+			// toXml() appends null as "null"
+			s = "null";
+		}
+		int len = s.length();
+		if (buf.length < len) {
+			buf = new char[Math.max(len, buf.length * 2)];
+		}
+		int n = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c == '\r') {
+				// line end normalization
+				buf[n++] = '\n';
+				if (i + 1 < len && s.charAt(i + 1) == '\n') {
+					i++;
+				}
+			}
+			else if (c == '\u0000' || c == '\uFFFE' || c == '\uFFFF') {
+				// dropped by escapeXml11
+			}
+			else if (Character.isHighSurrogate(c)) {
+				if (i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+					buf[n++] = c;
+					buf[n++] = s.charAt(++i);
+				}
+				// else unpaired; dropped
+			}
+			else if (Character.isLowSurrogate(c)) {
+				// unpaired; dropped
+			}
+			else {
+				buf[n++] = c;
+			}
+		}
+		if (n > 0) {
+			contentHandler.characters(buf, 0, n);
+		}
+	}
+}
@@ -12,12 +12,21 @@ package net.brickst.connect.custom.content;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
 
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -36,6 +45,12 @@ public class XslContent {
 	// object and clone it for different threads.
 	private Templates xslTemplates;
 
+	// idle transformers for the current templates; creating one costs
+	// more than running a small transform
+	public static final int DEFAULT_TRANSFORMER_POOL_SIZE = 16;
+	private int transformerPoolSize = DEFAULT_TRANSFORMER_POOL_SIZE;
+	private volatile TransformerPool transformerPool;
+
 	//
 	// GETTERS AND SETTERS
 	//
@@ -48,6 +63,21 @@ public class XslContent {
 		xslLocation = value;
 	}
 
+	public int getTransformerPoolSize() {
+		return transformerPoolSize;
+	}
+
+	/**
+	 * Max idle transformers kept for reuse; 0 disables pooling. Takes
+	 * effect at the next initXslContent.
+	 */
+	public void setTransformerPoolSize(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("transformer pool size must be >= 0");
+		}
+		transformerPoolSize = value;
+	}
+
 	public static Templates getTransformerTemplates(URL xsltUrl)
 			throws IOException, TransformerConfigurationException {
 		TransformerFactory transformerFactory = TransformerFactory
@@ -123,6 +153,16 @@ public class XslContent {
 		}
 
 		xslLocation = loc;
+
+		String poolSize = props.getProperty(prefix + "transformerPoolSize");
+		if (poolSize != null) {
+			try {
+				setTransformerPoolSize(Integer.parseInt(poolSize.trim()));
+			} catch (NumberFormatException x) {
+				throw new IllegalArgumentException("Invalid " + prefix
+						+ "transformerPoolSize: " + poolSize);
+			}
+		}
 	}
 
 	/**
@@ -131,8 +171,11 @@ public class XslContent {
 	 */
 	public Templates initXslContent() throws IOException,
 			TransformerConfigurationException {
-		xslTemplates = getTransformerTemplates(xslLocation);
-		return xslTemplates;
+		Templates templ = getTransformerTemplates(xslLocation);
+		xslTemplates = templ;
+		// transformers from the old templates are dropped with the old pool
+		transformerPool = new TransformerPool(templ, transformerPoolSize);
+		return templ;
 	}
 
 	public void initNetworkResources()
@@ -147,11 +190,54 @@ public class XslContent {
 	//
 	// Get a transformer
 	//
-	// TODO object pool ???
+
+	/**
+	 * Returns an idle transformer, or a new one if none is idle. Give it
+	 * back with releaseXsltTransformer when done.
+	 */
 	public Transformer getXsltTransformer()
 			throws TransformerConfigurationException {
-		Transformer trans = xslTemplates.newTransformer();
-		return trans;
+		return getTransformerPool().lend();
+	}
+
+	/**
+	 * Resets a transformer and keeps it for reuse. Do not release a
+	 * transformer whose transform failed. A transformer borrowed before
+	 * the last initXslContent belongs to the old templates and is dropped.
+	 */
+	public void releaseXsltTransformer(Transformer trans) {
+		TransformerPool pool = transformerPool;
+		if (pool != null) {
+			pool.giveBack(trans);
+		}
+	}
+
+	private TransformerPool getTransformerPool() {
+		TransformerPool pool = transformerPool;
+		if (pool == null) {
+			throw new IllegalStateException("XSL content not initialized: " + xslLocation);
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs the stylesheet on a source, writing to a result, with a pooled
+	 * transformer.
+	 */
+	public void transform(Source source, Result result)
+			throws TransformerConfigurationException, TransformerException {
+		// hold on to one pool so a reload can't mix templates
+		TransformerPool pool = getTransformerPool();
+		Transformer trans = pool.borrow();
+		boolean ok = false;
+		try {
+			trans.transform(source, result);
+			ok = true;
+		} finally {
+			if (ok) {
+				pool.release(trans);
+			}
+		}
 	}
 
 	/**
@@ -159,15 +245,122 @@ public class XslContent {
 	 */
 	public String transformDocument(String content)
 			throws TransformerConfigurationException, TransformerException {
-		Transformer cloneTrans = getXsltTransformer();
+		StringWriter swriter = new StringWriter(content.length() * 2);
+		transformDocument(content, swriter);
+		return swriter.toString();
+	}
 
-		// create source and result objects
-		StreamSource ssource = new StreamSource(new StringReader(content));
+	/**
+	 * Calls transformer on any source, e.g. SmppDocument.toSAXSource()
+	 */
+	public String transformDocument(Source source)
+			throws TransformerConfigurationException, TransformerException {
 		StringWriter swriter = new StringWriter();
-		StreamResult sresult = new StreamResult(swriter);
+		transform(source, new StreamResult(swriter));
+		return swriter.toString();
+	}
+
+	/**
+	 * Transforms an input document into UTF-8 bytes.
+	 */
+	public byte[] transformDocumentUTF8(String content)
+			throws TransformerConfigurationException, TransformerException {
+		return transformDocumentUTF8(new StreamSource(new StringReader(content)));
+	}
+
+	/**
+	 * Transforms any source into UTF-8 bytes, whatever encoding the
+	 * stylesheet's xsl:output asks for.
+	 */
+	public byte[] transformDocumentUTF8(Source source)
+			throws TransformerConfigurationException, TransformerException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		TransformerPool pool = getTransformerPool();
+		Transformer trans = pool.borrow();
+		boolean ok = false;
+		try {
+			// reset() on release restores the stylesheet's output properties
+			trans.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+			trans.transform(source, new StreamResult(out));
+			ok = true;
+		} finally {
+			if (ok) {
+				pool.release(trans);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Transforms an input document straight into a caller's Writer.
+	 */
+	public void transformDocument(String content, Writer out)
+			throws TransformerConfigurationException, TransformerException {
+		transform(new StreamSource(new StringReader(content)), new StreamResult(out));
+	}
+
+	/**
+	 * Transforms an input document straight into a caller's OutputStream,
+	 * encoded as the stylesheet's xsl:output specifies.
+	 */
+	public void transformDocument(String content, OutputStream out)
+			throws TransformerConfigurationException, TransformerException {
+		transform(new StreamSource(new StringReader(content)), new StreamResult(out));
+	}
+
+	// Bounded pool of idle transformers for one Templates object
+	static class TransformerPool {
+		private final Templates templates;
+		private final ArrayBlockingQueue<Transformer> idle;
+		// handed out by lend(); weak, since a failed one is never given back
+		private final Map<Transformer, Boolean> lent =
+				Collections.synchronizedMap(new WeakHashMap<Transformer, Boolean>());
+
+		TransformerPool(Templates templates, int size) {
+			this.templates = templates;
+			this.idle = size > 0 ? new ArrayBlockingQueue<Transformer>(size) : null;
+		}
+
+		Transformer borrow() throws TransformerConfigurationException {
+			Transformer trans = idle != null ? idle.poll() : null;
+			if (trans == null) {
+				trans = templates.newTransformer();
+			}
+			return trans;
+		}
+
+		void release(Transformer trans) {
+			if (idle == null) {
+				return;
+			}
+			// XSLTC's reset() keeps parameters, so clear them first
+			trans.clearParameters();
+			trans.reset();
+			// pool full: let it go
+			idle.offer(trans);
+		}
+
+		// borrow() for callers that give the transformer back later
+		Transformer lend() throws TransformerConfigurationException {
+			Transformer trans = borrow();
+			lent.put(trans, Boolean.TRUE);
+			return trans;
+		}
+
+		// release() if trans came from lend() on this pool
+		void giveBack(Transformer trans) {
+			if (lent.remove(trans) != null) {
+				release(trans);
+			}
+		}
+
+		int idleCount() {
+			return idle != null ? idle.size() : 0;
+		}
+	}
 
-		cloneTrans.transform(ssource, sresult);
-		String result = swriter.toString();
-		return result;
+	int getIdleTransformerCount() {
+		TransformerPool pool = transformerPool;
+		return pool != null ? pool.idleCount() : 0;
 	}
 }
@@ -0,0 +1,387 @@
+/*
+ * Keyword Index -- multi-pattern matcher for SMS keywords
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.keyword;
+
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled index over an ordered list of keyword patterns.
+ *
+ * Patterns are classified when the index is built:
+ * <ul>
+ * <li>plain literals (e.g. <code>STOP</code>) go into a hash lookup</li>
+ * <li>literal prefixes (e.g. <code>STOP.*</code>) go into a prefix trie</li>
+ * <li>everything else stays on a fallback regex scan</li>
+ * </ul>
+ * Literals and prefixes may be case-insensitive, either through
+ * Pattern.CASE_INSENSITIVE or a leading <code>(?i)</code>.
+ *
+ * The index returns the same result as calling Pattern.matches() on each
+ * pattern in order and taking the first hit.
+ */
+public class KeywordIndex
+{
+    // pattern kinds
+    static final int KIND_REGEX = 0;
+    static final int KIND_LITERAL = 1;
+    static final int KIND_PREFIX = 2;
+
+    private static final String INLINE_CASE_INSENSITIVE = "(?i)";
+    private static final String ANY_SUFFIX = ".*";
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+
+    private final Pattern[] patterns;
+
+    // exact literals; key is the literal (folded for case-insensitive)
+    private final HashMap<String, Integer> literals = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> foldedLiterals = new HashMap<String, Integer>();
+
+    // literal prefixes followed by .*
+    private final PrefixTrie prefixes = new PrefixTrie(false);
+    private final PrefixTrie foldedPrefixes = new PrefixTrie(true);
+
+    // indexes of patterns that must be scanned with the regex engine
+    private final int[] regexIndexes;
+
+    public KeywordIndex(Pattern[] patterns)
+    {
+        this.patterns = patterns;
+
+        int[] regexTmp = new int[patterns.length];
+        int regexCount = 0;
+
+        for (int i = 0; i < patterns.length; i++) {
+            Pattern p = patterns[i];
+            Classification c = classify(p.pattern(), p.flags());
+            Integer idx = Integer.valueOf(i);
+            switch (c.kind) {
+            case KIND_LITERAL:
+                HashMap<String, Integer> map = c.foldCase ? foldedLiterals : literals;
+                String key = c.foldCase ? foldAscii(c.literal) : c.literal;
+                // first match wins; keep the lowest index
+                if (!map.containsKey(key)) {
+                    map.put(key, idx);
+                }
+                break;
+            case KIND_PREFIX:
+                if (c.foldCase) {
+                    foldedPrefixes.add(c.literal, i);
+                } else {
+                    prefixes.add(c.literal, i);
+                }
+                break;
+            default:
+                regexTmp[regexCount++] = i;
+                break;
+            }
+        }
+
+        regexIndexes = new int[regexCount];
+        System.arraycopy(regexTmp, 0, regexIndexes, 0, regexCount);
+    }
+
+    public Pattern[] getPatterns() { return patterns; }
+
+    public int getPatternCount() { return patterns.length; }
+
+    public int getRegexCount() { return regexIndexes.length; }
+
+    /**
+     * Returns the index of the first pattern that matches the entire input,
+     * or -1 if no pattern matches.
+     */
+    public int match(String input)
+    {
+        if (input == null) {
+            return -1;
+        }
+
+        int best = Integer.MAX_VALUE;
+
+        // exact literals
+        Integer hit = literals.get(input);
+        if (hit != null) {
+            best = hit.intValue();
+        }
+        if (!foldedLiterals.isEmpty()) {
+            hit = foldedLiterals.get(foldAscii(input));
+            if (hit != null && hit.intValue() < best) {
+                best = hit.intValue();
+            }
+        }
+
+        // prefixes; the ".*" tail cannot cross a line terminator
+        if (!prefixes.isEmpty() || !foldedPrefixes.isEmpty()) {
+            int minPrefixLen = lastLineTerminator(input) + 1;
+            best = prefixes.match(input, minPrefixLen, best);
+            best = foldedPrefixes.match(input, minPrefixLen, best);
+        }
+
+        // regex fallback; only patterns that come before the best hit so far
+        for (int i = 0; i < regexIndexes.length; i++) {
+            int idx = regexIndexes[i];
+            if (idx >= best) {
+                break;
+            }
+            if (patterns[idx].matcher(input).matches()) {
+                best = idx;
+                break;
+            }
+        }
+
+        return (best == Integer.MAX_VALUE) ? -1 : best;
+    }
+
+    //
+    // CLASSIFICATION
+    //
+
+    static class Classification
+    {
+        int kind = KIND_REGEX;
+        boolean foldCase;
+        String literal;
+    }
+
+    /**
+     * Decides how a pattern can be matched. Anything we are not sure about
+     * is left as a regex.
+     */
+    static Classification classify(String regex, int flags)
+    {
+        Classification c = new Classification();
+        if (regex == null) {
+            return c;
+        }
+
+        boolean foldCase;
+        if (flags == 0) {
+            foldCase = false;
+        } else if (flags == Pattern.CASE_INSENSITIVE) {
+            foldCase = true;
+        } else {
+            return c;
+        }
+
+        if (regex.startsWith(INLINE_CASE_INSENSITIVE)) {
+            foldCase = true;
+            regex = regex.substring(INLINE_CASE_INSENSITIVE.length());
+        }
+
+        int kind = KIND_LITERAL;
+        if (regex.endsWith(ANY_SUFFIX) && !isEscaped(regex, regex.length() - 2)) {
+            kind = KIND_PREFIX;
+            regex = regex.substring(0, regex.length() - ANY_SUFFIX.length());
+        }
+
+        String literal = unescapeLiteral(regex);
+        if (literal == null) {
+            return c;
+        }
+
+        c.kind = kind;
+        c.foldCase = foldCase;
+        c.literal = literal;
+        return c;
+    }
+
+    // true if the char at pos is preceded by an odd number of backslashes
+    private static boolean isEscaped(String s, int pos)
+    {
+        int count = 0;
+        for (int i = pos - 1; i >= 0 && s.charAt(i) == '\\'; i--) {
+            count++;
+        }
+        return (count % 2) == 1;
+    }
+
+    /**
+     * Returns the literal text of a regex, or null if it contains any
+     * regex constructs. A backslash before a non-alphanumeric char is
+     * always a literal escape in java.util.regex.
+     */
+    static String unescapeLiteral(String regex)
+    {
+        StringBuilder buf = new StringBuilder(regex.length());
+        int len = regex.length();
+        for (int i = 0; i < len; i++) {
+            char ch = regex.charAt(i);
+            if (ch == '\\') {
+                if (i + 1 >= len) {
+                    return null;
+                }
+                char next = regex.charAt(++i);
+                if (Character.isLetterOrDigit(next)) {
+                    return null;
+                }
+                buf.append(next);
+            } else if (REGEX_META.indexOf(ch) >= 0) {
+                return null;
+            } else {
+                buf.append(ch);
+            }
+        }
+        return buf.toString();
+    }
+
+    //
+    // MATCH HELPERS
+    //
+
+    /**
+     * Case folding used by Pattern.CASE_INSENSITIVE without UNICODE_CASE:
+     * only US-ASCII letters are folded.
+     */
+    static char foldAscii(char ch)
+    {
+        if (ch >= 'A' && ch <= 'Z') {
+            return (char) (ch + ('a' - 'A'));
+        }
+        return ch;
+    }
+
+    static String foldAscii(String s)
+    {
+        int len = s.length();
+        int i = 0;
+        while (i < len) {
+            char ch = s.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                break;
+            }
+            i++;
+        }
+        if (i == len) {
+            return s;
+        }
+        char[] chars = s.toCharArray();
+        for (; i < len; i++) {
+            chars[i] = foldAscii(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Position of the last char that '.' does not match, or -1.
+     */
+    static int lastLineTerminator(String s)
+    {
+        for (int i = s.length() - 1; i >= 0; i--) {
+            char ch = s.charAt(i);
+            if (ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028'
+                    || ch == '\u2029') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //
+    // PREFIX TRIE
+    //
+
+    static class PrefixTrie
+    {
+        private final boolean foldCase;
+        private final Node root = new Node();
+        private boolean empty = true;
+
+        PrefixTrie(boolean foldCase)
+        {
+            this.foldCase = foldCase;
+        }
+
+        boolean isEmpty() { return empty; }
+
+        void add(String prefix, int index)
+        {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                char ch = prefix.charAt(i);
+                if (foldCase) {
+                    ch = foldAscii(ch);
+                }
+                node = node.childFor(ch, true);
+            }
+            if (node.index < 0 || index < node.index) {
+                node.index = index;
+            }
+            empty = false;
+        }
+
+        /**
+         * Walks the input and returns the lowest pattern index whose prefix
+         * matches and whose length is at least minPrefixLen; returns best
+         * if nothing lower is found.
+         */
+        int match(String input, int minPrefixLen, int best)
+        {
+            if (empty) {
+                return best;
+            }
+            Node node = root;
+            int len = input.length();
+            for (int i = 0; ; i++) {
+                if (node.index >= 0 && node.index < best && i >= minPrefixLen) {
+                    best = node.index;
+                }
+                if (i >= len) {
+                    break;
+                }
+                char ch = input.charAt(i);
+                if (foldCase) {
+                    ch = foldAscii(ch);
+                }
+                node = node.childFor(ch, false);
+                if (node == null) {
+                    break;
+                }
+            }
+            return best;
+        }
+    }
+
+    static class Node
+    {
+        int index = -1;
+        private char[] keys;
+        private Node[] children;
+        private int count;
+
+        Node childFor(char ch, boolean create)
+        {
+            for (int i = 0; i < count; i++) {
+                if (keys[i] == ch) {
+                    return children[i];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            if (keys == null) {
+                keys = new char[2];
+                children = new Node[2];
+            } else if (count == keys.length) {
+                char[] newKeys = new char[count * 2];
+                Node[] newChildren = new Node[count * 2];
+                System.arraycopy(keys, 0, newKeys, 0, count);
+                System.arraycopy(children, 0, newChildren, 0, count);
+                keys = newKeys;
+                children = newChildren;
+            }
+            Node child = new Node();
+            keys[count] = ch;
+            children[count] = child;
+            count++;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Latency Histogram -- lock-free histogram of latencies
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies in nanoseconds into log-linear buckets, the way
+ * HdrHistogram does: each power of two is split into SUB_BUCKETS equal
+ * buckets, so a percentile is exact to within 1/SUB_BUCKETS (about 6%)
+ * over the whole range, in a fixed amount of memory.
+ *
+ * record() is a few atomic increments and never blocks, so it can be
+ * called on the message path from any number of threads. The statistics
+ * are read without stopping writers; a read that races with record()
+ * may be off by the values recorded meanwhile.
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean
+{
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below SUB_BUCKETS get a bucket each; then SUB_BUCKETS per power of two
+    static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Records one latency in nanoseconds; negative values count as 0.
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Records the time since startNanos (a System.nanoTime() value) and
+     * returns the current time, so that stages can be timed back to back.
+     */
+    public long recordSince(long startNanos)
+    {
+        long now = System.nanoTime();
+        record(now - startNanos);
+        return now;
+    }
+
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // highest value that falls into the bucket
+    static long bucketMaxValue(int index)
+    {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long sub = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = sub << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMaxNanos()
+    {
+        return max.get();
+    }
+
+    public long getTotalNanos()
+    {
+        return total.get();
+    }
+
+    /**
+     * Value at or below which the given percentage (0-100) of the recorded
+     * values fall, in nanoseconds; 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        double p = Math.min(Math.max(percentile, 0.0), 100.0);
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketMaxValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram. Values recorded while reset() runs may be lost.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    //
+    // MXBean attributes, in microseconds
+    //
+
+    public double getMeanMicros()
+    {
+        long n = count.get();
+        return (n == 0) ? 0.0 : total.get() / (double) n / 1000.0;
+    }
+
+    public long getMaxMicros() { return toMicros(getMaxNanos()); }
+    public long getP50Micros() { return toMicros(getValueAtPercentile(50)); }
+    public long getP90Micros() { return toMicros(getValueAtPercentile(90)); }
+    public long getP99Micros() { return toMicros(getValueAtPercentile(99)); }
+    public long getP999Micros() { return toMicros(getValueAtPercentile(99.9)); }
+
+    private static long toMicros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public String toString()
+    {
+        return name + " count=" + getCount() + " p50=" + getP50Micros() + "us p99="
+            + getP99Micros() + "us max=" + getMaxMicros() + "us";
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Latency Histogram MXBean -- JMX view of a LatencyHistogram
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.metrics;
+
+/**
+ * Latency statistics since start or the last reset. Times are in
+ * microseconds.
+ */
+public interface LatencyHistogramMXBean
+{
+    String getName();
+    long getCount();
+    double getMeanMicros();
+    long getMaxMicros();
+    long getP50Micros();
+    long getP90Micros();
+    long getP99Micros();
+    long getP999Micros();
+    void reset();
+}
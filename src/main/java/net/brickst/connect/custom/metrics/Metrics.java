@@ -0,0 +1,92 @@
+/*
+ * Metrics -- JMX registration for reply handler metrics
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.kana.connect.common.lib.Debug;
+
+/**
+ * Registers metrics MXBeans with the platform MBean server under the
+ * net.brickst.connect domain. Registration problems are logged and
+ * otherwise ignored: metrics must never stop message processing.
+ */
+public class Metrics
+{
+    public static final String DOMAIN = "net.brickst.connect";
+
+    /**
+     * Builds an object name from key/value pairs, e.g.
+     * objectName("type", "WebEndpoint", "endpoint", "0"). Values are quoted
+     * if they contain characters that ObjectName does not allow.
+     */
+    public static ObjectName objectName(String... keyValues)
+    {
+        StringBuilder buf = new StringBuilder(DOMAIN).append(':');
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(keyValues[i]).append('=').append(quoteIfNeeded(keyValues[i + 1]));
+        }
+        try {
+            return new ObjectName(buf.toString());
+        } catch (Exception x) {
+            throw new IllegalArgumentException("Invalid object name: " + buf, x);
+        }
+    }
+
+    private static String quoteIfNeeded(String value)
+    {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '=' || c == ':' || c == '"' || c == '*' || c == '?'
+                || c == '\\' || c == '\n') {
+                return ObjectName.quote(value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Registers an MXBean, replacing one already registered under the name.
+     */
+    public static void register(ObjectName name, Object mbean)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (Exception x) {
+            if (Debug.SR.isEnabled()) {
+                Debug.SR.printException(x, "Metrics: unable to register " + name);
+            }
+        }
+    }
+
+    public static void unregister(ObjectName name)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception x) {
+            if (Debug.SR.isEnabled()) {
+                Debug.SR.printException(x, "Metrics: unable to unregister " + name);
+            }
+        }
+    }
+}
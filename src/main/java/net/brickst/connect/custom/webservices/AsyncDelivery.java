@@ -0,0 +1,324 @@
+/*
+ * Asynchronous delivery pipeline for a Web Endpoint
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kana.connect.common.lib.Debug;
+
+/**
+ * Decouples the receiver thread from endpoint delivery.
+ *
+ * enqueue() first writes the message to an "inflight" directory under the
+ * endpoint retry dir, so that it is durable before the caller returns.
+ * Worker threads take messages from a bounded queue and deliver them,
+ * up to the endpoint's deliveryBatchSize per send.
+ * Delivered messages are deleted; failed messages are moved into the retry
+ * dir where the normal retry task picks them up.
+ *
+ * If the queue stays full for longer than the enqueue timeout, the message
+ * is spilled straight to the retry dir instead of waiting any longer.
+ */
+public class AsyncDelivery
+{
+    public static final String INFLIGHT_DIR = "inflight";
+
+    // one queued message and its write-ahead file
+    static class Entry
+    {
+        final File walFile;
+        final String content;
+
+        Entry(File walFile, String content)
+        {
+            this.walFile = walFile;
+            this.content = content;
+        }
+    }
+
+    private final WebEndpoint endpoint;
+    private final File inflightDir;
+    private final ArrayBlockingQueue<Entry> queue;
+    private final long enqueueTimeoutMS;
+    private final Thread[] workers;
+    private volatile boolean running;
+
+    // statistics
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+
+    public AsyncDelivery(WebEndpoint endpoint, int threads, int queueSize, long enqueueTimeoutMS)
+    {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("async threads must be > 0");
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("async queue size must be > 0");
+        }
+        if (endpoint.getRetryDir() == null) {
+            throw new IllegalStateException("retry dir must be set before async delivery");
+        }
+        this.endpoint = endpoint;
+        this.inflightDir = new File(endpoint.getRetryDir(), INFLIGHT_DIR);
+        this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+        this.enqueueTimeoutMS = enqueueTimeoutMS;
+        this.workers = new Thread[threads];
+    }
+
+    public File getInflightDir() { return inflightDir; }
+    public int getQueueDepth() { return queue.size(); }
+    public int getThreadCount() { return workers.length; }
+    public long getDeliveredCount() { return delivered.get(); }
+    public long getFailedCount() { return failed.get(); }
+    public long getSpilledCount() { return spilled.get(); }
+
+    /**
+     * Recovers inflight files from a previous run and starts the workers.
+     */
+    public synchronized void start()
+    {
+        if (running) {
+            return;
+        }
+        WebEndpoint.ensureDirectory(inflightDir);
+        recoverInflight();
+
+        running = true;
+        for (int i = 0; i < workers.length; i++) {
+            Thread th = new Thread(new Worker(), "WebEndpoint Async Delivery " + i
+                    + " (" + endpoint.getRetryDir().getName() + ")");
+            th.setDaemon(true);
+            workers[i] = th;
+            th.start();
+        }
+    }
+
+    /**
+     * Stops the workers. Messages still queued stay durable and are moved
+     * to the retry dir.
+     */
+    public synchronized void stop()
+    {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i] != null) {
+                workers[i].interrupt();
+            }
+        }
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i] != null) {
+                try {
+                    workers[i].join(5000);
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                }
+                workers[i] = null;
+            }
+        }
+        Entry e;
+        while ((e = queue.poll()) != null) {
+            spillToRetry(e);
+        }
+    }
+
+    /**
+     * Persists the message and queues it for delivery. Returns once the
+     * message is on disk. Throws IOException if it cannot be persisted.
+     */
+    public void enqueue(String content) throws IOException
+    {
+        File wal = endpoint.writeMessageFile(inflightDir, content);
+        Entry e = new Entry(wal, content);
+
+        boolean queued = false;
+        if (running) {
+            try {
+                queued = queue.offer(e, enqueueTimeoutMS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!queued) {
+            // queue full or stopped; let the retry task deliver it
+            spillToRetry(e);
+            spilled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Delivers a group of entries with one deliverBatch call. Delivered
+     * entries are deleted; the rest are spilled to the retry dir.
+     */
+    private void deliver(List<Entry> batch)
+    {
+        if (!endpoint.isAcceptingDeliveries()) {
+            // circuit breaker open; don't wait on a failing endpoint
+            CircuitBreaker cb = endpoint.getCircuitBreaker();
+            for (Entry e : batch) {
+                if (cb != null) {
+                    cb.recordRejected();
+                }
+                spillToRetry(e);
+                spilled.incrementAndGet();
+            }
+            return;
+        }
+
+        int ok = batch.size();
+        try {
+            // entries are deleted once this returns; deliverBatch is
+            // synchronous, unlike attemptDeliveryAsync
+            List<String> contents = new ArrayList<String>(batch.size());
+            for (Entry e : batch) {
+                contents.add(e.content);
+            }
+            endpoint.attemptBatchDelivery(contents);
+        } catch (BatchDeliveryException x) {
+            ok = x.getDeliveredCount();
+            if (Debug.SR.isEnabled()) {
+                Debug.SR.printException(x, "AsyncDelivery: reschedule delivery to " + endpoint);
+            }
+        } catch (Exception x) {
+            ok = 0;
+            if (Debug.SR.isEnabled()) {
+                Debug.SR.printException(x, "AsyncDelivery: reschedule delivery to " + endpoint);
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Entry e = batch.get(i);
+            if (i >= ok) {
+                failed.incrementAndGet();
+                spillToRetry(e);
+                continue;
+            }
+            delivered.incrementAndGet();
+            if (!e.walFile.delete() && e.walFile.exists()) {
+                // file stays in inflight and gets redelivered on restart
+                if (Debug.SR.isEnabled()) {
+                    Debug.SR.println("AsyncDelivery: unable to delete " + e.walFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for one entry, then collects more (up to the endpoint's
+     * deliveryBatchSize) for at most deliveryBatchLingerMS. Returns an
+     * empty list if nothing arrived.
+     */
+    private List<Entry> takeBatch() throws InterruptedException
+    {
+        List<Entry> batch = new ArrayList<Entry>();
+        Entry e = queue.poll(1, TimeUnit.SECONDS);
+        if (e == null) {
+            return batch;
+        }
+        batch.add(e);
+        int max = endpoint.getDeliveryBatchSize();
+        if (max <= 1) {
+            return batch;
+        }
+        queue.drainTo(batch, max - 1);
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(endpoint.getDeliveryBatchLingerMS());
+        while (batch.size() < max) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                break;
+            }
+            try {
+                e = queue.poll(wait, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ix) {
+                // deliver what we have; the worker loop sees the interrupt
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (e == null) {
+                break;
+            }
+            batch.add(e);
+            queue.drainTo(batch, max - batch.size());
+        }
+        return batch;
+    }
+
+    /**
+     * Moves a write-ahead file into the retry dir.
+     */
+    private void spillToRetry(Entry e)
+    {
+        try {
+            endpoint.moveToRetry(e.walFile, e.content);
+        } catch (IOException x) {
+            // the file is still in the inflight dir and will be recovered
+            // on the next start
+            if (Debug.SR.isEnabled()) {
+                Debug.SR.printException(x, "AsyncDelivery: unable to spill " + e.walFile);
+            }
+        }
+    }
+
+    /**
+     * Moves files left in the inflight dir (e.g. after a crash) to the
+     * retry dir, oldest first.
+     */
+    private void recoverInflight()
+    {
+        File[] files = inflightDir.listFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            File f = files[i];
+            if (!f.getName().startsWith(WebEndpoint.RETRY_FILE_PREFIX)) {
+                continue;
+            }
+            try {
+                endpoint.moveToRetry(f, null);
+            } catch (IOException x) {
+                if (Debug.SR.isEnabled()) {
+                    Debug.SR.printException(x, "AsyncDelivery: unable to recover " + f);
+                }
+            }
+        }
+    }
+
+    // worker thread body
+    class Worker implements Runnable
+    {
+        public void run()
+        {
+            while (running) {
+                List<Entry> batch;
+                try {
+                    batch = takeBatch();
+                } catch (InterruptedException ix) {
+                    break;
+                }
+                if (!batch.isEmpty()) {
+                    deliver(batch);
+                }
+            }
+        }
+    }
+}
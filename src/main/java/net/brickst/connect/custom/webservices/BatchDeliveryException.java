@@ -0,0 +1,30 @@
+/*
+ * Batch Delivery Exception -- partial failure of WebEndpoint.deliverBatch
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+/**
+ * Thrown by WebEndpoint.deliverBatch when not every message was delivered.
+ * The first getDeliveredCount() messages of the batch were delivered; the
+ * rest were not and must be retried.
+ */
+public class BatchDeliveryException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int deliveredCount;
+
+    public BatchDeliveryException(int deliveredCount, Throwable cause)
+    {
+        super("batch delivery failed after " + deliveredCount + " messages", cause);
+        this.deliveredCount = deliveredCount;
+    }
+
+    public int getDeliveredCount() { return deliveredCount; }
+}
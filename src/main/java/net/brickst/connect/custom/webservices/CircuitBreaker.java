@@ -0,0 +1,169 @@
+/*
+ * Circuit Breaker -- stops delivery attempts to a failing endpoint
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kana.connect.common.lib.Debug;
+
+/**
+ * Circuit breaker for a Web Endpoint.
+ *
+ * CLOSED: messages are delivered normally. After failureThreshold
+ * consecutive failures the breaker opens.
+ *
+ * OPEN: new messages go straight to the retry store, so the receiver
+ * threads no longer wait for connect or send timeouts.
+ *
+ * HALF_OPEN: once the breaker has been open for openIntervalMS, the next
+ * retry run probes the endpoint. The first success closes the breaker and
+ * the first failure opens it again. New messages still go to the retry
+ * store while the probe is running.
+ */
+public class CircuitBreaker
+{
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Object owner;
+    private final int failureThreshold;
+    private final long openIntervalMS;
+
+    private volatile State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long lastTransition = System.currentTimeMillis();
+
+    // metrics
+    private long openedCount;
+    private long halfOpenedCount;
+    private long closedCount;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param owner used in log messages
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openIntervalMS minimum time the breaker stays open before probing
+     */
+    public CircuitBreaker(Object owner, int failureThreshold, long openIntervalMS)
+    {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failure threshold must be > 0");
+        }
+        this.owner = owner;
+        this.failureThreshold = failureThreshold;
+        this.openIntervalMS = Math.max(openIntervalMS, 0);
+    }
+
+    public State getState() { return state; }
+    public int getFailureThreshold() { return failureThreshold; }
+    public long getOpenIntervalMS() { return openIntervalMS; }
+    public synchronized int getConsecutiveFailures() { return consecutiveFailures; }
+    public synchronized long getLastTransitionTime() { return lastTransition; }
+    public synchronized long getOpenedCount() { return openedCount; }
+    public synchronized long getHalfOpenedCount() { return halfOpenedCount; }
+    public synchronized long getClosedCount() { return closedCount; }
+    public long getRejectedCount() { return rejectedCount.get(); }
+
+    /**
+     * True if new messages may be delivered directly (breaker closed).
+     */
+    public boolean allowRequest()
+    {
+        return state == State.CLOSED;
+    }
+
+    public boolean isOpen()
+    {
+        return state == State.OPEN;
+    }
+
+    /**
+     * Counts a message that bypassed delivery because the breaker was not
+     * closed.
+     */
+    public void recordRejected()
+    {
+        rejectedCount.incrementAndGet();
+    }
+
+    /**
+     * Called by the retry task before a run. Moves an OPEN breaker to
+     * HALF_OPEN once openIntervalMS has passed. Returns false if the
+     * breaker is still open and the run should be skipped.
+     */
+    public synchronized boolean tryProbe()
+    {
+        if (state != State.OPEN) {
+            return true;
+        }
+        if (System.currentTimeMillis() - lastTransition < openIntervalMS) {
+            return false;
+        }
+        transition(State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Called by the retry task after a run. A HALF_OPEN breaker that saw no
+     * delivery attempt (nothing left to retry) closes.
+     */
+    public synchronized void probeFinished()
+    {
+        if (state == State.HALF_OPEN) {
+            transition(State.CLOSED);
+        }
+    }
+
+    public synchronized void recordSuccess()
+    {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    public synchronized void recordFailure()
+    {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            transition(State.OPEN);
+        }
+    }
+
+    // caller holds the lock
+    private void transition(State next)
+    {
+        State prev = state;
+        state = next;
+        lastTransition = System.currentTimeMillis();
+        switch (next) {
+        case OPEN:
+            openedCount++;
+            break;
+        case HALF_OPEN:
+            halfOpenedCount++;
+            break;
+        case CLOSED:
+            closedCount++;
+            consecutiveFailures = 0;
+            break;
+        }
+        if (Debug.SR.isEnabled()) {
+            Debug.SR.println("CircuitBreaker: " + owner + ": " + prev + " -> " + next);
+        }
+    }
+
+    public String toString()
+    {
+        return "CircuitBreaker[" + state + "]";
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Endpoint Metrics -- JMX view of a WebEndpoint
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+/**
+ * Exposes an endpoint's counters as an MXBean. Reading the attributes
+ * does not touch the endpoint's delivery state.
+ */
+public class EndpointMetrics implements EndpointMetricsMXBean
+{
+    private final WebEndpoint endpoint;
+
+    public EndpointMetrics(WebEndpoint endpoint)
+    {
+        this.endpoint = endpoint;
+    }
+
+    public String getEndpoint() { return endpoint.toString(); }
+
+    public String getEndpointType()
+    {
+        WebEndpoint.EndpointType type = endpoint.getEndpointType();
+        return (type != null) ? type.name() : "";
+    }
+
+    public long getDeliveredCount() { return endpoint.getDeliveredCount(); }
+    public long getFailedCount() { return endpoint.getFailedCount(); }
+    public long getRetryCount() { return endpoint.getRetryCount(); }
+    public long getDeferredCount() { return endpoint.getDeferredCount(); }
+    public boolean isAsync() { return endpoint.isAsync(); }
+    public boolean isRetired() { return endpoint.isRetired(); }
+    public long getRetryBacklogDepth() { return endpoint.getRetryBacklogDepth(); }
+    public long getRetryBacklogBytes() { return endpoint.getRetryBacklogBytes(); }
+    public long getRetryBacklogAgeMS() { return endpoint.getRetryBacklogAgeMS(); }
+    public double getRetryDrainRate() { return endpoint.getRetryDrainRate(); }
+
+    public String getBreakerState()
+    {
+        CircuitBreaker cb = endpoint.getCircuitBreaker();
+        return (cb != null) ? cb.getState().name() : "";
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Endpoint Metrics MXBean -- JMX view of a WebEndpoint
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+/**
+ * Delivery counters of one endpoint. Counts are messages since the
+ * endpoint was created.
+ */
+public interface EndpointMetricsMXBean
+{
+    String getEndpoint();
+    String getEndpointType();
+    long getDeliveredCount();
+    long getFailedCount();
+    long getRetryCount();
+    long getDeferredCount();
+    boolean isAsync();
+    boolean isRetired();
+    // CLOSED, OPEN or HALF_OPEN; empty if the endpoint has no breaker
+    String getBreakerState();
+    // messages waiting in the retry store, from the in-memory index
+    long getRetryBacklogDepth();
+    long getRetryBacklogBytes();
+    // age of the oldest waiting message; 0 if the backlog is empty
+    long getRetryBacklogAgeMS();
+    // messages delivered from the retry store per second, one-minute average
+    double getRetryDrainRate();
+}
@@ -0,0 +1,360 @@
+/*
+ * HTTP/2 Transport -- multiplexed HTTP delivery for REST endpoints
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests with java.net.http.HttpClient in HTTP/2 mode, where all
+ * concurrent requests to a host share one connection as separate streams.
+ * A few clients can be used round-robin to spread the streams over a few
+ * connections.
+ *
+ * The code is built for Java 7, so HttpClient (Java 11) is reached through
+ * reflection. isAvailable() tells whether the running JVM has it. If the
+ * server doesn't speak HTTP/2, HttpClient falls back to HTTP/1.1.
+ *
+ * close() drops the clients. On Java 21 and later it also shuts them
+ * down; before that, HttpClient has no close and its connections and
+ * selector thread go away once the client is garbage collected.
+ */
+public class Http2Transport
+{
+    // reflected java.net.http API; null if the JVM doesn't have it
+    private static final Api api = Api.load();
+
+    private volatile Object[] clients;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long readTimeoutMS;
+
+    public static boolean isAvailable()
+    {
+        return api != null;
+    }
+
+    /**
+     * @param clientCount number of HttpClients, i.e. connections per host
+     */
+    public Http2Transport(int clientCount, long connectTimeoutMS, long readTimeoutMS)
+    {
+        if (api == null) {
+            throw new IllegalStateException("HTTP/2 mode needs java.net.http (Java 11 or later)");
+        }
+        if (clientCount <= 0) {
+            throw new IllegalArgumentException("client count must be > 0");
+        }
+        this.readTimeoutMS = readTimeoutMS;
+        clients = new Object[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = api.newClient(connectTimeoutMS);
+        }
+    }
+
+    public int getClientCount()
+    {
+        Object[] c = clients;
+        return (c == null) ? 0 : c.length;
+    }
+
+    public boolean isClosed() { return clients == null; }
+
+    /**
+     * Drops the clients. Requests in flight may still complete; new ones
+     * fail with an IOException.
+     */
+    public void close()
+    {
+        Object[] c = clients;
+        clients = null;
+        if (c == null || api.shutdown == null) {
+            return;
+        }
+        for (Object client : c) {
+            try {
+                api.invoke(api.shutdown, client);
+            } catch (IOException x) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Sends a request and waits for the status code. The response body is
+     * discarded.
+     */
+    public int send(URI uri, String method, Map<String, String> headers, byte[] body)
+        throws IOException
+    {
+        Object request = api.newRequest(uri, method, headers, body, readTimeoutMS);
+        Object response = api.invoke(api.send, nextClient(), request, api.discarding);
+        return api.statusCode(response);
+    }
+
+    /**
+     * Told when an async request is done; status.get() no longer blocks.
+     */
+    public interface Callback
+    {
+        void done(Future<Integer> status);
+    }
+
+    /**
+     * Starts a request and returns at once. The future yields the status
+     * code.
+     */
+    public Future<Integer> sendAsync(URI uri, String method, Map<String, String> headers,
+        byte[] body) throws IOException
+    {
+        return sendAsync(uri, method, headers, body, null);
+    }
+
+    /**
+     * Starts a request and returns at once. The callback, if any, runs
+     * when the response is in or the request failed, on an HttpClient
+     * thread (or on this one if that happened already).
+     */
+    public Future<Integer> sendAsync(URI uri, String method, Map<String, String> headers,
+        byte[] body, final Callback callback) throws IOException
+    {
+        Object request = api.newRequest(uri, method, headers, body, readTimeoutMS);
+        Future<?> future = (Future<?>) api.invoke(api.sendAsync, nextClient(), request, api.discarding);
+        final StatusFuture status = new StatusFuture(future);
+        if (callback != null) {
+            api.whenComplete(future, new Runnable() {
+                public void run() {
+                    callback.done(status);
+                }
+            });
+        }
+        return status;
+    }
+
+    private Object nextClient() throws IOException
+    {
+        Object[] c = clients;
+        if (c == null) {
+            throw new IOException("HTTP/2 transport closed");
+        }
+        int i = (next.getAndIncrement() & 0x7fffffff) % c.length;
+        return c[i];
+    }
+
+    // maps a Future<HttpResponse> to a Future of its status code
+    private static class StatusFuture implements Future<Integer>
+    {
+        private final Future<?> response;
+
+        StatusFuture(Future<?> response)
+        {
+            this.response = response;
+        }
+
+        public boolean cancel(boolean interrupt) { return response.cancel(interrupt); }
+        public boolean isCancelled() { return response.isCancelled(); }
+        public boolean isDone() { return response.isDone(); }
+
+        public Integer get() throws InterruptedException, ExecutionException
+        {
+            return status(response.get());
+        }
+
+        public Integer get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            return status(response.get(timeout, unit));
+        }
+
+        private Integer status(Object resp) throws ExecutionException
+        {
+            try {
+                return api.statusCode(resp);
+            } catch (IOException x) {
+                throw new ExecutionException(x);
+            }
+        }
+    }
+
+    /**
+     * Method handles for the parts of java.net.http we use.
+     */
+    private static class Api
+    {
+        Method newClientBuilder;
+        Method clientVersion;
+        Method clientConnectTimeout;
+        Method clientBuild;
+        Object http2;
+        Method newRequestBuilder;
+        Method requestTimeout;
+        Method requestHeader;
+        Method requestMethod;
+        Method requestBuild;
+        Method ofByteArray;
+        Object discarding;
+        Method send;
+        Method sendAsync;
+        Method statusCode;
+        Method ofMillis;
+        // Java 21; null before
+        Method shutdown;
+        Method whenComplete;
+        Class<?> biConsumer;
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        static Api load()
+        {
+            try {
+                Api a = new Api();
+                Class<?> client = Class.forName("java.net.http.HttpClient");
+                Class<?> clientBuilder = Class.forName("java.net.http.HttpClient$Builder");
+                Class<?> version = Class.forName("java.net.http.HttpClient$Version");
+                Class<?> request = Class.forName("java.net.http.HttpRequest");
+                Class<?> requestBuilder = Class.forName("java.net.http.HttpRequest$Builder");
+                Class<?> publishers = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+                Class<?> publisher = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+                Class<?> response = Class.forName("java.net.http.HttpResponse");
+                Class<?> handlers = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+                Class<?> handler = Class.forName("java.net.http.HttpResponse$BodyHandler");
+                Class<?> duration = Class.forName("java.time.Duration");
+
+                a.newClientBuilder = client.getMethod("newBuilder");
+                a.clientVersion = clientBuilder.getMethod("version", version);
+                a.clientConnectTimeout = clientBuilder.getMethod("connectTimeout", duration);
+                a.clientBuild = clientBuilder.getMethod("build");
+                a.http2 = Enum.valueOf((Class<Enum>) version, "HTTP_2");
+                a.newRequestBuilder = request.getMethod("newBuilder", URI.class);
+                a.requestTimeout = requestBuilder.getMethod("timeout", duration);
+                a.requestHeader = requestBuilder.getMethod("header", String.class, String.class);
+                a.requestMethod = requestBuilder.getMethod("method", String.class, publisher);
+                a.requestBuild = requestBuilder.getMethod("build");
+                a.ofByteArray = publishers.getMethod("ofByteArray", byte[].class);
+                a.discarding = handlers.getMethod("discarding").invoke(null);
+                a.send = client.getMethod("send", request, handler);
+                a.sendAsync = client.getMethod("sendAsync", request, handler);
+                a.statusCode = response.getMethod("statusCode");
+                a.ofMillis = duration.getMethod("ofMillis", long.class);
+                a.shutdown = loadShutdown(client);
+                a.biConsumer = Class.forName("java.util.function.BiConsumer");
+                a.whenComplete = Class.forName("java.util.concurrent.CompletableFuture")
+                    .getMethod("whenComplete", a.biConsumer);
+                return a;
+            } catch (Exception x) {
+                // older JVM
+                return null;
+            }
+        }
+
+        static Method loadShutdown(Class<?> client)
+        {
+            try {
+                return client.getMethod("shutdown");
+            } catch (NoSuchMethodException x) {
+                return null;
+            }
+        }
+
+        Object newClient(long connectTimeoutMS)
+        {
+            try {
+                Object builder = invoke(newClientBuilder, null);
+                invoke(clientVersion, builder, http2);
+                if (connectTimeoutMS > 0) {
+                    invoke(clientConnectTimeout, builder, invoke(ofMillis, null, connectTimeoutMS));
+                }
+                return invoke(clientBuild, builder);
+            } catch (IOException x) {
+                throw new IllegalStateException("Unable to create HTTP/2 client", x);
+            }
+        }
+
+        Object newRequest(URI uri, String method, Map<String, String> headers, byte[] body,
+            long timeoutMS) throws IOException
+        {
+            Object builder = invoke(newRequestBuilder, null, uri);
+            if (timeoutMS > 0) {
+                invoke(requestTimeout, builder, invoke(ofMillis, null, timeoutMS));
+            }
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                invoke(requestHeader, builder, e.getKey(), e.getValue());
+            }
+            invoke(requestMethod, builder, method, invoke(ofByteArray, null, (Object) body));
+            return invoke(requestBuild, builder);
+        }
+
+        /**
+         * Runs the task when a CompletableFuture completes either way.
+         * The BiConsumer is a dynamic proxy, since Java 7 has no lambdas.
+         */
+        void whenComplete(Object future, final Runnable task) throws IOException
+        {
+            Object action = Proxy.newProxyInstance(biConsumer.getClassLoader(),
+                new Class<?>[] { biConsumer }, new InvocationHandler() {
+                    public Object invoke(Object p, Method m, Object[] args) {
+                        String name = m.getName();
+                        if (name.equals("accept")) {
+                            task.run();
+                        }
+                        else if (name.equals("hashCode")) {
+                            return Integer.valueOf(System.identityHashCode(p));
+                        }
+                        else if (name.equals("equals")) {
+                            return Boolean.valueOf(p == args[0]);
+                        }
+                        else if (name.equals("toString")) {
+                            return "BiConsumer(" + task + ")";
+                        }
+                        return null;
+                    }
+                });
+            invoke(whenComplete, future, action);
+        }
+
+        int statusCode(Object response) throws IOException
+        {
+            return ((Integer) invoke(statusCode, response)).intValue();
+        }
+
+        /**
+         * Invokes a reflected method. IOExceptions thrown by the method
+         * come through as is; everything else is wrapped in an IOException.
+         */
+        Object invoke(Method m, Object target, Object... args) throws IOException
+        {
+            try {
+                return m.invoke(target, args);
+            } catch (InvocationTargetException x) {
+                Throwable cause = x.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } catch (IllegalAccessException x) {
+                throw new IOException(x);
+            }
+        }
+    }
+}
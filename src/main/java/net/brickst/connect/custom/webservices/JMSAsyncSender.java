@@ -0,0 +1,180 @@
+/*
+ * JMS Async Sender -- JMS 2.0 asynchronous sends for JMS endpoints
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+/**
+ * Sends with MessageProducer.send(Message, CompletionListener), which
+ * returns before the broker acknowledges the message.
+ *
+ * The code is built against the JMS 1.1 API, so CompletionListener (JMS
+ * 2.0) is reached through reflection and a dynamic proxy. isAvailable()
+ * tells whether the JMS API on the classpath has it; a provider that only
+ * implements JMS 1.1 makes send() throw UnsupportedOperationException.
+ */
+public class JMSAsyncSender
+{
+    private static final Class<?> listenerClass = loadListenerClass();
+    private static final Method sendMethod = loadSendMethod();
+
+    public static boolean isAvailable()
+    {
+        return sendMethod != null;
+    }
+
+    /**
+     * Starts sending a message. The future completes when the provider
+     * calls the completion listener.
+     */
+    public static void send(MessageProducer producer, Message message, final SendFuture future)
+        throws JMSException
+    {
+        if (sendMethod == null) {
+            throw new UnsupportedOperationException("JMS 2.0 CompletionListener is not available");
+        }
+        Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(),
+            new Class<?>[] { listenerClass }, new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object[] args) {
+                    String name = m.getName();
+                    if (name.equals("onCompletion")) {
+                        future.complete(null);
+                    }
+                    else if (name.equals("onException")) {
+                        future.complete((Exception) args[1]);
+                    }
+                    else if (name.equals("hashCode")) {
+                        return Integer.valueOf(System.identityHashCode(p));
+                    }
+                    else if (name.equals("equals")) {
+                        return Boolean.valueOf(p == args[0]);
+                    }
+                    else if (name.equals("toString")) {
+                        return "CompletionListener(" + future + ")";
+                    }
+                    return null;
+                }
+            });
+
+        try {
+            sendMethod.invoke(producer, message, listener);
+        } catch (InvocationTargetException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof JMSException) {
+                throw (JMSException) cause;
+            }
+            if (cause instanceof AbstractMethodError) {
+                // JMS 1.1 provider
+                throw new UnsupportedOperationException("JMS provider does not support async send", cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (IllegalAccessException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /**
+     * Outcome of an async send. Subclasses can override done() to act on
+     * the result on the provider's callback thread.
+     */
+    public static class SendFuture implements Future<Void>
+    {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile Exception failure;
+
+        void complete(Exception x)
+        {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            failure = x;
+            latch.countDown();
+            done(x);
+        }
+
+        /**
+         * Called once when the send completes; x is null on success. Runs
+         * on a provider thread and must not use the sending session.
+         */
+        protected void done(Exception x)
+        {
+        }
+
+        public boolean cancel(boolean interrupt) { return false; }
+        public boolean isCancelled() { return false; }
+        public boolean isDone() { return latch.getCount() == 0; }
+
+        public Void get() throws InterruptedException, ExecutionException
+        {
+            latch.await();
+            return check();
+        }
+
+        public Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return check();
+        }
+
+        private Void check() throws ExecutionException
+        {
+            Exception x = failure;
+            if (x != null) {
+                throw new ExecutionException(x);
+            }
+            return null;
+        }
+    }
+
+    private static Class<?> loadListenerClass()
+    {
+        try {
+            return Class.forName("javax.jms.CompletionListener");
+        } catch (Throwable th) {
+            // JMS 1.1 API
+            return null;
+        }
+    }
+
+    private static Method loadSendMethod()
+    {
+        if (listenerClass == null) {
+            return null;
+        }
+        try {
+            return MessageProducer.class.getMethod("send", Message.class, listenerClass);
+        } catch (Throwable th) {
+            return null;
+        }
+    }
+}
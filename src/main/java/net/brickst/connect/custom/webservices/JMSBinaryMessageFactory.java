@@ -0,0 +1,24 @@
+/*
+ * JMS Binary Message Factory -- transforms encoded input data to a JMS Message
+ * 
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ * 
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * A message factory that can also build messages from UTF-8 bytes, so a
+ * payload that is already encoded (e.g. XSL output written to a byte
+ * stream) does not have to be turned into a String first.
+ */
+public interface JMSBinaryMessageFactory extends JMSMessageFactory
+{
+    public Message getMessage(Session session, byte[] utf8Content) throws JMSException;
+}
@@ -0,0 +1,89 @@
+/*
+ * JMS Bytes Message Factory -- transforms input data to a JMS BytesMessage
+ * 
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ * 
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Creates a JMS Bytes Message holding the UTF-8 payload, optionally gzip
+ * compressed. The content type and encoding are set as string properties
+ * so consumers know how to decode the body.
+ */
+public class JMSBytesMessageFactory implements JMSBinaryMessageFactory
+{
+    // message property names
+    public static final String CONTENT_TYPE_PROPERTY = "contentType";
+    public static final String CONTENT_ENCODING_PROPERTY = "contentEncoding";
+
+    public static final String DEFAULT_CONTENT_TYPE = "text/xml; charset=UTF-8";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String contentType = DEFAULT_CONTENT_TYPE;
+    private boolean compress;
+
+    // content type property; null leaves it unset
+    public String getContentType() { return contentType; }
+    public void setContentType(String val) { contentType = val; }
+
+    // gzip the payload
+    public boolean isCompress() { return compress; }
+    public void setCompress(boolean val) { compress = val; }
+
+    public Message getMessage(Session session, String content) throws JMSException
+    {
+        return getMessage(session, content.getBytes(UTF8));
+    }
+
+    public Message getMessage(Session session, byte[] utf8Content) throws JMSException
+    {
+        byte[] body = utf8Content;
+        if (compress) {
+            body = gzip(utf8Content);
+        }
+
+        BytesMessage bytesMsg = session.createBytesMessage();
+        bytesMsg.writeBytes(body);
+        if (contentType != null) {
+            bytesMsg.setStringProperty(CONTENT_TYPE_PROPERTY, contentType);
+        }
+        if (compress) {
+            bytesMsg.setStringProperty(CONTENT_ENCODING_PROPERTY, "gzip");
+        }
+        return bytesMsg;
+    }
+
+    private static byte[] gzip(byte[] data) throws JMSException
+    {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 64);
+            GZIPOutputStream gz = new GZIPOutputStream(baos);
+            try {
+                gz.write(data);
+            } finally {
+                gz.close();
+            }
+            return baos.toByteArray();
+        } catch (IOException x) {
+            // can't happen with an in-memory stream
+            JMSException jx = new JMSException("Unable to compress message: " + x);
+            jx.setLinkedException(x);
+            throw jx;
+        }
+    }
+}
@@ -1,352 +1,944 @@
-package net.brickst.connect.custom.webservices;
-
-import java.util.Hashtable;
-import java.util.Properties;
-
-import javax.jms.Connection;
-import javax.jms.ConnectionFactory;
-import javax.jms.DeliveryMode;
-import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageProducer;
-import javax.jms.Queue;
-import javax.jms.Session;
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
-
-public class JMSEndpoint extends WebEndpoint
-{
-    // JMS endpoint info
-    private String jndiInitialContextFactory;
-    private String jndiProviderUrl;
-    private String jmsConnectionFactoryName;
-    private String jmsConnectionUsername;
-    private String jmsConnectionPassword;
-    private String jmsSendQueueName;
-    private JMSMessageFactory jmsMessageFactory;
-    
-    //
-    // Design Note
-    //
-    // The JMS spec says that ConnectionFactory and Connection are
-    // multithreaded objects that support concurrency. So we will
-    // keep them in the endpoint object and allow them to be shared
-    // across threads.
-    //
-    // On the other hand, Session and MessageProducer objects are
-    // single-threaded so we will require callers to manage their own
-    // instances of these objects.
-    //
-    // https://docs.oracle.com/javaee/5/api/javax/jms/ConnectionFactory.html
-    // https://docs.oracle.com/javaee/5/api/javax/jms/Connection.html
-    // https://docs.oracle.com/javaee/5/api/javax/jms/Session.html
-    // https://docs.oracle.com/javaee/5/api/javax/jms/MessageProducer.html
-    //
-
-    // JMS connection state
-    private ConnectionFactory jmsConnectionFactory;
-    private Connection jmsConnection;
-    private Queue jmsSendQueue;
-
-    public JMSEndpoint()
-    {
-        endpointType = EndpointType.JMS;
-    }
-    
-    // JndiInitialContextFactory
-    public String getJndiInitialContextFactory() {
-        return jndiInitialContextFactory;
-    }
-
-    public void setJndiInitialContextFactory(String value) {
-        jndiInitialContextFactory = value;
-    }
-
-    // JndiProviderUrl
-    public String getJndiProviderUrl() {
-        return jndiProviderUrl;
-    }
-
-    public void setJndiProviderUrl(String value) {
-        jndiProviderUrl = value;
-    }
-
-    // JMS Connection Factory Name
-    public String getJmsConnectionFactoryName() {
-        return jmsConnectionFactoryName;
-    }
-
-    public void setJmsConnectionFactoryName(String value) {
-        jmsConnectionFactoryName = value;
-    }
-
-    // JMS Connection Username
-    public String getJmsConnectionUsername() {
-        return jmsConnectionUsername;
-    }
-
-    public void setJmsConnectionUsername(String value) {
-        jmsConnectionUsername = value;
-    }
-
-    // JMS Connection Password
-    public String getJmsConnectionPassword() {
-        return jmsConnectionPassword;
-    }
-
-    public void setJmsConnectionPassword(String value) {
-        jmsConnectionPassword = value;
-    }
-
-    // JMS Send Queue Name
-    public String getJmsSendQueueName() {
-        return jmsSendQueueName;
-    }
-
-    public void setJmsSendQueueName(String value) {
-        jmsSendQueueName = value;
-    }
-
-    // message factory
-    public JMSMessageFactory getJmsMessageFactory() { return jmsMessageFactory; }
-    public void setJmsMessageFactory(JMSMessageFactory val) { jmsMessageFactory = val; }
-    
-    // JMS connection factory 
-    public ConnectionFactory getJmsConnectionFactory() {
-        return jmsConnectionFactory;
-    }
- 
-    // JMS connection (cannot set)
-    public Connection getJmsConnection() {
-        return jmsConnection;
-    }
-    
-    // JMS Queue
-    public Queue getJmsQueue() {
-        return jmsSendQueue;
-    }
-
-    /**
-     * Initialize JMS config info from Properties Object The prefix argument
-     * will be prepended to all property names. e.g. prefix='endpoint_0',
-     * properties will be endpoint_0.jmsJndiClass=... endpoint_0.jmsJndiUrl=...
-     * endpoint_0.jmsConnectionFactoryName=... endpoint_0.jmsSendQueueName=...
-     */
-    public void initFromProperties(Properties props, String prefix) {
-        String propName = null;
-        String propVal = null;
-
-        endpointType = EndpointType.JMS;
-
-        if (prefix == null) {
-            prefix = "";
-        }
-
-        // jndi class
-        propName = prefix + "jmsJndiClass";
-        propVal = props.getProperty(propName);
-        if (propVal == null) {
-            throw new IllegalArgumentException("Invalid Property: " + propName);
-        }
-        setJndiInitialContextFactory(propVal);
-
-        // jndi provider url
-        propName = prefix + "jmsJndiUrl";
-        propVal = props.getProperty(propName);
-        if (propVal == null) {
-            throw new IllegalArgumentException("Invalid Property: " + propName);
-        }
-        setJndiProviderUrl(propVal);
-
-        // jms connection factory name
-        propName = prefix + "jmsConnectionFactoryName";
-        propVal = props.getProperty(propName);
-        if (propVal == null) {
-            throw new IllegalArgumentException("Invalid Property: " + propName);
-        }
-        setJmsConnectionFactoryName(propVal);
-
-        // jms send queue name
-        propName = prefix + "jmsSendQueueName";
-        propVal = props.getProperty(propName);
-        if (propVal == null) {
-            throw new IllegalArgumentException("Invalid Property: " + propName);
-        }
-        setJmsSendQueueName(propVal);
-
-        //
-        // connection username and password can be null
-        //
-
-        // jms connection username
-        propName = prefix + "jmsConnectionUsername";
-        propVal = props.getProperty(propName);
-        setJmsConnectionUsername(propVal);
-
-        // jms connection password
-        propName = prefix + "jmsConnectionPassword";
-        propVal = props.getProperty(propName);
-        setJmsConnectionPassword(propVal);
-
-        //
-        // jms message factory
-        //
-        propName = prefix + "jmsMessageFactory";
-        propVal = props.getProperty(propName);
-        if (propVal == null) {
-            jmsMessageFactory = new JMSTextMessageFactory();
-        } else {
-            try {
-                jmsMessageFactory = (JMSMessageFactory) Class.forName(propVal)
-                        .newInstance();
-            } catch (Throwable th) {
-                throw new IllegalArgumentException(
-                        "Invalid JMS Message Factory Class: " + propVal, th);
-            }
-        }
-    }
-
-    //
-    // JNDI / JMS Initialization
-    //
-
-    /**
-     * Creates InitialContext based on JNDI configuration info.
-     */
-    public InitialContext getJndiInitialContext() throws NamingException {
-        Hashtable env = new Hashtable();
-        env.put(Context.INITIAL_CONTEXT_FACTORY, jndiInitialContextFactory);
-        env.put(Context.PROVIDER_URL, jndiProviderUrl);
-        return new InitialContext(env);
-    }
-
-    /**
-     * Init method called before the endpoint is used
-     */
-    public void initNetworkResources()
-    {
-        try {
-            jmsInit();
-        }
-        catch (Throwable th) {
-            throw new RuntimeException(th);
-        }
-    }
-    
-    /**
-     * Initializes Connection Factory and Connection using embedded JNDI info
-     */
-    public void jmsInit() throws NamingException, JMSException {
-        Context context = getJndiInitialContext();
-        jmsInit(context);
-    }
-
-    /**
-     * Initializes Connection Factory and Connection using provided JNDI context
-     */
-    public void jmsInit(Context context) throws NamingException, JMSException {
-        if (endpointType != EndpointType.JMS) {
-            throw new IllegalArgumentException("Endpoint type is not JMS");
-        }
-
-        // lookup connection factory
-        ConnectionFactory cf = (ConnectionFactory) context
-                .lookup(jmsConnectionFactoryName);
-        if (cf == null) {
-            throw new IllegalArgumentException(
-                    "Unable to find connection factory: "
-                            + jmsConnectionFactoryName);
-        }
-        jmsConnectionFactory = cf;
-
-        // lookup queue
-        Queue queue = (Queue) context.lookup(jmsSendQueueName);
-        if (queue == null) {
-            throw new IllegalArgumentException("Unable to find send queue: "
-                    + jmsSendQueueName);
-        }
-        jmsSendQueue = queue;
-
-        // create jms connection
-        Connection jmsConn = null;
-        if (jmsConnectionUsername != null) {
-            jmsConn = cf.createConnection(jmsConnectionUsername,
-                    jmsConnectionPassword);
-        } else {
-            jmsConn = cf.createConnection();
-        }
-        jmsConnection = jmsConn;
-
-        // init jms message factory if necessary
-        if (jmsMessageFactory == null) {
-            jmsMessageFactory = new JMSTextMessageFactory();
-        }
-
-        // must call start to get messages flowing
-        jmsConnection.start();        
-    }
-
-    /**
-     * Delivers Message to Endpoint Can be called by different threads so must
-     * handle it properly.
-     */
-    public void deliverMessage(String content) 
-    {
-        try {
-            deliverMessageJMS(content);
-        }
-        catch (JMSException x) {
-            // throw exception; caller will schedule retry
-            throw new RuntimeException(x);
-        }
-    }
-    
-    /**
-     * Delivers Message to JMS Endpoint This can be called by multiple threads.
-     */
-    public void deliverMessageJMS(String content) throws JMSException {
-        //
-        // get a session; note sessions are lightweight and single-threaded
-        //
-        // TODO: consider if we want to reuse sessions across calls; could have
-        // a per-thread cache.
-        //
-        // NOTE: Session.CLIENT_ACKNOWLEDGE means that the message is not
-        // "consumed" until we call Message.acknowledge()
-        // If we crash before this is called, then the message will stay in
-        // queue and be processed when we restart.
-        // This param probably doesn't matter as long as we only send messages
-        // and do not receive them.
-        Session jmsSession = jmsConnection.createSession(false,
-                Session.CLIENT_ACKNOWLEDGE);
-
-        // run the rest of the message in a try block so that we can close the
-        // session
-        try {
-            // create message
-            Message jmsMessage = jmsMessageFactory.getMessage(jmsSession,
-                    content);
-
-            // get message producer so we can send the message
-            MessageProducer messageProducer = jmsSession
-                    .createProducer(jmsSendQueue);
-            messageProducer.setDeliveryMode(DeliveryMode.PERSISTENT);
-
-            // send message
-            messageProducer.send(jmsMessage);
-        } finally {
-            if (jmsSession != null) {
-                try {
-                    jmsSession.close();
-                } catch (Exception x) {
-                    // Q: what do we do if we deliver the message but fail to
-                    // close?
-                    // A: log close exception but treat message delivered?
-                    ;
-                }
-            }
-        }
-    }
-    
-}
+package net.brickst.connect.custom.webservices;
+
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import com.kana.connect.common.lib.Debug;
+
+public class JMSEndpoint extends WebEndpoint
+{
+    // JMS endpoint info
+    private String jndiInitialContextFactory;
+    private String jndiProviderUrl;
+    private String jmsConnectionFactoryName;
+    private String jmsConnectionUsername;
+    private String jmsConnectionPassword;
+    private String jmsSendQueueName;
+    private JMSMessageFactory jmsMessageFactory;
+    private int jmsSessionPoolSize = DEFAULT_SESSION_POOL_SIZE;
+
+    // producer settings
+    private int jmsDeliveryMode = DeliveryMode.PERSISTENT;
+    private int jmsPriority = Message.DEFAULT_PRIORITY;
+    private long jmsTimeToLiveMS = Message.DEFAULT_TIME_TO_LIVE;
+    private boolean jmsDisableMessageID;
+    private boolean jmsDisableMessageTimestamp;
+    // JMS 2.0 async send; falls back to sync sends if unsupported
+    private boolean jmsAsyncSend;
+    private volatile boolean asyncSendUnsupported;
+
+
+    // default number of idle sessions kept per endpoint
+    public static final int DEFAULT_SESSION_POOL_SIZE = 8;
+
+    // reconnect backoff after the connection fails
+    public static final long DEFAULT_RECONNECT_DELAY_MS = 1000;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY_MS = 60000;
+    private long jmsReconnectDelayMS = DEFAULT_RECONNECT_DELAY_MS;
+    private long jmsReconnectMaxDelayMS = DEFAULT_RECONNECT_MAX_DELAY_MS;
+
+    // failed reconnect attempts with the cached connection factory before
+    // it is looked up in JNDI again
+    static final int JNDI_REFRESH_ATTEMPTS = 3;
+    
+    //
+    // Design Note
+    //
+    // The JMS spec says that ConnectionFactory and Connection are
+    // multithreaded objects that support concurrency. So we will
+    // keep them in the endpoint object and allow them to be shared
+    // across threads.
+    //
+    // On the other hand, Session and MessageProducer objects are
+    // single-threaded. Creating them costs several broker round trips,
+    // so we keep a bounded pool of idle Session/MessageProducer pairs
+    // (see JMSSessionPool). A thread borrows a pair for one send and
+    // returns it afterwards.
+    //
+    // The Connection can be replaced at any time. An ExceptionListener
+    // (or a failed createSession) starts a background reconnect on the
+    // retry scheduler, with exponential backoff. The new connection is
+    // swapped in with a single volatile write; sessions left over from the
+    // old connection are discarded by JMSSessionPool.borrow().
+    //
+    // https://docs.oracle.com/javaee/5/api/javax/jms/ConnectionFactory.html
+    // https://docs.oracle.com/javaee/5/api/javax/jms/Connection.html
+    // https://docs.oracle.com/javaee/5/api/javax/jms/Session.html
+    // https://docs.oracle.com/javaee/5/api/javax/jms/MessageProducer.html
+    //
+
+    // JMS connection state
+    private ConnectionFactory jmsConnectionFactory;
+    private volatile Connection jmsConnection;
+    private Queue jmsSendQueue;
+    // true if the factory and queue came from JNDI and can be looked up again
+    private boolean jmsFromJndi;
+
+    // reconnect state
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    private final AtomicInteger reconnectCount = new AtomicInteger();
+    private volatile JMSSessionPool jmsSessionPool;
+    private volatile JMSSessionPool jmsBatchSessionPool;
+    // set by shutdown(); no more reconnects
+    private volatile boolean closed;
+
+    public JMSEndpoint()
+    {
+        endpointType = EndpointType.JMS;
+    }
+    
+    // JndiInitialContextFactory
+    public String getJndiInitialContextFactory() {
+        return jndiInitialContextFactory;
+    }
+
+    public void setJndiInitialContextFactory(String value) {
+        jndiInitialContextFactory = value;
+    }
+
+    // JndiProviderUrl
+    public String getJndiProviderUrl() {
+        return jndiProviderUrl;
+    }
+
+    public void setJndiProviderUrl(String value) {
+        jndiProviderUrl = value;
+    }
+
+    // JMS Connection Factory Name
+    public String getJmsConnectionFactoryName() {
+        return jmsConnectionFactoryName;
+    }
+
+    public void setJmsConnectionFactoryName(String value) {
+        jmsConnectionFactoryName = value;
+    }
+
+    // JMS Connection Username
+    public String getJmsConnectionUsername() {
+        return jmsConnectionUsername;
+    }
+
+    public void setJmsConnectionUsername(String value) {
+        jmsConnectionUsername = value;
+    }
+
+    // JMS Connection Password
+    public String getJmsConnectionPassword() {
+        return jmsConnectionPassword;
+    }
+
+    public void setJmsConnectionPassword(String value) {
+        jmsConnectionPassword = value;
+    }
+
+    // JMS Send Queue Name
+    public String getJmsSendQueueName() {
+        return jmsSendQueueName;
+    }
+
+    public void setJmsSendQueueName(String value) {
+        jmsSendQueueName = value;
+    }
+
+    // message factory
+    public JMSMessageFactory getJmsMessageFactory() { return jmsMessageFactory; }
+    public void setJmsMessageFactory(JMSMessageFactory val) { jmsMessageFactory = val; }
+    
+    // JMS session pool size; 0 disables pooling
+    public int getJmsSessionPoolSize() { return jmsSessionPoolSize; }
+    public void setJmsSessionPoolSize(int val) { jmsSessionPoolSize = val; }
+
+    // JMS delivery mode: DeliveryMode.PERSISTENT or NON_PERSISTENT
+    public int getJmsDeliveryMode() { return jmsDeliveryMode; }
+    public void setJmsDeliveryMode(int val) {
+        if (val != DeliveryMode.PERSISTENT && val != DeliveryMode.NON_PERSISTENT) {
+            throw new IllegalArgumentException("Invalid JMS delivery mode: " + val);
+        }
+        jmsDeliveryMode = val;
+    }
+
+    // JMS priority 0-9
+    public int getJmsPriority() { return jmsPriority; }
+    public void setJmsPriority(int val) {
+        if (val < 0 || val > 9) {
+            throw new IllegalArgumentException("JMS priority must be 0-9: " + val);
+        }
+        jmsPriority = val;
+    }
+
+    // JMS time to live; 0 means messages never expire
+    public long getJmsTimeToLiveMS() { return jmsTimeToLiveMS; }
+    public void setJmsTimeToLiveMS(long val) { jmsTimeToLiveMS = Math.max(val, 0); }
+
+    // hints that the provider need not generate message ids / timestamps
+    public boolean isJmsDisableMessageID() { return jmsDisableMessageID; }
+    public void setJmsDisableMessageID(boolean val) { jmsDisableMessageID = val; }
+    public boolean isJmsDisableMessageTimestamp() { return jmsDisableMessageTimestamp; }
+    public void setJmsDisableMessageTimestamp(boolean val) { jmsDisableMessageTimestamp = val; }
+
+    // JMS 2.0 async send (CompletionListener)
+    public boolean isJmsAsyncSend() { return jmsAsyncSend; }
+    public void setJmsAsyncSend(boolean val) { jmsAsyncSend = val; }
+
+    // true if async sends are configured and the provider supports them
+    public boolean isAsyncSendActive() {
+        return jmsAsyncSend && !asyncSendUnsupported && JMSAsyncSender.isAvailable();
+    }
+
+    // first reconnect delay after a connection failure
+    public long getJmsReconnectDelayMS() { return jmsReconnectDelayMS; }
+    public void setJmsReconnectDelayMS(long val) { jmsReconnectDelayMS = Math.max(val, 1); }
+
+    // backoff limit for reconnect attempts
+    public long getJmsReconnectMaxDelayMS() { return jmsReconnectMaxDelayMS; }
+    public void setJmsReconnectMaxDelayMS(long val) { jmsReconnectMaxDelayMS = Math.max(val, 1); }
+
+    // number of times the connection has been replaced
+    public int getReconnectCount() { return reconnectCount.get(); }
+
+    // true while a background reconnect is pending
+    public boolean isReconnecting() { return reconnecting.get(); }
+
+    // JMS session pool (created on first use)
+    public JMSSessionPool getJmsSessionPool()
+    {
+        JMSSessionPool pool = jmsSessionPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = jmsSessionPool;
+                if (pool == null) {
+                    pool = new JMSSessionPool(jmsSessionPoolSize);
+                    configurePool(pool);
+                    jmsSessionPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    // transacted JMS session pool for batch sends (created on first use)
+    public JMSSessionPool getJmsBatchSessionPool()
+    {
+        JMSSessionPool pool = jmsBatchSessionPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = jmsBatchSessionPool;
+                if (pool == null) {
+                    pool = new JMSSessionPool(jmsSessionPoolSize, true);
+                    configurePool(pool);
+                    jmsBatchSessionPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    // applies the producer settings to a new pool
+    private void configurePool(JMSSessionPool pool)
+    {
+        pool.setDeliveryMode(jmsDeliveryMode);
+        pool.setPriority(jmsPriority);
+        pool.setTimeToLive(jmsTimeToLiveMS);
+        pool.setDisableMessageID(jmsDisableMessageID);
+        pool.setDisableMessageTimestamp(jmsDisableMessageTimestamp);
+    }
+
+    // JMS connection factory 
+    public ConnectionFactory getJmsConnectionFactory() {
+        return jmsConnectionFactory;
+    }
+ 
+    // JMS connection (cannot set)
+    public Connection getJmsConnection() {
+        return jmsConnection;
+    }
+    
+    // JMS Queue
+    public Queue getJmsQueue() {
+        return jmsSendQueue;
+    }
+
+    /**
+     * Initialize JMS config info from Properties Object The prefix argument
+     * will be prepended to all property names. e.g. prefix='endpoint_0',
+     * properties will be endpoint_0.jmsJndiClass=... endpoint_0.jmsJndiUrl=...
+     * endpoint_0.jmsConnectionFactoryName=... endpoint_0.jmsSendQueueName=...
+     * endpoint_0.jmsSessionPoolSize=... (optional)
+     * endpoint_0.jmsReconnectDelayMS=... (optional)
+     * endpoint_0.jmsReconnectMaxDelayMS=... (optional)
+     * endpoint_0.jmsDeliveryMode=PERSISTENT|NON_PERSISTENT (optional)
+     * endpoint_0.jmsPriority=... endpoint_0.jmsTimeToLiveMS=... (optional)
+     * endpoint_0.jmsDisableMessageID=... (optional)
+     * endpoint_0.jmsDisableMessageTimestamp=... (optional)
+     * endpoint_0.jmsAsyncSend=... (optional)
+     * endpoint_0.jmsContentType=... endpoint_0.jmsCompress=... (optional,
+     * with JMSBytesMessageFactory)
+     */
+    public void initFromProperties(Properties props, String prefix) {
+        String propName = null;
+        String propVal = null;
+
+        endpointType = EndpointType.JMS;
+
+        if (prefix == null) {
+            prefix = "";
+        }
+
+        // jndi class
+        propName = prefix + "jmsJndiClass";
+        propVal = props.getProperty(propName);
+        if (propVal == null) {
+            throw new IllegalArgumentException("Invalid Property: " + propName);
+        }
+        setJndiInitialContextFactory(propVal);
+
+        // jndi provider url
+        propName = prefix + "jmsJndiUrl";
+        propVal = props.getProperty(propName);
+        if (propVal == null) {
+            throw new IllegalArgumentException("Invalid Property: " + propName);
+        }
+        setJndiProviderUrl(propVal);
+
+        // jms connection factory name
+        propName = prefix + "jmsConnectionFactoryName";
+        propVal = props.getProperty(propName);
+        if (propVal == null) {
+            throw new IllegalArgumentException("Invalid Property: " + propName);
+        }
+        setJmsConnectionFactoryName(propVal);
+
+        // jms send queue name
+        propName = prefix + "jmsSendQueueName";
+        propVal = props.getProperty(propName);
+        if (propVal == null) {
+            throw new IllegalArgumentException("Invalid Property: " + propName);
+        }
+        setJmsSendQueueName(propVal);
+
+        //
+        // connection username and password can be null
+        //
+
+        // jms connection username
+        propName = prefix + "jmsConnectionUsername";
+        propVal = props.getProperty(propName);
+        setJmsConnectionUsername(propVal);
+
+        // jms connection password
+        propName = prefix + "jmsConnectionPassword";
+        propVal = props.getProperty(propName);
+        setJmsConnectionPassword(propVal);
+
+        //
+        // jms message factory
+        //
+        propName = prefix + "jmsMessageFactory";
+        propVal = props.getProperty(propName);
+        if (propVal == null) {
+            jmsMessageFactory = new JMSTextMessageFactory();
+        } else {
+            try {
+                jmsMessageFactory = (JMSMessageFactory) Class.forName(propVal)
+                        .newInstance();
+            } catch (Throwable th) {
+                throw new IllegalArgumentException(
+                        "Invalid JMS Message Factory Class: " + propVal, th);
+            }
+        }
+
+        // bytes message factory options
+        String contentType = props.getProperty(prefix + "jmsContentType");
+        String compress = props.getProperty(prefix + "jmsCompress");
+        if (contentType != null || compress != null) {
+            if (!(jmsMessageFactory instanceof JMSBytesMessageFactory)) {
+                throw new IllegalArgumentException("Invalid Property: " + prefix
+                        + "jmsContentType/jmsCompress need " + JMSBytesMessageFactory.class.getName());
+            }
+            JMSBytesMessageFactory bmf = (JMSBytesMessageFactory) jmsMessageFactory;
+            if (contentType != null) {
+                contentType = contentType.trim();
+                bmf.setContentType(contentType.length() > 0 ? contentType : null);
+            }
+            if (compress != null) {
+                bmf.setCompress(Boolean.parseBoolean(compress.trim()));
+            }
+        }
+
+        //
+        // session pool size; max number of idle sessions kept for reuse
+        //
+        propName = prefix + "jmsSessionPoolSize";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            try {
+                int ival = Integer.parseInt(propVal.trim());
+                if (ival < 0) {
+                    throw new IllegalArgumentException("jmsSessionPoolSize must be >= 0");
+                }
+                setJmsSessionPoolSize(ival);
+            } catch (Exception x) {
+                throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal, x);
+            }
+        }
+
+        //
+        // reconnect backoff after a connection failure
+        //
+        propName = prefix + "jmsReconnectDelayMS";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            try {
+                setJmsReconnectDelayMS(Long.parseLong(propVal.trim()));
+            } catch (Exception x) {
+                throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal, x);
+            }
+        }
+        propName = prefix + "jmsReconnectMaxDelayMS";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            try {
+                setJmsReconnectMaxDelayMS(Long.parseLong(propVal.trim()));
+            } catch (Exception x) {
+                throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal, x);
+            }
+        }
+
+        //
+        // producer settings
+        //
+        propName = prefix + "jmsDeliveryMode";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            String mode = propVal.trim().toUpperCase();
+            if (mode.equals("PERSISTENT")) {
+                setJmsDeliveryMode(DeliveryMode.PERSISTENT);
+            } else if (mode.equals("NON_PERSISTENT")) {
+                setJmsDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            } else {
+                throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal);
+            }
+        }
+        propName = prefix + "jmsPriority";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            try {
+                setJmsPriority(Integer.parseInt(propVal.trim()));
+            } catch (Exception x) {
+                throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal, x);
+            }
+        }
+        propName = prefix + "jmsTimeToLiveMS";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            try {
+                setJmsTimeToLiveMS(Long.parseLong(propVal.trim()));
+            } catch (Exception x) {
+                throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal, x);
+            }
+        }
+        propVal = props.getProperty(prefix + "jmsDisableMessageID");
+        if (propVal != null) {
+            setJmsDisableMessageID(Boolean.parseBoolean(propVal.trim()));
+        }
+        propVal = props.getProperty(prefix + "jmsDisableMessageTimestamp");
+        if (propVal != null) {
+            setJmsDisableMessageTimestamp(Boolean.parseBoolean(propVal.trim()));
+        }
+        propVal = props.getProperty(prefix + "jmsAsyncSend");
+        if (propVal != null) {
+            setJmsAsyncSend(Boolean.parseBoolean(propVal.trim()));
+        }
+    }
+
+    //
+    // JNDI / JMS Initialization
+    //
+
+    /**
+     * Creates InitialContext based on JNDI configuration info.
+     */
+    public InitialContext getJndiInitialContext() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, jndiInitialContextFactory);
+        env.put(Context.PROVIDER_URL, jndiProviderUrl);
+        return new InitialContext(env);
+    }
+
+    /**
+     * Init method called before the endpoint is used
+     */
+    public void initNetworkResources()
+    {
+        try {
+            jmsInit();
+        }
+        catch (Throwable th) {
+            throw new RuntimeException(th);
+        }
+    }
+    
+    /**
+     * Initializes Connection Factory and Connection using embedded JNDI info
+     */
+    public void jmsInit() throws NamingException, JMSException {
+        Context context = getJndiInitialContext();
+        jmsInit(context);
+    }
+
+    /**
+     * Initializes Connection Factory and Connection using provided JNDI context
+     */
+    public void jmsInit(Context context) throws NamingException, JMSException {
+        if (endpointType != EndpointType.JMS) {
+            throw new IllegalArgumentException("Endpoint type is not JMS");
+        }
+        jmsLookup(context);
+        jmsFromJndi = true;
+        jmsInit(jmsConnectionFactory, jmsSendQueue);
+    }
+
+    /**
+     * Looks up the Connection Factory and Queue in JNDI and caches them.
+     */
+    private void jmsLookup(Context context) throws NamingException {
+        // lookup connection factory
+        ConnectionFactory cf = (ConnectionFactory) context
+                .lookup(jmsConnectionFactoryName);
+        if (cf == null) {
+            throw new IllegalArgumentException(
+                    "Unable to find connection factory: "
+                            + jmsConnectionFactoryName);
+        }
+
+        // lookup queue
+        Queue queue = (Queue) context.lookup(jmsSendQueueName);
+        if (queue == null) {
+            throw new IllegalArgumentException("Unable to find send queue: "
+                    + jmsSendQueueName);
+        }
+
+        jmsConnectionFactory = cf;
+        jmsSendQueue = queue;
+    }
+
+    /**
+     * Initializes Connection using an already resolved Connection Factory
+     * and Queue
+     */
+    public void jmsInit(ConnectionFactory cf, Queue queue) throws JMSException {
+        jmsConnectionFactory = cf;
+        jmsSendQueue = queue;
+
+        // init jms message factory if necessary
+        if (jmsMessageFactory == null) {
+            jmsMessageFactory = new JMSTextMessageFactory();
+        }
+
+        jmsConnection = openConnection(cf);
+    }
+
+    /**
+     * Creates and starts a connection with an ExceptionListener that
+     * triggers a reconnect.
+     */
+    private Connection openConnection(ConnectionFactory cf) throws JMSException {
+        // create jms connection
+        final Connection jmsConn;
+        if (jmsConnectionUsername != null) {
+            jmsConn = cf.createConnection(jmsConnectionUsername,
+                    jmsConnectionPassword);
+        } else {
+            jmsConn = cf.createConnection();
+        }
+
+        try {
+            jmsConn.setExceptionListener(new ExceptionListener() {
+                public void onException(JMSException x) {
+                    connectionFailed(jmsConn, x);
+                }
+            });
+
+            // must call start to get messages flowing
+            jmsConn.start();
+        } catch (JMSException x) {
+            closeQuietly(jmsConn);
+            throw x;
+        }
+        return jmsConn;
+    }
+
+    /**
+     * Called when a connection reports an error. Starts a background
+     * reconnect unless the connection was already replaced or a reconnect
+     * is already running.
+     */
+    void connectionFailed(Connection failed, JMSException cause) {
+        if (closed || failed != jmsConnection) {
+            // stale connection; already replaced
+            return;
+        }
+        if (!reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        if (Debug.SR.isEnabled()) {
+            Debug.SR.printException(cause, "JMSEndpoint: connection failed; reconnecting " + this);
+        }
+        RetryScheduler scheduler = getRetryScheduler();
+        if (!new ReconnectTask(failed, scheduler).schedule(0)) {
+            reconnecting.set(false);
+        }
+    }
+
+    /**
+     * Replaces a failed connection. Reschedules itself with backoff until a
+     * new connection is up.
+     */
+    class ReconnectTask implements Runnable {
+        private final Connection failed;
+        // re-armed only here, so shutdownRetryScheduler() stops it
+        private final RetryScheduler scheduler;
+        private int attempts;
+
+        ReconnectTask(Connection failed, RetryScheduler scheduler) {
+            this.failed = failed;
+            this.scheduler = scheduler;
+        }
+
+        // false if the scheduler was shut down
+        boolean schedule(long delayMS) {
+            if (scheduler.isShutdown()) {
+                return false;
+            }
+            try {
+                scheduler.schedule(this, delayMS);
+                return true;
+            } catch (RejectedExecutionException x) {
+                return false;
+            }
+        }
+
+        public void run() {
+            if (closed) {
+                reconnecting.set(false);
+                return;
+            }
+            try {
+                // an old factory may hold on to the dead broker; look it
+                // up again now and then
+                if (jmsFromJndi && attempts > 0 && attempts % JNDI_REFRESH_ATTEMPTS == 0) {
+                    jmsLookup(getJndiInitialContext());
+                }
+                Connection conn = openConnection(jmsConnectionFactory);
+
+                // swap in the new connection
+                jmsConnection = conn;
+                reconnectCount.incrementAndGet();
+                reconnecting.set(false);
+                getJmsSessionPool().clear();
+                if (jmsBatchSessionPool != null) {
+                    jmsBatchSessionPool.clear();
+                }
+                closeQuietly(failed);
+                if (closed) {
+                    // shut down while connecting; shutdown() may have
+                    // missed the new connection
+                    closeQuietly(conn);
+                    return;
+                }
+                if (Debug.SR.isEnabled()) {
+                    Debug.SR.println("JMSEndpoint: reconnected " + JMSEndpoint.this);
+                }
+            } catch (Throwable th) {
+                long delay = RetryScheduler.backoffDelay(jmsReconnectDelayMS,
+                        jmsReconnectMaxDelayMS, attempts++, getRetryJitter());
+                if (Debug.SR.isEnabled()) {
+                    Debug.SR.printException(th, "JMSEndpoint: reconnect failed; next attempt in "
+                            + delay + "ms " + JMSEndpoint.this);
+                }
+                if (!schedule(delay)) {
+                    // shut down; the next connection failure starts over
+                    reconnecting.set(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connection and its pooled sessions and stops reconnecting.
+     * Messages still sent through this endpoint fail and are saved for
+     * retry.
+     */
+    @Override
+    public void shutdown()
+    {
+        closed = true;
+        super.shutdown();
+        if (jmsSessionPool != null) {
+            jmsSessionPool.clear();
+        }
+        if (jmsBatchSessionPool != null) {
+            jmsBatchSessionPool.clear();
+        }
+        Connection conn = jmsConnection;
+        if (conn != null) {
+            closeQuietly(conn);
+        }
+    }
+
+    public boolean isClosed() { return closed; }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (Exception x) {
+            // connection is broken; nothing else to do
+            ;
+        }
+    }
+
+    /**
+     * Borrows a session from the pool. If no session can be created on
+     * the current connection, a reconnect is started.
+     */
+    private JMSSessionPool.PooledSession borrowSession(JMSSessionPool pool) throws JMSException {
+        Connection conn = jmsConnection;
+        try {
+            return pool.borrow(conn, jmsSendQueue);
+        } catch (JMSException x) {
+            connectionFailed(conn, x);
+            throw x;
+        }
+    }
+
+    /**
+     * Delivers Message to Endpoint Can be called by different threads so must
+     * handle it properly.
+     */
+    public void deliverMessage(String content) 
+    {
+        try {
+            deliverMessageJMS(content);
+        }
+        catch (JMSException x) {
+            // throw exception; caller will schedule retry
+            throw new RuntimeException(x);
+        }
+    }
+    
+    /**
+     * Delivers Message to JMS Endpoint This can be called by multiple threads.
+     * The send is synchronous even with jmsAsyncSend; async sends go through
+     * deliverMessageAsync, so the caller learns the broker's answer.
+     */
+    public void deliverMessageJMS(String content) throws JMSException {
+        sendJMS(content, null, null);
+    }
+
+    // handle() uses attemptDeliveryAsync when async sends are active
+    @Override
+    public boolean isAsyncSend() {
+        return isAsyncSendActive();
+    }
+
+    // true if the message factory takes bytes (see JMSBinaryMessageFactory)
+    public boolean prefersBytes()
+    {
+        return jmsMessageFactory instanceof JMSBinaryMessageFactory;
+    }
+
+    /**
+     * Delivers UTF-8 bytes. With a JMSBinaryMessageFactory the bytes go into
+     * the message without being decoded to a String.
+     */
+    public void deliverMessageBytes(byte[] content)
+    {
+        if (!prefersBytes()) {
+            super.deliverMessageBytes(content);
+            return;
+        }
+        try {
+            deliverMessageBytesJMS(content);
+        }
+        catch (JMSException x) {
+            // throw exception; caller will schedule retry
+            throw new RuntimeException(x);
+        }
+    }
+
+    /**
+     * Delivers UTF-8 bytes to JMS Endpoint. The message factory must be a
+     * JMSBinaryMessageFactory. This can be called by multiple threads.
+     */
+    public void deliverMessageBytesJMS(byte[] content) throws JMSException {
+        sendJMS(null, content, null);
+    }
+
+    /**
+     * Starts delivering a message. With jmsAsyncSend the future completes
+     * when the broker acknowledges the message; otherwise the message is
+     * sent before this returns.
+     */
+    public Future<Void> deliverMessageAsync(String content, final DeliveryListener listener)
+    {
+        if (!isAsyncSendActive()) {
+            return super.deliverMessageAsync(content, listener);
+        }
+        JMSAsyncSender.SendFuture future = new JMSAsyncSender.SendFuture() {
+            protected void done(Exception x) {
+                if (listener != null) {
+                    listener.deliveryDone(x);
+                }
+            }
+        };
+        try {
+            sendJMS(content, null, future);
+        } catch (JMSException x) {
+            future.complete(x);
+        }
+        return future;
+    }
+
+    /**
+     * Sends a message (either content or bytes) on a pooled session. If
+     * future is set and the provider supports it the send is asynchronous
+     * and the future is completed by the provider; otherwise the send is
+     * synchronous.
+     */
+    private void sendJMS(String content, byte[] bytes, JMSAsyncSender.SendFuture future)
+            throws JMSException {
+        //
+        // borrow a session; sessions are single-threaded so this thread
+        // owns it until it goes back to the pool
+        //
+        JMSSessionPool pool = getJmsSessionPool();
+        JMSSessionPool.PooledSession ps = borrowSession(pool);
+
+        try {
+            // create message
+            Message jmsMessage;
+            if (bytes != null) {
+                jmsMessage = ((JMSBinaryMessageFactory) jmsMessageFactory).getMessage(
+                        ps.getSession(), bytes);
+            } else {
+                jmsMessage = jmsMessageFactory.getMessage(ps.getSession(), content);
+            }
+
+            // send message
+            if (future == null) {
+                ps.getProducer().send(jmsMessage);
+            } else if (!sendAsync(ps.getProducer(), jmsMessage, future)) {
+                ps.getProducer().send(jmsMessage);
+                future.complete(null);
+            }
+        } catch (JMSException x) {
+            // closes the session if it is broken
+            pool.evict(ps, x);
+            ps = null;
+            throw x;
+        } finally {
+            if (ps != null) {
+                pool.release(ps);
+            }
+        }
+    }
+
+    /**
+     * Starts an async send. Returns false if the provider turns out not to
+     * support async sends; async mode is then switched off.
+     */
+    private boolean sendAsync(MessageProducer producer, Message message,
+            JMSAsyncSender.SendFuture future) throws JMSException {
+        if (asyncSendUnsupported) {
+            return false;
+        }
+        try {
+            JMSAsyncSender.send(producer, message, future);
+            return true;
+        } catch (UnsupportedOperationException x) {
+            asyncSendUnsupported = true;
+            if (Debug.SR.isEnabled()) {
+                Debug.SR.printException(x, "JMSEndpoint: async send not supported; using sync sends for " + this);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Delivers a batch of messages in one JMS transaction, so the broker
+     * sees one commit instead of one persistent send per message. Either
+     * the whole batch is delivered or none of it is.
+     *
+     * Batches come from a retry store (retry files, the journal or the
+     * async queue), which deletes the messages once this returns; like
+     * deliverMessage, this never sends async.
+     */
+    public void deliverBatch(List<String> contents)
+    {
+        if (contents.size() <= 1) {
+            super.deliverBatch(contents);
+            return;
+        }
+        try {
+            deliverBatchJMS(contents);
+        }
+        catch (JMSException x) {
+            // rolled back; caller will schedule retry of the whole batch
+            throw new BatchDeliveryException(0, x);
+        }
+    }
+
+    /**
+     * Sends the messages on a transacted session and commits once. On
+     * failure the transaction is rolled back. This can be called by
+     * multiple threads.
+     */
+    public void deliverBatchJMS(List<String> contents) throws JMSException {
+        JMSSessionPool pool = getJmsBatchSessionPool();
+        JMSSessionPool.PooledSession ps = borrowSession(pool);
+
+        try {
+            Session session = ps.getSession();
+            for (String content : contents) {
+                Message jmsMessage = jmsMessageFactory.getMessage(session, content);
+                ps.getProducer().send(jmsMessage);
+            }
+            session.commit();
+        } catch (JMSException x) {
+            try {
+                ps.getSession().rollback();
+            } catch (JMSException rx) {
+                // session is broken; evict closes it
+                ;
+            }
+            // closes the session if it is broken
+            pool.evict(ps, x);
+            ps = null;
+            throw x;
+        } finally {
+            if (ps != null) {
+                pool.release(ps);
+            }
+        }
+    }
+    
+}
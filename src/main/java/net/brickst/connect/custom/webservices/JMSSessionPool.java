@@ -0,0 +1,238 @@
+/*
+ * JMS Session Pool -- reusable Session / MessageProducer pairs
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Bounded pool of idle Session / MessageProducer pairs bound to one
+ * destination.
+ *
+ * Sessions are single-threaded, so a pooled session is owned by exactly
+ * one thread between borrow() and release()/evict(). The pool only holds
+ * idle sessions; if it is empty a new session is created, and if it is
+ * full a released session is closed.
+ */
+public class JMSSessionPool
+{
+    /**
+     * A session and the producer created on it.
+     */
+    public static class PooledSession
+    {
+        private final Connection connection;
+        private final Session session;
+        private final MessageProducer producer;
+
+        PooledSession(Connection connection, Session session, MessageProducer producer)
+        {
+            this.connection = connection;
+            this.session = session;
+            this.producer = producer;
+        }
+
+        public Connection getConnection() { return connection; }
+        public Session getSession() { return session; }
+        public MessageProducer getProducer() { return producer; }
+
+        void close()
+        {
+            try {
+                session.close();
+            } catch (Exception x) {
+                // session may already be broken; nothing else to do
+                ;
+            }
+        }
+    }
+
+    private final int maxIdle;
+    private final boolean transacted;
+    private final ArrayBlockingQueue<PooledSession> idle;
+
+    // producer settings
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private int priority = Message.DEFAULT_PRIORITY;
+    private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+    private boolean disableMessageID;
+    private boolean disableMessageTimestamp;
+
+    // statistics
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger evicted = new AtomicInteger();
+
+    /**
+     * @param maxIdle maximum number of idle sessions kept; 0 disables pooling
+     */
+    public JMSSessionPool(int maxIdle)
+    {
+        this(maxIdle, false);
+    }
+
+    /**
+     * @param maxIdle maximum number of idle sessions kept; 0 disables pooling
+     * @param transacted create transacted sessions; sends on them must be
+     *   committed
+     */
+    public JMSSessionPool(int maxIdle, boolean transacted)
+    {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Invalid session pool size: " + maxIdle);
+        }
+        this.maxIdle = maxIdle;
+        this.transacted = transacted;
+        this.idle = (maxIdle > 0) ? new ArrayBlockingQueue<PooledSession>(maxIdle) : null;
+    }
+
+    public int getMaxIdle() { return maxIdle; }
+    public boolean isTransacted() { return transacted; }
+
+    //
+    // Producer settings; they apply to producers created afterwards, so
+    // set them before the first borrow()
+    //
+
+    public int getDeliveryMode() { return deliveryMode; }
+    public void setDeliveryMode(int val) { deliveryMode = val; }
+
+    public int getPriority() { return priority; }
+    public void setPriority(int val) { priority = val; }
+
+    public long getTimeToLive() { return timeToLive; }
+    public void setTimeToLive(long val) { timeToLive = val; }
+
+    public boolean isDisableMessageID() { return disableMessageID; }
+    public void setDisableMessageID(boolean val) { disableMessageID = val; }
+
+    public boolean isDisableMessageTimestamp() { return disableMessageTimestamp; }
+    public void setDisableMessageTimestamp(boolean val) { disableMessageTimestamp = val; }
+    public int getIdleCount() { return (idle == null) ? 0 : idle.size(); }
+    public int getCreatedCount() { return created.get(); }
+    public int getEvictedCount() { return evicted.get(); }
+
+    /**
+     * Returns an idle session for the connection, or creates a new one.
+     * Idle sessions that belong to a different connection are discarded.
+     */
+    public PooledSession borrow(Connection connection, Destination destination)
+            throws JMSException
+    {
+        if (idle != null) {
+            PooledSession ps;
+            while ((ps = idle.poll()) != null) {
+                if (ps.getConnection() == connection) {
+                    return ps;
+                }
+                // left over from an old connection
+                ps.close();
+            }
+        }
+
+        // NOTE: Session.CLIENT_ACKNOWLEDGE only matters for consumers; we
+        // only send on these sessions.
+        Session session = transacted
+            ? connection.createSession(true, Session.SESSION_TRANSACTED)
+            : connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+        try {
+            MessageProducer producer = session.createProducer(destination);
+            producer.setDeliveryMode(deliveryMode);
+            producer.setPriority(priority);
+            producer.setTimeToLive(timeToLive);
+            if (disableMessageID) {
+                producer.setDisableMessageID(true);
+            }
+            if (disableMessageTimestamp) {
+                producer.setDisableMessageTimestamp(true);
+            }
+            created.incrementAndGet();
+            return new PooledSession(connection, session, producer);
+        } catch (JMSException x) {
+            try {
+                session.close();
+            } catch (Exception cx) {
+                ;
+            }
+            throw x;
+        }
+    }
+
+    /**
+     * Returns a healthy session to the pool after use.
+     */
+    public void release(PooledSession ps)
+    {
+        if (ps == null) {
+            return;
+        }
+        if (idle == null || !idle.offer(ps)) {
+            ps.close();
+        }
+    }
+
+    /**
+     * Handles a session after a failed send. Message-level errors return the
+     * session to the pool. Anything else closes it, along with the idle
+     * sessions, since they all share the same connection.
+     */
+    public void evict(PooledSession ps, JMSException cause)
+    {
+        if (!isBrokenSession(cause)) {
+            release(ps);
+            return;
+        }
+        if (ps != null) {
+            ps.close();
+            evicted.incrementAndGet();
+        }
+        clear();
+    }
+
+    /**
+     * Closes all idle sessions.
+     */
+    public void clear()
+    {
+        if (idle == null) {
+            return;
+        }
+        PooledSession ps;
+        while ((ps = idle.poll()) != null) {
+            ps.close();
+            evicted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Message-level errors leave the session usable; anything else is
+     * treated as a broken session or connection.
+     */
+    public static boolean isBrokenSession(JMSException x)
+    {
+        if (x == null) {
+            return false;
+        }
+        if (x instanceof MessageFormatException
+                || x instanceof MessageNotWriteableException) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -1,33 +1,660 @@
 package net.brickst.connect.custom.webservices;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+import com.kana.connect.common.lib.Debug;
 
 public class RESTEndpoint extends WebEndpoint
 {
+    // REST endpoint info
+    private URL restUrl;
+    private String restMethod = "POST";
+    private Template restContentType = new Template(DEFAULT_CONTENT_TYPE);
+    private Map<String, Template> restHeaders = new LinkedHashMap<String, Template>();
+    private int restConnectTimeoutMS = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int restReadTimeoutMS = DEFAULT_READ_TIMEOUT_MS;
+    private boolean restGzip;
+    private int restMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private Set<Integer> restRetryStatus = parseStatusList(DEFAULT_RETRY_STATUS);
+    private boolean restHttp2;
+    private int restHttp2Connections = 1;
+    private boolean restAsyncSend;
+
+    public static final String DEFAULT_CONTENT_TYPE = "text/xml; charset=UTF-8";
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    public static final String DEFAULT_RETRY_STATUS = "408,429,500,502,503,504";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //
+    // Design Note
+    //
+    // HttpURLConnection keeps idle connections in the JVM-wide keep-alive
+    // cache and reuses them for the next request to the same host, but
+    // only if the response body was read to the end and the stream was
+    // closed. deliverMessage always drains the response for that reason.
+    //
+    // The cache keeps at most http.maxConnections (JVM option, default 5)
+    // idle connections per host. A semaphore limits the requests in flight
+    // to restMaxConnections so a burst doesn't open connections that the
+    // cache would then throw away; set http.maxConnections to at least
+    // restMaxConnections.
+    //
+    // https://docs.oracle.com/javase/7/docs/technotes/guides/net/http-keepalive.html
+    //
+
+    // In HTTP/2 mode (restHttpVersion=HTTP_2) requests go through
+    // Http2Transport instead: concurrent requests are streams on one shared
+    // connection per client, so there is no per-request connection and no
+    // semaphore.
+    //
+
+    // REST connection state
+    private Semaphore restPermits = new Semaphore(DEFAULT_MAX_CONNECTIONS);
+    private volatile Http2Transport http2Transport;
+
     public RESTEndpoint()
     {
         endpointType = EndpointType.REST;
     }
 
+    // REST URL
+    public URL getRestUrl() { return restUrl; }
+    public void setRestUrl(URL value) { restUrl = value; }
+
+    // HTTP method; POST or PUT
+    public String getRestMethod() { return restMethod; }
+    public void setRestMethod(String value)
+    {
+        String method = value.trim().toUpperCase();
+        if (!"POST".equals(method) && !"PUT".equals(method)) {
+            throw new IllegalArgumentException("REST method must be POST or PUT: " + value);
+        }
+        restMethod = method;
+    }
+
+    // Content-Type template
+    public String getRestContentType() { return restContentType.toString(); }
+    public void setRestContentType(String value) { restContentType = new Template(value); }
+
+    // extra request headers; values are templates
+    public Map<String, String> getRestHeaders()
+    {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Template> e : restHeaders.entrySet()) {
+            result.put(e.getKey(), e.getValue().toString());
+        }
+        return result;
+    }
+
+    public void setRestHeader(String name, String value)
+    {
+        restHeaders.put(name, new Template(value));
+    }
+
+    // timeouts
+    public int getRestConnectTimeoutMS() { return restConnectTimeoutMS; }
+    public void setRestConnectTimeoutMS(int value) { restConnectTimeoutMS = value; }
+
+    public int getRestReadTimeoutMS() { return restReadTimeoutMS; }
+    public void setRestReadTimeoutMS(int value) { restReadTimeoutMS = value; }
+
+    // gzip request bodies
+    public boolean isRestGzip() { return restGzip; }
+    public void setRestGzip(boolean value) { restGzip = value; }
+
+    // max requests in flight
+    public int getRestMaxConnections() { return restMaxConnections; }
+    public void setRestMaxConnections(int value)
+    {
+        if (value <= 0) {
+            throw new IllegalArgumentException("restMaxConnections must be > 0");
+        }
+        restMaxConnections = value;
+        restPermits = new Semaphore(value);
+    }
+
+    // HTTP/2 mode
+    public boolean isRestHttp2() { return restHttp2; }
+    public void setRestHttp2(boolean value) { restHttp2 = value; }
+
+    // HTTP/2 connections (clients) per endpoint
+    public int getRestHttp2Connections() { return restHttp2Connections; }
+    public void setRestHttp2Connections(int value)
+    {
+        if (value <= 0) {
+            throw new IllegalArgumentException("restHttp2Connections must be > 0");
+        }
+        restHttp2Connections = value;
+    }
+
+    // HTTP/2 only: handle() doesn't wait for the response
+    public boolean isRestAsyncSend() { return restAsyncSend; }
+    public void setRestAsyncSend(boolean value) { restAsyncSend = value; }
+
+    // status codes that schedule a retry
+    public Set<Integer> getRestRetryStatus() { return restRetryStatus; }
+    public void setRestRetryStatus(Set<Integer> value) { restRetryStatus = value; }
+
+    /**
+     * Initialize REST config info from Properties Object. The prefix
+     * argument will be prepended to all property names, e.g.
+     * endpoint_0.restUrl=... (required)
+     * endpoint_0.restMethod=POST|PUT
+     * endpoint_0.restContentType=...
+     * endpoint_0.restHeader.NAME=...
+     * endpoint_0.restConnectTimeoutMS=... endpoint_0.restReadTimeoutMS=...
+     * endpoint_0.restGzip=true|false
+     * endpoint_0.restMaxConnections=...
+     * endpoint_0.restRetryStatus=408,429,500,...
+     * endpoint_0.restHttpVersion=HTTP_1_1|HTTP_2
+     * endpoint_0.restHttp2Connections=...
+     * endpoint_0.restAsyncSend=true|false
+     */
     @Override
     public void initFromProperties(Properties props, String prefix)
     {
-        // TODO Auto-generated method stub
+        String propName = null;
+        String propVal = null;
+
+        endpointType = EndpointType.REST;
+
+        if (prefix == null) {
+            prefix = "";
+        }
+
+        // url
+        propName = prefix + "restUrl";
+        propVal = props.getProperty(propName);
+        if (propVal == null) {
+            throw new IllegalArgumentException("Invalid Property: " + propName);
+        }
+        try {
+            URL url = new URL(propVal.trim());
+            if (!url.getProtocol().startsWith("http")) {
+                throw new MalformedURLException("not an http url");
+            }
+            setRestUrl(url);
+        } catch (MalformedURLException x) {
+            throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal, x);
+        }
+
+        // method
+        propVal = props.getProperty(prefix + "restMethod");
+        if (propVal != null) {
+            setRestMethod(propVal);
+        }
+
+        // content type
+        propVal = props.getProperty(prefix + "restContentType");
+        if (propVal != null) {
+            setRestContentType(propVal);
+        }
+
+        // headers
+        String headerPrefix = prefix + "restHeader.";
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith(headerPrefix) && name.length() > headerPrefix.length()) {
+                setRestHeader(name.substring(headerPrefix.length()), props.getProperty(name));
+            }
+        }
+
+        // timeouts and connections
+        setRestConnectTimeoutMS(getIntProperty(props, prefix + "restConnectTimeoutMS",
+                DEFAULT_CONNECT_TIMEOUT_MS));
+        setRestReadTimeoutMS(getIntProperty(props, prefix + "restReadTimeoutMS",
+                DEFAULT_READ_TIMEOUT_MS));
+        setRestMaxConnections(getIntProperty(props, prefix + "restMaxConnections",
+                DEFAULT_MAX_CONNECTIONS));
+
+        // gzip
+        propVal = props.getProperty(prefix + "restGzip");
+        if (propVal != null) {
+            setRestGzip(Boolean.parseBoolean(propVal.trim()));
+        }
 
+        // retryable status codes
+        propName = prefix + "restRetryStatus";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            try {
+                setRestRetryStatus(parseStatusList(propVal));
+            } catch (NumberFormatException x) {
+                throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal, x);
+            }
+        }
+
+        // http version
+        propName = prefix + "restHttpVersion";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            propVal = propVal.trim();
+            if ("HTTP_2".equalsIgnoreCase(propVal)) {
+                setRestHttp2(true);
+            } else if ("HTTP_1_1".equalsIgnoreCase(propVal)) {
+                setRestHttp2(false);
+            } else {
+                throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal);
+            }
+        }
+        propName = prefix + "restHttp2Connections";
+        if (props.getProperty(propName) != null) {
+            setRestHttp2Connections(getIntProperty(props, propName, 1));
+        }
+
+        // async sends
+        propName = prefix + "restAsyncSend";
+        propVal = props.getProperty(propName);
+        if (propVal != null) {
+            setRestAsyncSend(Boolean.parseBoolean(propVal.trim()));
+            if (restAsyncSend && !restHttp2) {
+                throw new IllegalArgumentException("Invalid Property: " + propName
+                        + " needs restHttpVersion=HTTP_2");
+            }
+        }
+    }
+
+    private static int getIntProperty(Properties props, String propName, int defaultVal)
+    {
+        String propVal = props.getProperty(propName);
+        if (propVal == null) {
+            return defaultVal;
+        }
+        try {
+            int ival = Integer.parseInt(propVal.trim());
+            if (ival < 0) {
+                throw new IllegalArgumentException(propName + " must be >= 0");
+            }
+            return ival;
+        } catch (Exception x) {
+            throw new IllegalArgumentException("Invalid Property: " + propName + "=" + propVal, x);
+        }
+    }
+
+    static Set<Integer> parseStatusList(String value)
+    {
+        Set<Integer> result = new HashSet<Integer>();
+        for (String s : value.split(",")) {
+            s = s.trim();
+            if (s.length() > 0) {
+                result.add(Integer.valueOf(s));
+            }
+        }
+        return result;
     }
 
+    /**
+     * Init method called before the endpoint is used
+     */
+    @Override
+    public void initNetworkResources()
+    {
+        if (restUrl == null) {
+            throw new IllegalStateException("REST endpoint has no URL");
+        }
+        if (restHttp2 && http2Transport == null) {
+            http2Transport = new Http2Transport(restHttp2Connections,
+                    restConnectTimeoutMS, restReadTimeoutMS);
+        }
+    }
+
+    /**
+     * Closes the HTTP/2 clients. Messages still sent through this endpoint
+     * fail and are saved for retry.
+     */
+    @Override
+    public void shutdown()
+    {
+        super.shutdown();
+        Http2Transport transport = http2Transport;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Delivers Message to Endpoint. Can be called by different threads.
+     * Throws if the message should be retried: I/O errors and retryable
+     * status codes. Other error statuses are logged and the message is
+     * dropped, since sending it again would fail the same way.
+     */
     @Override
     public void deliverMessage(String content)
     {
-        // TODO Auto-generated method stub
+        int status;
+        try {
+            status = deliverMessageHTTP(content);
+        } catch (IOException x) {
+            // throw exception; caller will schedule retry
+            throw new RuntimeException(x);
+        }
+        checkStatus(status);
+    }
 
+    /**
+     * True with restAsyncSend once the HTTP/2 transport is up.
+     */
+    @Override
+    public boolean isAsyncSend()
+    {
+        return restAsyncSend && http2Transport != null;
     }
 
+    /**
+     * Starts delivering a message and returns without waiting for the
+     * response (HTTP/2 mode only; otherwise the message is delivered before
+     * this returns). Future.get() throws an ExecutionException if the
+     * message should be retried, just as deliverMessage would throw, and
+     * the listener gets the same exception.
+     */
     @Override
-    public void initNetworkResources()
+    public Future<Void> deliverMessageAsync(String content, final DeliveryListener listener)
+    {
+        Http2Transport transport = http2Transport;
+        if (transport == null) {
+            return super.deliverMessageAsync(content, listener);
+        }
+        Http2Transport.Callback callback = null;
+        if (listener != null) {
+            callback = new Http2Transport.Callback() {
+                public void done(Future<Integer> status) {
+                    listener.deliveryDone(new DeliveryFuture(status).failure());
+                }
+            };
+        }
+        try {
+            byte[] body = content.getBytes(UTF8);
+            Map<String, String> headers = requestHeaders(templateVariables(body.length));
+            if (restGzip) {
+                body = gzip(body);
+            }
+            return new DeliveryFuture(transport.sendAsync(restUrl.toURI(), restMethod, headers,
+                    body, callback));
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        } catch (URISyntaxException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /**
+     * Throws if the status means the message should be retried.
+     */
+    private void checkStatus(int status)
+    {
+        if (status >= 200 && status < 300) {
+            return;
+        }
+        if (restRetryStatus.contains(status)) {
+            throw new RuntimeException("HTTP " + status + " from " + restUrl);
+        }
+        if (Debug.SR.isEnabled()) {
+            Debug.SR.println("RESTEndpoint: HTTP " + status + " from " + restUrl
+                    + "; message dropped");
+        }
+    }
+
+    /**
+     * Sends a message and returns the HTTP status. The response body is
+     * read and discarded so the connection can be reused.
+     */
+    public int deliverMessageHTTP(String content) throws IOException
+    {
+        byte[] body = content.getBytes(UTF8);
+        Map<String, String> vars = templateVariables(body.length);
+        if (restGzip) {
+            body = gzip(body);
+        }
+
+        Http2Transport transport = http2Transport;
+        if (transport != null) {
+            try {
+                return transport.send(restUrl.toURI(), restMethod, requestHeaders(vars), body);
+            } catch (URISyntaxException x) {
+                throw new IOException(x);
+            }
+        }
+
+        Semaphore permits = restPermits;
+        try {
+            permits.acquire();
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for a connection");
+        }
+        try {
+            HttpURLConnection conn = (HttpURLConnection) restUrl.openConnection();
+            conn.setRequestMethod(restMethod);
+            conn.setConnectTimeout(restConnectTimeoutMS);
+            conn.setReadTimeout(restReadTimeoutMS);
+            conn.setUseCaches(false);
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            for (Map.Entry<String, String> e : requestHeaders(vars).entrySet()) {
+                conn.setRequestProperty(e.getKey(), e.getValue());
+            }
+
+            OutputStream os = conn.getOutputStream();
+            try {
+                os.write(body);
+            } finally {
+                os.close();
+            }
+
+            int status = conn.getResponseCode();
+            InputStream is = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            drain(is);
+            return status;
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Map<String, String> requestHeaders(Map<String, String> vars)
+    {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", restContentType.expand(vars));
+        if (restGzip) {
+            headers.put("Content-Encoding", "gzip");
+        }
+        for (Map.Entry<String, Template> e : restHeaders.entrySet()) {
+            headers.put(e.getKey(), e.getValue().expand(vars));
+        }
+        return headers;
+    }
+
+    // maps an HTTP status future to deliverMessage's outcome
+    private class DeliveryFuture implements Future<Void>
     {
-        // TODO Auto-generated method stub
-        
+        private final Future<Integer> status;
+
+        DeliveryFuture(Future<Integer> status)
+        {
+            this.status = status;
+        }
+
+        public boolean cancel(boolean interrupt) { return status.cancel(interrupt); }
+        public boolean isCancelled() { return status.isCancelled(); }
+        public boolean isDone() { return status.isDone(); }
+
+        public Void get() throws InterruptedException, ExecutionException
+        {
+            return check(status.get());
+        }
+
+        public Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            return check(status.get(timeout, unit));
+        }
+
+        // the exception get() would throw once done; null if delivered
+        Exception failure()
+        {
+            try {
+                get();
+                return null;
+            } catch (ExecutionException x) {
+                Throwable cause = x.getCause();
+                return (cause instanceof Exception) ? (Exception) cause : x;
+            } catch (Exception x) {
+                return x;
+            }
+        }
+
+        private Void check(Integer code) throws ExecutionException
+        {
+            try {
+                checkStatus(code.intValue());
+            } catch (RuntimeException x) {
+                throw new ExecutionException(x);
+            }
+            return null;
+        }
     }
 
+    private static byte[] gzip(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 64);
+        GZIPOutputStream gz = new GZIPOutputStream(baos);
+        try {
+            gz.write(data);
+        } finally {
+            gz.close();
+        }
+        return baos.toByteArray();
+    }
+
+    // read to the end and close so the connection goes back to the cache
+    private static void drain(InputStream is) throws IOException
+    {
+        if (is == null) {
+            return;
+        }
+        try {
+            byte[] buf = new byte[512];
+            while (is.read(buf) != -1) {
+                // discard
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    //
+    // TEMPLATES
+    //
+
+    /**
+     * Per-message variables for header and content type templates.
+     */
+    private Map<String, String> templateVariables(int contentLength)
+    {
+        Map<String, String> vars = new LinkedHashMap<String, String>();
+        vars.put("requestId", UUID.randomUUID().toString());
+        vars.put("timestamp", Long.toString(System.currentTimeMillis()));
+        vars.put("contentLength", Integer.toString(contentLength));
+        return vars;
+    }
+
+    /**
+     * A header value with ${name} placeholders. Per-message names are
+     * requestId, timestamp (millis) and contentLength (bytes before gzip).
+     * ${sys:name} and ${env:name} are replaced once, when the template is
+     * parsed, with a system property or environment variable.
+     */
+    static class Template
+    {
+        private static final Set<String> VARIABLES = new HashSet<String>();
+        static {
+            VARIABLES.add("requestId");
+            VARIABLES.add("timestamp");
+            VARIABLES.add("contentLength");
+        }
+
+        private final String source;
+        // literal text and variable names, alternating; starts with text
+        private final List<String> parts = new ArrayList<String>();
+
+        Template(String source)
+        {
+            this.source = source;
+            StringBuilder text = new StringBuilder();
+            int i = 0;
+            while (i < source.length()) {
+                int start = source.indexOf("${", i);
+                if (start < 0) {
+                    text.append(source, i, source.length());
+                    break;
+                }
+                int end = source.indexOf('}', start);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed ${ in template: " + source);
+                }
+                text.append(source, i, start);
+                String name = source.substring(start + 2, end);
+                if (name.startsWith("sys:")) {
+                    text.append(System.getProperty(name.substring(4), ""));
+                } else if (name.startsWith("env:")) {
+                    String env = System.getenv(name.substring(4));
+                    text.append(env == null ? "" : env);
+                } else if (VARIABLES.contains(name)) {
+                    parts.add(text.toString());
+                    parts.add(name);
+                    text.setLength(0);
+                } else {
+                    throw new IllegalArgumentException("Unknown variable ${" + name
+                            + "} in template: " + source);
+                }
+                i = end + 1;
+            }
+            parts.add(text.toString());
+        }
+
+        String expand(Map<String, String> vars)
+        {
+            if (parts.size() == 1) {
+                return parts.get(0);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < parts.size(); i++) {
+                sb.append((i % 2) == 0 ? parts.get(i) : vars.get(parts.get(i)));
+            }
+            return sb.toString();
+        }
+
+        public String toString()
+        {
+            return source;
+        }
+    }
+
+    public String toString()
+    {
+        return "RESTEndpoint[" + restMethod + " " + restUrl + "]";
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * Retry Backlog -- in-memory index of the msg files waiting for retry
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the names and sizes of the msg files in an endpoint's retry dir,
+ * so that the backlog gauges do not have to list the directory. The index
+ * is built from the directory once (rebuild) and then kept up to date by
+ * the endpoint as it writes and delivers retry files.
+ *
+ * Retry file names sort by creation time (see
+ * WebEndpoint.nextRetryFileName), so the first entry is the oldest one and
+ * its age comes from its name.
+ *
+ * Also measures how fast the retry store drains, as a one-minute
+ * exponentially weighted rate like the Unix load average.
+ */
+public class RetryBacklog
+{
+    // rate is updated every TICK_MS; weight of one tick for a one-minute average
+    static final long TICK_MS = 5000;
+    private static final double ALPHA = 1 - Math.exp(-TICK_MS / 60000.0);
+
+    // file name -> size in bytes
+    private final ConcurrentSkipListMap<String, Long> files = new ConcurrentSkipListMap<String, Long>();
+    private final AtomicLong fileCount = new AtomicLong();
+    private final AtomicLong fileBytes = new AtomicLong();
+
+    private final AtomicLong drained = new AtomicLong();
+    private final AtomicLong uncounted = new AtomicLong();
+    private final AtomicLong lastTick = new AtomicLong(System.currentTimeMillis());
+    private volatile double rate;
+    private volatile boolean rateInitialized;
+
+    /**
+     * Adds a retry file. Adding a file that is already indexed does nothing.
+     */
+    public void add(String name, long bytes)
+    {
+        if (files.putIfAbsent(name, Long.valueOf(bytes)) == null) {
+            fileCount.incrementAndGet();
+            fileBytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Removes a retry file; unknown names are ignored.
+     */
+    public void remove(String name)
+    {
+        Long bytes = files.remove(name);
+        if (bytes != null) {
+            fileCount.decrementAndGet();
+            fileBytes.addAndGet(-bytes.longValue());
+        }
+    }
+
+    /**
+     * Brings the index in line with the retry dir: adds files that are
+     * missing and drops entries whose file is gone. Files written while
+     * the directory is listed are kept.
+     */
+    public void rebuild(File dir) throws IOException
+    {
+        // every file written from now on sorts after this name
+        String started = WebEndpoint.nextRetryFileName();
+        Set<String> found = new HashSet<String>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath(),
+                WebEndpoint.RETRY_FILE_PREFIX + "*" + WebEndpoint.RETRY_FILE_SUFFIX);
+        try {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    long size = Files.size(path);
+                    found.add(name);
+                    add(name, size);
+                } catch (NoSuchFileException x) {
+                    // delivered while listing
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        Iterator<Map.Entry<String, Long>> it = files.headMap(started).entrySet().iterator();
+        while (it.hasNext()) {
+            String name = it.next().getKey();
+            if (!found.contains(name)) {
+                remove(name);
+            }
+        }
+    }
+
+    public long getFileCount()
+    {
+        return fileCount.get();
+    }
+
+    public long getFileBytes()
+    {
+        return fileBytes.get();
+    }
+
+    /**
+     * Creation time (ms since the epoch) of the oldest indexed file, or 0
+     * if there is none.
+     */
+    public long getOldestFileTime()
+    {
+        Map.Entry<String, Long> first = files.firstEntry();
+        return (first != null) ? parseRetryFileTime(first.getKey()) : 0;
+    }
+
+    // msg<13 digit ms>-<seq>-<node>.txt; 0 if the name has another form
+    static long parseRetryFileTime(String name)
+    {
+        int start = WebEndpoint.RETRY_FILE_PREFIX.length();
+        if (!name.startsWith(WebEndpoint.RETRY_FILE_PREFIX) || name.length() < start + 13) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(start, start + 13));
+        } catch (NumberFormatException x) {
+            return 0;
+        }
+    }
+
+    //
+    // DRAIN RATE
+    //
+
+    /**
+     * Counts messages delivered from the retry store.
+     */
+    public void recordDrained(int count)
+    {
+        if (count <= 0) {
+            return;
+        }
+        tickIfNeeded();
+        drained.addAndGet(count);
+        uncounted.addAndGet(count);
+    }
+
+    public long getDrainedCount()
+    {
+        return drained.get();
+    }
+
+    /**
+     * Messages delivered from the retry store per second, averaged over
+     * about a minute.
+     */
+    public double getDrainRate()
+    {
+        tickIfNeeded();
+        return rate;
+    }
+
+    private void tickIfNeeded()
+    {
+        long last = lastTick.get();
+        long age = System.currentTimeMillis() - last;
+        if (age < TICK_MS) {
+            return;
+        }
+        // one thread does the ticks that are due
+        long ticks = age / TICK_MS;
+        if (lastTick.compareAndSet(last, last + ticks * TICK_MS)) {
+            tick(ticks);
+        }
+    }
+
+    // folds the messages since the last tick into the average; the
+    // ticks after the first had no messages
+    void tick(long ticks)
+    {
+        double perSecond = uncounted.getAndSet(0) * 1000.0 / TICK_MS;
+        if (rateInitialized) {
+            rate += ALPHA * (perSecond - rate);
+        }
+        else {
+            rate = perSecond;
+            rateInitialized = true;
+        }
+        if (ticks > 1) {
+            rate *= Math.pow(1 - ALPHA, ticks - 1);
+        }
+    }
+}
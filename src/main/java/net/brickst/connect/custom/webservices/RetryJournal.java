@@ -0,0 +1,689 @@
+/*
+ * Retry Journal -- segmented append-only store for undelivered messages
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import com.kana.connect.common.lib.Debug;
+
+/**
+ * Append-only journal of messages waiting for retry.
+ *
+ * The journal is a directory of segment files. Each record is
+ * <pre>
+ *   int length | int crc32(payload) | payload (UTF-8)
+ * </pre>
+ * The consumer position (segment + offset of the next unacknowledged record)
+ * is stored in a checkpoint file that is replaced atomically. Segments that
+ * lie entirely before the checkpoint are deleted.
+ *
+ * Crash safety: a torn record at the end of the last segment is truncated
+ * on open; it was never acknowledged to the writer. Records delivered after
+ * the last checkpoint are delivered again after a crash (at-least-once).
+ *
+ * Appends may come from any thread; reading is meant for a single consumer
+ * (the endpoint retry task).
+ *
+ * The journal counts its unacknowledged records and bytes in memory for
+ * the backlog gauges; open() counts the records left from the last run.
+ * The age of the oldest record is tracked per segment: the time of the
+ * first append to the segment, or the segment file's modification time
+ * for segments written before open().
+ */
+public class RetryJournal
+{
+    public static final String SEGMENT_PREFIX = "segment";
+    public static final String SEGMENT_SUFFIX = ".log";
+    public static final String CHECKPOINT_FILE = "checkpoint";
+
+    public static final long DEFAULT_SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    // number of acknowledged records between checkpoint writes
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A record read from the journal.
+     */
+    public static class Record
+    {
+        private final String content;
+        private final long segment;
+        private final long nextOffset;
+        // position in the journal, counted in records
+        private final long sequence;
+
+        Record(String content, long segment, long nextOffset, long sequence)
+        {
+            this.content = content;
+            this.segment = segment;
+            this.nextOffset = nextOffset;
+            this.sequence = sequence;
+        }
+
+        public String getContent() { return content; }
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    private final boolean syncOnAppend;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    // existing segment numbers
+    private final TreeSet<Long> segments = new TreeSet<Long>();
+
+    // writer state (guarded by this)
+    private long writeSegment;
+    private long writeOffset;
+    private FileChannel writeChannel;
+
+    // consumer state (guarded by this)
+    private long ackSegment;
+    private long ackOffset;
+    private int acksSinceCheckpoint;
+
+    // gauges (guarded by this): records appended and acknowledged since
+    // open(), end offset of each finished segment and time of each
+    // segment's first record
+    private long appendedRecords;
+    private long acknowledgedRecords;
+    private final HashMap<Long, Long> segmentEnds = new HashMap<Long, Long>();
+    private final HashMap<Long, Long> segmentTimes = new HashMap<Long, Long>();
+
+    // consumer read handle; only used by the consumer thread
+    private RandomAccessFile readFile;
+    private long readFileSegment = -1;
+
+    public RetryJournal(File dir, long segmentBytes, boolean syncOnAppend)
+    {
+        if (segmentBytes <= HEADER_BYTES) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentBytes);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.syncOnAppend = syncOnAppend;
+    }
+
+    public File getDir() { return dir; }
+    public long getSegmentBytes() { return segmentBytes; }
+
+    public int getCheckpointInterval() { return checkpointInterval; }
+    public void setCheckpointInterval(int val) { checkpointInterval = Math.max(1, val); }
+
+    public synchronized int getSegmentCount() { return segments.size(); }
+
+    public synchronized boolean isEmpty()
+    {
+        return ackSegment == writeSegment && ackOffset >= writeOffset;
+    }
+
+    /**
+     * Number of records that are not acknowledged yet.
+     */
+    public synchronized long getPendingCount()
+    {
+        return Math.max(appendedRecords - acknowledgedRecords, 0);
+    }
+
+    /**
+     * Bytes on disk (including record headers) of the records that are
+     * not acknowledged yet.
+     */
+    public synchronized long getPendingBytes()
+    {
+        if (ackSegment == writeSegment) {
+            return Math.max(writeOffset - ackOffset, 0);
+        }
+        long bytes = Math.max(segmentEnd(ackSegment) - ackOffset, 0);
+        for (Long seg : segments.subSet(Long.valueOf(ackSegment), false,
+                Long.valueOf(writeSegment), false)) {
+            bytes += segmentEnd(seg.longValue());
+        }
+        return bytes + writeOffset;
+    }
+
+    /**
+     * Time (ms since the epoch) the oldest unacknowledged record was
+     * appended, to within one segment; 0 if the journal is empty.
+     */
+    public synchronized long getOldestPendingTime()
+    {
+        for (Long seg : segments.tailSet(Long.valueOf(ackSegment))) {
+            long end = (seg.longValue() == writeSegment) ? writeOffset : segmentEnd(seg.longValue());
+            long start = (seg.longValue() == ackSegment) ? ackOffset : 0;
+            if (start < end) {
+                Long time = segmentTimes.get(seg);
+                return (time != null) ? time.longValue() : 0;
+            }
+        }
+        return 0;
+    }
+
+    // end of a finished segment; must hold lock
+    private long segmentEnd(long seg)
+    {
+        Long end = segmentEnds.get(Long.valueOf(seg));
+        return (end != null) ? end.longValue() : segmentFile(seg).length();
+    }
+
+    //
+    // OPEN / CLOSE
+    //
+
+    /**
+     * Opens the journal, recovering the checkpoint and truncating a torn
+     * record at the end of the last segment.
+     */
+    public synchronized void open() throws IOException
+    {
+        WebEndpoint.ensureDirectory(dir);
+
+        segments.clear();
+        segmentEnds.clear();
+        segmentTimes.clear();
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            long seg = parseSegmentName(files[i].getName());
+            if (seg >= 0) {
+                segments.add(Long.valueOf(seg));
+                segmentTimes.put(Long.valueOf(seg), Long.valueOf(files[i].lastModified()));
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(Long.valueOf(0));
+        }
+        writeSegment = segments.last().longValue();
+
+        // truncate anything after the last valid record
+        File last = segmentFile(writeSegment);
+        long validEnd = scanValidEnd(last);
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        if (raf.length() != validEnd) {
+            log("RetryJournal: truncating torn record in " + last + " at " + validEnd);
+            raf.setLength(validEnd);
+        }
+        writeChannel = raf.getChannel();
+        writeChannel.position(validEnd);
+        writeOffset = validEnd;
+
+        // consumer position
+        readCheckpoint();
+        if (!segments.contains(Long.valueOf(ackSegment))) {
+            // checkpoint segment was compacted; start at the first one left
+            Long first = segments.ceiling(Long.valueOf(ackSegment));
+            ackSegment = (first != null) ? first.longValue() : writeSegment;
+            ackOffset = 0;
+        }
+        if (ackSegment == writeSegment && ackOffset > writeOffset) {
+            ackOffset = writeOffset;
+        }
+
+        // count the records left from the last run
+        long pending = 0;
+        for (Long seg : segments) {
+            long s = seg.longValue();
+            long end = writeOffset;
+            if (s != writeSegment) {
+                end = segmentFile(s).length();
+                segmentEnds.put(seg, Long.valueOf(end));
+            }
+            if (s >= ackSegment) {
+                pending += countRecords(s, (s == ackSegment) ? ackOffset : 0, end);
+            }
+        }
+        appendedRecords = pending;
+        acknowledgedRecords = 0;
+    }
+
+    public synchronized void close() throws IOException
+    {
+        try {
+            checkpoint();
+        } finally {
+            closeReadFile();
+            if (writeChannel != null) {
+                writeChannel.close();
+                writeChannel = null;
+            }
+        }
+    }
+
+    //
+    // WRITER
+    //
+
+    /**
+     * Appends a message. Returns once the record is written (and forced to
+     * disk if syncOnAppend is set).
+     */
+    public void append(String content) throws IOException
+    {
+        byte[] payload = content.getBytes(UTF8);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buf.putInt(payload.length);
+        buf.putInt((int) crc.getValue());
+        buf.put(payload);
+        buf.flip();
+
+        synchronized (this) {
+            if (writeChannel == null) {
+                throw new IOException("Journal is not open: " + dir);
+            }
+            if (writeOffset > 0 && writeOffset + buf.remaining() > segmentBytes) {
+                rollSegment();
+            }
+            if (writeOffset == 0) {
+                segmentTimes.put(Long.valueOf(writeSegment), Long.valueOf(System.currentTimeMillis()));
+            }
+            while (buf.hasRemaining()) {
+                writeChannel.write(buf);
+            }
+            if (syncOnAppend) {
+                writeChannel.force(false);
+            }
+            writeOffset = writeChannel.position();
+            appendedRecords++;
+        }
+    }
+
+    /**
+     * Forces appended records to disk.
+     */
+    public synchronized void sync() throws IOException
+    {
+        if (writeChannel != null) {
+            writeChannel.force(false);
+        }
+    }
+
+    // must hold lock
+    private void rollSegment() throws IOException
+    {
+        writeChannel.force(false);
+        writeChannel.close();
+        segmentEnds.put(Long.valueOf(writeSegment), Long.valueOf(writeOffset));
+
+        writeSegment++;
+        File f = segmentFile(writeSegment);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(0);
+        writeChannel = raf.getChannel();
+        writeOffset = 0;
+        segments.add(Long.valueOf(writeSegment));
+    }
+
+    //
+    // CONSUMER
+    //
+
+    /**
+     * Returns the next unacknowledged record, or null if there is none.
+     * Calling it again without acknowledge() returns the same record.
+     */
+    public Record readNext() throws IOException
+    {
+        while (true) {
+            long seg;
+            long off;
+            long endOffset;
+            long sequence;
+            synchronized (this) {
+                seg = ackSegment;
+                off = ackOffset;
+                sequence = acknowledgedRecords;
+                endOffset = (seg == writeSegment) ? writeOffset : Long.MAX_VALUE;
+                if (seg == writeSegment && off >= writeOffset) {
+                    return null;
+                }
+            }
+
+            Record rec = readRecord(seg, off, endOffset, sequence);
+            if (rec != null) {
+                return rec;
+            }
+
+            // end of a finished segment (or a corrupt one); move on
+            synchronized (this) {
+                if (ackSegment != seg || seg == writeSegment) {
+                    return null;
+                }
+                Long next = segments.higher(Long.valueOf(seg));
+                ackSegment = (next != null) ? next.longValue() : writeSegment;
+                ackOffset = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns up to max unacknowledged records in order, starting with the
+     * one readNext() would return. A batch does not cross a segment boundary.
+     * Nothing is acknowledged.
+     */
+    public List<Record> readBatch(int max) throws IOException
+    {
+        List<Record> batch = new ArrayList<Record>();
+        Record rec = readNext();
+        while (rec != null) {
+            batch.add(rec);
+            if (batch.size() >= max) {
+                break;
+            }
+            long endOffset;
+            synchronized (this) {
+                endOffset = (rec.segment == writeSegment) ? writeOffset : Long.MAX_VALUE;
+            }
+            if (rec.nextOffset >= endOffset) {
+                break;
+            }
+            rec = readRecord(rec.segment, rec.nextOffset, endOffset, rec.sequence + 1);
+        }
+        return batch;
+    }
+
+    /**
+     * Marks a record (and everything before it) as delivered. The position
+     * is persisted every checkpointInterval records and by checkpoint().
+     */
+    public void acknowledge(Record rec) throws IOException
+    {
+        boolean doCheckpoint;
+        synchronized (this) {
+            ackSegment = rec.segment;
+            ackOffset = rec.nextOffset;
+            acknowledgedRecords = Math.max(acknowledgedRecords, rec.sequence + 1);
+            acksSinceCheckpoint++;
+            doCheckpoint = acksSinceCheckpoint >= checkpointInterval;
+        }
+        if (doCheckpoint) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Persists the consumer position and deletes segments that are fully
+     * acknowledged. If everything is acknowledged, the writer moves to a
+     * fresh segment so the current one can be deleted too.
+     */
+    public synchronized void checkpoint() throws IOException
+    {
+        if (writeChannel != null && ackSegment == writeSegment
+                && ackOffset >= writeOffset && writeOffset > 0) {
+            rollSegment();
+            ackSegment = writeSegment;
+            ackOffset = 0;
+        }
+
+        writeCheckpoint(ackSegment, ackOffset);
+        acksSinceCheckpoint = 0;
+        if (isEmpty()) {
+            // records skipped in a corrupt segment are never acknowledged
+            acknowledgedRecords = appendedRecords;
+        }
+
+        // compaction: the checkpoint is on disk, so older segments can go
+        while (!segments.isEmpty() && segments.first().longValue() < ackSegment) {
+            long seg = segments.pollFirst().longValue();
+            segmentEnds.remove(Long.valueOf(seg));
+            segmentTimes.remove(Long.valueOf(seg));
+            if (seg == readFileSegment) {
+                closeReadFile();
+            }
+            File f = segmentFile(seg);
+            if (!f.delete() && f.exists()) {
+                log("RetryJournal: unable to delete " + f);
+            }
+        }
+    }
+
+    // reads one record; returns null at end of segment or on corruption
+    private Record readRecord(long seg, long off, long endOffset, long sequence) throws IOException
+    {
+        RandomAccessFile raf = getReadFile(seg);
+        if (raf == null) {
+            return null;
+        }
+        long fileEnd = Math.min(raf.length(), endOffset);
+        if (off + HEADER_BYTES > fileEnd) {
+            return null;
+        }
+        raf.seek(off);
+        int len = raf.readInt();
+        int crcVal = raf.readInt();
+        if (len < 0 || len > MAX_RECORD_BYTES || off + HEADER_BYTES + len > fileEnd) {
+            log("RetryJournal: bad record length in " + segmentFile(seg) + " at " + off);
+            return null;
+        }
+        byte[] payload = new byte[len];
+        raf.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, len);
+        if ((int) crc.getValue() != crcVal) {
+            log("RetryJournal: bad checksum in " + segmentFile(seg) + " at " + off);
+            return null;
+        }
+        return new Record(new String(payload, UTF8), seg, off + HEADER_BYTES + len, sequence);
+    }
+
+    private RandomAccessFile getReadFile(long seg) throws IOException
+    {
+        if (readFile != null && readFileSegment == seg) {
+            return readFile;
+        }
+        closeReadFile();
+        File f = segmentFile(seg);
+        if (!f.exists()) {
+            return null;
+        }
+        readFile = new RandomAccessFile(f, "r");
+        readFileSegment = seg;
+        return readFile;
+    }
+
+    private void closeReadFile()
+    {
+        if (readFile != null) {
+            try {
+                readFile.close();
+            } catch (IOException x) {
+                ;
+            }
+            readFile = null;
+            readFileSegment = -1;
+        }
+    }
+
+    //
+    // CHECKPOINT FILE
+    //
+
+    private void writeCheckpoint(long seg, long off) throws IOException
+    {
+        File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+        File cp = new File(dir, CHECKPOINT_FILE);
+
+        String text = seg + " " + off + "\n";
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(text.getBytes(UTF8));
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(cp)) {
+            // some platforms cannot rename over an existing file;
+            // open() falls back to the .tmp file if we crash in between
+            cp.delete();
+            if (!tmp.renameTo(cp)) {
+                throw new IOException("Unable to write checkpoint " + cp);
+            }
+        }
+    }
+
+    private void readCheckpoint() throws IOException
+    {
+        ackSegment = segments.first().longValue();
+        ackOffset = 0;
+
+        File cp = new File(dir, CHECKPOINT_FILE);
+        if (!cp.exists()) {
+            cp = new File(dir, CHECKPOINT_FILE + ".tmp");
+            if (!cp.exists()) {
+                return;
+            }
+        }
+
+        byte[] data = new byte[(int) Math.min(cp.length(), 256)];
+        FileInputStream fis = new FileInputStream(cp);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int cc = fis.read(data, pos, data.length - pos);
+                if (cc == -1) {
+                    break;
+                }
+                pos += cc;
+            }
+        } finally {
+            fis.close();
+        }
+
+        String[] parts = new String(data, UTF8).trim().split(" ");
+        try {
+            ackSegment = Long.parseLong(parts[0]);
+            ackOffset = Long.parseLong(parts[1]);
+        } catch (Exception x) {
+            // unreadable checkpoint; redeliver from the first segment
+            log("RetryJournal: invalid checkpoint in " + dir);
+            ackSegment = segments.first().longValue();
+            ackOffset = 0;
+        }
+    }
+
+    //
+    // HELPERS
+    //
+
+    /**
+     * Returns the offset just past the last valid record of a segment.
+     */
+    private long scanValidEnd(File f) throws IOException
+    {
+        if (!f.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            long fileLen = raf.length();
+            long off = 0;
+            byte[] payload = new byte[0];
+            CRC32 crc = new CRC32();
+            while (off + HEADER_BYTES <= fileLen) {
+                raf.seek(off);
+                int len = raf.readInt();
+                int crcVal = raf.readInt();
+                if (len < 0 || len > MAX_RECORD_BYTES || off + HEADER_BYTES + len > fileLen) {
+                    break;
+                }
+                if (payload.length < len) {
+                    payload = new byte[len];
+                }
+                raf.readFully(payload, 0, len);
+                crc.reset();
+                crc.update(payload, 0, len);
+                if ((int) crc.getValue() != crcVal) {
+                    break;
+                }
+                off += HEADER_BYTES + len;
+            }
+            return off;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Counts the records of a segment between two offsets, reading only
+     * the record headers. Stops at the first invalid length.
+     */
+    private long countRecords(long seg, long off, long end) throws IOException
+    {
+        File f = segmentFile(seg);
+        if (off >= end || !f.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            long count = 0;
+            while (off + HEADER_BYTES <= end) {
+                raf.seek(off);
+                int len = raf.readInt();
+                if (len < 0 || len > MAX_RECORD_BYTES || off + HEADER_BYTES + len > end) {
+                    break;
+                }
+                off += HEADER_BYTES + len;
+                count++;
+            }
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    File segmentFile(long seg)
+    {
+        // zero padded so that segments sort by name
+        String num = Long.toString(seg);
+        StringBuilder buf = new StringBuilder(SEGMENT_PREFIX);
+        for (int i = num.length(); i < 16; i++) {
+            buf.append('0');
+        }
+        buf.append(num).append(SEGMENT_SUFFIX);
+        return new File(dir, buf.toString());
+    }
+
+    static long parseSegmentName(String name)
+    {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException x) {
+            return -1;
+        }
+    }
+
+    private static void log(String msg)
+    {
+        if (Debug.SR.isEnabled()) {
+            Debug.SR.println(msg);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Retry Scheduler -- thread pool that drives endpoint retries
+ *
+ * Copyright (c) 2016 Brick Street Software, Inc.
+ *
+ * This code is provided under the Apache License.
+ * http://www.apache.org/licenses/
+ */
+
+package net.brickst.connect.custom.webservices;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs endpoint retry tasks on a pool of daemon threads.
+ *
+ * Each endpoint schedules its own one-shot task and re-arms it after each
+ * run, so a slow endpoint only ties up one thread and never delays the
+ * other endpoints' schedules (as long as there are enough threads).
+ */
+public class RetryScheduler
+{
+    private final ScheduledThreadPoolExecutor executor;
+    private static final Random random = new Random();
+
+    public RetryScheduler(int threads)
+    {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("retry threads must be > 0");
+        }
+        executor = new ScheduledThreadPoolExecutor(threads, new DaemonThreadFactory());
+    }
+
+    public int getThreadCount() { return executor.getCorePoolSize(); }
+
+    public void setThreadCount(int threads)
+    {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("retry threads must be > 0");
+        }
+        executor.setCorePoolSize(threads);
+    }
+
+    public boolean isShutdown() { return executor.isShutdown(); }
+
+    public ScheduledFuture<?> schedule(Runnable task, long delayMS)
+    {
+        return executor.schedule(task, delayMS, TimeUnit.MILLISECONDS);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delayMS)
+    {
+        return executor.scheduleWithFixedDelay(task, delayMS, delayMS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops accepting tasks, cancels pending ones and waits for running
+     * ones to finish. Running retries are only interrupted if they are
+     * still busy when the timeout expires.
+     */
+    public boolean shutdown(long timeoutMS)
+    {
+        // delayed and periodic tasks are cancelled, not run
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeoutMS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+        for (Runnable task : executor.shutdownNow()) {
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Exponential backoff: baseMS * 2^failures, capped at maxMS, with
+     * +/- jitter (a fraction between 0 and 1) applied to the result.
+     */
+    public static long backoffDelay(long baseMS, long maxMS, int failures, double jitter)
+    {
+        long delay = baseMS;
+        for (int i = 0; i < failures && delay < maxMS; i++) {
+            delay *= 2;
+        }
+        if (delay > maxMS) {
+            delay = maxMS;
+        }
+        if (jitter > 0) {
+            double factor;
+            synchronized (random) {
+                factor = 1.0 + jitter * (2 * random.nextDouble() - 1);
+            }
+            delay = (long) (delay * factor);
+        }
+        return Math.max(delay, 1);
+    }
+
+    // retry threads must not keep the JVM alive
+    static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread th = new Thread(r, "WebEndpoint Delivery Retry " + count.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        }
+    }
+}
@@ -9,16 +9,36 @@
 
 package net.brickst.connect.custom.webservices;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.Arrays;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kana.connect.common.lib.Debug;
 
 /**
  * Contains configuration information and helper code for "web endpoints"
@@ -28,17 +48,34 @@ public abstract class WebEndpoint {
 		JMS, REST, LOG, CUSTOM
 	}
 
+	// when retry files are forced to disk
+	public enum FsyncPolicy {
+		NONE,		// leave it to the OS
+		MESSAGE,	// before scheduleRetry returns
+		BATCH		// periodically, every retryFsyncBatchMS
+	}
+
 	//
 	// TOP LEVEL RETRY DIR (STATIC)
 	//
 	private static File topLevelRetryDir;
-	private static Timer retryTimer;
+	private static RetryScheduler retryScheduler;
+	private static Object retrySchedulerLock = new Object();
+
+	// default number of retry threads
+	public static final int DEFAULT_RETRY_THREADS = 2;
+
+	// retry files are named msg<timestamp>-<sequence>-<node>.txt
+	// timestamp and sequence are zero padded so that names sort in FIFO order
+	public static final String RETRY_FILE_PREFIX = "msg";
+	public static final String RETRY_FILE_SUFFIX = ".txt";
+	private static final AtomicLong retryFileSequence = new AtomicLong();
+	private static final String retryFileNode = initRetryFileNode();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// subdirectory of the retry dir used by the retry journal
+	public static final String RETRY_JOURNAL_DIR = "journal";
 
-	// start retry timer thread when loaded
-	static {
-		retryTimer = new Timer("WebEndpoint Delivery Retry", true);
-	}
-	
 	//
 	// INSTANCE VARS
 	//
@@ -46,10 +83,54 @@ public abstract class WebEndpoint {
 	protected EndpointType endpointType;
 	protected File retryDir;
 	protected long retryIntervalMS;
+	protected long maxRetryIntervalMS;
+	protected double retryJitter = 0.1;
 
-	// retry timer task
+	// retry task
 	protected Object retryTimerLock = new Object();
-	protected RetryTimerTask retryTimerTask;
+	protected RetryTask retryTask;
+
+	// optional async delivery pipeline
+	protected volatile AsyncDelivery asyncDelivery;
+
+	// set when a config reload replaced or removed this endpoint; a
+	// retired endpoint only runs a retry task while draining
+	protected volatile boolean retired;
+	protected volatile boolean draining;
+
+	// optional retry journal; when null, each retry is a msg file
+	protected volatile RetryJournal retryJournal;
+
+	// index of the msg files in the retry dir, for the backlog gauges
+	protected volatile RetryBacklog retryBacklog = new RetryBacklog();
+
+	// message counters, see EndpointMetrics
+	protected final AtomicLong deliveredCount = new AtomicLong();
+	protected final AtomicLong failedCount = new AtomicLong();
+	protected final AtomicLong retryCount = new AtomicLong();
+	protected final AtomicLong deferredCount = new AtomicLong();
+
+	// retry drain settings
+	public static final int DEFAULT_RETRY_BATCH_SIZE = 1000;
+	public static final int DEFAULT_RETRY_MAX_FAILURES = 3;
+	protected int retryBatchSize = DEFAULT_RETRY_BATCH_SIZE;
+	protected int retryMaxFailures = DEFAULT_RETRY_MAX_FAILURES;
+	protected int retryParallelism = 1;
+	protected ExecutorService retryExecutor;
+	protected volatile boolean retryMorePending;
+
+	// messages per send for retries and async delivery
+	public static final long DEFAULT_DELIVERY_BATCH_LINGER_MS = 10;
+	protected int deliveryBatchSize = 1;
+	protected long deliveryBatchLingerMS = DEFAULT_DELIVERY_BATCH_LINGER_MS;
+
+	// circuit breaker (null if disabled)
+	protected volatile CircuitBreaker circuitBreaker;
+
+	// fsync policy for retry files
+	protected volatile FsyncPolicy retryFsync = FsyncPolicy.NONE;
+	protected ConcurrentLinkedQueue<Path> retryFsyncPending = new ConcurrentLinkedQueue<Path>();
+	protected volatile ScheduledFuture<?> retryFsyncTask;
 	
 	//
 	// GETTERS and SETTERS
@@ -61,6 +142,14 @@ public abstract class WebEndpoint {
 	}
 
 	public static void setTopLevelRetryDir(File value) {
+		ensureDirectory(value);
+		topLevelRetryDir = value;
+	}
+
+	/**
+	 * Creates a retry directory if necessary.
+	 */
+	public static void ensureDirectory(File value) {
 		if (!value.isDirectory()) {
 			// mkdir ?
 			if (!value.exists()) {
@@ -82,11 +171,45 @@ public abstract class WebEndpoint {
 						+ value.getAbsolutePath());
 			}
 		}
-		topLevelRetryDir = value;
 	}
 
-	// retry timer object
-	public static Timer getRetryTimer() { return retryTimer; }
+	// retry scheduler; created on first use and by the first new task
+	// after shutdownRetryScheduler(). Tasks that re-arm themselves use the
+	// scheduler they ran on, so a shutdown stops them for good.
+	public static RetryScheduler getRetryScheduler() {
+		synchronized (retrySchedulerLock) {
+			if (retryScheduler == null) {
+				retryScheduler = new RetryScheduler(DEFAULT_RETRY_THREADS);
+			}
+			return retryScheduler;
+		}
+	}
+
+	/**
+	 * Sets the number of threads that run retry tasks. Use at least one
+	 * thread per endpoint so that a hung endpoint cannot delay the others.
+	 */
+	public static void setRetryThreads(int threads) {
+		getRetryScheduler().setThreadCount(threads);
+	}
+
+	/**
+	 * Stops all retry tasks and the retry threads. Messages stay in the
+	 * retry directories. Returns false if running retries did not finish
+	 * within the timeout.
+	 */
+	public static boolean shutdownRetryScheduler(long timeoutMS) {
+		RetryScheduler rs;
+		synchronized (retrySchedulerLock) {
+			rs = retryScheduler;
+			retryScheduler = null;
+		}
+		if (rs == null) {
+			return true;
+		}
+		// not under the lock; running tasks must be able to finish
+		return rs.shutdown(timeoutMS);
+	}
 
 	// EndpointType
 	public EndpointType getEndpointType() {
@@ -106,34 +229,172 @@ public abstract class WebEndpoint {
 		retryIntervalMS = value;
 	}
 
+	// MaxRetryIntervalMS; upper bound for backoff (0 means no backoff)
+	public long getMaxRetryIntervalMS() {
+		return maxRetryIntervalMS;
+	}
+
+	public void setMaxRetryIntervalMS(long value) {
+		maxRetryIntervalMS = value;
+	}
+
+	// RetryJitter; fraction (0-1) of random variation in the retry interval
+	public double getRetryJitter() {
+		return retryJitter;
+	}
+
+	public void setRetryJitter(double value) {
+		if (value < 0 || value > 1) {
+			throw new IllegalArgumentException("retry jitter must be between 0 and 1");
+		}
+		retryJitter = value;
+	}
+
 	// RetryDir
 	public File getRetryDir() {
 		return retryDir;
 	}
 
 	public void setRetryDir(File value) {
-		if (!value.isDirectory()) {
-			// mkdir ?
-			if (!value.exists()) {
-				// try mkdir
-				boolean didCreate = false;
-				try {
-					didCreate = value.mkdirs();
-				} catch (Exception x) {
-					// TODO LOG EXCEPTION
+		ensureDirectory(value);
+		retryDir = value;
+		rebuildRetryBacklog();
+	}
+
+	// RetryFsync
+	public FsyncPolicy getRetryFsync() {
+		return retryFsync;
+	}
+
+	/**
+	 * Sets when retry files are forced to disk. With BATCH, files written
+	 * in the last batchMS milliseconds can be lost if the machine crashes.
+	 */
+	public synchronized void setRetryFsync(FsyncPolicy policy, long batchMS) {
+		if (retryFsyncTask != null) {
+			retryFsyncTask.cancel(false);
+			retryFsyncTask = null;
+		}
+		retryFsync = policy;
+		if (policy == FsyncPolicy.BATCH) {
+			retryFsyncTask = getRetryScheduler().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					syncPendingRetryFiles();
 				}
-				if (!value.isDirectory()) {
-					throw new IllegalArgumentException(
-							"Unable to create retry directory: "
-									+ value.getAbsolutePath());
+			}, batchMS);
+		}
+	}
+
+	// RetryBatchSize; max msg files delivered per retry run
+	public int getRetryBatchSize() {
+		return retryBatchSize;
+	}
+
+	public void setRetryBatchSize(int value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException("retry batch size must be > 0");
+		}
+		retryBatchSize = value;
+	}
+
+	// RetryMaxFailures; consecutive failures that end a retry run (0 = never)
+	public int getRetryMaxFailures() {
+		return retryMaxFailures;
+	}
+
+	public void setRetryMaxFailures(int value) {
+		retryMaxFailures = value;
+	}
+
+	// RetryParallelism; number of threads delivering retry files
+	public int getRetryParallelism() {
+		return retryParallelism;
+	}
+
+	public synchronized void setRetryParallelism(int value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException("retry parallelism must be > 0");
+		}
+		if (retryExecutor != null) {
+			retryExecutor.shutdown();
+			retryExecutor = null;
+		}
+		retryParallelism = value;
+		if (value > 1) {
+			final String name = "WebEndpoint Retry Delivery (" + retryDir + ")";
+			retryExecutor = Executors.newFixedThreadPool(value, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread th = new Thread(r, name);
+					th.setDaemon(true);
+					return th;
 				}
-			} else {
-				// exists and is not directory == invalid
-				throw new IllegalArgumentException("Invalid retry directory: "
-						+ value.getAbsolutePath());
-			}
+			});
 		}
-		retryDir = value;
+	}
+
+	// DeliveryBatchSize; max messages per deliverBatch call
+	public int getDeliveryBatchSize() {
+		return deliveryBatchSize;
+	}
+
+	public void setDeliveryBatchSize(int value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException("delivery batch size must be > 0");
+		}
+		deliveryBatchSize = value;
+	}
+
+	// DeliveryBatchLingerMS; how long async delivery waits to fill a batch
+	public long getDeliveryBatchLingerMS() {
+		return deliveryBatchLingerMS;
+	}
+
+	public void setDeliveryBatchLingerMS(long value) {
+		deliveryBatchLingerMS = Math.max(value, 0);
+	}
+
+	// CircuitBreaker (null if disabled)
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Enables the circuit breaker; a failureThreshold of 0 disables it.
+	 */
+	public void setCircuitBreaker(int failureThreshold, long openIntervalMS) {
+		circuitBreaker = failureThreshold > 0
+			? new CircuitBreaker(this, failureThreshold, openIntervalMS)
+			: null;
+	}
+
+	// AsyncDelivery (null if delivery is synchronous)
+	public AsyncDelivery getAsyncDelivery() {
+		return asyncDelivery;
+	}
+
+	public boolean isAsync() {
+		return asyncDelivery != null;
+	}
+
+	// RetryJournal (null if retries are stored as one file per message)
+	public RetryJournal getRetryJournal() {
+		return retryJournal;
+	}
+
+	/**
+	 * Stores retries in a segmented journal under the retry dir instead of
+	 * one file per message. Must be called after the retry dir is set.
+	 * Existing msg files in the retry dir are still retried.
+	 */
+	public synchronized void useRetryJournal(long segmentBytes, boolean syncOnAppend)
+			throws IOException {
+		if (retryJournal != null) {
+			return;
+		}
+		RetryJournal journal = new RetryJournal(new File(getRetryDir(),
+				RETRY_JOURNAL_DIR), segmentBytes, syncOnAppend);
+		journal.open();
+		retryJournal = journal;
 	}
 
 	// 
@@ -151,32 +412,368 @@ public abstract class WebEndpoint {
 	// DELIVER MESSAGE
 	//
 	public abstract void deliverMessage(String content);
+
+	/**
+	 * Told the outcome of an async delivery; x is null if the message was
+	 * delivered. Called once, possibly on a thread of the endpoint's
+	 * client library.
+	 */
+	public interface DeliveryListener {
+		void deliveryDone(Exception x);
+	}
+
+	/**
+	 * Starts delivering a message and returns a future for the outcome;
+	 * get() throws an ExecutionException where deliverMessage would throw.
+	 */
+	public Future<Void> deliverMessageAsync(String content) {
+		return deliverMessageAsync(content, null);
+	}
+
+	/**
+	 * Starts delivering a message; the listener, if any, is told the
+	 * outcome when the future completes. Endpoints that can send without
+	 * blocking override this; the default delivers on the calling thread
+	 * before returning.
+	 */
+	public Future<Void> deliverMessageAsync(final String content, final DeliveryListener listener) {
+		FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+			public void run() {
+				deliverMessage(content);
+			}
+		}, null) {
+			protected void done() {
+				if (listener == null) {
+					return;
+				}
+				Exception failure = null;
+				try {
+					get();
+				} catch (ExecutionException x) {
+					Throwable cause = x.getCause();
+					failure = (cause instanceof Exception) ? (Exception) cause : x;
+				} catch (Exception x) {
+					failure = x;
+				}
+				listener.deliveryDone(failure);
+			}
+		};
+		task.run();
+		return task;
+	}
+
+	/**
+	 * True if handle() should use attemptDeliveryAsync, i.e. hand the
+	 * message to the endpoint and go on without waiting for its answer.
+	 */
+	public boolean isAsyncSend() {
+		return false;
+	}
+
+	/**
+	 * Delivers several messages. The default delivers them one at a time
+	 * with deliverMessage; endpoints that can send a batch more cheaply
+	 * (e.g. in one transaction) override this. If not every message is
+	 * delivered, a BatchDeliveryException says how many were.
+	 */
+	public void deliverBatch(List<String> contents) {
+		for (int i = 0; i < contents.size(); i++) {
+			try {
+				deliverMessage(contents.get(i));
+			} catch (RuntimeException x) {
+				throw new BatchDeliveryException(i, x);
+			}
+		}
+	}
+
+	/**
+	 * Delivers a batch and records the outcome with the circuit breaker.
+	 */
+	public void attemptBatchDelivery(List<String> contents) {
+		CircuitBreaker cb = circuitBreaker;
+		try {
+			deliverBatch(contents);
+		} catch (RuntimeException x) {
+			int ok = (x instanceof BatchDeliveryException)
+					? ((BatchDeliveryException) x).getDeliveredCount() : 0;
+			deliveredCount.addAndGet(ok);
+			failedCount.addAndGet(contents.size() - ok);
+			if (cb != null) {
+				cb.recordFailure();
+			}
+			throw x;
+		}
+		deliveredCount.addAndGet(contents.size());
+		if (cb != null) {
+			cb.recordSuccess();
+		}
+	}
+
+	/**
+	 * False while the circuit breaker is open or half-open; new messages
+	 * should then go to the retry store with deferMessage.
+	 */
+	public boolean isAcceptingDeliveries() {
+		CircuitBreaker cb = circuitBreaker;
+		return cb == null || cb.allowRequest();
+	}
+
+	/**
+	 * Delivers a message and records the outcome with the circuit breaker.
+	 */
+	public void attemptDelivery(String content) {
+		CircuitBreaker cb = circuitBreaker;
+		try {
+			deliverMessage(content);
+		} catch (RuntimeException x) {
+			failedCount.incrementAndGet();
+			if (cb != null) {
+				cb.recordFailure();
+			}
+			throw x;
+		}
+		deliveredCount.incrementAndGet();
+		if (cb != null) {
+			cb.recordSuccess();
+		}
+	}
+
+	/**
+	 * Starts delivering a message without waiting for the endpoint's
+	 * answer. When the outcome is known it is recorded with the circuit
+	 * breaker and the counters, and a message that failed is saved for
+	 * retry. Throws, without saving the message, if the delivery could
+	 * not be started; the caller then saves it as after attemptDelivery.
+	 */
+	public Future<Void> attemptDeliveryAsync(final String content) {
+		final CircuitBreaker cb = circuitBreaker;
+		try {
+			return deliverMessageAsync(content, new DeliveryListener() {
+				public void deliveryDone(Exception x) {
+					if (x == null) {
+						deliveredCount.incrementAndGet();
+						if (cb != null) {
+							cb.recordSuccess();
+						}
+						return;
+					}
+					failedCount.incrementAndGet();
+					if (cb != null) {
+						cb.recordFailure();
+					}
+					if (Debug.SR.isEnabled()) {
+						Debug.SR.printException(x, "WebEndpoint: async delivery failed; reschedule delivery to " + WebEndpoint.this);
+					}
+					try {
+						scheduleRetry(content);
+					} catch (Exception rx) {
+						if (Debug.SR.isEnabled()) {
+							Debug.SR.printException(rx, "WebEndpoint: unable to schedule retry");
+						}
+					}
+				}
+			});
+		} catch (RuntimeException x) {
+			failedCount.incrementAndGet();
+			if (cb != null) {
+				cb.recordFailure();
+			}
+			throw x;
+		}
+	}
+
+	/**
+	 * True if the endpoint sends bytes, so callers that can produce UTF-8
+	 * directly should use deliverMessageBytes and skip building a String.
+	 */
+	public boolean prefersBytes() {
+		return false;
+	}
+
+	/**
+	 * Delivers a UTF-8 encoded message. The default decodes it and calls
+	 * deliverMessage.
+	 */
+	public void deliverMessageBytes(byte[] content) {
+		deliverMessage(new String(content, UTF8));
+	}
+
+	/**
+	 * Delivers a UTF-8 encoded message and records the outcome with the
+	 * circuit breaker.
+	 */
+	public void attemptDeliveryBytes(byte[] content) {
+		CircuitBreaker cb = circuitBreaker;
+		try {
+			deliverMessageBytes(content);
+		} catch (RuntimeException x) {
+			failedCount.incrementAndGet();
+			if (cb != null) {
+				cb.recordFailure();
+			}
+			throw x;
+		}
+		deliveredCount.incrementAndGet();
+		if (cb != null) {
+			cb.recordSuccess();
+		}
+	}
+
+	/**
+	 * Saves a message for retry without trying to deliver it, because the
+	 * circuit breaker is not closed.
+	 */
+	public void deferMessage(String content) throws IOException {
+		CircuitBreaker cb = circuitBreaker;
+		if (cb != null) {
+			cb.recordRejected();
+		}
+		deferredCount.incrementAndGet();
+		scheduleRetry(content);
+	}
 	
+	//
+	// ASYNC DELIVERY
+	//
+
+	/**
+	 * Switches the endpoint to async delivery. Must be called after the
+	 * retry dir is set.
+	 */
+	public synchronized void startAsyncDelivery(int threads, int queueSize,
+			long enqueueTimeoutMS) {
+		if (asyncDelivery != null) {
+			return;
+		}
+		AsyncDelivery ad = new AsyncDelivery(this, threads, queueSize, enqueueTimeoutMS);
+		ad.start();
+		asyncDelivery = ad;
+	}
+
+	public synchronized void stopAsyncDelivery() {
+		AsyncDelivery ad = asyncDelivery;
+		if (ad != null) {
+			asyncDelivery = null;
+			ad.stop();
+		}
+	}
+
+	/**
+	 * Persists a message and queues it for async delivery. Returns once the
+	 * message is on disk. If the endpoint is not async, the message goes
+	 * straight to the retry dir.
+	 */
+	public void enqueueMessage(String content) throws IOException {
+		AsyncDelivery ad = asyncDelivery;
+		if (ad != null) {
+			ad.enqueue(content);
+		} else {
+			scheduleRetry(content);
+		}
+	}
+
 	//
 	// RETRY LOGIC
 	//
 
-	// TimerTask Inner Class
-	public class RetryTimerTask extends TimerTask {
+	// Retry Task Inner Class
+	// Each run schedules the next one. After a run in which every delivery
+	// failed, the interval doubles up to maxRetryIntervalMS.
+	public class RetryTask implements Runnable {
 		WebEndpoint wep;
+		int failures;
+		ScheduledFuture<?> future;
+		// where the task runs; it re-arms only there
+		RetryScheduler scheduler;
 
-		public RetryTimerTask(WebEndpoint wep) {
+		public RetryTask(WebEndpoint wep) {
 			this.wep = wep;
 		}
 
+		public int getFailures() {
+			return failures;
+		}
+
+		// false if the scheduler was shut down
+		boolean schedule(RetryScheduler rs, long delayMS) {
+			if (rs.isShutdown()) {
+				return false;
+			}
+			try {
+				future = rs.schedule(this, delayMS);
+			} catch (RejectedExecutionException x) {
+				return false;
+			}
+			scheduler = rs;
+			return true;
+		}
+
+		// true if the scheduler was shut down, so the task will not run again
+		boolean isStopped() {
+			return scheduler == null || scheduler.isShutdown();
+		}
+
+		void cancel() {
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+
 		public void run() {
-			wep.doRetry();
+			boolean healthy = false;
+			try {
+				healthy = wep.doRetry();
+			} catch (Throwable th) {
+				// keep the retry task alive no matter what
+				if (Debug.SR.isEnabled()) {
+					Debug.SR.printException(th, "WebEndpoint: retry failed for " + wep);
+				}
+			}
+
+			if (draining && !wep.hasPendingRetries()) {
+				// removed endpoint is drained; nothing more to do
+				wep.finishDraining();
+				return;
+			}
+
+			synchronized (retryTimerLock) {
+				if (retryTask != this) {
+					// stopped while running
+					return;
+				}
+				failures = healthy ? 0 : failures + 1;
+				// keep draining a large backlog in batches
+				long delay = (healthy && retryMorePending) ? 0 : nextRetryDelay(failures);
+				if (!schedule(scheduler, delay)) {
+					// shut down; a later startRetryTask() starts over
+					retryTask = null;
+				}
+			}
 		}
 	}
 
+	/**
+	 * Delay before the next retry run after the given number of
+	 * consecutive failed runs.
+	 */
+	protected long nextRetryDelay(int failures) {
+		long maxMS = Math.max(maxRetryIntervalMS, retryIntervalMS);
+		return RetryScheduler.backoffDelay(retryIntervalMS, maxMS,
+				failures, retryJitter);
+	}
+
 	public void startRetryTask()
 	{
         // schedule retry
         synchronized (retryTimerLock) {
-            if (retryTimerTask == null) {
-                retryTimerTask = new RetryTimerTask(this);
-                retryTimer.schedule(retryTimerTask, retryIntervalMS,
-                        retryIntervalMS);
+            if (retired && !draining) {
+                // the successor's retry task covers the retry store
+                return;
+            }
+            if (retryTask == null || retryTask.isStopped()) {
+                // none yet, or cancelled by shutdownRetryScheduler()
+                RetryTask task = new RetryTask(this);
+                retryTask = task.schedule(getRetryScheduler(), nextRetryDelay(0)) ? task : null;
             }
         }	    
 	}
@@ -184,139 +781,733 @@ public abstract class WebEndpoint {
 	public void stopRetryTask()
 	{
 	    synchronized (retryTimerLock) {
-	        if (retryTimerTask != null) {
-	            retryTimerTask.cancel();
-	            retryTimerTask = null;
+	        if (retryTask != null) {
+	            retryTask.cancel();
+	            retryTask = null;
 	        }
 	    }
 	}
 	
+	//
+	// COUNTERS
+	//
+
+	// messages delivered by attemptDelivery/attemptBatchDelivery, including retries
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	// messages whose delivery attempt failed
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	// messages saved to the retry store
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	// messages saved for retry without an attempt (circuit breaker open)
+	public long getDeferredCount() {
+		return deferredCount.get();
+	}
+
+	//
+	// RETRY BACKLOG GAUGES
+	//
+
+	public RetryBacklog getRetryBacklog() {
+		return retryBacklog;
+	}
+
+	/**
+	 * Re-reads the retry dir into the backlog index, e.g. after files were
+	 * copied in by hand. Called when the retry dir is set.
+	 */
+	public void rebuildRetryBacklog() {
+		File dir = retryDir;
+		if (dir == null) {
+			return;
+		}
+		try {
+			retryBacklog.rebuild(dir);
+		} catch (IOException x) {
+			if (Debug.SR.isEnabled()) {
+				Debug.SR.printException(x, "WebEndpoint: unable to index " + dir);
+			}
+		}
+	}
+
+	// messages waiting in the retry journal and retry dir
+	public long getRetryBacklogDepth() {
+		RetryJournal journal = retryJournal;
+		long depth = retryBacklog.getFileCount();
+		return (journal != null) ? depth + journal.getPendingCount() : depth;
+	}
+
+	// bytes of the messages waiting for retry
+	public long getRetryBacklogBytes() {
+		RetryJournal journal = retryJournal;
+		long bytes = retryBacklog.getFileBytes();
+		return (journal != null) ? bytes + journal.getPendingBytes() : bytes;
+	}
+
+	// age of the oldest message waiting for retry; 0 if there is none
+	public long getRetryBacklogAgeMS() {
+		long oldest = retryBacklog.getOldestFileTime();
+		RetryJournal journal = retryJournal;
+		if (journal != null) {
+			long journalOldest = journal.getOldestPendingTime();
+			if (oldest == 0 || (journalOldest != 0 && journalOldest < oldest)) {
+				oldest = journalOldest;
+			}
+		}
+		return (oldest == 0) ? 0 : Math.max(System.currentTimeMillis() - oldest, 0);
+	}
+
+	// messages delivered from the retry store per second, one-minute average
+	public double getRetryDrainRate() {
+		return retryBacklog.getDrainRate();
+	}
+
+	//
+	// RETIREMENT (config reload)
+	//
+
+	public boolean isRetired() {
+		return retired;
+	}
+
+	public boolean hasRetryTask() {
+		synchronized (retryTimerLock) {
+			return retryTask != null;
+		}
+	}
+
+	/**
+	 * True if the retry journal or the retry dir still holds messages.
+	 */
+	public boolean hasPendingRetries() {
+		RetryJournal journal = retryJournal;
+		if (journal != null && !journal.isEmpty()) {
+			return true;
+		}
+		if (retryBacklog.getFileCount() > 0) {
+			return true;
+		}
+		// files the index does not know about, e.g. copied in by hand
+		File dir = getRetryDir();
+		if (dir == null || !dir.isDirectory()) {
+			return false;
+		}
+		try {
+			return !listOldestRetryFiles(dir.toPath(), 1).isEmpty();
+		} catch (IOException x) {
+			// can't tell; keep trying
+			return true;
+		}
+	}
+
+	/**
+	 * Hands this endpoint's retry store to the endpoint that replaces it
+	 * with the same retry dir. Async workers stop (queued messages are
+	 * spilled to the retry store) and so does the retry task; from now on
+	 * the successor delivers the backlog, including messages this endpoint
+	 * still saves for retry. Must be called before the successor starts
+	 * its retry task.
+	 */
+	public void handOverTo(WebEndpoint successor) {
+		retired = true;
+		stopAsyncDelivery();
+		stopRetryTask();
+		synchronized (successor) {
+			if (successor.retryJournal == null) {
+				successor.retryJournal = retryJournal;
+			}
+			// same retry dir; this endpoint may still save retries into it
+			successor.retryBacklog = retryBacklog;
+		}
+	}
+
+	/**
+	 * Retires an endpoint that is no longer configured. Async workers stop
+	 * and the retry task keeps running until the retry store is empty;
+	 * then the endpoint shuts down. Messages still in flight on the old
+	 * config may yet be saved for retry, so the first check waits for the
+	 * next retry run.
+	 */
+	public void retire() {
+		synchronized (retryTimerLock) {
+			retired = true;
+			draining = true;
+		}
+		stopAsyncDelivery();
+		startRetryTask();
+	}
+
+	/**
+	 * Releases what the endpoint holds beyond its retry store: async
+	 * workers, the retry task, the retry delivery threads and the fsync
+	 * task. Subclasses also close their connections. Called once the
+	 * endpoint is no longer used: after handOverTo(), when a retired
+	 * endpoint is drained, or when a config that failed to load is
+	 * dropped. Messages still saved for retry afterwards are forced to
+	 * disk at once, since no fsync batch will pick them up.
+	 */
+	public void shutdown() {
+		stopAsyncDelivery();
+		stopRetryTask();
+		synchronized (this) {
+			if (retryExecutor != null) {
+				retryExecutor.shutdown();
+				retryExecutor = null;
+			}
+		}
+		stopFsyncBatch();
+	}
+
+	// the batch task was cancelled by shutdownRetryScheduler(); nothing
+	// re-arms it, so fall back to MESSAGE unless setRetryFsync() ran since
+	private void fsyncBatchStopped() {
+		synchronized (this) {
+			if (retryFsync != FsyncPolicy.BATCH
+					|| (retryFsyncTask != null && !retryFsyncTask.isDone())) {
+				return;
+			}
+		}
+		stopFsyncBatch();
+	}
+
+	// no fsync batch runs from now on; pending files are forced to disk
+	// and later ones are synced one by one
+	private void stopFsyncBatch() {
+		synchronized (this) {
+			if (retryFsyncTask != null) {
+				retryFsyncTask.cancel(false);
+				retryFsyncTask = null;
+			}
+			if (retryFsync == FsyncPolicy.BATCH) {
+				retryFsync = FsyncPolicy.MESSAGE;
+			}
+		}
+		syncPendingRetryFiles();
+	}
+
+	// last step of retire()
+	protected void finishDraining() {
+		synchronized (retryTimerLock) {
+			draining = false;
+		}
+		stopRetryTask();
+		RetryJournal journal = retryJournal;
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException x) {
+				if (Debug.SR.isEnabled()) {
+					Debug.SR.printException(x, "WebEndpoint: unable to close journal for " + this);
+				}
+			}
+		}
+		shutdown();
+		if (Debug.SR.isEnabled()) {
+			Debug.SR.println("WebEndpoint: retired " + this);
+		}
+	}
+
 	/**
 	 * Saves a message for future retry
 	 */
 	public void scheduleRetry(String content) throws IOException {
-		// assume this will generate unique filenames based on current timestamp
-		File tempfile = null;
-		File realfile = null;
-
-		while (true) {
-			long now = System.currentTimeMillis();
-			String tempFilename = ".msg" + Long.toString(now) + ".txt";
-			String filename = "msg" + Long.toString(now) + ".txt";
-			tempfile = new File(getRetryDir(), tempFilename);
-			realfile = new File(getRetryDir(), filename);
-			if (!tempfile.exists() && !realfile.exists()) {
-				break;
-			}
-
-			// filename collision; wait and retry
-			double randomWait = Math.random() * 1000; // 0 - 1000 milliseconds
+		RetryJournal journal = retryJournal;
+		if (journal != null) {
+			journal.append(content);
+		} else {
+			writeMessageFile(getRetryDir(), content);
+		}
+		retryCount.incrementAndGet();
+
+		// ensure retry task is started
+		startRetryTask();
+	}
+
+	/**
+	 * Moves a message file from another directory (e.g. the async inflight
+	 * dir) into the retry dir. If the file cannot be moved, its content is
+	 * rewritten into the retry dir. The content argument may be null, in
+	 * which case it is read from the file.
+	 */
+	protected void moveToRetry(File file, String content) throws IOException {
+		RetryJournal journal = retryJournal;
+		if (journal != null) {
+			if (content == null) {
+				content = readFileContents(file);
+			}
+			journal.append(content);
+			file.delete();
+		}
+		else {
+			Path target = getRetryDir().toPath().resolve(file.getName());
+			RetryBacklog backlog = retryBacklog;
+			String name = file.getName();
+			// indexed before the move so a quick delivery can't beat it
+			backlog.add(name, file.length());
 			try {
-				Thread.sleep((long) randomWait);
-			} catch (InterruptedException ix) {
-				// don't care
+				Files.move(file.toPath(), target, StandardCopyOption.ATOMIC_MOVE);
+				syncRetryFile(target, getRetryDir());
+			} catch (IOException x) {
+				backlog.remove(name);
+				// e.g. different file system; write a new copy
+				if (content == null) {
+					content = readFileContents(file);
+				}
+				writeMessageFile(getRetryDir(), content);
+				file.delete();
 			}
 		}
+		retryCount.incrementAndGet();
 
-		FileOutputStream fos = null;
-		OutputStreamWriter osw = null;
+		// ensure retry task is started
+		startRetryTask();
+	}
+
+	/**
+	 * Writes content to a new msg file in the given directory.
+	 * The file is written under a temp name and then moved atomically so
+	 * that readers never see a partial file.
+	 */
+	protected File writeMessageFile(File dir, String content) throws IOException {
+		// names are unique within this JVM (sequence) and across JVMs (node)
+		String filename = nextRetryFileName();
+		Path dirPath = dir.toPath();
+		Path tempPath = dirPath.resolve("." + filename);
+		Path realPath = dirPath.resolve(filename);
+
+		byte[] bytes = content.getBytes(UTF8);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		FileChannel channel = FileChannel.open(tempPath,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		boolean written = false;
 		try {
-			fos = new FileOutputStream(tempfile);
-			osw = new OutputStreamWriter(fos, "UTF-8");
-			osw.write(content);
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			if (retryFsync == FsyncPolicy.MESSAGE) {
+				channel.force(true);
+			}
+			written = true;
 		} finally {
-			if (osw != null) {
-				osw.close();
+			channel.close();
+			if (!written) {
+				Files.deleteIfExists(tempPath);
+			}
+		}
+
+		// index retry files before the move so a quick delivery can't beat it
+		RetryBacklog backlog = dir.equals(retryDir) ? retryBacklog : null;
+		if (backlog != null) {
+			backlog.add(filename, bytes.length);
+		}
+
+		// move file so that retry can see it
+		try {
+			Files.move(tempPath, realPath, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException x) {
+			if (backlog != null) {
+				backlog.remove(filename);
 			}
-			if (fos != null) {
-				fos.close();
+			Files.deleteIfExists(tempPath);
+			throw x;
+		}
+		syncRetryFile(realPath, dir);
+		return realPath.toFile();
+	}
+
+	/**
+	 * Returns a new retry file name. Names never collide and sort in the
+	 * order they were created.
+	 */
+	public static String nextRetryFileName() {
+		long now = System.currentTimeMillis();
+		long seq = retryFileSequence.incrementAndGet();
+		StringBuilder buf = new StringBuilder(64);
+		buf.append(RETRY_FILE_PREFIX);
+		appendPadded(buf, now, 13);
+		buf.append('-');
+		appendPadded(buf, seq, 12);
+		buf.append('-').append(retryFileNode);
+		buf.append(RETRY_FILE_SUFFIX);
+		return buf.toString();
+	}
+
+	private static void appendPadded(StringBuilder buf, long val, int width) {
+		String s = Long.toString(val);
+		for (int i = s.length(); i < width; i++) {
+			buf.append('0');
+		}
+		buf.append(s);
+	}
+
+	// identifies this JVM (pid@host) in retry file names
+	private static String initRetryFileNode() {
+		String name;
+		try {
+			name = ManagementFactory.getRuntimeMXBean().getName();
+		} catch (Throwable th) {
+			name = null;
+		}
+		if (name == null || name.length() == 0) {
+			name = Long.toHexString(Double.doubleToLongBits(Math.random()));
+		}
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < name.length() && buf.length() < 32; i++) {
+			char ch = name.charAt(i);
+			if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')) {
+				buf.append(ch);
 			}
 		}
+		return buf.toString();
+	}
 
-		// rename file so that retry can see it
-		tempfile.renameTo(realfile);
+	// applies the fsync policy to a file that was just moved into dir
+	private void syncRetryFile(Path file, File dir) {
+		if (retryFsync == FsyncPolicy.MESSAGE) {
+			syncDirectory(dir.toPath());
+		} else if (retryFsync == FsyncPolicy.BATCH) {
+			retryFsyncPending.add(file);
+			ScheduledFuture<?> task = retryFsyncTask;
+			if (task == null || task.isDone()) {
+				fsyncBatchStopped();
+			}
+		}
+	}
 
-		// ensure retry task is started
-		startRetryTask();
+	/**
+	 * Forces retry files written since the last batch to disk.
+	 */
+	protected void syncPendingRetryFiles() {
+		Path file;
+		Path lastDir = null;
+		while ((file = retryFsyncPending.poll()) != null) {
+			try {
+				FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+				try {
+					channel.force(true);
+				} finally {
+					channel.close();
+				}
+			} catch (NoSuchFileException x) {
+				// already delivered and deleted
+				continue;
+			} catch (IOException x) {
+				if (Debug.SR.isEnabled()) {
+					Debug.SR.printException(x, "WebEndpoint: fsync failed for " + file);
+				}
+			}
+			Path dir = file.getParent();
+			if (lastDir == null || !lastDir.equals(dir)) {
+				syncDirectory(dir);
+				lastDir = dir;
+			}
+		}
+	}
+
+	// makes a rename durable; not supported on all platforms
+	private static void syncDirectory(Path dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException x) {
+			// e.g. Windows cannot open a directory; nothing to do
+		}
 	}
 
 	private String readFileContents(File file) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		FileInputStream fis = null;
+		return readFileContents(file.toPath());
+	}
 
+	// retry files are always written as UTF-8
+	private static String readFileContents(Path path) throws IOException {
+		return new String(Files.readAllBytes(path), UTF8);
+	}
+
+	/**
+	 * Attempts to deliver the messages in the retry journal and retry dir.
+	 * Returns false if there were failures and no message was delivered.
+	 */
+	public boolean doRetry() {
+		CircuitBreaker cb = circuitBreaker;
+		if (cb != null && !cb.tryProbe()) {
+			// breaker still open; wait before probing
+			return false;
+		}
 		try {
-			fis = new FileInputStream(file);
-			byte[] buf = new byte[512];
+			RetryJournal journal = retryJournal;
+			if (journal != null && !drainJournal(journal)) {
+				// endpoint is still failing; leave the files for the next run
+				return false;
+			}
+			return drainRetryFiles();
+		} finally {
+			if (cb != null) {
+				cb.probeFinished();
+			}
+		}
+	}
 
+	/**
+	 * Delivers journal records in order, deliveryBatchSize at a time.
+	 * Stops at the first failure, which stays at the head of the journal
+	 * for the next run.
+	 */
+	protected boolean drainJournal(RetryJournal journal) {
+		int delivered = 0;
+		boolean failed = false;
+		try {
 			while (true) {
-				int cc = fis.read(buf);
-				if (cc == -1) {
+				List<RetryJournal.Record> recs = journal.readBatch(deliveryBatchSize);
+				if (recs.isEmpty()) {
+					break;
+				}
+				List<String> contents = new ArrayList<String>(recs.size());
+				for (RetryJournal.Record rec : recs) {
+					contents.add(rec.getContent());
+				}
+				int ok = recs.size();
+				try {
+					attemptBatchDelivery(contents);
+				} catch (BatchDeliveryException x) {
+					ok = x.getDeliveredCount();
+					failed = true;
+					if (Debug.SR.isEnabled()) {
+						Debug.SR.printException(x, "WebEndpoint: journal delivery failed after "
+								+ ok + " messages for " + this);
+					}
+				} catch (Exception x) {
+					ok = 0;
+					failed = true;
+					if (Debug.SR.isEnabled()) {
+						Debug.SR.printException(x, "WebEndpoint: journal delivery failed for " + this);
+					}
+				}
+				if (ok > 0) {
+					delivered += ok;
+					journal.acknowledge(recs.get(ok - 1));
+					retryBacklog.recordDrained(ok);
+				}
+				if (failed) {
 					break;
 				}
-				baos.write(buf, 0, cc);
 			}
+		} catch (IOException x) {
+			if (Debug.SR.isEnabled()) {
+				Debug.SR.printException(x, "WebEndpoint: journal read failed for " + this);
+			}
+			failed = true;
 		} finally {
-			fis.close();
+			try {
+				journal.checkpoint();
+			} catch (IOException x) {
+				if (Debug.SR.isEnabled()) {
+					Debug.SR.printException(x, "WebEndpoint: journal checkpoint failed for " + this);
+				}
+			}
 		}
-		return baos.toString();
+		return !failed || delivered > 0;
 	}
 
-	public void doRetry() {
-		// get directory list
-		File[] files = retryDir.listFiles();
-		Arrays.sort(files);
+	/**
+	 * Delivers up to retryBatchSize msg files from the retry dir, oldest
+	 * first, deliveryBatchSize files per send, using retryParallelism
+	 * threads. The run stops early after retryMaxFailures consecutive
+	 * failures.
+	 */
+	protected boolean drainRetryFiles() {
+		List<Path> batch;
+		try {
+			batch = listOldestRetryFiles(retryDir.toPath(), retryBatchSize);
+		} catch (IOException x) {
+			if (Debug.SR.isEnabled()) {
+				Debug.SR.printException(x, "WebEndpoint: unable to list " + retryDir);
+			}
+			retryMorePending = false;
+			return false;
+		}
+		if (batch.isEmpty()) {
+			if (retryBacklog.getFileCount() > 0) {
+				// files were removed behind our back
+				rebuildRetryBacklog();
+			}
+			retryMorePending = false;
+			return true;
+		}
 
-		int filecount = files.length;
-		if (filecount == 0) {
-		    return;
+		// split into sends
+		int chunkSize = Math.max(deliveryBatchSize, 1);
+		List<List<Path>> chunks = new ArrayList<List<Path>>();
+		for (int i = 0; i < batch.size(); i += chunkSize) {
+			chunks.add(batch.subList(i, Math.min(i + chunkSize, batch.size())));
 		}
-		
-		for (int i = 0; i < filecount; i++) {
-			File retryFile = files[i];
 
-			// check name
-			String fname = retryFile.getName();
-			if (!fname.startsWith("msg")) {
-				continue;
+		final RetryBatch state = new RetryBatch();
+		ExecutorService executor = retryExecutor;
+		if (executor == null || chunks.size() == 1) {
+			for (List<Path> chunk : chunks) {
+				if (state.isStopped()) {
+					break;
+				}
+				retryFiles(chunk, state);
+			}
+		}
+		else {
+			List<Future<?>> futures = new ArrayList<Future<?>>(chunks.size());
+			for (final List<Path> chunk : chunks) {
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						if (!state.isStopped()) {
+							retryFiles(chunk, state);
+						}
+					}
+				}));
 			}
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (Exception x) {
+					// retryFiles does not throw; nothing to do
+				}
+			}
+		}
 
-			// read file contents
-			String content = null;
+		// a full, healthy batch means there may be more waiting
+		retryMorePending = batch.size() >= retryBatchSize && !state.isStopped();
+		return state.failed.get() == 0 || state.delivered.get() > 0;
+	}
 
-			if (!retryFile.exists()) {
-				// skip non-existent file
-				continue;
-			}
+	// outcome of one retry file
+	protected static final int RETRY_DELIVERED = 0;
+	protected static final int RETRY_FAILED = 1;
 
+	/**
+	 * Reads, delivers and deletes a group of retry files with one send.
+	 * Missing and empty files are skipped.
+	 */
+	protected void retryFiles(List<Path> paths, RetryBatch state) {
+		List<Path> sent = new ArrayList<Path>(paths.size());
+		List<String> contents = new ArrayList<String>(paths.size());
+		for (Path path : paths) {
+			String content;
 			try {
-				content = readFileContents(retryFile);
+				content = readFileContents(path);
+			} catch (NoSuchFileException x) {
+				// delivered by someone else
+				retryBacklog.remove(path.getFileName().toString());
+				continue;
 			} catch (Exception x) {
 				// TODO LOG EXCEPTION
 				// skip this file
 				continue;
 			}
-			if (content == null || content.trim().length() == 0) {
+			if (content.trim().length() == 0) {
 				// TODO LOG ??
 				continue;
 			}
+			sent.add(path);
+			contents.add(content);
+		}
+		if (contents.isEmpty()) {
+			return;
+		}
 
-			// got content
+		int ok = contents.size();
+		try {
+			attemptBatchDelivery(contents);
+		} catch (BatchDeliveryException x) {
+			ok = x.getDeliveredCount();
+		} catch (Exception x) {
+		    // Note: the delivery attempt can fail here.
+		    // If we get a failure, we do nothing since the 
+		    // messages are already persisted in the retry directory.
+			ok = 0;
+		}
+
+		// delivered messages
+		RetryBacklog backlog = retryBacklog;
+		for (int i = 0; i < ok; i++) {
 			try {
-				deliverMessage(content);
-			} catch (Exception x) {
-			    // Note: the delivery attempt can fail here.
-			    // If we get a failure, we do nothing since the 
-			    // message is already persisted in the retry directory.
-			    
-				// TODO LOG EXCEPTION
-				continue;
+				Files.deleteIfExists(sent.get(i));
+			} catch (IOException x) {
+				// TODO LOG WEIRDNESS
 			}
+			backlog.remove(sent.get(i).getFileName().toString());
+			state.record(RETRY_DELIVERED);
+		}
+		backlog.recordDrained(ok);
+		if (ok < contents.size()) {
+			state.record(RETRY_FAILED);
+		}
+	}
 
-			// message delivered
-			boolean didDelete = retryFile.delete();
-			if (!didDelete) {
-				// TODO LOG WEIRDNESS
+	/**
+	 * Streams the retry dir and returns the names of the oldest msg files
+	 * (at most max), in FIFO order. Only max entries are held in memory.
+	 */
+	public static List<Path> listOldestRetryFiles(Path dir, int max) throws IOException {
+		// max-heap on file name; the newest candidate is at the head
+		PriorityQueue<Path> oldest = new PriorityQueue<Path>(Math.max(max, 1),
+				Collections.reverseOrder());
+		DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+				RETRY_FILE_PREFIX + "*" + RETRY_FILE_SUFFIX);
+		try {
+			for (Path path : stream) {
+				if (oldest.size() < max) {
+					oldest.add(path.getFileName());
+				}
+				else if (path.getFileName().compareTo(oldest.peek()) < 0) {
+					oldest.poll();
+					oldest.add(path.getFileName());
+				}
+			}
+		} finally {
+			stream.close();
+		}
+
+		List<Path> result = new ArrayList<Path>(oldest.size());
+		for (Path name : oldest) {
+			result.add(dir.resolve(name));
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	// counts for one drain run; shared by the delivery threads
+	class RetryBatch {
+		final AtomicInteger delivered = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+		void record(int outcome) {
+			if (outcome == RETRY_DELIVERED) {
+				delivered.incrementAndGet();
+				consecutiveFailures.set(0);
+			}
+			else if (outcome == RETRY_FAILED) {
+				failed.incrementAndGet();
+				consecutiveFailures.incrementAndGet();
+			}
+		}
+
+		boolean isStopped() {
+			CircuitBreaker cb = circuitBreaker;
+			if (cb != null && cb.isOpen()) {
+				// probe failed
+				return true;
 			}
+			return retryMaxFailures > 0 && consecutiveFailures.get() >= retryMaxFailures;
 		}
 	}
 }
@@ -0,0 +1,48 @@
+package com.kana.connect.server.receiver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+// handler config for tests: keyword STOP, one LOG endpoint for number 1000
+// and the soap1.xsl template; tests add their own properties
+class DispatchTestConfig
+{
+	static Properties config(File dir, Properties extra)
+	{
+		Properties props = new Properties();
+		props.setProperty("regex_count", "1");
+		props.setProperty("regex_0.pattern", "STOP");
+		props.setProperty("endpoint_retrydir", new File(dir, "retry").getAbsolutePath());
+		props.setProperty("endpoint_count", "1");
+		props.setProperty("endpoint_0.type", "LOG");
+		props.setProperty("mapping_count", "1");
+		props.setProperty("mapping_0.number", "1000");
+		props.setProperty("mapping_0.endpoint", "0");
+		props.setProperty("content.type", "XSL");
+		props.setProperty("content.url", new File("soap1.xsl").toURI().toString());
+		props.putAll(extra);
+		return props;
+	}
+
+	// writes the base config plus extra to dir/smskeyworddispatch.properties
+	static File write(File dir, Properties extra) throws IOException
+	{
+		return write(dir, "smskeyworddispatch.properties", extra);
+	}
+
+	// writes the base config plus extra to dir/name
+	static File write(File dir, String name, Properties extra) throws IOException
+	{
+		File file = new File(dir, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			config(dir, extra).store(out, null);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,270 @@
+package com.kana.connect.server.receiver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.brickst.connect.custom.webservices.LogEndpoint;
+import net.brickst.connect.custom.webservices.WebEndpoint;
+
+public class TestConfigReload
+{
+	private File dir;
+	private File configFile;
+
+	@Before
+	public void setup() throws IOException
+	{
+		dir = File.createTempFile("configReload", "");
+		dir.delete();
+		dir.mkdirs();
+		configFile = new File(dir, "smskeyworddispatch.properties");
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+	}
+
+	@After
+	public void cleanup()
+	{
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+		delete(dir);
+	}
+
+	private static void delete(File f)
+	{
+		File[] list = f.listFiles();
+		for (int i = 0; list != null && i < list.length; i++) {
+			delete(list[i]);
+		}
+		f.delete();
+	}
+
+	// keyword and LOG endpoints; each endpoint gets its number as 1000 + i
+	private Properties config(String keyword, int endpointCount)
+	{
+		return config(keyword, endpointCount, "retry");
+	}
+
+	private Properties config(String keyword, int endpointCount, String retryDir)
+	{
+		Properties props = new Properties();
+		props.setProperty("regex_count", "1");
+		props.setProperty("regex_0.pattern", keyword);
+		props.setProperty("endpoint_retrydir", new File(dir, retryDir).getAbsolutePath());
+		props.setProperty("endpoint_count", Integer.toString(endpointCount));
+		props.setProperty("mapping_count", Integer.toString(endpointCount));
+		for (int i = 0; i < endpointCount; i++) {
+			props.setProperty("endpoint_" + i + ".type", "LOG");
+			props.setProperty("endpoint_" + i + ".failPercentage", "0");
+			props.setProperty("mapping_" + i + ".number", Integer.toString(1000 + i));
+			props.setProperty("mapping_" + i + ".endpoint", Integer.toString(i));
+		}
+		props.setProperty("content.type", "XSL");
+		props.setProperty("content.url", new File("soap1.xsl").toURI().toString());
+		return props;
+	}
+
+	private void write(Properties props) throws IOException
+	{
+		write(configFile, props);
+	}
+
+	private static void write(File file, Properties props) throws IOException
+	{
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testReloadSwapsSnapshot() throws IOException
+	{
+		write(config("STOP", 2));
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.loadConfig(configFile));
+		DispatchConfig first = SMSKeywordDispatchReplyHandler.getConfig();
+		WebEndpoint[] firstEndpoints = first.getWebEndpoints();
+
+		// endpoint 1 removed, endpoint 0 unchanged
+		write(config("START", 1));
+		Assert.assertFalse(SMSKeywordDispatchReplyHandler.loadConfig(configFile));
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.reloadConfig(configFile));
+
+		DispatchConfig second = SMSKeywordDispatchReplyHandler.getConfig();
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals("START", SMSKeywordDispatchReplyHandler.getMatchPatterns()[0].pattern());
+		Assert.assertSame(firstEndpoints[0], second.getWebEndpoint(0));
+		Assert.assertFalse(firstEndpoints[0].isRetired());
+		Assert.assertTrue(firstEndpoints[1].isRetired());
+		Assert.assertNull(second.getNumberMapping("1001"));
+
+		// the old snapshot is unchanged for messages still using it
+		Assert.assertEquals("STOP", first.getMatchPattern(0).pattern());
+		Assert.assertEquals(Integer.valueOf(1), first.getNumberMapping("1001"));
+		Assert.assertSame(firstEndpoints[1], first.getWebEndpoint(1));
+	}
+
+	@Test
+	public void testChangedEndpointIsReplaced() throws IOException
+	{
+		write(config("STOP", 1));
+		SMSKeywordDispatchReplyHandler.loadConfig(configFile);
+		WebEndpoint before = SMSKeywordDispatchReplyHandler.getConfig().getWebEndpoint(0);
+
+		Properties props = config("STOP", 1);
+		props.setProperty("endpoint_0.failPercentage", "0.5");
+		write(props);
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.reloadConfig(configFile));
+
+		WebEndpoint after = SMSKeywordDispatchReplyHandler.getConfig().getWebEndpoint(0);
+		Assert.assertNotSame(before, after);
+		Assert.assertEquals(0.5, ((LogEndpoint) after).getFailPercentage(), 0.001);
+		Assert.assertEquals(before.getRetryDir(), after.getRetryDir());
+		// the old endpoint handed its retry store over instead of draining it
+		Assert.assertTrue(before.isRetired());
+		Assert.assertFalse(before.hasRetryTask());
+		Assert.assertTrue(after.hasRetryTask());
+	}
+
+	@Test
+	public void testInvalidReloadKeepsConfig() throws IOException
+	{
+		write(config("STOP", 1));
+		SMSKeywordDispatchReplyHandler.loadConfig(configFile);
+		DispatchConfig first = SMSKeywordDispatchReplyHandler.getConfig();
+
+		Properties props = config("START", 1);
+		props.setProperty("content.type", "BOGUS");
+		write(props);
+		Assert.assertFalse(SMSKeywordDispatchReplyHandler.reloadConfig(configFile));
+		Assert.assertSame(first, SMSKeywordDispatchReplyHandler.getConfig());
+		Assert.assertFalse(first.getWebEndpoint(0).isRetired());
+	}
+
+	@Test
+	public void testJournalFailureKeepsConfig() throws IOException
+	{
+		write(config("STOP", 1));
+		SMSKeywordDispatchReplyHandler.loadConfig(configFile);
+		DispatchConfig first = SMSKeywordDispatchReplyHandler.getConfig();
+		WebEndpoint before = first.getWebEndpoint(0);
+
+		// a plain file where the journal directory should go
+		write(new File(before.getRetryDir(), WebEndpoint.RETRY_JOURNAL_DIR), new Properties());
+		Properties props = config("STOP", 1);
+		props.setProperty("endpoint_0.retryStore", "JOURNAL");
+		write(props);
+		Assert.assertFalse(SMSKeywordDispatchReplyHandler.reloadConfig(configFile));
+
+		// the old endpoint was not handed over
+		Assert.assertSame(first, SMSKeywordDispatchReplyHandler.getConfig());
+		Assert.assertFalse(before.isRetired());
+		Assert.assertTrue(before.hasRetryTask());
+	}
+
+	@Test
+	public void testIndependentConfigs() throws IOException
+	{
+		File otherFile = new File(dir, "otherdispatch.properties");
+		write(config("STOP", 1));
+		write(otherFile, config("HELP", 2, "otherretry"));
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.loadConfig(configFile));
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.loadConfig(otherFile));
+
+		DispatchConfig first = SMSKeywordDispatchReplyHandler.getConfig(configFile);
+		DispatchConfig other = SMSKeywordDispatchReplyHandler.getConfig(otherFile);
+		Assert.assertSame(other, SMSKeywordDispatchReplyHandler.getConfig());
+		Assert.assertEquals("STOP", first.getMatchPattern(0).pattern());
+		Assert.assertEquals("HELP", other.getMatchPattern(0).pattern());
+		Assert.assertEquals(2, other.getEndpointCount());
+		Assert.assertEquals(3, WebEndpoint.getRetryScheduler().getThreadCount());
+
+		// reloading one config leaves the other alone
+		write(config("START", 1));
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.reloadConfig(configFile));
+		Assert.assertEquals("START", SMSKeywordDispatchReplyHandler.getConfig(configFile).getMatchPattern(0).pattern());
+		Assert.assertSame(other, SMSKeywordDispatchReplyHandler.getConfig(otherFile));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSharedRetryDirRejected() throws IOException
+	{
+		File otherFile = new File(dir, "otherdispatch.properties");
+		write(config("STOP", 1));
+		write(otherFile, config("HELP", 1));
+		SMSKeywordDispatchReplyHandler.loadConfig(configFile);
+		SMSKeywordDispatchReplyHandler.loadConfig(otherFile);
+	}
+
+	@Test
+	public void testMetricsRegistered() throws Exception
+	{
+		write(config("STOP", 2));
+		SMSKeywordDispatchReplyHandler.loadConfig(configFile);
+		DispatchMetrics metrics = SMSKeywordDispatchReplyHandler.getMetrics(configFile);
+		Assert.assertEquals("smskeyworddispatch", metrics.getHandlerName());
+		Assert.assertEquals(1, metrics.getPatternMatchCounts().length);
+		Assert.assertEquals(2, metrics.getMappingHits().size());
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Assert.assertTrue(server.isRegistered(metrics.objectName(null)));
+		Assert.assertTrue(server.isRegistered(metrics.objectName("handle")));
+		Assert.assertTrue(server.isRegistered(metrics.endpointName(1)));
+		Assert.assertEquals(Long.valueOf(0), server.getAttribute(metrics.endpointName(0), "DeliveredCount"));
+
+		metrics.recordMatch(0);
+		metrics.recordMatch(-1);
+		metrics.recordMatch(5);
+		metrics.recordMappingHit("1001");
+		metrics.recordMappingHit("9999");
+		Assert.assertEquals(1, metrics.getPatternMatchCounts()[0]);
+		Assert.assertEquals(1, metrics.getNotMatchedCount());
+		Assert.assertEquals(Long.valueOf(1), metrics.getMappingHits().get("1001"));
+
+		// endpoint 1 goes away; the mapping counts of kept numbers stay
+		write(config("STOP", 1));
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.reloadConfig(configFile));
+		Assert.assertFalse(server.isRegistered(metrics.endpointName(1)));
+		Assert.assertTrue(server.isRegistered(metrics.endpointName(0)));
+		Assert.assertNull(metrics.getMappingHits().get("1001"));
+		Assert.assertEquals(0, metrics.getPatternMatchCounts()[0]);
+
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+		Assert.assertFalse(server.isRegistered(metrics.objectName(null)));
+		Assert.assertFalse(server.isRegistered(metrics.endpointName(0)));
+	}
+
+	@Test
+	public void testWatcherReloads() throws Exception
+	{
+		Properties props = config("STOP", 1);
+		props.setProperty("config_reload", "true");
+		props.setProperty("config_reload_delayMS", "50");
+		write(props);
+		SMSKeywordDispatchReplyHandler.loadConfig(configFile);
+		SMSKeywordDispatchReplyHandler.startConfigWatcher(configFile);
+		DispatchConfig first = SMSKeywordDispatchReplyHandler.getConfig();
+		Assert.assertTrue(first.isConfigReload());
+		Assert.assertEquals(50, first.getConfigReloadDelayMS());
+
+		props.setProperty("regex_0.pattern", "START");
+		write(props);
+		long deadline = System.currentTimeMillis() + 20000;
+		while (SMSKeywordDispatchReplyHandler.getConfig() == first
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals("START", SMSKeywordDispatchReplyHandler.getMatchPatterns()[0].pattern());
+	}
+}
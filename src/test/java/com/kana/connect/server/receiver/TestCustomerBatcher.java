@@ -0,0 +1,404 @@
+package com.kana.connect.server.receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCustomerBatcher
+{
+	// customer table in a map; records the numbers of every query
+	static class FakeTable implements CustomerBatcher.BatchQuery
+	{
+		final Map<String, Long> customers = new HashMap<String, Long>();
+		final List<List<String>> queries = Collections.synchronizedList(new ArrayList<List<String>>());
+		// queries wait for this
+		CountDownLatch gate = new CountDownLatch(0);
+		RuntimeException failure;
+
+		public Map<String, Long> findCustomerIDs(List<String> smsNumbers) throws Exception
+		{
+			gate.await();
+			queries.add(new ArrayList<String>(smsNumbers));
+			if (failure != null) {
+				throw failure;
+			}
+			Map<String, Long> found = new HashMap<String, Long>();
+			for (String number : smsNumbers) {
+				if (customers.containsKey(number)) {
+					found.put(number, customers.get(number));
+				}
+			}
+			return found;
+		}
+	}
+
+	private CustomerBatcher batcher;
+	private FakeTable table;
+	private File dir;
+
+	@Before
+	public void setup() throws IOException
+	{
+		table = new FakeTable();
+		table.customers.put("14155551212", Long.valueOf(7));
+		table.customers.put("14155551313", Long.valueOf(8));
+		dir = File.createTempFile("customerBatcher", "");
+		dir.delete();
+		dir.mkdirs();
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+	}
+
+	@After
+	public void cleanup()
+	{
+		if (batcher != null) {
+			batcher.shutdown();
+		}
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+		File[] list = dir.listFiles();
+		for (int i = 0; list != null && i < list.length; i++) {
+			list[i].delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testLookupsCoalesced() throws Exception
+	{
+		batcher = new CustomerBatcher(table, 100, 200, 1, 5000);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		futures.add(batcher.lookup("14155551212"));
+		futures.add(batcher.lookup("14155551313"));
+		futures.add(batcher.lookup("19995550000"));
+		futures.add(batcher.lookup("14155551212"));
+
+		Assert.assertEquals(Long.valueOf(7), futures.get(0).get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Long.valueOf(8), futures.get(1).get(5, TimeUnit.SECONDS));
+		Assert.assertNull(futures.get(2).get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Long.valueOf(7), futures.get(3).get(5, TimeUnit.SECONDS));
+
+		// one query, each number once
+		Assert.assertEquals(1, table.queries.size());
+		Assert.assertEquals(3, table.queries.get(0).size());
+		Assert.assertEquals(1, batcher.getBatchCount());
+		Assert.assertEquals(3, batcher.getLookupCount());
+	}
+
+	@Test
+	public void testBatchSizeLimit() throws Exception
+	{
+		// hold the worker so that the lookups queue up
+		table.gate = new CountDownLatch(1);
+		batcher = new CustomerBatcher(table, 4, 50, 1, 5000);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(batcher.lookup("1415555" + (1000 + i)));
+		}
+		table.gate.countDown();
+		for (Future<Long> f : futures) {
+			Assert.assertNull(f.get(5, TimeUnit.SECONDS));
+		}
+		int total = 0;
+		for (List<String> q : table.queries) {
+			Assert.assertTrue(q.size() <= 4);
+			total += q.size();
+		}
+		Assert.assertEquals(10, total);
+		Assert.assertTrue(table.queries.size() >= 3);
+	}
+
+	@Test
+	public void testQueryFailure() throws Exception
+	{
+		table.failure = new IllegalStateException("database down");
+		batcher = new CustomerBatcher(table, 10, 0, 1, 5000);
+		try {
+			batcher.lookup("14155551212").get(5, TimeUnit.SECONDS);
+			Assert.fail("expected the query failure");
+		} catch (ExecutionException x) {
+			Assert.assertSame(table.failure, x.getCause());
+		}
+		Assert.assertEquals(0, batcher.getBatchCount());
+	}
+
+	@Test
+	public void testTimeout() throws Exception
+	{
+		table.gate = new CountDownLatch(1);
+		batcher = new CustomerBatcher(table, 10, 0, 1, 50);
+		try {
+			batcher.findCustomerID("14155551212");
+			Assert.fail("expected a timeout");
+		} catch (TimeoutException x) {
+			// the caller goes on without a customer
+		} finally {
+			table.gate.countDown();
+		}
+	}
+
+	@Test
+	public void testShutdownDrainsQueue() throws Exception
+	{
+		table.gate = new CountDownLatch(1);
+		batcher = new CustomerBatcher(table, 1, 0, 1, 5000);
+		Future<Long> first = batcher.lookup("14155551212");
+		Future<Long> second = batcher.lookup("14155551313");
+		batcher.shutdown();
+		table.gate.countDown();
+
+		// queued before the shutdown: still answered
+		Assert.assertEquals(Long.valueOf(7), first.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Long.valueOf(8), second.get(5, TimeUnit.SECONDS));
+		try {
+			batcher.lookup("14155551212").get(5, TimeUnit.SECONDS);
+			Assert.fail("expected the lookup to be rejected");
+		} catch (CancellationException x) {
+			// after the shutdown
+		}
+	}
+
+	//
+	// JDBC
+	//
+
+	// just enough of a database for JdbcCustomerQuery: answers
+	// "... WHERE col IN (?, ...)" from a map and records the SQL
+	static class FakeDatabase
+	{
+		final Map<String, Long> customers = new HashMap<String, Long>();
+		final List<String> statements = new ArrayList<String>();
+		int connects;
+		int closes;
+
+		Connection connect()
+		{
+			connects++;
+			return proxy(Connection.class, new InvocationHandler() {
+				public Object invoke(Object p, Method m, Object[] args) {
+					if (m.getName().equals("prepareStatement")) {
+						statements.add((String) args[0]);
+						return statement();
+					}
+					if (m.getName().equals("close")) {
+						closes++;
+					}
+					return null;
+				}
+			});
+		}
+
+		private PreparedStatement statement()
+		{
+			final Set<String> params = new LinkedHashSet<String>();
+			return proxy(PreparedStatement.class, new InvocationHandler() {
+				public Object invoke(Object p, Method m, Object[] args) {
+					if (m.getName().equals("setString")) {
+						params.add((String) args[1]);
+					}
+					else if (m.getName().equals("executeQuery")) {
+						return results(params);
+					}
+					return null;
+				}
+			});
+		}
+
+		private ResultSet results(Set<String> params)
+		{
+			final List<String> rows = new ArrayList<String>();
+			for (String number : params) {
+				if (customers.containsKey(number)) {
+					rows.add(number);
+				}
+			}
+			final Iterator<String> it = rows.iterator();
+			return proxy(ResultSet.class, new InvocationHandler() {
+				String row;
+
+				public Object invoke(Object p, Method m, Object[] args) {
+					if (m.getName().equals("next")) {
+						row = it.hasNext() ? it.next() : null;
+						return Boolean.valueOf(row != null);
+					}
+					if (m.getName().equals("getLong")) {
+						return customers.get(row);
+					}
+					if (m.getName().equals("getString")) {
+						return row;
+					}
+					return null;
+				}
+			});
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> T proxy(Class<T> type, InvocationHandler h)
+		{
+			return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, h);
+		}
+	}
+
+	@Test
+	public void testJdbcQuery() throws Exception
+	{
+		final FakeDatabase db = new FakeDatabase();
+		db.customers.put("14155551212", Long.valueOf(7));
+		db.customers.put("14155551313", Long.valueOf(8));
+		JdbcCustomerQuery query = new JdbcCustomerQuery("jdbc:fake", null, null,
+				"CUSTOMER", "CUSTOMER_ID", "SMS_NUMBER") {
+			protected Connection connect() {
+				return db.connect();
+			}
+		};
+
+		List<String> numbers = new ArrayList<String>();
+		numbers.add("14155551212");
+		numbers.add("14155551313");
+		numbers.add("19995550000");
+		Map<String, Long> found = query.findCustomerIDs(numbers);
+		Assert.assertEquals(2, found.size());
+		Assert.assertEquals(Long.valueOf(7), found.get("14155551212"));
+		Assert.assertEquals(Long.valueOf(8), found.get("14155551313"));
+
+		// padded to 4 slots; the connection is kept for the next batch
+		Assert.assertEquals("SELECT CUSTOMER_ID, SMS_NUMBER FROM CUSTOMER"
+				+ " WHERE SMS_NUMBER IN (?, ?, ?, ?)", db.statements.get(0));
+		query.findCustomerIDs(numbers.subList(0, 1));
+		Assert.assertEquals(1, db.connects);
+		query.close();
+		Assert.assertEquals(1, db.closes);
+	}
+
+	@Test
+	public void testPaddedSize()
+	{
+		Assert.assertEquals(1, JdbcCustomerQuery.paddedSize(1));
+		Assert.assertEquals(2, JdbcCustomerQuery.paddedSize(2));
+		Assert.assertEquals(8, JdbcCustomerQuery.paddedSize(5));
+		Assert.assertEquals(64, JdbcCustomerQuery.paddedSize(64));
+		Assert.assertEquals(1000, JdbcCustomerQuery.paddedSize(600));
+		Assert.assertEquals(1200, JdbcCustomerQuery.paddedSize(1200));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidColumn()
+	{
+		new JdbcCustomerQuery("jdbc:fake", null, null, "CUSTOMER", "CUSTOMER_ID", "SMS_NUMBER; DROP");
+	}
+
+	// serves FakeDatabase connections for jdbc:fakecustomers URLs
+	private static Driver fakeDriver(final FakeDatabase db)
+	{
+		return FakeDatabase.proxy(Driver.class, new InvocationHandler() {
+			public Object invoke(Object p, Method m, Object[] args) {
+				String name = m.getName();
+				if (name.equals("acceptsURL")) {
+					return Boolean.valueOf(((String) args[0]).startsWith("jdbc:fakecustomers"));
+				}
+				if (name.equals("connect")) {
+					return ((String) args[0]).startsWith("jdbc:fakecustomers") ? db.connect() : null;
+				}
+				if (name.equals("equals")) {
+					return Boolean.valueOf(p == args[0]);
+				}
+				if (name.equals("hashCode")) {
+					return Integer.valueOf(System.identityHashCode(p));
+				}
+				if (name.equals("toString")) {
+					return "FakeDriver";
+				}
+				return null;
+			}
+		});
+	}
+
+	// batch lookup settings on top of DispatchTestConfig
+	private Properties handlerConfig()
+	{
+		Properties props = new Properties();
+		props.setProperty("customer_batch_size", "50");
+		props.setProperty("customer_batch_lingerMS", "5");
+		props.setProperty("customer_batch_jdbcUrl", "jdbc:fakecustomers");
+		props.setProperty("customer_batch_table", "CUSTOMER");
+		props.setProperty("customer_batch_idColumn", "CUSTOMER_ID");
+		props.setProperty("customer_batch_numberColumn", "SMS_NUMBER");
+		return props;
+	}
+
+	@Test
+	public void testHandlerConfig() throws Exception
+	{
+		FakeDatabase db = new FakeDatabase();
+		db.customers.put("14155551212", Long.valueOf(7));
+		Driver driver = fakeDriver(db);
+		DriverManager.registerDriver(driver);
+		try {
+			File file = DispatchTestConfig.write(dir, handlerConfig());
+			SMSKeywordDispatchReplyHandler.loadConfig(file);
+			DispatchConfig cfg = SMSKeywordDispatchReplyHandler.getConfig(file);
+			CustomerBatcher b = cfg.getCustomerBatcher();
+			Assert.assertEquals(50, b.getBatchSize());
+			Assert.assertEquals(5, b.getLingerMS());
+			Assert.assertEquals(CustomerBatcher.DEFAULT_THREADS, b.getThreads());
+			Assert.assertEquals("jdbc:fakecustomers", ((JdbcCustomerQuery) b.getQuery()).getUrl());
+
+			// found once by the batch, then from the cache
+			SMSKeywordDispatchReplyHandler handler = new SMSKeywordDispatchReplyHandler();
+			Assert.assertEquals(Long.valueOf(7), handler.findCustomerID(cfg, "14155551212"));
+			Assert.assertEquals(Long.valueOf(7), handler.findCustomerID(cfg, "14155551212"));
+			Assert.assertEquals(1, b.getBatchCount());
+			Assert.assertEquals(1, SMSKeywordDispatchReplyHandler.getMetrics(file).getCustomerBatchLookupCount());
+		} finally {
+			DriverManager.deregisterDriver(driver);
+		}
+	}
+
+	@Test
+	public void testHandlerConfigRejected() throws IOException
+	{
+		Properties noUrl = handlerConfig();
+		noUrl.remove("customer_batch_jdbcUrl");
+		Properties tooBig = handlerConfig();
+		tooBig.setProperty("customer_batch_size", "1001");
+		Properties badColumn = handlerConfig();
+		badColumn.setProperty("customer_batch_idColumn", "ID; DROP");
+		Properties[] configs = { noUrl, tooBig, badColumn };
+		for (int i = 0; i < configs.length; i++) {
+			File file = DispatchTestConfig.write(dir, configs[i]);
+			try {
+				SMSKeywordDispatchReplyHandler.loadConfig(file);
+				Assert.fail("expected config " + i + " to be rejected");
+			} catch (IllegalArgumentException x) {
+				// expected
+			}
+			Assert.assertNull(SMSKeywordDispatchReplyHandler.getConfig(file));
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.kana.connect.server.receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.kana.connect.common.db.CustomerRow;
+
+public class TestCustomerCache
+{
+	// cache with a clock the test moves
+	static class ManualClockCache extends CustomerCache
+	{
+		long nowMS;
+
+		ManualClockCache(int maxSize, long ttlMS, long negativeTtlMS)
+		{
+			super(maxSize, ttlMS, negativeTtlMS);
+		}
+
+		long now()
+		{
+			return TimeUnit.MILLISECONDS.toNanos(nowMS);
+		}
+	}
+
+	// handler whose customer table is a map; counts the lookups
+	static class CountingHandler extends SMSKeywordDispatchReplyHandler
+	{
+		final Map<String, Long> customers = new HashMap<String, Long>();
+		int lookups;
+
+		protected CustomerRow lookupCustomer(String smsNumber)
+		{
+			lookups++;
+			final Long id = customers.get(smsNumber);
+			if (id == null) {
+				return null;
+			}
+			return new CustomerRow() {
+				public long getID() {
+					return id.longValue();
+				}
+			};
+		}
+	}
+
+	private File dir;
+
+	@Before
+	public void setup() throws IOException
+	{
+		dir = File.createTempFile("customerCache", "");
+		dir.delete();
+		dir.mkdirs();
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+	}
+
+	@After
+	public void cleanup()
+	{
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+		delete(dir);
+	}
+
+	private static void delete(File f)
+	{
+		File[] list = f.listFiles();
+		for (int i = 0; list != null && i < list.length; i++) {
+			delete(list[i]);
+		}
+		f.delete();
+	}
+
+	@Test
+	public void testTtlAndNegativeEntries()
+	{
+		ManualClockCache cache = new ManualClockCache(100, 1000, 100);
+		Assert.assertNull(cache.get("1"));
+		cache.put("1", Long.valueOf(42), cache.getGeneration());
+		cache.put("2", null, cache.getGeneration());
+		Assert.assertEquals(Long.valueOf(42), cache.get("1"));
+		Assert.assertEquals(CustomerCache.NOT_FOUND, cache.get("2"));
+
+		// the negative entry expires first
+		cache.nowMS = 100;
+		Assert.assertNull(cache.get("2"));
+		Assert.assertEquals(Long.valueOf(42), cache.get("1"));
+		cache.nowMS = 1000;
+		Assert.assertNull(cache.get("1"));
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(3, cache.getHitCount());
+		Assert.assertEquals(3, cache.getMissCount());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedGoes()
+	{
+		// small caches have one segment
+		CustomerCache cache = new CustomerCache(3, 60000, 60000);
+		long gen = cache.getGeneration();
+		cache.put("a", Long.valueOf(1), gen);
+		cache.put("b", Long.valueOf(2), gen);
+		cache.put("c", Long.valueOf(3), gen);
+		cache.get("a");
+		cache.put("d", Long.valueOf(4), gen);
+		Assert.assertEquals(3, cache.size());
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals(Long.valueOf(1), cache.get("a"));
+
+		// bounded with segments too
+		CustomerCache big = new CustomerCache(1000, 60000, 60000);
+		for (int i = 0; i < 5000; i++) {
+			big.put(Integer.toString(i), Long.valueOf(i), big.getGeneration());
+		}
+		Assert.assertTrue(big.size() <= 1008);
+	}
+
+	@Test
+	public void testInvalidation()
+	{
+		CustomerCache cache = new CustomerCache(100, 60000, 60000);
+		cache.put("1", Long.valueOf(1), cache.getGeneration());
+		cache.put("2", Long.valueOf(2), cache.getGeneration());
+
+		// a lookup that started before the invalidation is not cached
+		long gen = cache.getGeneration();
+		cache.invalidate("1");
+		Assert.assertNull(cache.get("1"));
+		cache.put("1", Long.valueOf(1), gen);
+		Assert.assertNull(cache.get("1"));
+		Assert.assertEquals(Long.valueOf(2), cache.get("2"));
+
+		cache.invalidateAll();
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testHandlerUsesCache() throws IOException
+	{
+		Properties extra = new Properties();
+		extra.setProperty("content.customer", "true");
+		File file = DispatchTestConfig.write(dir, extra);
+		SMSKeywordDispatchReplyHandler.loadConfig(file);
+		DispatchConfig cfg = SMSKeywordDispatchReplyHandler.getConfig(file);
+		Assert.assertTrue(cfg.isContentCustomer());
+		Assert.assertEquals(CustomerCache.DEFAULT_SIZE, cfg.getCustomerCache().getMaxSize());
+
+		CountingHandler handler = new CountingHandler();
+		handler.customers.put("14155551212", Long.valueOf(7));
+		Assert.assertEquals(Long.valueOf(7), handler.findCustomerID(cfg, "14155551212"));
+		Assert.assertEquals(Long.valueOf(7), handler.findCustomerID(cfg, "14155551212"));
+		Assert.assertNull(handler.findCustomerID(cfg, "19995550000"));
+		Assert.assertNull(handler.findCustomerID(cfg, "19995550000"));
+		Assert.assertNull(handler.findCustomerID(cfg, null));
+		Assert.assertEquals(2, handler.lookups);
+
+		// the customer changed numbers
+		handler.customers.put("14155551212", Long.valueOf(8));
+		SMSKeywordDispatchReplyHandler.invalidateCustomer("14155551212");
+		Assert.assertEquals(Long.valueOf(8), handler.findCustomerID(cfg, "14155551212"));
+		Assert.assertEquals(3, handler.lookups);
+
+		// a reload with the same cache settings keeps the entries
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.reloadConfig(file));
+		DispatchConfig reloaded = SMSKeywordDispatchReplyHandler.getConfig(file);
+		Assert.assertSame(cfg.getCustomerCache(), reloaded.getCustomerCache());
+		Assert.assertEquals(2, SMSKeywordDispatchReplyHandler.getMetrics(file).getCustomerCacheSize());
+	}
+
+	@Test
+	public void testCacheDisabled() throws IOException
+	{
+		Properties extra = new Properties();
+		extra.setProperty("customer_cache_size", "0");
+		File file = DispatchTestConfig.write(dir, "nocache.properties", extra);
+		SMSKeywordDispatchReplyHandler.loadConfig(file);
+		DispatchConfig cfg = SMSKeywordDispatchReplyHandler.getConfig(file);
+		Assert.assertFalse(cfg.isContentCustomer());
+		Assert.assertNull(cfg.getCustomerCache());
+
+		CountingHandler handler = new CountingHandler();
+		handler.findCustomerID(cfg, "14155551212");
+		handler.findCustomerID(cfg, "14155551212");
+		Assert.assertEquals(2, handler.lookups);
+	}
+}
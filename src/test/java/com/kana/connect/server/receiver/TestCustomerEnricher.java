@@ -0,0 +1,183 @@
+package com.kana.connect.server.receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.kana.connect.common.db.CustomerRow;
+
+import net.brickst.connect.custom.content.SmppDocument;
+
+public class TestCustomerEnricher
+{
+	// customer table with one customer; SLOW blocks until released
+	static class FakeSource implements CustomerEnricher.CustomerSource
+	{
+		final Map<String, String> attributes = new HashMap<String, String>();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		public CustomerRow findCustomer(String smsNumber)
+		{
+			if (!"14155551212".equals(smsNumber)) {
+				return null;
+			}
+			return new CustomerRow() {
+				public long getID() {
+					return 7;
+				}
+			};
+		}
+
+		public Object getAttribute(CustomerRow cust, String name) throws Exception
+		{
+			if ("SLOW".equals(name)) {
+				release.await();
+			}
+			if ("BROKEN".equals(name)) {
+				throw new IllegalStateException("no such column");
+			}
+			return attributes.get(name);
+		}
+	}
+
+	private CustomerEnricher enricher;
+	private File dir;
+
+	@Before
+	public void setup() throws IOException
+	{
+		dir = File.createTempFile("customerEnricher", "");
+		dir.delete();
+		dir.mkdirs();
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+	}
+
+	@After
+	public void cleanup()
+	{
+		if (enricher != null) {
+			enricher.shutdown();
+		}
+		SMSKeywordDispatchReplyHandler.clearConfigs();
+		File[] list = dir.listFiles();
+		for (int i = 0; list != null && i < list.length; i++) {
+			list[i].delete();
+		}
+		dir.delete();
+	}
+
+	private static SmppDocument newDocument()
+	{
+		SmppDocument doc = new SmppDocument();
+		doc.setSourceAddress("14155551212");
+		doc.setDestinationAddress("1000");
+		doc.setMessageText("BAL");
+		return doc;
+	}
+
+	@Test
+	public void testAttributesAdded()
+	{
+		enricher = new CustomerEnricher(Arrays.asList("FIRST_NAME", "TIER", "EMPTY"), 5000, 2);
+		FakeSource source = new FakeSource();
+		source.attributes.put("FIRST_NAME", "Ann");
+		source.attributes.put("TIER", "gold");
+
+		SmppDocument doc = newDocument();
+		CustomerEnricher.Enrichment e = enricher.start("14155551212", source);
+		Assert.assertEquals(Long.valueOf(7), e.applyTo(doc));
+		Assert.assertEquals(Long.valueOf(7), doc.getCustomerId());
+		Map<String, String> attrs = doc.getCustomerAttributes();
+		Assert.assertEquals(2, attrs.size());
+		Assert.assertEquals("Ann", attrs.get("FIRST_NAME"));
+		Assert.assertEquals("gold", attrs.get("TIER"));
+		Assert.assertEquals(0, e.getTimeoutCount());
+	}
+
+	@Test
+	public void testUnknownCustomer()
+	{
+		enricher = new CustomerEnricher(Arrays.asList("FIRST_NAME"), 5000, 1);
+		SmppDocument doc = newDocument();
+		Assert.assertNull(enricher.start("19995550000", new FakeSource()).applyTo(doc));
+		Assert.assertNull(doc.getCustomerId());
+		Assert.assertTrue(doc.getCustomerAttributes().isEmpty());
+		Assert.assertNull(enricher.start(null, new FakeSource()).applyTo(doc));
+	}
+
+	@Test
+	public void testSlowAttributeLeftOut()
+	{
+		enricher = new CustomerEnricher(Arrays.asList("FIRST_NAME", "SLOW", "BROKEN"), 100, 4);
+		FakeSource source = new FakeSource();
+		source.attributes.put("FIRST_NAME", "Ann");
+		source.attributes.put("SLOW", "late");
+		try {
+			SmppDocument doc = newDocument();
+			long start = System.nanoTime();
+			CustomerEnricher.Enrichment e = enricher.start("14155551212", source);
+			Assert.assertEquals(Long.valueOf(7), e.applyTo(doc));
+			long waitedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			Assert.assertTrue("waited " + waitedMS + "ms", waitedMS < 2000);
+
+			Assert.assertEquals("Ann", doc.getCustomerAttributes().get("FIRST_NAME"));
+			Assert.assertFalse(doc.getCustomerAttributes().containsKey("SLOW"));
+			Assert.assertFalse(doc.getCustomerAttributes().containsKey("BROKEN"));
+			Assert.assertEquals(1, e.getTimeoutCount());
+		} finally {
+			source.release.countDown();
+		}
+	}
+
+	@Test
+	public void testShutdown()
+	{
+		enricher = new CustomerEnricher(Arrays.asList("FIRST_NAME"), 5000, 1);
+		enricher.shutdown();
+		SmppDocument doc = newDocument();
+		Assert.assertNull(enricher.start("14155551212", new FakeSource()).applyTo(doc));
+		Assert.assertNull(doc.getCustomerId());
+	}
+
+	@Test
+	public void testConfig() throws IOException
+	{
+		Properties extra = new Properties();
+		extra.setProperty("content.customerAttributes", "FIRST_NAME, TIER,");
+		extra.setProperty("content.customerTimeoutMS", "50");
+		File file = DispatchTestConfig.write(dir, extra);
+		SMSKeywordDispatchReplyHandler.loadConfig(file);
+		DispatchConfig cfg = SMSKeywordDispatchReplyHandler.getConfig(file);
+		Assert.assertTrue(cfg.isContentCustomer());
+		CustomerEnricher e = cfg.getCustomerEnricher();
+		Assert.assertEquals(Arrays.asList("FIRST_NAME", "TIER"), e.getAttributes());
+		Assert.assertEquals(50, e.getTimeoutMS());
+		Assert.assertEquals(CustomerEnricher.DEFAULT_THREADS, e.getThreads());
+
+		// unchanged settings keep the enricher
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.reloadConfig(file));
+		Assert.assertSame(e, SMSKeywordDispatchReplyHandler.getConfig(file).getCustomerEnricher());
+
+		// a config that fails later on keeps the current enricher
+		extra.setProperty("content.customerAttributes", "FIRST_NAME");
+		extra.setProperty("return_value", "9");
+		file = DispatchTestConfig.write(dir, extra);
+		Assert.assertFalse(SMSKeywordDispatchReplyHandler.reloadConfig(file));
+		Assert.assertSame(e, SMSKeywordDispatchReplyHandler.getConfig(file).getCustomerEnricher());
+
+		// without attributes there is none
+		file = DispatchTestConfig.write(dir, new Properties());
+		Assert.assertTrue(SMSKeywordDispatchReplyHandler.reloadConfig(file));
+		Assert.assertNull(SMSKeywordDispatchReplyHandler.getConfig(file).getCustomerEnricher());
+	}
+}
@@ -0,0 +1,98 @@
+package net.brickst.connect.custom.content;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSmppDocument
+{
+    private static SmppDocument newDocument(String text)
+    {
+        SmppDocument doc = new SmppDocument();
+        doc.setCommandId(5);
+        doc.setSequenceNumber(42);
+        doc.setSourceTON(1);
+        doc.setSourceNPI(1);
+        doc.setSourceAddress("14155551212");
+        doc.setDestinationTON(0);
+        doc.setDestinationNPI(0);
+        doc.setDestinationAddress("16035551212");
+        doc.setMessageId("id<1>&\"2\"");
+        doc.setMessageText(text);
+        doc.setTimestamp(1458000000000L);
+        return doc;
+    }
+
+    private static String identity(Source source) throws Exception
+    {
+        Transformer trans = TransformerFactory.newInstance().newTransformer();
+        StringWriter sw = new StringWriter();
+        trans.transform(source, new StreamResult(sw));
+        return sw.toString();
+    }
+
+    private static void assertSameDocument(SmppDocument doc) throws Exception
+    {
+        String parsed = identity(new StreamSource(new StringReader(doc.toXml())));
+        String events = identity(doc.toSAXSource());
+        Assert.assertEquals(parsed, events);
+    }
+
+    @Test
+    public void testSameAsParsedXml() throws Exception
+    {
+        assertSameDocument(newDocument("BAL"));
+        assertSameDocument(newDocument(""));
+        assertSameDocument(newDocument("a < b && c > 'd' \"e\""));
+        assertSameDocument(newDocument("line1\r\nline2\rline3\nline4\ttab"));
+        assertSameDocument(newDocument("caf\u00e9 \u4e2d\u6587 \ud83d\ude00"));
+        // dropped by escapeXml11
+        assertSameDocument(newDocument("nul\u0000 bad\ud800 \ufffe\uffff end"));
+    }
+
+    @Test
+    public void testCustomer() throws Exception
+    {
+        SmppDocument doc = newDocument("BAL");
+        Assert.assertFalse(doc.toXml().contains("<customer>"));
+        doc.setCustomerId(Long.valueOf(1234));
+        Assert.assertTrue(doc.toXml().contains("<customer><id>1234</id></customer>\n<messageid>"));
+        assertSameDocument(doc);
+    }
+
+    @Test
+    public void testCustomerAttributes() throws Exception
+    {
+        SmppDocument doc = newDocument("BAL");
+        doc.setCustomerId(Long.valueOf(1234));
+        doc.setCustomerAttribute("FIRST_NAME", "Ann & Bob");
+        doc.setCustomerAttribute("TIER", "gold");
+        Assert.assertTrue(doc.toXml().contains("<customer><id>1234</id>"
+                + "<attribute name=\"FIRST_NAME\">Ann &amp; Bob</attribute>"
+                + "<attribute name=\"TIER\">gold</attribute></customer>\n"));
+        assertSameDocument(doc);
+    }
+
+    @Test
+    public void testSameTemplateOutput() throws Exception
+    {
+        XslContent xc = new XslContent();
+        xc.setXslLocation(new File("soap1.xsl").toURI().toURL());
+        xc.initNetworkResources();
+
+        SmppDocument doc = newDocument("Test Msg 1 & more");
+        String fromString = xc.transformDocument(doc.toXml());
+        String fromEvents = xc.transformDocument(doc.toSAXSource());
+        Assert.assertEquals(fromString, fromEvents);
+        Assert.assertTrue(fromEvents.contains("14155551212"));
+    }
+}
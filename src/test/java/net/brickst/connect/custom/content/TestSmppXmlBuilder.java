@@ -0,0 +1,150 @@
+package net.brickst.connect.custom.content;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSmppXmlBuilder
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the original smppToXml, with the UTC zone actually applied
+    private static String legacyXml(SmppDocument doc)
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append("<smpp>\n");
+        buf.append("<header>");
+        buf.append("<command_id>").append(doc.getCommandId()).append("</command_id>");
+        buf.append("<sequence_number>").append(doc.getSequenceNumber()).append("</sequence_number>");
+        buf.append("</header>\n");
+        buf.append("<source>");
+        buf.append("<ton>").append(doc.getSourceTON()).append("</ton>");
+        buf.append("<npi>").append(doc.getSourceNPI()).append("</npi>");
+        buf.append("<address>").append(StringEscapeUtils.escapeXml11(doc.getSourceAddress())).append("</address>");
+        buf.append("</source>\n");
+        buf.append("<destination>");
+        buf.append("<ton>").append(doc.getDestinationTON()).append("</ton>");
+        buf.append("<npi>").append(doc.getDestinationNPI()).append("</npi>");
+        buf.append("<address>").append(StringEscapeUtils.escapeXml11(doc.getDestinationAddress())).append("</address>");
+        buf.append("</destination>\n");
+        buf.append("<messageid>").append(StringEscapeUtils.escapeXml11(doc.getMessageId())).append("</messageid>\n");
+        buf.append("<message>");
+        buf.append(StringEscapeUtils.escapeXml11(doc.getMessageText()));
+        buf.append("</message>\n");
+        buf.append("<messageBase64>");
+        buf.append(Base64.encodeBase64String(doc.getMessageText().getBytes(UTF8)));
+        buf.append("</messageBase64>\n");
+
+        DateTimeFormatter isoFormat = ISODateTimeFormat.dateTime().withZoneUTC();
+        String headerTimestamp = StringEscapeUtils.escapeXml11(isoFormat.print(doc.getTimestamp()));
+        DateTimeFormatter otherFormat = DateTimeFormat.forPattern("ddMMYYYYHHmmz");
+        String payloadTimestamp = StringEscapeUtils.escapeXml11(otherFormat.print(doc.getTimestamp()));
+        buf.append("<headertimestamp>").append(headerTimestamp).append("</headertimestamp>");
+        buf.append("<payloadtimestamp>").append(payloadTimestamp).append("</payloadtimestamp>");
+        buf.append("</smpp>\n");
+        return buf.toString();
+    }
+
+    private static SmppDocument newDocument(String text, long ts)
+    {
+        SmppDocument doc = new SmppDocument();
+        doc.setCommandId(5);
+        doc.setSequenceNumber(7);
+        doc.setSourceTON(1);
+        doc.setSourceNPI(1);
+        doc.setSourceAddress("14155551212");
+        doc.setDestinationAddress("16035551212");
+        doc.setMessageId(null);
+        doc.setMessageText(text);
+        doc.setTimestamp(ts);
+        return doc;
+    }
+
+    private static String randomText(Random rnd, int len)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            switch (rnd.nextInt(4)) {
+            case 0:
+                sb.append((char) rnd.nextInt(0xa0));
+                break;
+            case 1:
+                sb.append("<>&'\"".charAt(rnd.nextInt(5)));
+                break;
+            case 2:
+                sb.append((char) (0xd800 + rnd.nextInt(0x800)));
+                break;
+            default:
+                sb.append((char) rnd.nextInt(0x10000));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testSameAsLegacyExceptUtc()
+    {
+        long[] times = { 1458000000000L, 1458000000007L, 1458000000999L, 1458000001000L,
+            1458000060123L, 0L, -1L, -1001L };
+        for (long ts : times) {
+            SmppDocument doc = newDocument("BAL <x> & 'y' \"z\" caf\u00e9", ts);
+            Assert.assertEquals(legacyXml(doc), doc.toXml());
+            Assert.assertTrue(doc.getHeaderTimestamp().endsWith("Z"));
+        }
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            SmppDocument doc = newDocument(randomText(rnd, rnd.nextInt(200)),
+                1458000000000L + rnd.nextInt(100000));
+            Assert.assertEquals(legacyXml(doc), doc.toXml());
+        }
+    }
+
+    @Test
+    public void testEscapeMatchesEscapeXml11()
+    {
+        SmppXmlBuilder b = new SmppXmlBuilder();
+        Random rnd = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            String s = randomText(rnd, rnd.nextInt(50));
+            b.appendEscaped(s);
+            Assert.assertEquals(StringEscapeUtils.escapeXml11(s), b.takeBuffer());
+        }
+    }
+
+    @Test
+    public void testBase64MatchesCodec()
+    {
+        SmppXmlBuilder b = new SmppXmlBuilder();
+        Random rnd = new Random(11);
+        for (int len = 0; len < 100; len++) {
+            byte[] data = new byte[len];
+            rnd.nextBytes(data);
+            b.appendBase64(data);
+            Assert.assertEquals(Base64.encodeBase64String(data), b.takeBuffer());
+        }
+    }
+
+    @Test
+    public void testBuilderReusedPerThread()
+    {
+        Assert.assertSame(SmppXmlBuilder.get(), SmppXmlBuilder.get());
+
+        // a huge document doesn't break later ones
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            big.append('x');
+        }
+        SmppDocument doc = newDocument(big.toString(), 1458000000000L);
+        Assert.assertEquals(legacyXml(doc), doc.toXml());
+        doc = newDocument("small", 1458000000000L);
+        Assert.assertEquals(legacyXml(doc), doc.toXml());
+    }
+}
@@ -0,0 +1,148 @@
+package net.brickst.connect.custom.content;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.transform.Transformer;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestXslTransformerPool
+{
+    private static final String XML = "<smpp><source><ton>1</ton><npi>1</npi>"
+        + "<address>16035551212</address></source>"
+        + "<messageid>abc123</messageid></smpp>";
+
+    private XslContent xc;
+
+    @Before
+    public void setup() throws Exception
+    {
+        xc = new XslContent();
+        xc.setXslLocation(new File("soap1.xsl").toURI().toURL());
+        xc.setTransformerPoolSize(2);
+        xc.initNetworkResources();
+    }
+
+    @Test
+    public void testOverloadsAgree() throws Exception
+    {
+        String xform = xc.transformDocument(XML);
+        Assert.assertTrue(xform.contains("abc123"));
+        Assert.assertTrue(xform.contains("16035551212"));
+
+        StringWriter sw = new StringWriter();
+        xc.transformDocument(XML, sw);
+        Assert.assertEquals(xform, sw.toString());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        xc.transformDocument(XML, baos);
+        Assert.assertTrue(baos.toString("ISO-8859-1").contains("abc123"));
+    }
+
+    @Test
+    public void testUTF8Output() throws Exception
+    {
+        String xml = XML.replace("abc123", "caf\u00e9 \u4e2d");
+        String xform = xc.transformDocument(xml);
+        byte[] utf8 = xc.transformDocumentUTF8(xml);
+        Assert.assertEquals(new String(utf8, "UTF-8"),
+            xform.replaceFirst("encoding=\"[^\"]*\"", "encoding=\"UTF-8\""));
+        Assert.assertTrue(new String(utf8, "UTF-8").contains("caf\u00e9 \u4e2d"));
+
+        // the encoding override doesn't stick to the pooled transformer
+        Transformer reused = xc.getXsltTransformer();
+        Transformer fresh = xc.getXsltTransformer();
+        Assert.assertEquals(fresh.getOutputProperties(), reused.getOutputProperties());
+        xc.releaseXsltTransformer(reused);
+        xc.releaseXsltTransformer(fresh);
+    }
+
+    @Test
+    public void testTransformersReused() throws Exception
+    {
+        Transformer t1 = xc.getXsltTransformer();
+        t1.setParameter("p", "v");
+        xc.releaseXsltTransformer(t1);
+
+        // released transformer comes back reset
+        Transformer t2 = xc.getXsltTransformer();
+        Assert.assertSame(t1, t2);
+        Assert.assertNull(t2.getParameter("p"));
+        xc.releaseXsltTransformer(t2);
+
+        // pool is bounded
+        List<Transformer> many = new ArrayList<Transformer>();
+        for (int i = 0; i < 5; i++) {
+            many.add(xc.getXsltTransformer());
+        }
+        for (Transformer t : many) {
+            xc.releaseXsltTransformer(t);
+        }
+        Assert.assertEquals(2, xc.getIdleTransformerCount());
+    }
+
+    @Test
+    public void testReloadDropsOldTransformers() throws Exception
+    {
+        Transformer old = xc.getXsltTransformer();
+        xc.initXslContent();
+
+        // borrowed from the old templates; must not enter the new pool
+        xc.releaseXsltTransformer(old);
+        Assert.assertEquals(0, xc.getIdleTransformerCount());
+        Transformer t = xc.getXsltTransformer();
+        Assert.assertNotSame(old, t);
+        xc.releaseXsltTransformer(t);
+        Assert.assertEquals(1, xc.getIdleTransformerCount());
+    }
+
+    @Test
+    public void testConcurrentTransforms() throws Exception
+    {
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final String id = "msg" + t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            String out = xc.transformDocument(XML.replace("abc123", id));
+                            if (!out.contains(id)) {
+                                throw new AssertionError("wrong output for " + id);
+                            }
+                        }
+                    } catch (Throwable th) {
+                        synchronized (errors) {
+                            errors.add(th);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertTrue(xc.getIdleTransformerCount() <= 2);
+    }
+
+    @Test
+    public void testPoolSizeFromProperties()
+    {
+        Properties props = new Properties();
+        props.setProperty("content.url", "file:soap1.xsl");
+        props.setProperty("content.transformerPoolSize", "0");
+        XslContent pc = new XslContent();
+        pc.initFromPropsFile(props, "content.");
+        Assert.assertEquals(0, pc.getTransformerPoolSize());
+    }
+}
@@ -0,0 +1,121 @@
+package net.brickst.connect.custom.keyword;
+
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestKeywordIndex
+{
+    // reference implementation: the linear scan the handler used to do
+    private static int linearMatch(Pattern[] patterns, String input)
+    {
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].matcher(input).matches()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Pattern[] compile(String[] regexes, int[] flags)
+    {
+        Pattern[] patterns = new Pattern[regexes.length];
+        for (int i = 0; i < regexes.length; i++) {
+            patterns[i] = Pattern.compile(regexes[i], flags[i]);
+        }
+        return patterns;
+    }
+
+    @Test
+    public void testClassify()
+    {
+        Assert.assertEquals(KeywordIndex.KIND_LITERAL, KeywordIndex.classify("STOP", 0).kind);
+        Assert.assertEquals(KeywordIndex.KIND_PREFIX, KeywordIndex.classify("STOP.*", 0).kind);
+        Assert.assertEquals(KeywordIndex.KIND_LITERAL, KeywordIndex.classify("STOP\\.", 0).kind);
+        Assert.assertEquals(KeywordIndex.KIND_REGEX, KeywordIndex.classify("STOP\\.*", 0).kind);
+        Assert.assertEquals(KeywordIndex.KIND_REGEX, KeywordIndex.classify(".", 0).kind);
+        Assert.assertEquals(KeywordIndex.KIND_REGEX, KeywordIndex.classify("STOP|END", 0).kind);
+        Assert.assertEquals(KeywordIndex.KIND_REGEX, KeywordIndex.classify("\\d+", 0).kind);
+        Assert.assertEquals(KeywordIndex.KIND_REGEX, KeywordIndex.classify("STOP", Pattern.DOTALL).kind);
+
+        KeywordIndex.Classification c = KeywordIndex.classify("(?i)stop.*", 0);
+        Assert.assertEquals(KeywordIndex.KIND_PREFIX, c.kind);
+        Assert.assertTrue(c.foldCase);
+        Assert.assertEquals("stop", c.literal);
+
+        c = KeywordIndex.classify("Stop", Pattern.CASE_INSENSITIVE);
+        Assert.assertEquals(KeywordIndex.KIND_LITERAL, c.kind);
+        Assert.assertTrue(c.foldCase);
+    }
+
+    @Test
+    public void testSameIndexAsLinearScan()
+    {
+        String[] regexes = {
+            "HELP",
+            "(?i)stop.*",
+            "INFO\\?",
+            "\\d{5}",
+            "STOP",
+            "Help",
+            "JOIN.*",
+            "JOIN",
+            "(?i)join now",
+            "JO.*",
+            ".*",
+            "[A-Z]+.*",
+            "",
+        };
+        int[] flags = new int[regexes.length];
+        flags[5] = Pattern.CASE_INSENSITIVE;
+
+        String[] inputs = {
+            "HELP", "help", "Help", "STOP", "stop", "Stop please", "STOP\nnow",
+            "INFO?", "INFO", "12345", "1234", "JOIN", "JOIN US", "join now",
+            "JOIN NOW", "JOKE", "JO\r", "hello", "ÉTÉ", "x y", "",
+        };
+
+        Pattern[] patterns = compile(regexes, flags);
+        KeywordIndex index = new KeywordIndex(patterns);
+        // only \d{5} and [A-Z]+.* need the regex engine
+        Assert.assertEquals(2, index.getRegexCount());
+
+        for (int i = 0; i < inputs.length; i++) {
+            Assert.assertEquals("input: " + inputs[i],
+                    linearMatch(patterns, inputs[i]), index.match(inputs[i]));
+        }
+    }
+
+    @Test
+    public void testFirstMatchWins()
+    {
+        String[] regexes = { "[a-z]+", "stop", "stop", "(?i)STOP.*" };
+        Pattern[] patterns = compile(regexes, new int[regexes.length]);
+        KeywordIndex index = new KeywordIndex(patterns);
+
+        Assert.assertEquals(0, index.match("stop"));
+        Assert.assertEquals(3, index.match("STOP"));
+        Assert.assertEquals(-1, index.match("go!"));
+        Assert.assertEquals(-1, index.match(null));
+    }
+
+    @Test
+    public void testManyKeywords()
+    {
+        int count = 500;
+        String[] regexes = new String[count];
+        for (int i = 0; i < count; i++) {
+            regexes[i] = (i % 2 == 0) ? ("KEY" + i) : ("(?i)PRE" + i + ".*");
+        }
+        Pattern[] patterns = compile(regexes, new int[count]);
+        KeywordIndex index = new KeywordIndex(patterns);
+        Assert.assertEquals(0, index.getRegexCount());
+
+        for (int i = 0; i < count; i++) {
+            String input = (i % 2 == 0) ? ("KEY" + i) : ("pre" + i + " hello");
+            Assert.assertEquals(linearMatch(patterns, input), index.match(input));
+        }
+        Assert.assertEquals(-1, index.match("KEY1"));
+    }
+}
@@ -0,0 +1,92 @@
+package net.brickst.connect.custom.metrics;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLatencyHistogram
+{
+    @Test
+    public void testBucketBounds()
+    {
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long hi = LatencyHistogram.bucketMaxValue(i);
+            Assert.assertEquals(i, LatencyHistogram.bucketIndex(hi));
+            if (hi < Long.MAX_VALUE) {
+                Assert.assertEquals(i + 1, LatencyHistogram.bucketIndex(hi + 1));
+            }
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram h = new LatencyHistogram("test");
+        Assert.assertEquals(0, h.getValueAtPercentile(99));
+        for (long v = 1; v <= 100000; v++) {
+            h.record(v * 1000);
+        }
+        Assert.assertEquals(100000, h.getCount());
+        Assert.assertEquals(100000000L, h.getMaxNanos());
+        assertWithin(50000000L, h.getValueAtPercentile(50));
+        assertWithin(99000000L, h.getValueAtPercentile(99));
+        assertWithin(99900000L, h.getValueAtPercentile(99.9));
+        Assert.assertEquals(100000000L, h.getValueAtPercentile(100));
+        Assert.assertEquals(50000.5, h.getMeanMicros(), 0.001);
+        Assert.assertEquals(100000, h.getMaxMicros());
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getP99Micros());
+    }
+
+    @Test
+    public void testRandomValues()
+    {
+        Random random = new Random(42);
+        LatencyHistogram h = new LatencyHistogram("random");
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (Math.exp(random.nextDouble() * 20));
+            h.record(values[i]);
+        }
+        java.util.Arrays.sort(values);
+        assertWithin(values[4999], h.getValueAtPercentile(50));
+        assertWithin(values[8999], h.getValueAtPercentile(90));
+        assertWithin(values[9899], h.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testConcurrentRecord() throws InterruptedException
+    {
+        final LatencyHistogram h = new LatencyHistogram("concurrent");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final long value = (i + 1) * 1000;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        h.record(value);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        Assert.assertEquals(40000, h.getCount());
+        Assert.assertEquals(4000, h.getMaxNanos());
+        Assert.assertEquals(100000000L, h.getTotalNanos());
+    }
+
+    // reported value is at or above the exact one, by at most one sub-bucket
+    private static void assertWithin(long expected, long actual)
+    {
+        Assert.assertTrue(actual + " < " + expected, actual >= expected);
+        Assert.assertTrue(actual + " too far above " + expected,
+            actual <= expected + expected / LatencyHistogram.SUB_BUCKETS + 1);
+    }
+}
@@ -0,0 +1,283 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/*
+ * In-memory stand-in for a JMS provider, built from dynamic proxies.
+ * Only the calls used by JMSEndpoint are implemented.
+ */
+public class FakeJMS
+{
+    public final AtomicInteger connectionsCreated = new AtomicInteger();
+    public final AtomicInteger connectionsClosed = new AtomicInteger();
+    public final AtomicInteger sessionsCreated = new AtomicInteger();
+    public final AtomicInteger sessionsClosed = new AtomicInteger();
+    public final AtomicInteger commits = new AtomicInteger();
+    public final AtomicInteger rollbacks = new AtomicInteger();
+    // messages sent outside a transaction or committed
+    public final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    // BytesMessages sent outside a transaction
+    public final List<BytesMessage> sentBytes = Collections.synchronizedList(new ArrayList<BytesMessage>());
+
+    // when set, send() throws this exception
+    public volatile JMSException sendFailure;
+    // when set, send() fails from this send on (1-based, counting all sends)
+    public volatile int failFromSend;
+    private final AtomicInteger sends = new AtomicInteger();
+
+    // settings of the last producer configured
+    public volatile int deliveryMode = -1;
+    public volatile int priority = -1;
+    public volatile long timeToLive = -1;
+    public volatile boolean disableMessageID;
+    public volatile boolean disableMessageTimestamp;
+
+    // when set, creating connections and sessions fails
+    public volatile boolean brokerDown;
+    // exception listeners registered on connections, in creation order
+    public final List<ExceptionListener> listeners =
+        Collections.synchronizedList(new ArrayList<ExceptionListener>());
+
+    /**
+     * Simulates a broker crash: connections report an error to their
+     * listeners and nothing can be created until brokerDown is cleared.
+     */
+    public void crash()
+    {
+        brokerDown = true;
+        List<ExceptionListener> copy;
+        synchronized (listeners) {
+            copy = new ArrayList<ExceptionListener>(listeners);
+        }
+        for (ExceptionListener l : copy) {
+            l.onException(new JMSException("connection lost"));
+        }
+    }
+
+    public ConnectionFactory connectionFactory()
+    {
+        return (ConnectionFactory) proxy(ConnectionFactory.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if (m.getName().equals("createConnection")) {
+                    if (brokerDown) {
+                        throw new JMSException("broker down");
+                    }
+                    connectionsCreated.incrementAndGet();
+                    return connection();
+                }
+                return defaultValue(m);
+            }
+        });
+    }
+
+    public Queue queue(final String name)
+    {
+        return (Queue) proxy(Queue.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if (m.getName().equals("getQueueName") || m.getName().equals("toString")) {
+                    return name;
+                }
+                return defaultValue(m);
+            }
+        });
+    }
+
+    public Connection connection()
+    {
+        return (Connection) proxy(Connection.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if (m.getName().equals("createSession")) {
+                    if (brokerDown) {
+                        throw new JMSException("broker down");
+                    }
+                    sessionsCreated.incrementAndGet();
+                    return session(((Boolean) args[0]).booleanValue());
+                }
+                if (m.getName().equals("setExceptionListener")) {
+                    listeners.add((ExceptionListener) args[0]);
+                    return null;
+                }
+                if (m.getName().equals("close")) {
+                    connectionsClosed.incrementAndGet();
+                    return null;
+                }
+                return defaultValue(m);
+            }
+        });
+    }
+
+    private Session session(final boolean transacted)
+    {
+        // sends waiting for commit
+        final List<String> pending = transacted ? new ArrayList<String>() : null;
+        return (Session) proxy(Session.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if (name.equals("createProducer")) {
+                    return producer(pending);
+                }
+                if (name.equals("getTransacted")) {
+                    return Boolean.valueOf(transacted);
+                }
+                if (name.equals("commit")) {
+                    sent.addAll(pending);
+                    pending.clear();
+                    commits.incrementAndGet();
+                    return null;
+                }
+                if (name.equals("rollback")) {
+                    pending.clear();
+                    rollbacks.incrementAndGet();
+                    return null;
+                }
+                if (name.equals("createTextMessage")) {
+                    return textMessage((String) args[0]);
+                }
+                if (name.equals("createBytesMessage")) {
+                    return bytesMessage();
+                }
+                if (name.equals("close")) {
+                    sessionsClosed.incrementAndGet();
+                    return null;
+                }
+                return defaultValue(m);
+            }
+        });
+    }
+
+    private MessageProducer producer(final List<String> pending)
+    {
+        return (MessageProducer) proxy(MessageProducer.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if (m.getName().equals("send")) {
+                    JMSException fail = sendFailure;
+                    if (fail != null) {
+                        throw fail;
+                    }
+                    int n = sends.incrementAndGet();
+                    if (failFromSend > 0 && n >= failFromSend) {
+                        throw new JMSException("send " + n + " failed");
+                    }
+                    if (args[0] instanceof BytesMessage) {
+                        sentBytes.add((BytesMessage) args[0]);
+                        return null;
+                    }
+                    String text = ((TextMessage) args[0]).getText();
+                    if (pending != null) {
+                        pending.add(text);
+                    }
+                    else {
+                        sent.add(text);
+                    }
+                    return null;
+                }
+                String name = m.getName();
+                if (name.equals("setDeliveryMode")) {
+                    deliveryMode = ((Integer) args[0]).intValue();
+                    return null;
+                }
+                if (name.equals("setPriority")) {
+                    priority = ((Integer) args[0]).intValue();
+                    return null;
+                }
+                if (name.equals("setTimeToLive")) {
+                    timeToLive = ((Long) args[0]).longValue();
+                    return null;
+                }
+                if (name.equals("setDisableMessageID")) {
+                    disableMessageID = ((Boolean) args[0]).booleanValue();
+                    return null;
+                }
+                if (name.equals("setDisableMessageTimestamp")) {
+                    disableMessageTimestamp = ((Boolean) args[0]).booleanValue();
+                    return null;
+                }
+                return defaultValue(m);
+            }
+        });
+    }
+
+    private TextMessage textMessage(final String text)
+    {
+        return (TextMessage) proxy(TextMessage.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if (m.getName().equals("getText")) {
+                    return text;
+                }
+                return defaultValue(m);
+            }
+        });
+    }
+
+    // supports writeBytes, readBytes, getBodyLength and string properties
+    private BytesMessage bytesMessage()
+    {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> props = new HashMap<String, String>();
+        return (BytesMessage) proxy(BytesMessage.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if (name.equals("writeBytes") && args.length == 1) {
+                    body.write((byte[]) args[0]);
+                    return null;
+                }
+                if (name.equals("getBodyLength")) {
+                    return Long.valueOf(body.size());
+                }
+                if (name.equals("readBytes") && args.length == 1) {
+                    byte[] src = body.toByteArray();
+                    byte[] dst = (byte[]) args[0];
+                    System.arraycopy(src, 0, dst, 0, Math.min(src.length, dst.length));
+                    return Integer.valueOf(Math.min(src.length, dst.length));
+                }
+                if (name.equals("setStringProperty")) {
+                    props.put((String) args[0], (String) args[1]);
+                    return null;
+                }
+                if (name.equals("getStringProperty")) {
+                    return props.get(args[0]);
+                }
+                return defaultValue(m);
+            }
+        });
+    }
+
+    private static Object proxy(Class<?> iface, InvocationHandler h)
+    {
+        return Proxy.newProxyInstance(FakeJMS.class.getClassLoader(), new Class<?>[] { iface }, h);
+    }
+
+    private static Object defaultValue(Method m)
+    {
+        Class<?> rt = m.getReturnType();
+        if (rt == Boolean.TYPE) {
+            return Boolean.FALSE;
+        }
+        if (rt == Integer.TYPE) {
+            return Integer.valueOf(0);
+        }
+        if (rt == Long.TYPE) {
+            return Long.valueOf(0);
+        }
+        return null;
+    }
+}
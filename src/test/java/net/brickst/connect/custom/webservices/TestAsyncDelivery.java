@@ -0,0 +1,138 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Unit Test for async delivery through the inflight dir.
+ */
+public class TestAsyncDelivery implements LogEndpoint.LogObserver
+{
+    private File retryDir;
+    private LogEndpoint lep;
+    private AtomicInteger deliverCount = new AtomicInteger();
+
+    public void callDeliver(String content) { }
+    public void failDeliver(String content) { }
+    public void didDeliver(String content) { deliverCount.incrementAndGet(); }
+
+    @Before
+    public void setup() throws IOException
+    {
+        retryDir = File.createTempFile("asyncRetry", "");
+        retryDir.delete();
+        retryDir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        if (lep != null) {
+            lep.stopAsyncDelivery();
+            lep.stopRetryTask();
+        }
+        deleteAll(retryDir);
+    }
+
+    private static void deleteAll(File f)
+    {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (int i = 0; i < list.length; i++) {
+                deleteAll(list[i]);
+            }
+        }
+        f.delete();
+    }
+
+    private static int countMsgFiles(File dir)
+    {
+        File[] list = dir.listFiles();
+        int count = 0;
+        for (int i = 0; list != null && i < list.length; i++) {
+            if (list[i].isFile() && list[i].getName().startsWith(WebEndpoint.RETRY_FILE_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private LogEndpoint newEndpoint(String failPercentage)
+    {
+        Properties props = new Properties();
+        props.setProperty("test.failPercentage", failPercentage);
+        LogEndpoint ep = new LogEndpoint();
+        ep.initFromProperties(props, "test.");
+        ep.setRetryDir(retryDir);
+        ep.setRetryIntervalMS(60000);
+        ep.setObserver(this);
+        return ep;
+    }
+
+    private void waitForInflight(File inflight) throws InterruptedException
+    {
+        for (int i = 0; i < 100 && countMsgFiles(inflight) > 0; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testAsyncDeliver() throws Exception
+    {
+        lep = newEndpoint("0.0");
+        lep.startAsyncDelivery(2, 100, 1000);
+        Assert.assertTrue(lep.isAsync());
+
+        int count = 20;
+        for (int i = 0; i < count; i++) {
+            lep.enqueueMessage("Message " + i);
+        }
+        File inflight = lep.getAsyncDelivery().getInflightDir();
+        waitForInflight(inflight);
+
+        Assert.assertEquals(count, deliverCount.get());
+        Assert.assertEquals(0, countMsgFiles(inflight));
+        Assert.assertEquals(0, countMsgFiles(retryDir));
+    }
+
+    @Test
+    public void testAsyncFailureGoesToRetry() throws Exception
+    {
+        lep = newEndpoint("1.0");
+        lep.startAsyncDelivery(1, 100, 1000);
+
+        int count = 5;
+        for (int i = 0; i < count; i++) {
+            lep.enqueueMessage("Message " + i);
+        }
+        File inflight = lep.getAsyncDelivery().getInflightDir();
+        waitForInflight(inflight);
+
+        Assert.assertEquals(0, deliverCount.get());
+        Assert.assertEquals(0, countMsgFiles(inflight));
+        Assert.assertEquals(count, countMsgFiles(retryDir));
+        Assert.assertEquals(count, lep.getAsyncDelivery().getFailedCount());
+    }
+
+    @Test
+    public void testRecoverInflight() throws Exception
+    {
+        lep = newEndpoint("0.0");
+
+        // simulate a crash that left a message in the inflight dir
+        File inflight = new File(retryDir, AsyncDelivery.INFLIGHT_DIR);
+        WebEndpoint.ensureDirectory(inflight);
+        lep.writeMessageFile(inflight, "left over");
+
+        lep.startAsyncDelivery(1, 10, 1000);
+        Assert.assertEquals(0, countMsgFiles(inflight));
+        Assert.assertEquals(1, countMsgFiles(retryDir));
+    }
+}
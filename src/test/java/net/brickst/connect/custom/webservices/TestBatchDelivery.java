@@ -0,0 +1,291 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.JMSException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBatchDelivery
+{
+    // endpoint that records deliveries and batches; fails from message failAt on
+    static class BatchEndpoint extends WebEndpoint
+    {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger batches = new AtomicInteger();
+        volatile int failAt;
+
+        public void initFromProperties(Properties props, String prefix) { }
+        public void initNetworkResources() { }
+
+        public void deliverMessage(String content)
+        {
+            if (failAt > 0 && delivered.size() + 1 >= failAt) {
+                throw new RuntimeException("endpoint down");
+            }
+            delivered.add(content);
+        }
+
+        public void deliverBatch(List<String> contents)
+        {
+            batches.incrementAndGet();
+            super.deliverBatch(contents);
+        }
+    }
+
+    private File retryDir;
+
+    @Before
+    public void setup() throws IOException
+    {
+        retryDir = File.createTempFile("batchDelivery", "");
+        retryDir.delete();
+        retryDir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        delete(retryDir);
+    }
+
+    private static void delete(File f)
+    {
+        File[] list = f.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            delete(list[i]);
+        }
+        f.delete();
+    }
+
+    private JMSEndpoint newJMSEndpoint(FakeJMS jms) throws JMSException
+    {
+        Properties props = new Properties();
+        props.setProperty("test.jmsJndiClass", "unused");
+        props.setProperty("test.jmsJndiUrl", "unused");
+        props.setProperty("test.jmsConnectionFactoryName", "cf");
+        props.setProperty("test.jmsSendQueueName", "queue");
+
+        JMSEndpoint wep = new JMSEndpoint();
+        wep.initFromProperties(props, "test.");
+        wep.jmsInit(jms.connectionFactory(), jms.queue("queue"));
+        return wep;
+    }
+
+    private static List<String> messages(int count)
+    {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            list.add("message " + i);
+        }
+        return list;
+    }
+
+    @Test
+    public void testJMSBatchCommitsOnce() throws JMSException
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newJMSEndpoint(jms);
+
+        wep.deliverBatch(messages(10));
+        wep.deliverBatch(messages(5));
+        Assert.assertEquals(15, jms.sent.size());
+        Assert.assertEquals(2, jms.commits.get());
+        Assert.assertEquals(1, jms.sessionsCreated.get());
+        Assert.assertTrue(wep.getJmsBatchSessionPool().isTransacted());
+        Assert.assertEquals(1, wep.getJmsBatchSessionPool().getIdleCount());
+    }
+
+    @Test
+    public void testJMSBatchRollsBack() throws JMSException
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newJMSEndpoint(jms);
+        jms.failFromSend = 4;
+
+        try {
+            wep.deliverBatch(messages(10));
+            Assert.fail("expected BatchDeliveryException");
+        } catch (BatchDeliveryException x) {
+            Assert.assertEquals(0, x.getDeliveredCount());
+        }
+        Assert.assertEquals(0, jms.sent.size());
+        Assert.assertEquals(0, jms.commits.get());
+        Assert.assertEquals(1, jms.rollbacks.get());
+        // a plain JMSException means a broken session
+        Assert.assertEquals(1, jms.sessionsClosed.get());
+    }
+
+    @Test
+    public void testDefaultBatchPartialFailure()
+    {
+        BatchEndpoint ep = new BatchEndpoint();
+        ep.failAt = 4;
+        try {
+            ep.deliverBatch(messages(10));
+            Assert.fail("expected BatchDeliveryException");
+        } catch (BatchDeliveryException x) {
+            Assert.assertEquals(3, x.getDeliveredCount());
+        }
+        Assert.assertEquals(3, ep.delivered.size());
+    }
+
+    @Test
+    public void testDeliveryCounters() throws IOException
+    {
+        BatchEndpoint ep = new BatchEndpoint();
+        ep.setRetryDir(retryDir);
+        // no retry run during the test
+        ep.setRetryIntervalMS(3600000);
+        ep.attemptDelivery("one");
+        ep.attemptDeliveryBytes("two".getBytes("UTF-8"));
+        ep.failAt = 6;
+        try {
+            ep.attemptBatchDelivery(messages(5));
+            Assert.fail("expected BatchDeliveryException");
+        } catch (BatchDeliveryException x) {
+            Assert.assertEquals(3, x.getDeliveredCount());
+        }
+        try {
+            ep.attemptDelivery("three");
+            Assert.fail("expected failure");
+        } catch (RuntimeException x) {
+            // endpoint down
+        }
+        Assert.assertEquals(5, ep.getDeliveredCount());
+        Assert.assertEquals(3, ep.getFailedCount());
+
+        ep.scheduleRetry("later");
+        ep.deferMessage("deferred");
+        Assert.assertEquals(2, ep.getRetryCount());
+        Assert.assertEquals(1, ep.getDeferredCount());
+
+        EndpointMetrics metrics = new EndpointMetrics(ep);
+        Assert.assertEquals(5, metrics.getDeliveredCount());
+        Assert.assertEquals(3, metrics.getFailedCount());
+        Assert.assertEquals("", metrics.getBreakerState());
+        ep.stopRetryTask();
+    }
+
+    @Test
+    public void testRetryFilesInBatches() throws IOException
+    {
+        BatchEndpoint ep = new BatchEndpoint();
+        ep.setRetryDir(retryDir);
+        ep.setDeliveryBatchSize(4);
+        for (int i = 0; i < 10; i++) {
+            ep.writeMessageFile(retryDir, "message " + i);
+        }
+
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(messages(10), ep.delivered);
+        Assert.assertEquals(3, ep.batches.get());
+        Assert.assertEquals(0, retryDir.list().length);
+    }
+
+    @Test
+    public void testRetryFilesPartialBatch() throws IOException
+    {
+        BatchEndpoint ep = new BatchEndpoint();
+        ep.setRetryDir(retryDir);
+        ep.setDeliveryBatchSize(4);
+        ep.setRetryMaxFailures(1);
+        for (int i = 0; i < 10; i++) {
+            ep.writeMessageFile(retryDir, "message " + i);
+        }
+
+        // fails in the second batch; its delivered prefix is deleted
+        ep.failAt = 7;
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(6, ep.delivered.size());
+        Assert.assertEquals(4, retryDir.list().length);
+
+        ep.failAt = 0;
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(messages(10), ep.delivered);
+        Assert.assertEquals(0, retryDir.list().length);
+    }
+
+    @Test
+    public void testJournalInBatches() throws IOException
+    {
+        BatchEndpoint ep = new BatchEndpoint();
+        ep.setRetryDir(retryDir);
+        ep.useRetryJournal(RetryJournal.DEFAULT_SEGMENT_BYTES, false);
+        ep.setDeliveryBatchSize(4);
+        for (int i = 0; i < 10; i++) {
+            ep.getRetryJournal().append("message " + i);
+        }
+
+        // partial failure: the delivered prefix is acknowledged
+        ep.failAt = 6;
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(5, ep.delivered.size());
+        Assert.assertEquals(2, ep.batches.get());
+
+        ep.failAt = 0;
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(messages(10), ep.delivered);
+        Assert.assertTrue(ep.getRetryJournal().isEmpty());
+        ep.getRetryJournal().close();
+    }
+
+    @Test
+    public void testJournalReadBatch() throws IOException
+    {
+        RetryJournal journal = new RetryJournal(new File(retryDir, "journal"), 1024, false);
+        journal.open();
+        for (int i = 0; i < 10; i++) {
+            journal.append("message " + i);
+        }
+
+        List<RetryJournal.Record> batch = journal.readBatch(4);
+        Assert.assertEquals(4, batch.size());
+        Assert.assertEquals("message 3", batch.get(3).getContent());
+        // nothing acknowledged yet
+        Assert.assertEquals("message 0", journal.readBatch(4).get(0).getContent());
+
+        journal.acknowledge(batch.get(3));
+        batch = journal.readBatch(100);
+        Assert.assertEquals(6, batch.size());
+        Assert.assertEquals("message 4", batch.get(0).getContent());
+        journal.acknowledge(batch.get(5));
+        Assert.assertTrue(journal.readBatch(4).isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testAsyncBatches() throws Exception
+    {
+        BatchEndpoint ep = new BatchEndpoint();
+        ep.setRetryDir(retryDir);
+        ep.setDeliveryBatchSize(8);
+        ep.setDeliveryBatchLingerMS(200);
+        ep.startAsyncDelivery(1, 100, 1000);
+        try {
+            for (int i = 0; i < 20; i++) {
+                ep.enqueueMessage("message " + i);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (ep.delivered.size() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            ep.stopAsyncDelivery();
+        }
+        Assert.assertEquals(new ArrayList<String>(messages(20)), new ArrayList<String>(ep.delivered));
+        Assert.assertTrue(ep.batches.get() < 20);
+        Assert.assertEquals(Arrays.asList(new String[0]),
+            Arrays.asList(new File(retryDir, AsyncDelivery.INFLIGHT_DIR).list()));
+    }
+}
@@ -0,0 +1,123 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCircuitBreaker
+{
+    private File retryDir;
+
+    @Before
+    public void setup() throws IOException
+    {
+        retryDir = File.createTempFile("breaker", "");
+        retryDir.delete();
+        retryDir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        File[] list = retryDir.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            list[i].delete();
+        }
+        retryDir.delete();
+    }
+
+    @Test
+    public void testStateTransitions() throws Exception
+    {
+        CircuitBreaker cb = new CircuitBreaker("test", 3, 50);
+        Assert.assertTrue(cb.allowRequest());
+
+        cb.recordFailure();
+        cb.recordFailure();
+        cb.recordSuccess();
+        cb.recordFailure();
+        cb.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, cb.getState());
+        cb.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+        Assert.assertFalse(cb.allowRequest());
+
+        // too early to probe
+        Assert.assertFalse(cb.tryProbe());
+        Thread.sleep(60);
+        Assert.assertTrue(cb.tryProbe());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, cb.getState());
+        Assert.assertFalse(cb.allowRequest());
+
+        // failed probe reopens at once
+        cb.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+
+        Thread.sleep(60);
+        Assert.assertTrue(cb.tryProbe());
+        cb.recordSuccess();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, cb.getState());
+
+        Assert.assertEquals(2, cb.getOpenedCount());
+        Assert.assertEquals(2, cb.getHalfOpenedCount());
+        Assert.assertEquals(1, cb.getClosedCount());
+    }
+
+    @Test
+    public void testEndpointDefersWhileOpen() throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty("test.failPercentage", "1.0");
+        LogEndpoint lep = new LogEndpoint();
+        lep.initFromProperties(props, "test.");
+        lep.setRetryDir(retryDir);
+        lep.setRetryIntervalMS(60000);
+        lep.setCircuitBreaker(2, 0);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                lep.attemptDelivery("fail " + i);
+                Assert.fail("delivery should fail");
+            } catch (RuntimeException x) {
+                lep.scheduleRetry("fail " + i);
+            }
+        }
+        Assert.assertFalse(lep.isAcceptingDeliveries());
+
+        lep.deferMessage("deferred");
+        lep.stopRetryTask();
+        Assert.assertEquals(1, lep.getCircuitBreaker().getRejectedCount());
+        Assert.assertEquals(3, retryDir.list().length);
+
+        // probe fails: breaker opens again and the run stops after one attempt
+        Assert.assertFalse(lep.doRetry());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, lep.getCircuitBreaker().getState());
+        Assert.assertEquals(3, retryDir.list().length);
+
+        // endpoint back up: probe succeeds and the backlog drains
+        lep.setFailPercentage(0);
+        Assert.assertTrue(lep.doRetry());
+        Assert.assertTrue(lep.isAcceptingDeliveries());
+        Assert.assertEquals(0, retryDir.list().length);
+    }
+
+    @Test
+    public void testEmptyProbeCloses()
+    {
+        LogEndpoint lep = new LogEndpoint();
+        lep.initFromProperties(new Properties(), "test.");
+        lep.setRetryDir(retryDir);
+        lep.setCircuitBreaker(1, 0);
+        lep.getCircuitBreaker().recordFailure();
+        Assert.assertFalse(lep.isAcceptingDeliveries());
+
+        // nothing to retry: nothing to probe with either
+        Assert.assertTrue(lep.doRetry());
+        Assert.assertTrue(lep.isAcceptingDeliveries());
+    }
+}
@@ -0,0 +1,165 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestEndpointRetirement
+{
+    // endpoint that records deliveries and can be told to fail
+    static class TestEndpoint extends WebEndpoint
+    {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean fail;
+
+        public void initFromProperties(Properties props, String prefix) { }
+        public void initNetworkResources() { }
+
+        public void deliverMessage(String content)
+        {
+            if (fail) {
+                throw new RuntimeException("endpoint down");
+            }
+            delivered.add(content);
+        }
+    }
+
+    private File retryDir;
+
+    @Before
+    public void setup() throws IOException
+    {
+        retryDir = File.createTempFile("retirement", "");
+        retryDir.delete();
+        retryDir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        delete(retryDir);
+    }
+
+    private static void delete(File f)
+    {
+        File[] list = f.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            delete(list[i]);
+        }
+        f.delete();
+    }
+
+    private TestEndpoint newEndpoint()
+    {
+        TestEndpoint ep = new TestEndpoint();
+        ep.setRetryDir(retryDir);
+        ep.setRetryIntervalMS(20);
+        ep.setRetryJitter(0);
+        return ep;
+    }
+
+    private static void waitFor(TestEndpoint ep, boolean retryTask) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ep.hasRetryTask() != retryTask && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(retryTask, ep.hasRetryTask());
+    }
+
+    @Test
+    public void testRetireDrainsThenStops() throws Exception
+    {
+        TestEndpoint ep = newEndpoint();
+        ep.fail = true;
+        ep.scheduleRetry("one");
+        ep.scheduleRetry("two");
+        Assert.assertTrue(ep.hasPendingRetries());
+
+        ep.retire();
+        Assert.assertTrue(ep.isRetired());
+        Assert.assertTrue(ep.hasRetryTask());
+
+        // keeps retrying while the backlog can't be delivered
+        Thread.sleep(100);
+        Assert.assertTrue(ep.hasRetryTask());
+
+        ep.fail = false;
+        waitFor(ep, false);
+        Assert.assertEquals(2, ep.delivered.size());
+        Assert.assertFalse(ep.hasPendingRetries());
+
+        // a retired endpoint does not start a new retry task
+        ep.startRetryTask();
+        Assert.assertFalse(ep.hasRetryTask());
+    }
+
+    @Test
+    public void testHandOverSharesJournal() throws Exception
+    {
+        TestEndpoint old = newEndpoint();
+        old.useRetryJournal(RetryJournal.DEFAULT_SEGMENT_BYTES, false);
+        old.startRetryTask();
+        old.getRetryJournal().append("backlog");
+
+        TestEndpoint successor = newEndpoint();
+        old.handOverTo(successor);
+        Assert.assertTrue(old.isRetired());
+        Assert.assertFalse(old.hasRetryTask());
+        Assert.assertSame(old.getRetryJournal(), successor.getRetryJournal());
+
+        // the successor's retry task delivers the old endpoint's backlog
+        successor.startRetryTask();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (successor.delivered.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        successor.stopRetryTask();
+        Assert.assertEquals(Collections.singletonList("backlog"), successor.delivered);
+        Assert.assertTrue(old.delivered.isEmpty());
+        successor.getRetryJournal().close();
+    }
+
+    @Test
+    public void testShutdownReleasesThreads() throws Exception
+    {
+        TestEndpoint ep = newEndpoint();
+        ep.setRetryParallelism(4);
+        ep.setRetryFsync(WebEndpoint.FsyncPolicy.BATCH, 1000);
+        ep.startRetryTask();
+        ExecutorService executor = ep.retryExecutor;
+        ScheduledFuture<?> fsyncTask = ep.retryFsyncTask;
+
+        ep.shutdown();
+        Assert.assertFalse(ep.hasRetryTask());
+        Assert.assertTrue(executor.isShutdown());
+        Assert.assertTrue(fsyncTask.isCancelled());
+        Assert.assertNull(ep.retryExecutor);
+        // no batch comes for later retry files
+        Assert.assertEquals(WebEndpoint.FsyncPolicy.MESSAGE, ep.getRetryFsync());
+    }
+
+    @Test
+    public void testDrainedEndpointShutsDown() throws Exception
+    {
+        TestEndpoint ep = newEndpoint();
+        ep.setRetryParallelism(2);
+        ExecutorService executor = ep.retryExecutor;
+        ep.scheduleRetry("one");
+
+        ep.retire();
+        waitFor(ep, false);
+        Assert.assertEquals(1, ep.delivered.size());
+        Assert.assertTrue(executor.isShutdown());
+    }
+}
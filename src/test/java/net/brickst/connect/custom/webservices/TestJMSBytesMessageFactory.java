@@ -0,0 +1,114 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestJMSBytesMessageFactory
+{
+    private static final String CONTENT = "<soap>caf\u00e9 \u4e2d</soap>";
+
+    private static Properties baseProps()
+    {
+        Properties props = new Properties();
+        props.setProperty("test.jmsJndiClass", "unused");
+        props.setProperty("test.jmsJndiUrl", "unused");
+        props.setProperty("test.jmsConnectionFactoryName", "cf");
+        props.setProperty("test.jmsSendQueueName", "queue");
+        props.setProperty("test.jmsMessageFactory", JMSBytesMessageFactory.class.getName());
+        return props;
+    }
+
+    private static byte[] body(BytesMessage msg) throws JMSException
+    {
+        byte[] data = new byte[(int) msg.getBodyLength()];
+        msg.readBytes(data);
+        return data;
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException
+    {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBytesEndpoint() throws Exception
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = new JMSEndpoint();
+        wep.initFromProperties(baseProps(), "test.");
+        wep.jmsInit(jms.connectionFactory(), jms.queue("queue"));
+        Assert.assertTrue(wep.prefersBytes());
+
+        wep.deliverMessageBytes(CONTENT.getBytes("UTF-8"));
+        wep.deliverMessage(CONTENT);
+        Assert.assertEquals(2, jms.sentBytes.size());
+        for (BytesMessage msg : jms.sentBytes) {
+            Assert.assertEquals(CONTENT, new String(body(msg), "UTF-8"));
+            Assert.assertEquals(JMSBytesMessageFactory.DEFAULT_CONTENT_TYPE,
+                msg.getStringProperty(JMSBytesMessageFactory.CONTENT_TYPE_PROPERTY));
+            Assert.assertNull(msg.getStringProperty(JMSBytesMessageFactory.CONTENT_ENCODING_PROPERTY));
+        }
+    }
+
+    @Test
+    public void testCompressed() throws Exception
+    {
+        Properties props = baseProps();
+        props.setProperty("test.jmsCompress", "true");
+        props.setProperty("test.jmsContentType", "application/soap+xml; charset=UTF-8");
+
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = new JMSEndpoint();
+        wep.initFromProperties(props, "test.");
+        wep.jmsInit(jms.connectionFactory(), jms.queue("queue"));
+
+        wep.deliverMessageBytes(CONTENT.getBytes("UTF-8"));
+        BytesMessage msg = jms.sentBytes.get(0);
+        Assert.assertEquals(CONTENT, new String(gunzip(body(msg)), "UTF-8"));
+        Assert.assertEquals("gzip",
+            msg.getStringProperty(JMSBytesMessageFactory.CONTENT_ENCODING_PROPERTY));
+        Assert.assertEquals("application/soap+xml; charset=UTF-8",
+            msg.getStringProperty(JMSBytesMessageFactory.CONTENT_TYPE_PROPERTY));
+    }
+
+    @Test
+    public void testTextFactoryDecodesBytes() throws Exception
+    {
+        Properties props = baseProps();
+        props.remove("test.jmsMessageFactory");
+
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = new JMSEndpoint();
+        wep.initFromProperties(props, "test.");
+        wep.jmsInit(jms.connectionFactory(), jms.queue("queue"));
+        Assert.assertFalse(wep.prefersBytes());
+
+        wep.deliverMessageBytes(CONTENT.getBytes("UTF-8"));
+        Assert.assertEquals(CONTENT, jms.sent.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompressNeedsBytesFactory()
+    {
+        Properties props = baseProps();
+        props.remove("test.jmsMessageFactory");
+        props.setProperty("test.jmsCompress", "true");
+        new JMSEndpoint().initFromProperties(props, "test.");
+    }
+}
@@ -0,0 +1,144 @@
+package net.brickst.connect.custom.webservices;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestJMSProducerSettings
+{
+    private static Properties baseProps()
+    {
+        Properties props = new Properties();
+        props.setProperty("test.jmsJndiClass", "unused");
+        props.setProperty("test.jmsJndiUrl", "unused");
+        props.setProperty("test.jmsConnectionFactoryName", "cf");
+        props.setProperty("test.jmsSendQueueName", "queue");
+        return props;
+    }
+
+    private static JMSEndpoint newEndpoint(FakeJMS jms, Properties props) throws JMSException
+    {
+        JMSEndpoint wep = new JMSEndpoint();
+        wep.initFromProperties(props, "test.");
+        wep.jmsInit(jms.connectionFactory(), jms.queue("queue"));
+        return wep;
+    }
+
+    @Test
+    public void testDefaults() throws JMSException
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms, baseProps());
+        wep.deliverMessage("msg");
+
+        Assert.assertEquals(DeliveryMode.PERSISTENT, jms.deliveryMode);
+        Assert.assertEquals(Message.DEFAULT_PRIORITY, jms.priority);
+        Assert.assertEquals(Message.DEFAULT_TIME_TO_LIVE, jms.timeToLive);
+        Assert.assertFalse(jms.disableMessageID);
+        Assert.assertFalse(jms.disableMessageTimestamp);
+        Assert.assertFalse(wep.isJmsAsyncSend());
+    }
+
+    @Test
+    public void testConfiguredSettings() throws JMSException
+    {
+        Properties props = baseProps();
+        props.setProperty("test.jmsDeliveryMode", "non_persistent");
+        props.setProperty("test.jmsPriority", "7");
+        props.setProperty("test.jmsTimeToLiveMS", "60000");
+        props.setProperty("test.jmsDisableMessageID", "true");
+        props.setProperty("test.jmsDisableMessageTimestamp", "true");
+
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms, props);
+        wep.deliverMessage("msg");
+
+        Assert.assertEquals(DeliveryMode.NON_PERSISTENT, jms.deliveryMode);
+        Assert.assertEquals(7, jms.priority);
+        Assert.assertEquals(60000, jms.timeToLive);
+        Assert.assertTrue(jms.disableMessageID);
+        Assert.assertTrue(jms.disableMessageTimestamp);
+
+        // batch sessions get the same settings
+        jms.deliveryMode = -1;
+        wep.deliverBatch(Arrays.asList(new String[] { "a", "b" }));
+        Assert.assertEquals(DeliveryMode.NON_PERSISTENT, jms.deliveryMode);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDeliveryMode()
+    {
+        Properties props = baseProps();
+        props.setProperty("test.jmsDeliveryMode", "SOMETIMES");
+        new JMSEndpoint().initFromProperties(props, "test.");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPriority()
+    {
+        Properties props = baseProps();
+        props.setProperty("test.jmsPriority", "10");
+        new JMSEndpoint().initFromProperties(props, "test.");
+    }
+
+    @Test
+    public void testAsyncSendFallsBack() throws Exception
+    {
+        Properties props = baseProps();
+        props.setProperty("test.jmsAsyncSend", "true");
+
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms, props);
+        Assert.assertTrue(wep.isJmsAsyncSend());
+        Assert.assertEquals(JMSAsyncSender.isAvailable(), wep.isAsyncSendActive());
+
+        // without JMS 2.0 every send is synchronous
+        wep.deliverMessage("one");
+        Future<Void> f = wep.deliverMessageAsync("two");
+        Assert.assertTrue(f.isDone());
+        f.get();
+        Assert.assertEquals(2, jms.sent.size());
+    }
+
+    @Test
+    public void testSendFuture() throws Exception
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        JMSAsyncSender.SendFuture ok = new JMSAsyncSender.SendFuture() {
+            protected void done(Exception x) {
+                calls.incrementAndGet();
+            }
+        };
+        try {
+            ok.get(10, TimeUnit.MILLISECONDS);
+            Assert.fail("expected timeout");
+        } catch (TimeoutException x) {
+            // not complete yet
+        }
+        ok.complete(null);
+        ok.complete(new JMSException("ignored"));
+        Assert.assertTrue(ok.isDone());
+        Assert.assertNull(ok.get());
+        Assert.assertEquals(1, calls.get());
+
+        JMSAsyncSender.SendFuture failed = new JMSAsyncSender.SendFuture();
+        failed.complete(new JMSException("broker said no"));
+        try {
+            failed.get();
+            Assert.fail("expected ExecutionException");
+        } catch (ExecutionException x) {
+            Assert.assertTrue(x.getCause() instanceof JMSException);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.brickst.connect.custom.webservices;
+
+import java.util.Properties;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestJMSReconnect
+{
+    private JMSEndpoint newEndpoint(FakeJMS jms) throws JMSException
+    {
+        Properties props = new Properties();
+        props.setProperty("test.jmsJndiClass", "unused");
+        props.setProperty("test.jmsJndiUrl", "unused");
+        props.setProperty("test.jmsConnectionFactoryName", "cf");
+        props.setProperty("test.jmsSendQueueName", "queue");
+        props.setProperty("test.jmsReconnectDelayMS", "10");
+        props.setProperty("test.jmsReconnectMaxDelayMS", "50");
+
+        JMSEndpoint wep = new JMSEndpoint();
+        wep.initFromProperties(props, "test.");
+        wep.jmsInit(jms.connectionFactory(), jms.queue("queue"));
+        return wep;
+    }
+
+    private static void waitForReconnect(JMSEndpoint wep, int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (wep.getReconnectCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(count, wep.getReconnectCount());
+        Assert.assertFalse(wep.isReconnecting());
+    }
+
+    @Test
+    public void testReconnectAfterBrokerRestart() throws Exception
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms);
+        Assert.assertEquals(10, wep.getJmsReconnectDelayMS());
+        Assert.assertEquals(50, wep.getJmsReconnectMaxDelayMS());
+        wep.deliverMessage("before");
+        Connection first = wep.getJmsConnection();
+
+        jms.crash();
+        Assert.assertTrue(wep.isReconnecting());
+        Thread.sleep(100);
+        try {
+            wep.deliverMessage("during");
+        } catch (RuntimeException x) {
+            // pooled session may still be used; either way nothing reconnects yet
+        }
+        Assert.assertEquals(0, wep.getReconnectCount());
+
+        // broker is back
+        jms.brokerDown = false;
+        waitForReconnect(wep, 1);
+        Assert.assertNotSame(first, wep.getJmsConnection());
+        Assert.assertEquals(1, jms.connectionsClosed.get());
+
+        wep.deliverMessage("after");
+        Assert.assertEquals("after", jms.sent.get(jms.sent.size() - 1));
+
+        // errors from the replaced connection are ignored
+        jms.listeners.get(0).onException(new JMSException("late"));
+        Assert.assertFalse(wep.isReconnecting());
+    }
+
+    @Test
+    public void testCreateSessionFailureReconnects() throws Exception
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms);
+
+        // no listener callback, but sessions can't be created
+        jms.brokerDown = true;
+        try {
+            wep.deliverMessage("lost");
+            Assert.fail("expected failure");
+        } catch (RuntimeException x) {
+            Assert.assertTrue(x.getCause() instanceof JMSException);
+        }
+        Assert.assertTrue(wep.isReconnecting());
+
+        jms.brokerDown = false;
+        waitForReconnect(wep, 1);
+        Assert.assertEquals(2, jms.connectionsCreated.get());
+        wep.deliverMessage("sent");
+        Assert.assertEquals(1, jms.sent.size());
+    }
+
+    @Test
+    public void testShutdownClosesConnection() throws Exception
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms);
+        wep.deliverMessage("before");
+
+        wep.shutdown();
+        Assert.assertTrue(wep.isClosed());
+        Assert.assertEquals(1, jms.connectionsClosed.get());
+
+        // a late error from the closed connection starts no reconnect
+        jms.crash();
+        Assert.assertFalse(wep.isReconnecting());
+        Thread.sleep(50);
+        Assert.assertEquals(1, jms.connectionsCreated.get());
+    }
+}
@@ -0,0 +1,96 @@
+package net.brickst.connect.custom.webservices;
+
+import java.util.Properties;
+
+import javax.jms.JMSException;
+import javax.jms.MessageFormatException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestJMSSessionPool
+{
+    private JMSEndpoint newEndpoint(FakeJMS jms, int poolSize) throws JMSException
+    {
+        Properties props = new Properties();
+        props.setProperty("test.jmsJndiClass", "unused");
+        props.setProperty("test.jmsJndiUrl", "unused");
+        props.setProperty("test.jmsConnectionFactoryName", "cf");
+        props.setProperty("test.jmsSendQueueName", "queue");
+        props.setProperty("test.jmsSessionPoolSize", Integer.toString(poolSize));
+
+        JMSEndpoint wep = new JMSEndpoint();
+        wep.initFromProperties(props, "test.");
+        wep.jmsInit(jms.connectionFactory(), jms.queue("queue"));
+        return wep;
+    }
+
+    @Test
+    public void testSessionReuse() throws JMSException
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms, 4);
+        Assert.assertEquals(4, wep.getJmsSessionPoolSize());
+
+        for (int i = 0; i < 10; i++) {
+            wep.deliverMessage("msg " + i);
+        }
+        Assert.assertEquals(10, jms.sent.size());
+        Assert.assertEquals(1, jms.sessionsCreated.get());
+        Assert.assertEquals(0, jms.sessionsClosed.get());
+        Assert.assertEquals(1, wep.getJmsSessionPool().getIdleCount());
+    }
+
+    @Test
+    public void testPoolingDisabled() throws JMSException
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms, 0);
+
+        for (int i = 0; i < 3; i++) {
+            wep.deliverMessage("msg " + i);
+        }
+        Assert.assertEquals(3, jms.sessionsCreated.get());
+        Assert.assertEquals(3, jms.sessionsClosed.get());
+    }
+
+    @Test
+    public void testBrokenSessionEvicted() throws JMSException
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms, 4);
+        wep.deliverMessage("ok");
+
+        jms.sendFailure = new JMSException("connection lost");
+        try {
+            wep.deliverMessage("fail");
+            Assert.fail("expected failure");
+        } catch (RuntimeException x) {
+            Assert.assertTrue(x.getCause() instanceof JMSException);
+        }
+        Assert.assertEquals(1, jms.sessionsClosed.get());
+        Assert.assertEquals(0, wep.getJmsSessionPool().getIdleCount());
+
+        // next send gets a fresh session
+        jms.sendFailure = null;
+        wep.deliverMessage("ok again");
+        Assert.assertEquals(2, jms.sessionsCreated.get());
+    }
+
+    @Test
+    public void testMessageErrorKeepsSession() throws JMSException
+    {
+        FakeJMS jms = new FakeJMS();
+        JMSEndpoint wep = newEndpoint(jms, 4);
+
+        jms.sendFailure = new MessageFormatException("bad message");
+        try {
+            wep.deliverMessage("bad");
+            Assert.fail("expected failure");
+        } catch (RuntimeException x) {
+            // expected
+        }
+        Assert.assertEquals(0, jms.sessionsClosed.get());
+        Assert.assertEquals(1, wep.getJmsSessionPool().getIdleCount());
+    }
+}
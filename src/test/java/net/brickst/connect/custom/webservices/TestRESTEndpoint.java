@@ -0,0 +1,306 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestRESTEndpoint
+{
+    // one request as seen by the server
+    static class Request
+    {
+        String method;
+        String contentType;
+        String contentEncoding;
+        String requestId;
+        String body;
+        int remotePort;
+    }
+
+    private HttpServer server;
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    private volatile int responseStatus = 200;
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/sms", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException
+            {
+                Request req = new Request();
+                req.method = ex.getRequestMethod();
+                req.contentType = ex.getRequestHeaders().getFirst("Content-Type");
+                req.contentEncoding = ex.getRequestHeaders().getFirst("Content-Encoding");
+                req.requestId = ex.getRequestHeaders().getFirst("X-Request-Id");
+                req.remotePort = ex.getRemoteAddress().getPort();
+                InputStream is = ex.getRequestBody();
+                if ("gzip".equals(req.contentEncoding)) {
+                    is = new GZIPInputStream(is);
+                }
+                req.body = readAll(is);
+                requests.add(req);
+
+                byte[] reply = "ok".getBytes("UTF-8");
+                ex.sendResponseHeaders(responseStatus, reply.length);
+                OutputStream os = ex.getResponseBody();
+                os.write(reply);
+                os.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void cleanup()
+    {
+        server.stop(0);
+    }
+
+    private static String readAll(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[512];
+        int cc;
+        while ((cc = is.read(buf)) != -1) {
+            baos.write(buf, 0, cc);
+        }
+        return baos.toString("UTF-8");
+    }
+
+    private RESTEndpoint newEndpoint(Properties props)
+    {
+        props.setProperty("ep.restUrl", "http://127.0.0.1:"
+            + server.getAddress().getPort() + "/sms");
+        RESTEndpoint rep = new RESTEndpoint();
+        rep.initFromProperties(props, "ep.");
+        rep.initNetworkResources();
+        return rep;
+    }
+
+    @Test
+    public void testPostWithHeaders()
+    {
+        Properties props = new Properties();
+        props.setProperty("ep.restContentType", "application/soap+xml; charset=UTF-8");
+        props.setProperty("ep.restHeader.X-Request-Id", "sms-${requestId}");
+        RESTEndpoint rep = newEndpoint(props);
+
+        rep.deliverMessage("<sms>h\u00e9llo</sms>");
+        Assert.assertEquals(1, requests.size());
+        Request req = requests.get(0);
+        Assert.assertEquals("POST", req.method);
+        Assert.assertEquals("application/soap+xml; charset=UTF-8", req.contentType);
+        Assert.assertTrue(req.requestId.startsWith("sms-"));
+        Assert.assertEquals(4 + 36, req.requestId.length());
+        Assert.assertNull(req.contentEncoding);
+        Assert.assertEquals("<sms>h\u00e9llo</sms>", req.body);
+    }
+
+    @Test
+    public void testGzipBody()
+    {
+        Properties props = new Properties();
+        props.setProperty("ep.restGzip", "true");
+        props.setProperty("ep.restMethod", "put");
+        RESTEndpoint rep = newEndpoint(props);
+
+        rep.deliverMessage("<sms>compressed</sms>");
+        Request req = requests.get(0);
+        Assert.assertEquals("PUT", req.method);
+        Assert.assertEquals("gzip", req.contentEncoding);
+        Assert.assertEquals("<sms>compressed</sms>", req.body);
+    }
+
+    @Test
+    public void testRetryableStatusThrows()
+    {
+        RESTEndpoint rep = newEndpoint(new Properties());
+        responseStatus = 503;
+        try {
+            rep.deliverMessage("retry me");
+            Assert.fail("503 should be retried");
+        } catch (RuntimeException x) {
+            Assert.assertTrue(x.getMessage().contains("503"));
+        }
+
+        // not retryable: logged and dropped
+        responseStatus = 400;
+        rep.deliverMessage("bad request");
+        Assert.assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void testConnectionFailureThrows() throws IOException
+    {
+        RESTEndpoint rep = newEndpoint(new Properties());
+        server.stop(0);
+        try {
+            rep.deliverMessage("nobody home");
+            Assert.fail("connect failure should be retried");
+        } catch (RuntimeException x) {
+            Assert.assertTrue(x.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testConnectionsReused()
+    {
+        RESTEndpoint rep = newEndpoint(new Properties());
+        for (int i = 0; i < 20; i++) {
+            rep.deliverMessage("message " + i);
+        }
+        Set<Integer> ports = new HashSet<Integer>();
+        for (Request req : requests) {
+            ports.add(req.remotePort);
+        }
+        Assert.assertEquals(20, requests.size());
+        Assert.assertEquals(1, ports.size());
+    }
+
+    @Test
+    public void testAsyncWithoutHttp2() throws Exception
+    {
+        RESTEndpoint rep = newEndpoint(new Properties());
+        Future<Void> f = rep.deliverMessageAsync("sync underneath");
+        Assert.assertTrue(f.isDone());
+        f.get();
+        Assert.assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testHttp2Mode() throws Exception
+    {
+        Assume.assumeTrue(Http2Transport.isAvailable());
+        Properties props = new Properties();
+        props.setProperty("ep.restHttpVersion", "HTTP_2");
+        props.setProperty("ep.restHttp2Connections", "2");
+        props.setProperty("ep.restGzip", "true");
+        props.setProperty("ep.restHeader.X-Request-Id", "${requestId}");
+        RESTEndpoint rep = newEndpoint(props);
+
+        rep.deliverMessage("blocking send");
+        Assert.assertEquals("blocking send", requests.get(0).body);
+        Assert.assertEquals("gzip", requests.get(0).contentEncoding);
+        Assert.assertNotNull(requests.get(0).requestId);
+
+        // many sends in flight from one thread
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(rep.deliverMessageAsync("async " + i));
+        }
+        for (Future<Void> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(21, requests.size());
+
+        responseStatus = 503;
+        try {
+            rep.deliverMessageAsync("retry me").get(10, TimeUnit.SECONDS);
+            Assert.fail("503 should be retried");
+        } catch (ExecutionException x) {
+            Assert.assertTrue(x.getCause().getMessage().contains("503"));
+        }
+        try {
+            rep.deliverMessage("retry me too");
+            Assert.fail("503 should be retried");
+        } catch (RuntimeException x) {
+            // expected
+        }
+    }
+
+    // waits until the async sends so far have an outcome
+    private static void waitForOutcomes(RESTEndpoint rep, long count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (rep.getDeliveredCount() + rep.getRetryCount() < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testAsyncSend() throws Exception
+    {
+        Assume.assumeTrue(Http2Transport.isAvailable());
+        Properties props = new Properties();
+        props.setProperty("ep.restHttpVersion", "HTTP_2");
+        props.setProperty("ep.restAsyncSend", "true");
+        RESTEndpoint rep = newEndpoint(props);
+        File retryDir = File.createTempFile("restAsync", "");
+        retryDir.delete();
+        rep.setRetryDir(retryDir);
+        Assert.assertTrue(rep.isAsyncSend());
+
+        // the outcome is counted when the response is in
+        rep.attemptDeliveryAsync("async ok");
+        waitForOutcomes(rep, 1);
+        Assert.assertEquals(1, rep.getDeliveredCount());
+
+        // a retryable status saves the message
+        responseStatus = 503;
+        rep.attemptDeliveryAsync("async retry");
+        waitForOutcomes(rep, 2);
+        Assert.assertEquals(1, rep.getRetryCount());
+        Assert.assertEquals(1, rep.getFailedCount());
+        Assert.assertTrue(rep.hasPendingRetries());
+
+        rep.shutdown();
+        File[] list = retryDir.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            list[i].delete();
+        }
+        retryDir.delete();
+    }
+
+    @Test
+    public void testBadConfig()
+    {
+        Properties props = new Properties();
+        try {
+            new RESTEndpoint().initFromProperties(props, "ep.");
+            Assert.fail("restUrl is required");
+        } catch (IllegalArgumentException x) {
+            // expected
+        }
+        props.setProperty("ep.restUrl", "http://localhost/");
+        props.setProperty("ep.restAsyncSend", "true");
+        try {
+            new RESTEndpoint().initFromProperties(props, "ep.");
+            Assert.fail("restAsyncSend needs HTTP/2");
+        } catch (IllegalArgumentException x) {
+            // expected
+        }
+        props.remove("ep.restAsyncSend");
+        props.setProperty("ep.restHeader.X-Bad", "${nope}");
+        try {
+            new RESTEndpoint().initFromProperties(props, "ep.");
+            Assert.fail("unknown template variable");
+        } catch (IllegalArgumentException x) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRetryBacklog
+{
+    private File retryDir;
+
+    @Before
+    public void setup() throws IOException
+    {
+        retryDir = File.createTempFile("retryBacklog", "");
+        retryDir.delete();
+        retryDir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        delete(retryDir);
+    }
+
+    private static void delete(File f)
+    {
+        File[] list = f.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            delete(list[i]);
+        }
+        f.delete();
+    }
+
+    private TestRetryDrain.TestEndpoint newEndpoint()
+    {
+        TestRetryDrain.TestEndpoint ep = new TestRetryDrain.TestEndpoint();
+        ep.setRetryDir(retryDir);
+        // the tests call doRetry themselves
+        ep.setRetryIntervalMS(3600000);
+        return ep;
+    }
+
+    @Test
+    public void testFileBacklog() throws IOException
+    {
+        TestRetryDrain.TestEndpoint ep = newEndpoint();
+        Assert.assertEquals(0, ep.getRetryBacklogDepth());
+        Assert.assertEquals(0, ep.getRetryBacklogAgeMS());
+
+        long before = System.currentTimeMillis();
+        ep.scheduleRetry("12345");
+        ep.scheduleRetry("1234567890");
+        ep.stopRetryTask();
+        Assert.assertEquals(2, ep.getRetryBacklogDepth());
+        Assert.assertEquals(15, ep.getRetryBacklogBytes());
+        long age = ep.getRetryBacklogAgeMS();
+        Assert.assertTrue(age >= 0 && age <= System.currentTimeMillis() - before + 1);
+
+        // a new endpoint on the same dir finds the files on disk
+        TestRetryDrain.TestEndpoint restarted = newEndpoint();
+        Assert.assertEquals(2, restarted.getRetryBacklogDepth());
+        Assert.assertEquals(15, restarted.getRetryBacklogBytes());
+
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(0, ep.getRetryBacklogDepth());
+        Assert.assertEquals(0, ep.getRetryBacklogBytes());
+        Assert.assertEquals(0, ep.getRetryBacklogAgeMS());
+        Assert.assertEquals(2, ep.getRetryBacklog().getDrainedCount());
+
+        // the other index heals on its next run
+        Assert.assertTrue(restarted.hasPendingRetries());
+        Assert.assertTrue(restarted.doRetry());
+        Assert.assertEquals(0, restarted.getRetryBacklogDepth());
+        Assert.assertFalse(restarted.hasPendingRetries());
+    }
+
+    @Test
+    public void testFailedRetryStaysIndexed() throws IOException
+    {
+        TestRetryDrain.TestEndpoint ep = newEndpoint();
+        ep.scheduleRetry("message");
+        ep.stopRetryTask();
+        ep.fail = true;
+        Assert.assertFalse(ep.doRetry());
+        Assert.assertEquals(1, ep.getRetryBacklogDepth());
+        ep.fail = false;
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(0, ep.getRetryBacklogDepth());
+    }
+
+    @Test
+    public void testJournalBacklog() throws IOException
+    {
+        TestRetryDrain.TestEndpoint ep = newEndpoint();
+        ep.useRetryJournal(64, false);
+        RetryJournal journal = ep.getRetryJournal();
+        for (int i = 0; i < 10; i++) {
+            ep.scheduleRetry("message " + i);
+        }
+        ep.stopRetryTask();
+        // 8 byte header + 9 byte payload per record
+        Assert.assertEquals(10, journal.getPendingCount());
+        Assert.assertEquals(170, journal.getPendingBytes());
+        Assert.assertEquals(10, ep.getRetryBacklogDepth());
+        Assert.assertTrue(journal.getOldestPendingTime() > 0);
+
+        RetryJournal.Record rec = journal.readNext();
+        journal.acknowledge(rec);
+        Assert.assertEquals(9, journal.getPendingCount());
+        Assert.assertEquals(153, journal.getPendingBytes());
+        journal.close();
+
+        // reopening counts what is left
+        journal = new RetryJournal(journal.getDir(), 64, false);
+        journal.open();
+        Assert.assertEquals(9, journal.getPendingCount());
+        Assert.assertEquals(153, journal.getPendingBytes());
+        Assert.assertEquals("message 0", rec.getContent());
+        // a batch ends at the segment boundary (3 records per segment)
+        List<RetryJournal.Record> batch = journal.readBatch(10);
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals("message 1", batch.get(0).getContent());
+        journal.acknowledge(batch.get(1));
+        Assert.assertEquals(7, journal.getPendingCount());
+        Assert.assertEquals(119, journal.getPendingBytes());
+        journal.close();
+
+        ep.retryJournal = null;
+        ep.useRetryJournal(64, false);
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(0, ep.getRetryBacklogDepth());
+        Assert.assertEquals(0, ep.getRetryJournal().getPendingBytes());
+        Assert.assertEquals(0, ep.getRetryBacklogAgeMS());
+        Assert.assertEquals(7, ep.getRetryBacklog().getDrainedCount());
+        ep.getRetryJournal().close();
+    }
+
+    @Test
+    public void testHandOverSharesBacklog() throws IOException
+    {
+        TestRetryDrain.TestEndpoint old = newEndpoint();
+        TestRetryDrain.TestEndpoint successor = newEndpoint();
+        old.handOverTo(successor);
+        Assert.assertSame(old.getRetryBacklog(), successor.getRetryBacklog());
+
+        // a message still in flight on the old endpoint
+        old.scheduleRetry("late");
+        Assert.assertEquals(1, successor.getRetryBacklogDepth());
+        Assert.assertTrue(successor.doRetry());
+        Assert.assertEquals(0, successor.getRetryBacklogDepth());
+    }
+
+    @Test
+    public void testDrainRate()
+    {
+        RetryBacklog backlog = new RetryBacklog();
+        backlog.recordDrained(50);
+        backlog.tick(1);
+        Assert.assertEquals(10.0, backlog.getDrainRate(), 0.001);
+        // one minute without deliveries decays the rate by 1/e
+        backlog.tick(60000 / RetryBacklog.TICK_MS);
+        Assert.assertEquals(10.0 / Math.E, backlog.getDrainRate(), 0.01);
+    }
+
+    @Test
+    public void testParseRetryFileTime()
+    {
+        String name = WebEndpoint.nextRetryFileName();
+        long time = RetryBacklog.parseRetryFileTime(name);
+        Assert.assertTrue(Math.abs(System.currentTimeMillis() - time) < 60000);
+        Assert.assertEquals(0, RetryBacklog.parseRetryFileTime("msg.txt"));
+    }
+}
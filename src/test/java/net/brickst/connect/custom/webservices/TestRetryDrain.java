@@ -0,0 +1,130 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRetryDrain
+{
+    // endpoint that records deliveries and can be told to fail
+    static class TestEndpoint extends WebEndpoint
+    {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean fail;
+        volatile int attempts;
+
+        public void initFromProperties(Properties props, String prefix) { }
+        public void initNetworkResources() { }
+
+        public void deliverMessage(String content)
+        {
+            attempts++;
+            if (fail) {
+                throw new RuntimeException("endpoint down");
+            }
+            delivered.add(content);
+        }
+    }
+
+    private File retryDir;
+
+    @Before
+    public void setup() throws IOException
+    {
+        retryDir = File.createTempFile("retryDrain", "");
+        retryDir.delete();
+        retryDir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        File[] list = retryDir.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            list[i].delete();
+        }
+        retryDir.delete();
+    }
+
+    private TestEndpoint newEndpoint(int count) throws IOException
+    {
+        TestEndpoint ep = new TestEndpoint();
+        ep.setRetryDir(retryDir);
+        for (int i = 0; i < count; i++) {
+            ep.writeMessageFile(retryDir, "message " + i + " é中");
+        }
+        return ep;
+    }
+
+    @Test
+    public void testOldestFirst() throws IOException
+    {
+        newEndpoint(20);
+        List<Path> oldest = WebEndpoint.listOldestRetryFiles(retryDir.toPath(), 5);
+        Assert.assertEquals(5, oldest.size());
+
+        String[] names = retryDir.list();
+        Arrays.sort(names);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(names[i], oldest.get(i).getFileName().toString());
+        }
+    }
+
+    @Test
+    public void testBatchBoundAndOrder() throws IOException
+    {
+        TestEndpoint ep = newEndpoint(25);
+        ep.setRetryBatchSize(10);
+
+        Assert.assertTrue(ep.doRetry());
+        Assert.assertEquals(10, ep.delivered.size());
+        Assert.assertTrue(ep.retryMorePending);
+        Assert.assertEquals(15, retryDir.list().length);
+
+        ep.doRetry();
+        ep.doRetry();
+        Assert.assertFalse(ep.retryMorePending);
+        Assert.assertEquals(0, retryDir.list().length);
+        Assert.assertEquals(25, ep.delivered.size());
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals("message " + i + " é中", ep.delivered.get(i));
+        }
+    }
+
+    @Test
+    public void testStopsAfterConsecutiveFailures() throws IOException
+    {
+        TestEndpoint ep = newEndpoint(50);
+        ep.setRetryMaxFailures(3);
+        ep.fail = true;
+
+        Assert.assertFalse(ep.doRetry());
+        Assert.assertEquals(3, ep.attempts);
+        Assert.assertFalse(ep.retryMorePending);
+        Assert.assertEquals(50, retryDir.list().length);
+    }
+
+    @Test
+    public void testParallelDrain() throws IOException
+    {
+        TestEndpoint ep = newEndpoint(200);
+        ep.setRetryParallelism(4);
+        try {
+            Assert.assertTrue(ep.doRetry());
+            Assert.assertEquals(200, ep.delivered.size());
+            Assert.assertEquals(0, retryDir.list().length);
+        } finally {
+            ep.setRetryParallelism(1);
+        }
+    }
+}
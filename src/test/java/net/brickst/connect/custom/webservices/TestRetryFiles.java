@@ -0,0 +1,125 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRetryFiles
+{
+    private File retryDir;
+
+    @Before
+    public void setup() throws IOException
+    {
+        retryDir = File.createTempFile("retryFiles", "");
+        retryDir.delete();
+        retryDir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        File[] list = retryDir.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            list[i].delete();
+        }
+        retryDir.delete();
+    }
+
+    @Test
+    public void testNamesUniqueAndOrdered()
+    {
+        int count = 10000;
+        String[] names = new String[count];
+        Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            names[i] = WebEndpoint.nextRetryFileName();
+            Assert.assertTrue(names[i].startsWith(WebEndpoint.RETRY_FILE_PREFIX));
+            Assert.assertTrue(names[i].endsWith(WebEndpoint.RETRY_FILE_SUFFIX));
+            Assert.assertTrue(seen.add(names[i]));
+        }
+        String[] sorted = names.clone();
+        Arrays.sort(sorted);
+        Assert.assertArrayEquals(names, sorted);
+    }
+
+    @Test
+    public void testBurstWithoutSleeping() throws Exception
+    {
+        final LogEndpoint lep = new LogEndpoint();
+        lep.initFromProperties(new Properties(), "test.");
+        lep.setRetryDir(retryDir);
+        lep.setRetryFsync(WebEndpoint.FsyncPolicy.BATCH, 60000);
+
+        final int threads = 8;
+        final int perThread = 100;
+        Thread[] workers = new Thread[threads];
+        long start = System.currentTimeMillis();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        try {
+                            lep.writeMessageFile(retryDir, "thread " + id + " msg " + i);
+                        } catch (IOException x) {
+                            throw new RuntimeException(x);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assert.assertEquals(threads * perThread, retryDir.listFiles().length);
+        // the old scheme slept up to a second per collision
+        Assert.assertTrue("took " + elapsed + " ms", elapsed < 10000);
+
+        lep.syncPendingRetryFiles();
+        Assert.assertTrue(lep.retryFsyncPending.isEmpty());
+        lep.setRetryFsync(WebEndpoint.FsyncPolicy.NONE, 0);
+    }
+
+    @Test
+    public void testFsyncBatchAfterSchedulerShutdown() throws IOException
+    {
+        LogEndpoint lep = new LogEndpoint();
+        lep.initFromProperties(new Properties(), "test.");
+        lep.setRetryDir(retryDir);
+        lep.setRetryFsync(WebEndpoint.FsyncPolicy.BATCH, 60000);
+
+        lep.writeMessageFile(retryDir, "batched");
+        Assert.assertFalse(lep.retryFsyncPending.isEmpty());
+
+        // the batch task is cancelled; later files must not pile up
+        Assert.assertTrue(WebEndpoint.shutdownRetryScheduler(1000));
+        lep.writeMessageFile(retryDir, "after shutdown");
+        Assert.assertTrue(lep.retryFsyncPending.isEmpty());
+        Assert.assertEquals(WebEndpoint.FsyncPolicy.MESSAGE, lep.getRetryFsync());
+    }
+
+    @Test
+    public void testFsyncPerMessage() throws IOException
+    {
+        LogEndpoint lep = new LogEndpoint();
+        lep.initFromProperties(new Properties(), "test.");
+        lep.setRetryDir(retryDir);
+        lep.setRetryFsync(WebEndpoint.FsyncPolicy.MESSAGE, 0);
+
+        File f = lep.writeMessageFile(retryDir, "durable");
+        Assert.assertTrue(f.isFile());
+        Assert.assertTrue(lep.retryFsyncPending.isEmpty());
+    }
+}
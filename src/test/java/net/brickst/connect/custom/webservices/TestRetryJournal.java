@@ -0,0 +1,188 @@
+package net.brickst.connect.custom.webservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRetryJournal
+{
+    private File journalDir;
+
+    @Before
+    public void setup() throws IOException
+    {
+        journalDir = File.createTempFile("journal", "");
+        journalDir.delete();
+        journalDir.mkdirs();
+    }
+
+    @After
+    public void cleanup()
+    {
+        File[] list = journalDir.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            list[i].delete();
+        }
+        journalDir.delete();
+    }
+
+    private static List<String> drain(RetryJournal journal, int max) throws IOException
+    {
+        List<String> result = new ArrayList<String>();
+        while (result.size() < max) {
+            RetryJournal.Record rec = journal.readNext();
+            if (rec == null) {
+                break;
+            }
+            result.add(rec.getContent());
+            journal.acknowledge(rec);
+        }
+        return result;
+    }
+
+    private int countSegments()
+    {
+        File[] list = journalDir.listFiles();
+        int count = 0;
+        for (int i = 0; i < list.length; i++) {
+            if (RetryJournal.parseSegmentName(list[i].getName()) >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testAppendAndDrain() throws IOException
+    {
+        RetryJournal journal = new RetryJournal(journalDir, 1024, false);
+        journal.open();
+        Assert.assertTrue(journal.isEmpty());
+
+        for (int i = 0; i < 10; i++) {
+            journal.append("message " + i + " é中");
+        }
+        Assert.assertFalse(journal.isEmpty());
+
+        // readNext without acknowledge returns the same record
+        Assert.assertEquals("message 0 é中", journal.readNext().getContent());
+        Assert.assertEquals("message 0 é中", journal.readNext().getContent());
+
+        List<String> got = drain(journal, 100);
+        Assert.assertEquals(10, got.size());
+        Assert.assertEquals("message 9 é中", got.get(9));
+        Assert.assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testSegmentRollAndCompaction() throws IOException
+    {
+        RetryJournal journal = new RetryJournal(journalDir, 256, false);
+        journal.open();
+        for (int i = 0; i < 50; i++) {
+            journal.append("0123456789012345678901234567890123456789 " + i);
+        }
+        Assert.assertTrue(countSegments() > 5);
+
+        Assert.assertEquals(25, drain(journal, 25).size());
+        journal.checkpoint();
+        int remaining = countSegments();
+        Assert.assertTrue(remaining < 10);
+
+        Assert.assertEquals(25, drain(journal, 100).size());
+        journal.checkpoint();
+        Assert.assertEquals(1, countSegments());
+        Assert.assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testReopenResumesAtCheckpoint() throws IOException
+    {
+        RetryJournal journal = new RetryJournal(journalDir, 4096, true);
+        journal.open();
+        for (int i = 0; i < 10; i++) {
+            journal.append("m" + i);
+        }
+        drain(journal, 4);
+        journal.checkpoint();
+        // delivered but not checkpointed; simulates a crash
+        drain(journal, 2);
+
+        RetryJournal reopened = new RetryJournal(journalDir, 4096, true);
+        reopened.open();
+        List<String> got = drain(reopened, 100);
+        // at-least-once: m4 and m5 are delivered again, nothing is lost
+        Assert.assertEquals(6, got.size());
+        Assert.assertEquals("m4", got.get(0));
+        Assert.assertEquals("m9", got.get(5));
+        reopened.close();
+    }
+
+    @Test
+    public void testTornRecordTruncated() throws IOException
+    {
+        RetryJournal journal = new RetryJournal(journalDir, 4096, true);
+        journal.open();
+        journal.append("first");
+        journal.append("second");
+        journal.close();
+
+        // chop the last record in half
+        File seg = journal.segmentFile(0);
+        RandomAccessFile raf = new RandomAccessFile(seg, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        RetryJournal reopened = new RetryJournal(journalDir, 4096, true);
+        reopened.open();
+        reopened.append("third");
+        List<String> got = drain(reopened, 100);
+        Assert.assertEquals(2, got.size());
+        Assert.assertEquals("first", got.get(0));
+        Assert.assertEquals("third", got.get(1));
+        reopened.close();
+    }
+
+    @Test
+    public void testEndpointRetryThroughJournal() throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty("test.failPercentage", "1.0");
+        LogEndpoint lep = new LogEndpoint();
+        lep.initFromProperties(props, "test.");
+        lep.setRetryDir(journalDir);
+        lep.setRetryIntervalMS(60000);
+        lep.useRetryJournal(4096, false);
+
+        for (int i = 0; i < 5; i++) {
+            lep.scheduleRetry("retry " + i);
+        }
+        lep.stopRetryTask();
+
+        // endpoint down: nothing leaves the journal
+        Assert.assertFalse(lep.doRetry());
+        Assert.assertFalse(lep.getRetryJournal().isEmpty());
+
+        // endpoint back up
+        lep.setFailPercentage(0);
+        Assert.assertTrue(lep.doRetry());
+        Assert.assertTrue(lep.getRetryJournal().isEmpty());
+
+        lep.getRetryJournal().close();
+        File[] list = new File(journalDir, WebEndpoint.RETRY_JOURNAL_DIR).listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            list[i].delete();
+        }
+        new File(journalDir, WebEndpoint.RETRY_JOURNAL_DIR).delete();
+    }
+}
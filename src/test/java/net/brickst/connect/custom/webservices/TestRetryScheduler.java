@@ -0,0 +1,197 @@
+package net.brickst.connect.custom.webservices;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRetryScheduler
+{
+    // endpoint whose retry run can hang or throw
+    static class TestEndpoint extends WebEndpoint
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        volatile CountDownLatch hang;
+        volatile boolean fail;
+        volatile boolean interrupted;
+
+        public void initFromProperties(Properties props, String prefix) { }
+        public void initNetworkResources() { }
+        public void deliverMessage(String content) { }
+
+        public boolean doRetry()
+        {
+            runs.incrementAndGet();
+            if (hang != null) {
+                try {
+                    hang.await();
+                } catch (InterruptedException ix) {
+                    // stop hanging
+                    interrupted = true;
+                }
+            }
+            if (fail) {
+                throw new RuntimeException("retry failure");
+            }
+            return true;
+        }
+    }
+
+    @After
+    public void cleanup()
+    {
+        WebEndpoint.shutdownRetryScheduler(1000);
+    }
+
+    @Test
+    public void testBackoffDelay()
+    {
+        Assert.assertEquals(1000, RetryScheduler.backoffDelay(1000, 60000, 0, 0));
+        Assert.assertEquals(2000, RetryScheduler.backoffDelay(1000, 60000, 1, 0));
+        Assert.assertEquals(8000, RetryScheduler.backoffDelay(1000, 60000, 3, 0));
+        Assert.assertEquals(60000, RetryScheduler.backoffDelay(1000, 60000, 30, 0));
+        Assert.assertEquals(1000, RetryScheduler.backoffDelay(1000, 1000, 5, 0));
+
+        for (int i = 0; i < 100; i++) {
+            long d = RetryScheduler.backoffDelay(1000, 60000, 0, 0.2);
+            Assert.assertTrue(d >= 800 && d <= 1200);
+        }
+    }
+
+    @Test
+    public void testHungEndpointDoesNotBlockOthers() throws Exception
+    {
+        WebEndpoint.setRetryThreads(2);
+
+        TestEndpoint hung = new TestEndpoint();
+        hung.hang = new CountDownLatch(1);
+        hung.setRetryIntervalMS(10);
+        hung.setRetryJitter(0);
+
+        TestEndpoint healthy = new TestEndpoint();
+        healthy.setRetryIntervalMS(10);
+        healthy.setRetryJitter(0);
+
+        hung.startRetryTask();
+        healthy.startRetryTask();
+        Thread.sleep(300);
+
+        Assert.assertEquals(1, hung.runs.get());
+        Assert.assertTrue(healthy.runs.get() > 5);
+
+        hung.stopRetryTask();
+        healthy.stopRetryTask();
+        hung.hang.countDown();
+    }
+
+    @Test
+    public void testExceptionKeepsTaskAlive() throws Exception
+    {
+        TestEndpoint ep = new TestEndpoint();
+        ep.fail = true;
+        ep.setRetryIntervalMS(10);
+        ep.setMaxRetryIntervalMS(20);
+        ep.setRetryJitter(0);
+        ep.startRetryTask();
+        Thread.sleep(300);
+        ep.stopRetryTask();
+
+        Assert.assertTrue(ep.runs.get() > 3);
+    }
+
+    @Test
+    public void testStopRetryTask() throws Exception
+    {
+        TestEndpoint ep = new TestEndpoint();
+        ep.setRetryIntervalMS(10);
+        ep.startRetryTask();
+        Thread.sleep(100);
+        ep.stopRetryTask();
+        int runs = ep.runs.get();
+        Thread.sleep(100);
+        Assert.assertEquals(runs, ep.runs.get());
+
+        // shutdown waits for the pool and a later start gets a new one
+        Assert.assertTrue(WebEndpoint.shutdownRetryScheduler(1000));
+        ep.startRetryTask();
+        Thread.sleep(100);
+        Assert.assertTrue(ep.runs.get() > runs);
+        ep.stopRetryTask();
+    }
+
+    @Test
+    public void testShutdownDuringRetry() throws Exception
+    {
+        // the running retry is allowed to finish
+        final TestEndpoint ep = new TestEndpoint();
+        ep.hang = new CountDownLatch(1);
+        ep.setRetryIntervalMS(10);
+        ep.setRetryJitter(0);
+        ep.startRetryTask();
+        Thread.sleep(100);
+        Assert.assertEquals(1, ep.runs.get());
+
+        Thread release = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ix) {
+                    // release now
+                }
+                ep.hang.countDown();
+            }
+        };
+        release.start();
+
+        // the running task re-arms under the endpoint's lock; the
+        // shutdown must not wait for it while holding the scheduler lock
+        Assert.assertTrue(WebEndpoint.shutdownRetryScheduler(1000));
+        Assert.assertFalse(ep.interrupted);
+        ep.hang = null;
+        Thread.sleep(100);
+        Assert.assertEquals(1, ep.runs.get());
+        Assert.assertFalse(ep.hasRetryTask());
+
+        // an explicit start re-arms on a new scheduler
+        ep.startRetryTask();
+        Thread.sleep(100);
+        Assert.assertTrue(ep.runs.get() > 1);
+        ep.stopRetryTask();
+    }
+
+    @Test
+    public void testShutdownInterruptsHungRetry() throws Exception
+    {
+        TestEndpoint ep = new TestEndpoint();
+        ep.hang = new CountDownLatch(1);
+        ep.setRetryIntervalMS(10);
+        ep.startRetryTask();
+        Thread.sleep(100);
+
+        // still running when the timeout expires
+        Assert.assertFalse(WebEndpoint.shutdownRetryScheduler(100));
+        Thread.sleep(100);
+        Assert.assertTrue(ep.interrupted);
+        Assert.assertEquals(1, ep.runs.get());
+    }
+
+    @Test
+    public void testStartAfterCancelledTask() throws Exception
+    {
+        // the task is still pending when the scheduler shuts down
+        TestEndpoint ep = new TestEndpoint();
+        ep.setRetryIntervalMS(60000);
+        ep.startRetryTask();
+        Assert.assertTrue(ep.hasRetryTask());
+        Assert.assertTrue(WebEndpoint.shutdownRetryScheduler(1000));
+
+        ep.setRetryIntervalMS(10);
+        ep.startRetryTask();
+        Thread.sleep(100);
+        Assert.assertTrue(ep.runs.get() > 0);
+        ep.stopRetryTask();
+    }
+}